@@ -414,6 +414,9 @@ public abstract class AuthenticatorBase extends ValveBase
     public void invoke(Request request, Response response)
         throws IOException, ServletException {
 
+        request.getCoyoteRequest().markPhase(
+                org.apache.coyote.Request.PHASE_AUTH);
+
         if (log.isDebugEnabled()) {
             log.debug("Security checking request " +
                 request.getMethod() + " " + request.getRequestURI());
@@ -29,9 +29,13 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleState;
 import org.apache.catalina.Service;
 import org.apache.catalina.core.AprLifecycleListener;
+import org.apache.catalina.mapper.MappingCache;
 import org.apache.catalina.util.LifecycleMBeanBase;
 import org.apache.coyote.Adapter;
 import org.apache.coyote.ProtocolHandler;
+import org.apache.coyote.UpgradeProtocol;
+import org.apache.coyote.http11.AbstractHttp11JsseProtocol;
+import org.apache.coyote.http11.AbstractHttp11Protocol;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.IntrospectionUtils;
@@ -174,6 +178,12 @@ public class Connector extends LifecycleMBeanBase  {
      */
     protected int maxParameterCount = 10000;
 
+
+    /**
+     * Should request parameter values only be decoded when they are read?
+     */
+    protected boolean lazyParameterDecoding = false;
+
     /**
      * Maximum size of a POST which will be automatically parsed by the
      * container. 2MB by default.
@@ -205,6 +215,38 @@ public class Connector extends LifecycleMBeanBase  {
     protected boolean useIPVHosts = false;
 
 
+    /**
+     * The maximum number of mapping results to cache. Zero disables the
+     * mapping cache.
+     */
+    protected int mappingCacheSize = 0;
+
+
+    /**
+     * The cache of mapping results for this connector, if enabled.
+     */
+    protected MappingCache mappingCache = null;
+
+
+    /**
+     * The size of the pooled buffers used to hold small multipart request
+     * parts. Zero disables the pool.
+     */
+    protected int partBufferSize = 0;
+
+
+    /**
+     * The maximum number of part buffers to allocate.
+     */
+    protected int partBufferPoolSize = 100;
+
+
+    /**
+     * The pool of part buffers for this connector, if enabled.
+     */
+    protected PartBufferPool partBufferPool = null;
+
+
     /**
      * Coyote Protocol handler class name.
      * Defaults to the Coyote HTTP/1.1 protocolHandler.
@@ -420,6 +462,26 @@ public class Connector extends LifecycleMBeanBase  {
     }
 
 
+    /**
+     * Return <code>true</code> if request parameter values are decoded when
+     * they are first read rather than when the parameters are parsed.
+     */
+    public boolean getLazyParameterDecoding() {
+        return lazyParameterDecoding;
+    }
+
+
+    /**
+     * Set whether request parameter values are decoded when they are first
+     * read rather than when the parameters are parsed.
+     *
+     * @param lazyParameterDecoding The new setting
+     */
+    public void setLazyParameterDecoding(boolean lazyParameterDecoding) {
+        this.lazyParameterDecoding = lazyParameterDecoding;
+    }
+
+
     /**
      * Return the maximum size of a POST which will be automatically
      * parsed by the container.
@@ -844,6 +906,108 @@ public class Connector extends LifecycleMBeanBase  {
     }
 
 
+    /**
+     * @return the maximum number of mapping results cached by this connector.
+     */
+    public int getMappingCacheSize() {
+        return mappingCacheSize;
+    }
+
+    /**
+     * Set the maximum number of mapping results (host and URI to host,
+     * context and wrapper) cached by this connector. Zero, the default,
+     * disables the cache. The size is applied when the connector is
+     * initialised.
+     *
+     * @param mappingCacheSize The maximum number of results to cache
+     */
+    public void setMappingCacheSize(int mappingCacheSize) {
+        this.mappingCacheSize = mappingCacheSize;
+    }
+
+    /**
+     * @return the mapping cache of this connector or <code>null</code> if it
+     *         is disabled.
+     */
+    public MappingCache getMappingCache() {
+        return mappingCache;
+    }
+
+    public long getMappingCacheHitCount() {
+        MappingCache mappingCache = this.mappingCache;
+        return mappingCache == null ? 0 : mappingCache.getHitCount();
+    }
+
+    public long getMappingCacheMissCount() {
+        MappingCache mappingCache = this.mappingCache;
+        return mappingCache == null ? 0 : mappingCache.getMissCount();
+    }
+
+    public double getMappingCacheHitRatio() {
+        MappingCache mappingCache = this.mappingCache;
+        return mappingCache == null ? 0 : mappingCache.getHitRatio();
+    }
+
+
+    /**
+     * @return the size in bytes of the pooled buffers used to hold small
+     *         multipart request parts.
+     */
+    public int getPartBufferSize() {
+        return partBufferSize;
+    }
+
+    /**
+     * Set the size of the pooled, direct buffers used to hold multipart
+     * request parts. Parts no larger than this are never written to a
+     * temporary file. Zero, the default, disables the pool. The size is
+     * applied when the connector is initialised.
+     *
+     * @param partBufferSize The buffer size in bytes
+     */
+    public void setPartBufferSize(int partBufferSize) {
+        this.partBufferSize = partBufferSize;
+    }
+
+    /**
+     * @return the maximum number of part buffers allocated by this
+     *         connector.
+     */
+    public int getPartBufferPoolSize() {
+        return partBufferPoolSize;
+    }
+
+    /**
+     * Set the maximum number of part buffers to allocate. This bounds the
+     * direct memory used by the pool. When every buffer is in use, parts are
+     * handled as if the pool were disabled. The size is applied when the
+     * connector is initialised.
+     *
+     * @param partBufferPoolSize The maximum number of buffers to allocate
+     */
+    public void setPartBufferPoolSize(int partBufferPoolSize) {
+        this.partBufferPoolSize = partBufferPoolSize;
+    }
+
+    /**
+     * @return the part buffer pool of this connector or <code>null</code> if
+     *         it is disabled.
+     */
+    public PartBufferPool getPartBufferPool() {
+        return partBufferPool;
+    }
+
+    public long getPartBufferPooledCount() {
+        PartBufferPool partBufferPool = this.partBufferPool;
+        return partBufferPool == null ? 0 : partBufferPool.getPooledCount();
+    }
+
+    public long getPartBufferOverflowCount() {
+        PartBufferPool partBufferPool = this.partBufferPool;
+        return partBufferPool == null ? 0 : partBufferPool.getOverflowCount();
+    }
+
+
     public String getExecutorName() {
         Object obj = protocolHandler.getExecutor();
         if (obj instanceof org.apache.catalina.Executor) {
@@ -881,6 +1045,38 @@ public class Connector extends LifecycleMBeanBase  {
     }
 
 
+    /**
+     * Add an upgrade protocol to this connector. Upgrade protocols are only
+     * supported by the NIO and NIO2 HTTP/1.1 protocol handlers. For any other
+     * protocol handler a warning is logged and the protocol is ignored.
+     *
+     * @param upgradeProtocol The protocol to add
+     */
+    public void addUpgradeProtocol(UpgradeProtocol upgradeProtocol) {
+        if (protocolHandler instanceof AbstractHttp11Protocol<?> &&
+                ((AbstractHttp11Protocol<?>) protocolHandler).isUpgradeProtocolSupported()) {
+            ((AbstractHttp11Protocol<?>) protocolHandler).addUpgradeProtocol(
+                    upgradeProtocol);
+        } else {
+            log.warn(sm.getString("coyoteConnector.upgradeProtocolNotSupported",
+                    upgradeProtocol.getClass().getName(), getProtocolHandlerClassName()));
+        }
+    }
+
+
+    /**
+     * Obtain the upgrade protocols configured for this connector.
+     *
+     * @return The upgrade protocols or an empty array if none are configured
+     */
+    public UpgradeProtocol[] findUpgradeProtocols() {
+        if (protocolHandler instanceof AbstractHttp11Protocol<?>) {
+            return ((AbstractHttp11Protocol<?>) protocolHandler).findUpgradeProtocols();
+        }
+        return new UpgradeProtocol[0];
+    }
+
+
     protected String createObjectNameKeyProperties(String type) {
 
         Object addressObj = getProperty("address");
@@ -940,10 +1136,35 @@ public class Connector extends LifecycleMBeanBase  {
 
         super.initInternal();
 
+        // Initialize mapping cache
+        if (mappingCacheSize > 0) {
+            mappingCache = new MappingCache(mappingCacheSize);
+        } else {
+            mappingCache = null;
+        }
+
+        // Initialize part buffer pool
+        if (partBufferSize > 0) {
+            partBufferPool = new PartBufferPool(partBufferSize, partBufferPoolSize);
+        } else {
+            partBufferPool = null;
+        }
+
         // Initialize adapter
         adapter = new CoyoteAdapter(this);
         protocolHandler.setAdapter(adapter);
 
+        // Session cache groups are not shared beyond the owning Server
+        if (protocolHandler instanceof AbstractHttp11JsseProtocol<?>) {
+            Object scope = this;
+            Service service = getService();
+            if (service != null) {
+                scope = service.getServer() != null ? service.getServer() : service;
+            }
+            ((AbstractHttp11JsseProtocol<?>) protocolHandler).setSessionCacheGroupScope(
+                    scope);
+        }
+
         // Make sure parseBodyMethodsSet has a default
         if( null == parseBodyMethodsSet ) {
             setParseBodyMethods(getParseBodyMethods());
@@ -982,6 +1203,10 @@ public class Connector extends LifecycleMBeanBase  {
 
         setState(LifecycleState.STARTING);
 
+        if (mappingCache != null && service != null) {
+            service.getMapper().addMappingCache(mappingCache);
+        }
+
         try {
             protocolHandler.start();
         } catch (Exception e) {
@@ -1013,6 +1238,13 @@ public class Connector extends LifecycleMBeanBase  {
             throw new LifecycleException
                 (sm.getString
                  ("coyoteConnector.protocolHandlerStopFailed"), e);
+        } finally {
+            if (mappingCache != null) {
+                if (service != null) {
+                    service.getMapper().removeMappingCache(mappingCache);
+                }
+                mappingCache.clear();
+            }
         }
     }
 
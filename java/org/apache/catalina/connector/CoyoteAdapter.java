@@ -37,6 +37,7 @@ import org.apache.catalina.authenticator.AuthenticatorBase;
 import org.apache.catalina.comet.CometEvent;
 import org.apache.catalina.comet.CometEvent.EventType;
 import org.apache.catalina.core.AsyncContextImpl;
+import org.apache.catalina.mapper.MappingCache;
 import org.apache.catalina.util.ServerInfo;
 import org.apache.catalina.util.SessionConfig;
 import org.apache.catalina.util.URLEncoder;
@@ -491,11 +492,13 @@ public class CoyoteAdapter implements Adapter {
         boolean postParseSuccess = false;
 
         try {
+            req.markPhase(org.apache.coyote.Request.PHASE_SERVICE);
             // Parse and set Catalina and configuration specific
             // request parameters
             req.getRequestProcessor().setWorkerThreadName(THREAD_NAME.get());
             postParseSuccess = postParseRequest(req, request, res, response);
             if (postParseSuccess) {
+                req.markPhase(org.apache.coyote.Request.PHASE_MAPPED);
                 //check valves if we support async
                 request.setAsyncSupported(connector.getService().getContainer().getPipeline().isAsyncSupported());
                 // Calling the container
@@ -885,10 +888,16 @@ public class CoyoteAdapter implements Adapter {
         Context versionContext = null;
         boolean mapRequired = true;
 
+        MappingCache mappingCache = connector.getMappingCache();
         while (mapRequired) {
             // This will map the the latest version by default
-            connector.getService().getMapper().map(serverName, decodedURI,
-                    version, request.getMappingData());
+            if (version == null && mappingCache != null) {
+                mappingCache.map(connector.getService().getMapper(),
+                        serverName, decodedURI, request.getMappingData());
+            } else {
+                connector.getService().getMapper().map(serverName, decodedURI,
+                        version, request.getMappingData());
+            }
 
             // If there is no context at this point, it is likely no ROOT context
             // has been deployed
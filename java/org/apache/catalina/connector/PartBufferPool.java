@@ -0,0 +1,140 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.connector;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tomcat.util.collections.SynchronizedStack;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.FileItemFactory;
+
+/**
+ * A pool of fixed size, direct buffers used to hold small multipart request
+ * parts. Parts that fit in a single buffer are never written to a temporary
+ * file, whatever the <code>file-size-threshold</code> of the servlet. Larger
+ * parts are handed over to the factory configured by the servlet's
+ * multipart configuration as soon as they overflow the buffer.
+ * <p>
+ * The pool never allocates more than <code>poolSize</code> buffers so the
+ * direct memory it uses is bounded. When every buffer is in use, further
+ * parts are passed straight to the overflow factory. Buffers are returned to
+ * the pool when the part is deleted, which happens at the latest when the
+ * request is recycled.
+ */
+public final class PartBufferPool {
+
+    private final int bufferSize;
+    private final int poolSize;
+    private final SynchronizedStack<ByteBuffer> buffers;
+    private final AtomicInteger allocatedCount = new AtomicInteger(0);
+
+    private final AtomicLong pooledCount = new AtomicLong(0);
+    private final AtomicLong overflowCount = new AtomicLong(0);
+
+
+    /**
+     * @param bufferSize The size in bytes of each buffer and therefore the
+     *                   largest part that will be held in a pooled buffer
+     * @param poolSize   The maximum number of buffers to allocate
+     */
+    public PartBufferPool(int bufferSize, int poolSize) {
+        this.bufferSize = bufferSize;
+        this.poolSize = poolSize;
+        this.buffers = new SynchronizedStack<>(
+                Math.max(1, Math.min(poolSize, 128)), poolSize);
+    }
+
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+
+    /**
+     * @return the number of parts that were held entirely in a pooled buffer
+     */
+    public long getPooledCount() {
+        return pooledCount.get();
+    }
+
+
+    /**
+     * @return the number of parts that were not held in a pooled buffer,
+     *         either because they were too large or because no buffer was
+     *         available
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+
+    /**
+     * Create a factory for the items of a single request.
+     *
+     * @param overflowFactory The factory used to create the items that large
+     *                        parts are transferred to
+     * @return a factory that creates items backed by this pool
+     */
+    public FileItemFactory createFileItemFactory(
+            final FileItemFactory overflowFactory) {
+        return new FileItemFactory() {
+            @Override
+            public FileItem createItem(String fieldName, String contentType,
+                    boolean isFormField, String fileName) {
+                return new PooledFileItem(PartBufferPool.this, overflowFactory,
+                        fieldName, contentType, isFormField, fileName);
+            }
+        };
+    }
+
+
+    /**
+     * @return a buffer or <code>null</code> if all the buffers that the pool
+     *         may allocate are in use
+     */
+    ByteBuffer allocate() {
+        ByteBuffer buffer = buffers.pop();
+        if (buffer == null) {
+            if (allocatedCount.incrementAndGet() > poolSize) {
+                allocatedCount.decrementAndGet();
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+
+    void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (!buffers.push(buffer)) {
+            allocatedCount.decrementAndGet();
+        }
+    }
+
+
+    void pooled() {
+        pooledCount.incrementAndGet();
+    }
+
+
+    void overflowed() {
+        overflowCount.incrementAndGet();
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.connector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import org.apache.tomcat.util.buf.B2CConverter;
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.FileItemFactory;
+import org.apache.tomcat.util.http.fileupload.FileItemHeaders;
+import org.apache.tomcat.util.http.fileupload.ParameterParser;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItem;
+import org.apache.tomcat.util.http.fileupload.util.Streams;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * A {@link FileItem} that holds its content in a buffer borrowed from a
+ * {@link PartBufferPool}. If the content does not fit in the buffer, it is
+ * transferred once to an item created by the overflow factory and all further
+ * content is written straight to that item. If the pool has no buffer
+ * available, all the content is written to the overflow item.
+ * <p>
+ * Reads of the pooled buffer and {@link #delete()}, which returns the buffer
+ * to the pool, synchronize on the item so that content of a later request
+ * that reuses the buffer can never be exposed.
+ */
+final class PooledFileItem implements FileItem {
+
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    private final PartBufferPool pool;
+    private final FileItemFactory overflowFactory;
+
+    private String fieldName;
+    private final String contentType;
+    private boolean isFormField;
+    private final String fileName;
+    private FileItemHeaders headers;
+
+    /**
+     * The pooled buffer holding the content. <code>null</code> once the
+     * content has overflowed or the item has been deleted.
+     */
+    private ByteBuffer buffer;
+    private FileItem overflow;
+    private OutputStream overflowOutputStream;
+    private boolean closed = false;
+
+
+    PooledFileItem(PartBufferPool pool, FileItemFactory overflowFactory,
+            String fieldName, String contentType, boolean isFormField,
+            String fileName) {
+        this.pool = pool;
+        this.overflowFactory = overflowFactory;
+        this.fieldName = fieldName;
+        this.contentType = contentType;
+        this.isFormField = isFormField;
+        this.fileName = fileName;
+    }
+
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (overflow != null) {
+            return overflow.getInputStream();
+        }
+        return new BufferInputStream(content());
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return Streams.checkFileName(fileName);
+    }
+
+    @Override
+    public boolean isInMemory() {
+        if (overflow != null) {
+            return overflow.isInMemory();
+        }
+        return true;
+    }
+
+    @Override
+    public long getSize() {
+        if (overflow != null) {
+            return overflow.getSize();
+        }
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            return 0;
+        }
+        return closed ? buffer.limit() : buffer.position();
+    }
+
+    @Override
+    public synchronized byte[] get() {
+        if (overflow != null) {
+            return overflow.get();
+        }
+        try {
+            ByteBuffer content = content();
+            byte[] result = new byte[content.remaining()];
+            content.get(result);
+            return result;
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    @Override
+    public synchronized String getString(String encoding)
+            throws UnsupportedEncodingException {
+        if (overflow != null) {
+            return overflow.getString(encoding);
+        }
+        // Decode directly from the pooled buffer rather than copying it
+        // to the heap first
+        try {
+            return B2CConverter.getCharset(encoding).decode(content()).toString();
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    @Override
+    public String getString() {
+        ParameterParser parser = new ParameterParser();
+        parser.setLowerCaseNames(true);
+        // Parameter parser can handle null input
+        Map<String,String> params = parser.parse(getContentType(), ';');
+        String charset = params.get("charset");
+        if (charset == null) {
+            charset = DiskFileItem.DEFAULT_CHARSET;
+        }
+        try {
+            return getString(charset);
+        } catch (UnsupportedEncodingException e) {
+            return new String(get());
+        }
+    }
+
+    @Override
+    public synchronized void write(File file) throws Exception {
+        if (overflow != null) {
+            overflow.write(file);
+            return;
+        }
+        ByteBuffer content = content();
+        try (FileOutputStream fos = new FileOutputStream(file);
+                FileChannel channel = fos.getChannel()) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void delete() {
+        if (overflow != null) {
+            overflow.delete();
+        }
+        ByteBuffer buffer = this.buffer;
+        if (buffer != null) {
+            this.buffer = null;
+            pool.release(buffer);
+        }
+    }
+
+    @Override
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    @Override
+    public void setFieldName(String name) {
+        fieldName = name;
+        if (overflow != null) {
+            overflow.setFieldName(name);
+        }
+    }
+
+    @Override
+    public boolean isFormField() {
+        return isFormField;
+    }
+
+    @Override
+    public void setFormField(boolean state) {
+        isFormField = state;
+        if (overflow != null) {
+            overflow.setFormField(state);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (buffer == null && overflow == null) {
+            buffer = pool.allocate();
+            if (buffer == null) {
+                overflow();
+            }
+        }
+        return new ItemOutputStream();
+    }
+
+    @Override
+    public FileItemHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public void setHeaders(FileItemHeaders headers) {
+        this.headers = headers;
+        if (overflow != null) {
+            overflow.setHeaders(headers);
+        }
+    }
+
+
+    /**
+     * @return a read-only view of the content that does not affect the
+     *         position of the pooled buffer
+     * @throws IOException if the item has been deleted and the buffer returned
+     *                     to the pool
+     */
+    private ByteBuffer content() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            throw new IOException(sm.getString("coyoteRequest.partDeleted",
+                    fieldName));
+        }
+        ByteBuffer content = buffer.asReadOnlyBuffer();
+        if (!closed) {
+            content.flip();
+        }
+        return content;
+    }
+
+
+    private OutputStream overflow() throws IOException {
+        if (overflowOutputStream == null) {
+            overflow = overflowFactory.createItem(fieldName, contentType,
+                    isFormField, fileName);
+            overflowOutputStream = overflow.getOutputStream();
+            pool.overflowed();
+            ByteBuffer buffer = this.buffer;
+            if (buffer != null) {
+                this.buffer = null;
+                buffer.flip();
+                byte[] content = new byte[buffer.remaining()];
+                buffer.get(content);
+                overflowOutputStream.write(content);
+                pool.release(buffer);
+            }
+        }
+        return overflowOutputStream;
+    }
+
+
+    private class ItemOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            if (overflowOutputStream == null && buffer.hasRemaining()) {
+                buffer.put((byte) b);
+            } else {
+                overflow().write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (overflowOutputStream == null && buffer.remaining() >= len) {
+                buffer.put(b, off, len);
+            } else {
+                overflow().write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (overflowOutputStream != null) {
+                overflowOutputStream.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (overflowOutputStream != null) {
+                overflowOutputStream.close();
+            } else {
+                buffer.flip();
+                pool.pooled();
+            }
+        }
+    }
+
+
+    /**
+     * Reads from a view of the pooled buffer. Reads fail once the item has
+     * been deleted.
+     */
+    private class BufferInputStream extends InputStream {
+
+        private final ByteBuffer content;
+
+        BufferInputStream(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized (PooledFileItem.this) {
+                checkDeleted();
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+                return content.get() & 0xFF;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (PooledFileItem.this) {
+                checkDeleted();
+                if (len == 0) {
+                    return 0;
+                }
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, content.remaining());
+                content.get(b, off, n);
+                return n;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            synchronized (PooledFileItem.this) {
+                checkDeleted();
+                int skipped = (int) Math.max(0, Math.min(n, content.remaining()));
+                content.position(content.position() + skipped);
+                return skipped;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (PooledFileItem.this) {
+                checkDeleted();
+                return content.remaining();
+            }
+        }
+
+        private void checkDeleted() throws IOException {
+            if (buffer == null) {
+                throw new IOException(sm.getString(
+                        "coyoteRequest.partDeleted", fieldName));
+            }
+        }
+    }
+}
@@ -2812,7 +2812,15 @@ public class Request
             factory.setSizeThreshold(mce.getFileSizeThreshold());
 
             ServletFileUpload upload = new ServletFileUpload();
-            upload.setFileItemFactory(factory);
+            PartBufferPool partBufferPool = getConnector().getPartBufferPool();
+            if (partBufferPool == null) {
+                upload.setFileItemFactory(factory);
+            } else {
+                // Small parts are held in pooled buffers and only parts that
+                // overflow them are passed to the disk based factory
+                upload.setFileItemFactory(
+                        partBufferPool.createFileItemFactory(factory));
+            }
             upload.setFileSizeMax(mce.getMaxFileSize());
             upload.setSizeMax(mce.getMaxRequestSize());
 
@@ -3149,6 +3157,7 @@ public class Request
         try {
             // Set this every time in case limit has been changed via JMX
             parameters.setLimit(getConnector().getMaxParameterCount());
+            parameters.setLazyDecoding(getConnector().getLazyParameterDecoding());
 
             // getCharacterEncoding() may have been overridden to search for
             // hidden form field containing request encoding
@@ -117,6 +117,12 @@ final class ApplicationFilterChain implements FilterChain, CometFilterChain {
     private Servlet servlet = null;
 
 
+    /**
+     * The connector request in which phase times are recorded, if any.
+     */
+    private org.apache.coyote.Request coyoteRequest = null;
+
+
     /**
      * The string manager for our package.
      */
@@ -273,6 +279,9 @@ final class ApplicationFilterChain implements FilterChain, CometFilterChain {
                 request.setAttribute(Globals.ASYNC_SUPPORTED_ATTR,
                         Boolean.FALSE);
             }
+            if (coyoteRequest != null) {
+                coyoteRequest.markPhase(org.apache.coyote.Request.PHASE_SERVLET);
+            }
             // Use potentially wrapped request from this point
             if ((request instanceof HttpServletRequest) &&
                 (response instanceof HttpServletResponse)) {
@@ -294,6 +303,10 @@ final class ApplicationFilterChain implements FilterChain, CometFilterChain {
             } else {
                 servlet.service(request, response);
             }
+            if (coyoteRequest != null) {
+                coyoteRequest.markPhase(
+                        org.apache.coyote.Request.PHASE_SERVLET_END);
+            }
             support.fireInstanceEvent(InstanceEvent.AFTER_SERVICE_EVENT,
                                       servlet, request, response);
         } catch (IOException e) {
@@ -530,6 +543,21 @@ final class ApplicationFilterChain implements FilterChain, CometFilterChain {
     }
 
 
+    /**
+     * Replace the filters of this (empty) chain with the given, already
+     * de-duplicated, filters.
+     *
+     * @param filterConfigs The filters to execute, in order
+     */
+    void setFilters(ApplicationFilterConfig[] filterConfigs) {
+        if (filters.length < filterConfigs.length) {
+            filters = new ApplicationFilterConfig[filterConfigs.length];
+        }
+        System.arraycopy(filterConfigs, 0, filters, 0, filterConfigs.length);
+        n = filterConfigs.length;
+    }
+
+
     /**
      * Release references to the filters and wrapper executed by this chain.
      */
@@ -542,6 +570,7 @@ final class ApplicationFilterChain implements FilterChain, CometFilterChain {
         pos = 0;
         servlet = null;
         support = null;
+        coyoteRequest = null;
 
     }
 
@@ -566,6 +595,17 @@ final class ApplicationFilterChain implements FilterChain, CometFilterChain {
     }
 
 
+    /**
+     * Set the connector request in which the phases of servicing the request
+     * will be recorded. Not set for dispatched requests.
+     *
+     * @param coyoteRequest The connector request
+     */
+    void setCoyoteRequest(org.apache.coyote.Request coyoteRequest) {
+        this.coyoteRequest = coyoteRequest;
+    }
+
+
     /**
      * Set the InstanceSupport object used for event notifications
      * for this filter chain.
@@ -16,6 +16,9 @@
  */
 package org.apache.catalina.core;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.servlet.DispatcherType;
 import javax.servlet.Servlet;
 import javax.servlet.ServletRequest;
@@ -92,6 +95,7 @@ public final class ApplicationFilterFactory {
                     req.setFilterChain(filterChain);
                 }
             }
+            filterChain.setCoyoteRequest(req.getCoyoteRequest());
         } else {
             // Request dispatcher in use
             filterChain = new ApplicationFilterChain();
@@ -104,6 +108,15 @@ public final class ApplicationFilterFactory {
 
         // Acquire the filter mappings for this Context
         StandardContext context = (StandardContext) wrapper.getParent();
+
+        // Comet requests need to inspect the filter instances so they always
+        // use the full matching below
+        if (!comet && dispatcher != null) {
+            getFilterChainTemplate(context, (StandardWrapper) wrapper,
+                    dispatcher).addFilters(filterChain, requestPath);
+            return (filterChain);
+        }
+
         FilterMap filterMaps[] = context.findFilterMaps();
 
         // If there are no filter mappings, we are done
@@ -184,6 +197,35 @@ public final class ApplicationFilterFactory {
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * Return the filter chain template for the given wrapper and dispatcher
+     * type, building a new one if there is none or if the filter mappings of
+     * the context have changed since it was built.
+     *
+     * @param context The context the wrapper belongs to
+     * @param wrapper The wrapper that will process the request
+     * @param dispatcher The dispatcher type of the request
+     */
+    private static FilterChainTemplate getFilterChainTemplate(
+            StandardContext context, StandardWrapper wrapper,
+            DispatcherType dispatcher) {
+
+        // Read the generation before the mappings so a concurrent change
+        // invalidates the template built here
+        int generation = context.getFilterChainGeneration();
+        FilterChainTemplate template = wrapper.getFilterChainTemplate(dispatcher);
+        if (template != null && template.generation == generation) {
+            context.filterChainCacheHit();
+            return template;
+        }
+        context.filterChainCacheMiss();
+        template = new FilterChainTemplate(context, wrapper.getName(),
+                dispatcher, generation);
+        wrapper.setFilterChainTemplate(dispatcher, template);
+        return template;
+    }
+
+
     /**
      * Return <code>true</code> if the context-relative request path
      * matches the requirements of the specified filter mapping;
@@ -332,4 +374,136 @@ public final class ApplicationFilterFactory {
         }
         return false;
     }
+
+
+    /**
+     * The filters that may apply to requests for a given wrapper and
+     * dispatcher type, with the dispatcher and servlet name matching already
+     * done. Instances are immutable so they may be shared between threads.
+     */
+    static final class FilterChainTemplate {
+
+        /**
+         * The generation of the context filter mappings this template was
+         * built from.
+         */
+        final int generation;
+
+        /**
+         * The candidate URL mapped filters, in mapping order, and the mapping
+         * to test each of them against the request path.
+         */
+        private final ApplicationFilterConfig[] urlFilters;
+        private final FilterMap[] urlMaps;
+
+        /**
+         * The filters that match on the servlet name, in mapping order.
+         */
+        private final ApplicationFilterConfig[] servletFilters;
+
+        /**
+         * The complete chain for any request with a path if none of the URL
+         * mappings depend on the request path, otherwise <code>null</code>.
+         */
+        private final ApplicationFilterConfig[] filters;
+
+
+        FilterChainTemplate(StandardContext context, String servletName,
+                DispatcherType dispatcher, int generation) {
+
+            this.generation = generation;
+
+            List<ApplicationFilterConfig> urlFilterList = new ArrayList<>();
+            List<FilterMap> urlMapList = new ArrayList<>();
+            List<ApplicationFilterConfig> servletFilterList = new ArrayList<>();
+            boolean pathIndependent = true;
+
+            FilterMap filterMaps[] = context.findFilterMaps();
+            for (FilterMap filterMap : filterMaps) {
+                if (!matchDispatcher(filterMap, dispatcher)) {
+                    continue;
+                }
+                ApplicationFilterConfig filterConfig = (ApplicationFilterConfig)
+                    context.findFilterConfig(filterMap.getFilterName());
+                if (filterConfig == null) {
+                    continue;
+                }
+                String[] urlPatterns = filterMap.getURLPatterns();
+                if (filterMap.getMatchAllUrlPatterns() || urlPatterns.length > 0) {
+                    urlFilterList.add(filterConfig);
+                    urlMapList.add(filterMap);
+                    if (!filterMap.getMatchAllUrlPatterns() &&
+                            !matchesAnyPath(urlPatterns)) {
+                        pathIndependent = false;
+                    }
+                }
+                if (matchFiltersServlet(filterMap, servletName)) {
+                    servletFilterList.add(filterConfig);
+                }
+            }
+
+            urlFilters = urlFilterList.toArray(
+                    new ApplicationFilterConfig[urlFilterList.size()]);
+            urlMaps = urlMapList.toArray(new FilterMap[urlMapList.size()]);
+            servletFilters = servletFilterList.toArray(
+                    new ApplicationFilterConfig[servletFilterList.size()]);
+
+            if (pathIndependent) {
+                // Same de-duplication as ApplicationFilterChain.addFilter()
+                List<ApplicationFilterConfig> chain = new ArrayList<>();
+                for (ApplicationFilterConfig filterConfig : urlFilters) {
+                    addIfAbsent(chain, filterConfig);
+                }
+                for (ApplicationFilterConfig filterConfig : servletFilters) {
+                    addIfAbsent(chain, filterConfig);
+                }
+                filters = chain.toArray(new ApplicationFilterConfig[chain.size()]);
+            } else {
+                filters = null;
+            }
+        }
+
+
+        /**
+         * Add the filters that apply to the given request path to the chain.
+         *
+         * @param filterChain The (empty) chain to populate
+         * @param requestPath Context-relative request path of this request
+         */
+        void addFilters(ApplicationFilterChain filterChain, String requestPath) {
+            if (requestPath != null && filters != null) {
+                filterChain.setFilters(filters);
+                return;
+            }
+            for (int i = 0; i < urlFilters.length; i++) {
+                if (matchFiltersURL(urlMaps[i], requestPath)) {
+                    filterChain.addFilter(urlFilters[i]);
+                }
+            }
+            for (ApplicationFilterConfig filterConfig : servletFilters) {
+                filterChain.addFilter(filterConfig);
+            }
+        }
+
+
+        private static boolean matchesAnyPath(String[] urlPatterns) {
+            for (String urlPattern : urlPatterns) {
+                if ("/*".equals(urlPattern)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+
+        private static void addIfAbsent(List<ApplicationFilterConfig> chain,
+                ApplicationFilterConfig filterConfig) {
+            for (ApplicationFilterConfig filter : chain) {
+                if (filter == filterConfig) {
+                    return;
+                }
+            }
+            chain.add(filterConfig);
+        }
+    }
 }
@@ -30,8 +30,8 @@ import java.util.Map;
 import javax.servlet.http.Part;
 
 import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.FileItemHeaders;
 import org.apache.tomcat.util.http.fileupload.ParameterParser;
-import org.apache.tomcat.util.http.fileupload.disk.DiskFileItem;
 import org.apache.tomcat.util.http.parser.HttpParser;
 
 /**
@@ -61,18 +61,19 @@ public class ApplicationPart implements Part {
 
     @Override
     public String getHeader(String name) {
-        if (fileItem instanceof DiskFileItem) {
-            return ((DiskFileItem) fileItem).getHeaders().getHeader(name);
+        FileItemHeaders headers = fileItem.getHeaders();
+        if (headers != null) {
+            return headers.getHeader(name);
         }
         return null;
     }
 
     @Override
     public Collection<String> getHeaderNames() {
-        if (fileItem instanceof DiskFileItem) {
+        FileItemHeaders fileItemHeaders = fileItem.getHeaders();
+        if (fileItemHeaders != null) {
             LinkedHashSet<String> headerNames = new LinkedHashSet<>();
-            Iterator<String> iter =
-                ((DiskFileItem) fileItem).getHeaders().getHeaderNames();
+            Iterator<String> iter = fileItemHeaders.getHeaderNames();
             while (iter.hasNext()) {
                 headerNames.add(iter.next());
             }
@@ -83,10 +84,10 @@ public class ApplicationPart implements Part {
 
     @Override
     public Collection<String> getHeaders(String name) {
-        if (fileItem instanceof DiskFileItem) {
+        FileItemHeaders fileItemHeaders = fileItem.getHeaders();
+        if (fileItemHeaders != null) {
             LinkedHashSet<String> headers = new LinkedHashSet<>();
-            Iterator<String> iter =
-                ((DiskFileItem) fileItem).getHeaders().getHeaders(name);
+            Iterator<String> iter = fileItemHeaders.getHeaders(name);
             while (iter.hasNext()) {
                 headers.add(iter.next());
             }
@@ -0,0 +1,517 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.core;
+
+import java.lang.reflect.Method;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.catalina.Executor;
+import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.util.LifecycleMBeanBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.util.security.PrivilegedSetTccl;
+import org.apache.tomcat.util.threads.ResizableExecutor;
+
+/**
+ * An {@link Executor} that runs tasks on a {@link ForkJoinPool} rather than on
+ * a pool of threads that all take their work from one shared queue. Each
+ * worker thread has its own deque and idle workers steal work from busy ones,
+ * while tasks submitted from outside the pool (acceptor and poller threads)
+ * are spread over several submission queues.
+ * <p>
+ * When {@link #setUseVirtualThreads(boolean) useVirtualThreads} is set and the
+ * JRE supports them, each task is instead run on a new virtual thread. Virtual
+ * threads are looked up reflectively so this class can still be compiled and
+ * run on older JREs, in which case the work-stealing pool is used.
+ */
+public class ForkJoinThreadExecutor extends LifecycleMBeanBase
+        implements Executor, ResizableExecutor {
+
+    private static final Log log =
+            LogFactory.getLog(ForkJoinThreadExecutor.class);
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    /*
+     * Completed tasks are counted in one of several counters selected by the
+     * id of the thread that ran the task so that workers do not all contend
+     * on the same value. Each counter is padded to its own cache line.
+     */
+    private static final int COUNTER_STRIPES = 32;
+    private static final int COUNTER_PADDING = 8;
+
+    /**
+     * The time to wait between checks of the queue size when a task is
+     * submitted with a timeout and the queue is full.
+     */
+    private static final long QUEUE_FULL_WAIT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(1);
+
+    // ---------------------------------------------- Properties
+    /**
+     * Default thread priority
+     */
+    protected int threadPriority = Thread.NORM_PRIORITY;
+
+    /**
+     * Run threads in daemon or non-daemon state
+     */
+    protected boolean daemon = true;
+
+    /**
+     * Default name prefix for the thread name
+     */
+    protected String namePrefix = "tomcat-fj-exec-";
+
+    /**
+     * The parallelism of the pool i.e. the maximum number of threads that will
+     * be running tasks at the same time
+     */
+    protected int maxThreads = 200;
+
+    /**
+     * The maximum number of tasks submitted from outside the pool that can
+     * queue up before we reject them
+     */
+    protected int maxQueueSize = Integer.MAX_VALUE;
+
+    /**
+     * Run each task on a new virtual thread, if the JRE supports them.
+     */
+    protected boolean useVirtualThreads = false;
+
+    /**
+     * the name of this thread pool
+     */
+    protected String name;
+
+    /**
+     * The work-stealing pool or <code>null</code> if the executor is not
+     * started or virtual threads are in use.
+     */
+    private volatile ForkJoinPool pool = null;
+
+    /**
+     * The virtual thread per task executor or <code>null</code> if the
+     * executor is not started or the work-stealing pool is in use.
+     */
+    private volatile ExecutorService virtualThreadExecutor = null;
+
+    private final AtomicInteger virtualThreadCount = new AtomicInteger();
+
+    private final AtomicLongArray completedTaskCounts =
+            new AtomicLongArray(COUNTER_STRIPES * COUNTER_PADDING);
+
+    // ---------------------------------------------- Constructors
+    public ForkJoinThreadExecutor() {
+        //empty constructor for the digester
+    }
+
+
+    // ---------------------------------------------- Public Methods
+
+    /**
+     * Start the component and implement the requirements
+     * of {@link org.apache.catalina.util.LifecycleBase#startInternal()}.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    @Override
+    protected void startInternal() throws LifecycleException {
+
+        for (int i = 0; i < completedTaskCounts.length(); i++) {
+            completedTaskCounts.set(i, 0);
+        }
+        virtualThreadCount.set(0);
+
+        if (useVirtualThreads) {
+            virtualThreadExecutor = createVirtualThreadExecutor(namePrefix);
+            if (virtualThreadExecutor == null) {
+                log.warn(sm.getString(
+                        "forkJoinThreadExecutor.noVirtualThreads", getName()));
+            }
+        }
+        if (virtualThreadExecutor == null) {
+            pool = new ForkJoinPool(maxThreads, new WorkerThreadFactory(
+                    namePrefix, daemon, threadPriority), null, true);
+        }
+
+        setState(LifecycleState.STARTING);
+    }
+
+
+    /**
+     * Stop the component and implement the requirements
+     * of {@link org.apache.catalina.util.LifecycleBase#stopInternal()}.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    @Override
+    protected void stopInternal() throws LifecycleException {
+
+        setState(LifecycleState.STOPPING);
+        if (pool != null) pool.shutdownNow();
+        pool = null;
+        if (virtualThreadExecutor != null) virtualThreadExecutor.shutdownNow();
+        virtualThreadExecutor = null;
+    }
+
+
+    @Override
+    public void execute(Runnable command, long timeout, TimeUnit unit) {
+        ForkJoinPool pool = this.pool;
+        if (pool != null && isQueueFull(pool)) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            do {
+                if (deadline - System.nanoTime() <= 0) {
+                    throw new RejectedExecutionException("Work queue full.");
+                }
+                LockSupport.parkNanos(QUEUE_FULL_WAIT_NANOS);
+            } while (isQueueFull(pool));
+        }
+        execute(command);
+    }
+
+
+    @Override
+    public void execute(Runnable command) {
+        ForkJoinPool pool = this.pool;
+        if (pool != null) {
+            if (isQueueFull(pool)) {
+                throw new RejectedExecutionException("Work queue full.");
+            }
+            pool.execute(new Task(command));
+            return;
+        }
+        ExecutorService virtualThreadExecutor = this.virtualThreadExecutor;
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.execute(new VirtualThreadTask(command));
+        } else {
+            throw new IllegalStateException("ForkJoinThreadExecutor not started.");
+        }
+    }
+
+
+    private boolean isQueueFull(ForkJoinPool pool) {
+        return maxQueueSize < Integer.MAX_VALUE &&
+                pool.getQueuedSubmissionCount() >= maxQueueSize;
+    }
+
+
+    private void run(Runnable command) {
+        try {
+            command.run();
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            log.error(sm.getString("forkJoinThreadExecutor.taskFailed",
+                    getName()), t);
+        } finally {
+            int stripe = (int) (Thread.currentThread().getId() % COUNTER_STRIPES);
+            completedTaskCounts.incrementAndGet(stripe * COUNTER_PADDING);
+        }
+    }
+
+
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    @Override
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * @return <code>true</code> if the executor is started and runs each task
+     *         on a new virtual thread
+     */
+    public boolean isVirtualThreadsInUse() {
+        return virtualThreadExecutor != null;
+    }
+
+    public void setThreadPriority(int threadPriority) {
+        this.threadPriority = threadPriority;
+    }
+
+    public void setDaemon(boolean daemon) {
+        this.daemon = daemon;
+    }
+
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * Set the parallelism of the work-stealing pool. Changes take effect the
+     * next time the executor is started. Ignored when virtual threads are in
+     * use.
+     *
+     * @param maxThreads The maximum number of threads running tasks at the
+     *                   same time
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setMaxQueueSize(int size) {
+        this.maxQueueSize = size;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    // Statistics from the thread pool
+    @Override
+    public int getActiveCount() {
+        ForkJoinPool pool = this.pool;
+        if (pool != null) {
+            return pool.getActiveThreadCount();
+        }
+        return virtualThreadCount.get();
+    }
+
+    public long getCompletedTaskCount() {
+        long result = 0;
+        for (int i = 0; i < COUNTER_STRIPES; i++) {
+            result += completedTaskCounts.get(i * COUNTER_PADDING);
+        }
+        return result;
+    }
+
+    @Override
+    public int getPoolSize() {
+        ForkJoinPool pool = this.pool;
+        if (pool != null) {
+            return pool.getPoolSize();
+        }
+        return virtualThreadCount.get();
+    }
+
+    public int getQueueSize() {
+        ForkJoinPool pool = this.pool;
+        if (pool != null) {
+            long size = pool.getQueuedSubmissionCount() +
+                    pool.getQueuedTaskCount();
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+        return (virtualThreadExecutor != null) ? 0 : -1;
+    }
+
+    public long getStealCount() {
+        ForkJoinPool pool = this.pool;
+        return (pool != null) ? pool.getStealCount() : 0;
+    }
+
+
+    @Override
+    public boolean resizePool(int corePoolSize, int maximumPoolSize) {
+        // The parallelism of a ForkJoinPool is fixed once it is created
+        return false;
+    }
+
+
+    @Override
+    public boolean resizeQueue(int capacity) {
+        return false;
+    }
+
+
+    @Override
+    protected String getDomainInternal() {
+        // No way to navigate to Engine. Needs to have domain set.
+        return null;
+    }
+
+    @Override
+    protected String getObjectNameKeyProperties() {
+        StringBuilder name = new StringBuilder("type=Executor,name=");
+        name.append(getName());
+        return name.toString();
+    }
+
+
+    /**
+     * Creates the equivalent of
+     * <code>Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 1).factory())</code>.
+     *
+     * @return the executor or <code>null</code> if the JRE does not support
+     *         virtual threads
+     */
+    private static ExecutorService createVirtualThreadExecutor(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(
+                    builder, namePrefix, Long.valueOf(1));
+            ThreadFactory factory =
+                    (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method m = Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, factory);
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            // Not available or, on some JREs, a preview feature that has not
+            // been enabled
+            return null;
+        }
+    }
+
+
+    // ---------------------------------------------- Inner classes
+
+    /**
+     * Runs a task on the work-stealing pool. Extending {@link ForkJoinTask}
+     * directly avoids the adapter the pool would otherwise create for each
+     * {@link Runnable}.
+     */
+    private class Task extends ForkJoinTask<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Runnable command;
+
+        Task(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public Void getRawResult() {
+            return null;
+        }
+
+        @Override
+        protected void setRawResult(Void value) {
+            // NO-OP
+        }
+
+        @Override
+        protected boolean exec() {
+            run(command);
+            return true;
+        }
+    }
+
+
+    private class VirtualThreadTask implements Runnable {
+
+        private final Runnable command;
+
+        VirtualThreadTask(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            virtualThreadCount.incrementAndGet();
+            try {
+                ForkJoinThreadExecutor.this.run(command);
+            } finally {
+                virtualThreadCount.decrementAndGet();
+            }
+        }
+    }
+
+
+    private static class WorkerThreadFactory
+            implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+        private final boolean daemon;
+        private final int threadPriority;
+
+        WorkerThreadFactory(String namePrefix, boolean daemon, int priority) {
+            this.namePrefix = namePrefix;
+            this.daemon = daemon;
+            this.threadPriority = priority;
+        }
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread t = new WorkerThread(pool);
+            t.setName(namePrefix + threadNumber.getAndIncrement());
+            t.setDaemon(daemon);
+            t.setPriority(threadPriority);
+
+            // Set the context class loader of newly created threads to be the
+            // class loader that loaded this factory. This avoids retaining
+            // references to web application class loaders and similar.
+            if (Globals.IS_SECURITY_ENABLED) {
+                PrivilegedAction<Void> pa = new PrivilegedSetTccl(
+                        t, getClass().getClassLoader());
+                AccessController.doPrivileged(pa);
+            } else {
+                t.setContextClassLoader(getClass().getClassLoader());
+            }
+
+            return t;
+        }
+    }
+
+
+    private static class WorkerThread extends ForkJoinWorkerThread {
+
+        WorkerThread(ForkJoinPool pool) {
+            super(pool);
+        }
+    }
+}
@@ -44,6 +44,7 @@ import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -399,6 +400,20 @@ public class StandardContext extends ContainerBase
      */
     private final ContextFilterMaps filterMaps = new ContextFilterMaps();
 
+
+    /**
+     * Incremented whenever the filter mappings or filter configurations
+     * change so cached filter chain templates can detect they are stale.
+     */
+    private final AtomicInteger filterChainGeneration = new AtomicInteger(0);
+
+
+    /**
+     * Filter chain template cache statistics.
+     */
+    private final AtomicLong filterChainCacheHitCount = new AtomicLong(0);
+    private final AtomicLong filterChainCacheMissCount = new AtomicLong(0);
+
     /**
      * Ignore annotations.
      */
@@ -2998,6 +3013,7 @@ public class StandardContext extends ContainerBase
         validateFilterMap(filterMap);
         // Add this filter mapping to our registered set
         filterMaps.add(filterMap);
+        filterChainGeneration.incrementAndGet();
         fireContainerEvent("addFilterMap", filterMap);
     }
 
@@ -3017,6 +3033,7 @@ public class StandardContext extends ContainerBase
         validateFilterMap(filterMap);
         // Add this filter mapping to our registered set
         filterMaps.addBefore(filterMap);
+        filterChainGeneration.incrementAndGet();
         fireContainerEvent("addFilterMap", filterMap);
     }
 
@@ -4096,6 +4113,7 @@ public class StandardContext extends ContainerBase
         synchronized (filterDefs) {
             filterDefs.remove(filterDef.getFilterName());
         }
+        filterChainGeneration.incrementAndGet();
         fireContainerEvent("removeFilterDef", filterDef);
 
     }
@@ -4109,6 +4127,7 @@ public class StandardContext extends ContainerBase
     @Override
     public void removeFilterMap(FilterMap filterMap) {
         filterMaps.remove(filterMap);
+        filterChainGeneration.incrementAndGet();
         // Inform interested listeners
         fireContainerEvent("removeFilterMap", filterMap);
     }
@@ -4756,6 +4775,7 @@ public class StandardContext extends ContainerBase
                 }
             }
         }
+        filterChainGeneration.incrementAndGet();
 
         return ok;
     }
@@ -4781,6 +4801,7 @@ public class StandardContext extends ContainerBase
             }
             filterConfigs.clear();
         }
+        filterChainGeneration.incrementAndGet();
         return (true);
 
     }
@@ -4799,6 +4820,43 @@ public class StandardContext extends ContainerBase
     }
 
 
+    /**
+     * Return the current generation of the filter mappings and filter
+     * configurations. Cached filter chain templates built for an earlier
+     * generation must not be used.
+     */
+    int getFilterChainGeneration() {
+        return filterChainGeneration.get();
+    }
+
+
+    void filterChainCacheHit() {
+        filterChainCacheHitCount.incrementAndGet();
+    }
+
+
+    void filterChainCacheMiss() {
+        filterChainCacheMissCount.incrementAndGet();
+    }
+
+
+    /**
+     * @return the number of filter chains built from a cached template.
+     */
+    public long getFilterChainCacheHitCount() {
+        return filterChainCacheHitCount.get();
+    }
+
+
+    /**
+     * @return the number of filter chain templates that had to be (re)built
+     *         because none was cached or the cached one was stale.
+     */
+    public long getFilterChainCacheMissCount() {
+        return filterChainCacheMissCount.get();
+    }
+
+
     /**
      * Configure the set of instantiated application event listeners
      * for this Context.  Return <code>true</code> if all listeners wre
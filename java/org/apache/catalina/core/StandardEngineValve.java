@@ -71,6 +71,9 @@ final class StandardEngineValve extends ValveBase {
     public final void invoke(Request request, Response response)
         throws IOException, ServletException {
 
+        request.getCoyoteRequest().markPhase(
+                org.apache.coyote.Request.PHASE_ENGINE);
+
         // Select the Host to be used for this Request
         Host host = request.getHost();
         if (host == null) {
@@ -106,6 +106,9 @@ final class StandardHostValve extends ValveBase {
     public final void invoke(Request request, Response response)
         throws IOException, ServletException {
 
+        request.getCoyoteRequest().markPhase(
+                org.apache.coyote.Request.PHASE_HOST);
+
         // Select the Context to be used for this Request
         Context context = request.getContext();
         if (context == null) {
@@ -24,6 +24,7 @@ import org.apache.catalina.Executor;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleState;
 import org.apache.catalina.util.LifecycleMBeanBase;
+import org.apache.tomcat.util.threads.ClassOfServiceScheduler;
 import org.apache.tomcat.util.threads.ResizableExecutor;
 import org.apache.tomcat.util.threads.TaskQueue;
 import org.apache.tomcat.util.threads.TaskThreadFactory;
@@ -91,7 +92,16 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
     protected long threadRenewalDelay =
         org.apache.tomcat.util.threads.Constants.DEFAULT_THREAD_RENEWAL_DELAY;
 
+    /**
+     * The scheduling classes used to order queued tasks, as described by
+     * {@link ClassOfServiceScheduler}, or <code>null</code> to run tasks in the
+     * order they are submitted.
+     */
+    protected String schedulingClasses = null;
+
     private TaskQueue taskqueue = null;
+
+    private volatile ClassOfServiceScheduler scheduler = null;
     // ---------------------------------------------- Constructors
     public StandardThreadExecutor() {
         //empty constructor for the digester
@@ -124,6 +134,9 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
             executor.prestartAllCoreThreads();
         }
         taskqueue.setParent(executor);
+        if (schedulingClasses != null) {
+            scheduler = new ClassOfServiceScheduler(schedulingClasses, executor);
+        }
 
         setState(LifecycleState.STARTING);
     }
@@ -143,6 +156,7 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
         if ( executor != null ) executor.shutdownNow();
         executor = null;
         taskqueue = null;
+        scheduler = null;
     }
 
 
@@ -155,7 +169,16 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
     @Override
     public void execute(Runnable command, long timeout, TimeUnit unit) {
         if ( executor != null ) {
-            executor.execute(command,timeout,unit);
+            ClassOfServiceScheduler scheduler = this.scheduler;
+            if (scheduler == null) {
+                executor.execute(command,timeout,unit);
+                return;
+            }
+            try {
+                executor.execute(scheduler.schedule(command),timeout,unit);
+            } catch (RejectedExecutionException rx) {
+                if (scheduler.cancel(command)) throw rx;
+            }
         } else {
             throw new IllegalStateException("StandardThreadExecutor not started.");
         }
@@ -165,11 +188,18 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
     @Override
     public void execute(Runnable command) {
         if ( executor != null ) {
+            ClassOfServiceScheduler scheduler = this.scheduler;
+            Runnable task = (scheduler == null) ? command : scheduler.schedule(command);
             try {
-                executor.execute(command);
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException rx) {
+                    //there could have been contention around the queue
+                    if ( !( (TaskQueue) executor.getQueue()).force(task) ) throw new RejectedExecutionException("Work queue full.");
+                }
             } catch (RejectedExecutionException rx) {
-                //there could have been contention around the queue
-                if ( !( (TaskQueue) executor.getQueue()).force(command) ) throw new RejectedExecutionException("Work queue full.");
+                // The task is not rejected if another dispatcher has run it
+                if (scheduler == null || scheduler.cancel(command)) throw rx;
             }
         } else throw new IllegalStateException("StandardThreadPool not started.");
     }
@@ -264,6 +294,28 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
         return maxQueueSize;
     }
 
+    public String getSchedulingClasses() {
+        return schedulingClasses;
+    }
+
+    /**
+     * Set the scheduling classes used to order queued tasks. Changes take
+     * effect the next time the executor is started.
+     *
+     * @param schedulingClasses A comma separated list of
+     *        <code>name:weight[:maxThreads]</code> entries as described by
+     *        {@link ClassOfServiceScheduler} or <code>null</code> to run tasks
+     *        in the order they are submitted
+     */
+    public void setSchedulingClasses(String schedulingClasses) {
+        this.schedulingClasses = schedulingClasses;
+    }
+
+    public String[] getSchedulingClassStatus() {
+        ClassOfServiceScheduler scheduler = this.scheduler;
+        return (scheduler != null) ? scheduler.getStatus() : new String[0];
+    }
+
     public long getThreadRenewalDelay() {
         return threadRenewalDelay;
     }
@@ -299,6 +351,10 @@ public class StandardThreadExecutor extends LifecycleMBeanBase
     }
 
     public int getQueueSize() {
+        ClassOfServiceScheduler scheduler = this.scheduler;
+        if (scheduler != null) {
+            return scheduler.getQueueSize();
+        }
         return (executor != null) ? executor.getQueue().size() : -1;
     }
 
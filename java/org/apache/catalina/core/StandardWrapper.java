@@ -35,6 +35,7 @@ import javax.management.NotificationEmitter;
 import javax.management.NotificationFilter;
 import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.servlet.DispatcherType;
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
@@ -253,6 +254,14 @@ public class StandardWrapper extends ContainerBase
      */
     protected MultipartConfigElement multipartConfigElement = null;
 
+    /**
+     * The cached filter chain templates for this servlet, indexed by
+     * dispatcher type. Templates are immutable so racing updates are benign;
+     * the worst case is that a template is built more than once.
+     */
+    private final ApplicationFilterFactory.FilterChainTemplate[] filterChainTemplates =
+            new ApplicationFilterFactory.FilterChainTemplate[DispatcherType.values().length];
+
     /**
      * Async support
      */
@@ -357,6 +366,18 @@ public class StandardWrapper extends ContainerBase
     }
 
 
+    ApplicationFilterFactory.FilterChainTemplate getFilterChainTemplate(
+            DispatcherType dispatcher) {
+        return filterChainTemplates[dispatcher.ordinal()];
+    }
+
+
+    void setFilterChainTemplate(DispatcherType dispatcher,
+            ApplicationFilterFactory.FilterChainTemplate template) {
+        filterChainTemplates[dispatcher.ordinal()] = template;
+    }
+
+
     /**
      * Return the load-on-startup order value (negative value means
      * load on first call).
@@ -1558,6 +1579,40 @@ public class StandardWrapper extends ContainerBase
         return swValve.getRequestCount();
     }
 
+    public double getLatencyP50() {
+        return swValve.getLatencyHistogram().getPercentileMillis(50);
+    }
+
+    public double getLatencyP90() {
+        return swValve.getLatencyHistogram().getPercentileMillis(90);
+    }
+
+    public double getLatencyP99() {
+        return swValve.getLatencyHistogram().getPercentileMillis(99);
+    }
+
+    public double getLatencyP999() {
+        return swValve.getLatencyHistogram().getPercentileMillis(99.9);
+    }
+
+    /**
+     * @return the count, percentiles and maximum, in milliseconds, of the
+     *         latencies recorded since the interval was last reset
+     */
+    public String getLatencyInterval() {
+        return swValve.getLatencyHistogram().getIntervalSnapshot(false).toString();
+    }
+
+    /**
+     * Start a new latency interval.
+     *
+     * @return the count, percentiles and maximum, in milliseconds, of the
+     *         latencies recorded in the interval that has just ended
+     */
+    public String resetLatencyInterval() {
+        return swValve.getLatencyHistogram().getIntervalSnapshot(true).toString();
+    }
+
     public int getErrorCount() {
         return swValve.getErrorCount();
     }
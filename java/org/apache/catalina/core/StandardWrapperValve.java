@@ -39,6 +39,7 @@ import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.ValveBase;
 import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.LatencyHistogram;
 import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.log.SystemLogHandler;
 import org.apache.tomcat.util.res.StringManager;
@@ -68,6 +69,7 @@ final class StandardWrapperValve
     private volatile long minTime = Long.MAX_VALUE;
     private final AtomicInteger requestCount = new AtomicInteger(0);
     private final AtomicInteger errorCount = new AtomicInteger(0);
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
 
 
     /**
@@ -94,11 +96,15 @@ final class StandardWrapperValve
     public final void invoke(Request request, Response response)
         throws IOException, ServletException {
 
+        request.getCoyoteRequest().markPhase(
+                org.apache.coyote.Request.PHASE_WRAPPER);
+
         // Initialize local variables we may need
         boolean unavailable = false;
         Throwable throwable = null;
         // This should be a Request attribute...
         long t1=System.currentTimeMillis();
+        long t1Nanos=System.nanoTime();
         requestCount.incrementAndGet();
         StandardWrapper wrapper = (StandardWrapper) getContainer();
         Servlet servlet = null;
@@ -185,6 +191,8 @@ final class StandardWrapperValve
         // NOTE: This also calls the servlet's service() method
         try {
             if ((servlet != null) && (filterChain != null)) {
+                request.getCoyoteRequest().markPhase(
+                        org.apache.coyote.Request.PHASE_FILTERS);
                 // Swallow output if needed
                 if (context.getSwallowOutput()) {
                     try {
@@ -311,6 +319,7 @@ final class StandardWrapperValve
         processingTime += time;
         if( time > maxTime) maxTime=time;
         if( time < minTime) minTime=time;
+        latencyHistogram.recordNanos(System.nanoTime() - t1Nanos);
 
     }
 
@@ -336,6 +345,7 @@ final class StandardWrapperValve
         Throwable throwable = null;
         // This should be a Request attribute...
         long t1=System.currentTimeMillis();
+        long t1Nanos=System.nanoTime();
         // FIXME: Add a flag to count the total amount of events processed ? requestCount++;
 
         StandardWrapper wrapper = (StandardWrapper) getContainer();
@@ -479,6 +489,7 @@ final class StandardWrapperValve
         processingTime += time;
         if( time > maxTime) maxTime=time;
         if( time < minTime) minTime=time;
+        latencyHistogram.recordNanos(System.nanoTime() - t1Nanos);
 
     }
 
@@ -520,6 +531,10 @@ final class StandardWrapperValve
         return requestCount.get();
     }
 
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
     public int getErrorCount() {
         return errorCount.get();
     }
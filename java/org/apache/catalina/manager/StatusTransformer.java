@@ -332,6 +332,7 @@ public class StatusTransformer {
             writer.print(" Bytes sent: ");
             writer.print(formatSize(mBeanServer.getAttribute
                                     (grpName, "bytesSent"), true));
+            writeLatency(writer, grpName, mBeanServer);
             writer.print("</p>");
 
             writer.print("<table border=\"0\"><tr><th>Stage</th><th>Time</th><th>B Sent</th><th>B Recv</th><th>Client (Forwarded)</th><th>Client (Actual)</th><th>VHost</th><th>Request</th></tr>");
@@ -380,6 +381,10 @@ public class StatusTransformer {
                 writer.write(" errorCount=\"" + mBeanServer.getAttribute(grpName, "errorCount") + "\"");
                 writer.write(" bytesReceived=\"" + mBeanServer.getAttribute(grpName, "bytesReceived") + "\"");
                 writer.write(" bytesSent=\"" + mBeanServer.getAttribute(grpName, "bytesSent") + "\"");
+                writer.write(" latencyP50=\"" + mBeanServer.getAttribute(grpName, "latencyP50") + "\"");
+                writer.write(" latencyP90=\"" + mBeanServer.getAttribute(grpName, "latencyP90") + "\"");
+                writer.write(" latencyP99=\"" + mBeanServer.getAttribute(grpName, "latencyP99") + "\"");
+                writer.write(" latencyP999=\"" + mBeanServer.getAttribute(grpName, "latencyP999") + "\"");
                 writer.write(" />");
 
                 writer.write("<workers>");
@@ -857,6 +862,7 @@ public class StatusTransformer {
             writer.print(" Classloading time: ");
             writer.print(formatTime(mBeanServer.getAttribute
                                     (objectName, "classLoadTime"), false));
+            writeLatency(writer, objectName, mBeanServer);
             writer.print("</p>");
         } else if (mode == 1){
             // for now we don't write out the wrapper details
@@ -865,6 +871,30 @@ public class StatusTransformer {
     }
 
 
+    /**
+     * Write the latency percentiles of a global request processor or a
+     * wrapper.
+     *
+     * @param writer The output writer
+     * @param objectName The MBean exposing the latencyP* attributes
+     * @param mBeanServer MBean server
+     */
+    protected static void writeLatency(PrintWriter writer,
+            ObjectName objectName, MBeanServer mBeanServer)
+        throws Exception {
+
+        writer.print(" Latency p50/p90/p99/p99.9: ");
+        writer.print(mBeanServer.getAttribute(objectName, "latencyP50"));
+        writer.print(" / ");
+        writer.print(mBeanServer.getAttribute(objectName, "latencyP90"));
+        writer.print(" / ");
+        writer.print(mBeanServer.getAttribute(objectName, "latencyP99"));
+        writer.print(" / ");
+        writer.print(mBeanServer.getAttribute(objectName, "latencyP999"));
+        writer.print(" ms");
+    }
+
+
     /**
      * Filter the specified message string for characters that are sensitive
      * in HTML.  This avoids potential attacks caused by including JavaScript
@@ -22,8 +22,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.catalina.Context;
 import org.apache.catalina.Host;
@@ -73,6 +75,28 @@ public final class Mapper {
             new ConcurrentHashMap<>();
 
 
+    /**
+     * Use the compiled trie of each context version for prefix (wildcard)
+     * wrapper matching rather than searching the sorted wrapper array once
+     * per path segment. Only expected to be changed for testing.
+     */
+    boolean useWrapperTrie = true;
+
+
+    /**
+     * Incremented after every change to the mappings so that cached mapping
+     * results can be detected as stale.
+     */
+    private final AtomicLong generation = new AtomicLong(0);
+
+
+    /**
+     * Caches of mapping results that are cleared whenever the mappings change
+     * so that they do not retain removed hosts, contexts or wrappers.
+     */
+    private final List<MappingCache> mappingCaches = new CopyOnWriteArrayList<>();
+
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -82,6 +106,45 @@ public final class Mapper {
      */
     public void setDefaultHostName(String defaultHostName) {
         this.defaultHostName = defaultHostName;
+        mappingChanged();
+    }
+
+
+    /**
+     * Return the generation of the mappings. The value changes after every
+     * change to the hosts, contexts, wrappers or welcome files of this mapper.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+
+    private void mappingChanged() {
+        generation.incrementAndGet();
+        for (MappingCache mappingCache : mappingCaches) {
+            mappingCache.clear();
+        }
+    }
+
+
+    /**
+     * Register a cache of results from this mapper. The cache is cleared
+     * every time the mappings change.
+     *
+     * @param mappingCache The cache to register
+     */
+    public void addMappingCache(MappingCache mappingCache) {
+        mappingCaches.add(mappingCache);
+    }
+
+
+    /**
+     * Stop clearing the given cache when the mappings change.
+     *
+     * @param mappingCache The cache to remove
+     */
+    public void removeMappingCache(MappingCache mappingCache) {
+        mappingCaches.remove(mappingCache);
     }
 
     /**
@@ -125,6 +188,7 @@ public final class Mapper {
             }
         }
         newHost.addAliases(newAliases);
+        mappingChanged();
     }
 
 
@@ -148,6 +212,7 @@ public final class Mapper {
             }
         }
         hosts = Arrays.copyOf(newHosts, j);
+        mappingChanged();
     }
 
     /**
@@ -172,6 +237,7 @@ public final class Mapper {
         MappedHost[] newHosts = new MappedHost[hosts.length + 1];
         if (insertMap(hosts, newHosts, newAlias)) {
             hosts = newHosts;
+            mappingChanged();
             if (log.isDebugEnabled()) {
                 log.debug(sm.getString("mapper.addHostAlias.success",
                         newAlias.name, newAlias.getRealHostName()));
@@ -209,6 +275,7 @@ public final class Mapper {
         if (removeMap(hosts, newHosts, alias)) {
             hosts = newHosts;
             hostMapping.getRealHost().removeAlias(hostMapping);
+            mappingChanged();
         }
 
     }
@@ -311,6 +378,7 @@ public final class Mapper {
                 }
             }
         }
+        mappingChanged();
 
     }
 
@@ -353,6 +421,7 @@ public final class Mapper {
                 } else {
                     context.versions = newContextVersions;
                 }
+                mappingChanged();
             }
         }
     }
@@ -376,6 +445,7 @@ public final class Mapper {
             return;
         }
         contextVersion.markPaused();
+        mappingChanged();
     }
 
 
@@ -437,10 +507,15 @@ public final class Mapper {
      */
     private void addWrappers(ContextVersion contextVersion,
             Collection<WrapperMappingInfo> wrappers) {
-        for (WrapperMappingInfo wrapper : wrappers) {
-            addWrapper(contextVersion, wrapper.getMapping(),
-                    wrapper.getWrapper(), wrapper.isJspWildCard(),
-                    wrapper.isResourceOnly());
+        synchronized (contextVersion) {
+            // Compile the wildcard trie once for the whole set of wrappers
+            for (WrapperMappingInfo wrapper : wrappers) {
+                addWrapper(contextVersion, wrapper.getMapping(),
+                        wrapper.getWrapper(), wrapper.isJspWildCard(),
+                        wrapper.isResourceOnly(), false);
+            }
+            contextVersion.wildcardTrie =
+                    WrapperTrie.build(contextVersion.wildcardWrappers);
         }
     }
 
@@ -457,6 +532,13 @@ public final class Mapper {
      */
     protected void addWrapper(ContextVersion context, String path,
             Wrapper wrapper, boolean jspWildCard, boolean resourceOnly) {
+        addWrapper(context, path, wrapper, jspWildCard, resourceOnly, true);
+    }
+
+
+    private void addWrapper(ContextVersion context, String path,
+            Wrapper wrapper, boolean jspWildCard, boolean resourceOnly,
+            boolean buildTrie) {
 
         synchronized (context) {
             if (path.endsWith("/*")) {
@@ -472,6 +554,9 @@ public final class Mapper {
                     if (slashCount > context.nesting) {
                         context.nesting = slashCount;
                     }
+                    if (buildTrie) {
+                        context.wildcardTrie = WrapperTrie.build(newWrappers);
+                    }
                 }
             } else if (path.startsWith("*.")) {
                 // Extension wrapper
@@ -508,6 +593,7 @@ public final class Mapper {
                 }
             }
         }
+        mappingChanged();
     }
 
 
@@ -554,6 +640,7 @@ public final class Mapper {
                         }
                     }
                     context.wildcardWrappers = newWrappers;
+                    context.wildcardTrie = WrapperTrie.build(newWrappers);
                 }
             } else if (path.startsWith("*.")) {
                 // Extension wrapper
@@ -591,6 +678,7 @@ public final class Mapper {
                 }
             }
         }
+        mappingChanged();
     }
 
 
@@ -614,6 +702,7 @@ public final class Mapper {
                 newWelcomeResources, 0, len - 1);
         newWelcomeResources[len - 1] = welcomeFile;
         contextVersion.welcomeResources = newWelcomeResources;
+        mappingChanged();
     }
 
     /**
@@ -647,6 +736,7 @@ public final class Mapper {
                         newWelcomeResources, match, len - match);
             }
             contextVersion.welcomeResources = newWelcomeResources;
+            mappingChanged();
         }
     }
 
@@ -664,6 +754,7 @@ public final class Mapper {
             return;
         }
         contextVersion.welcomeResources = new String[0];
+        mappingChanged();
     }
 
     /**
@@ -690,6 +781,34 @@ public final class Mapper {
     }
 
 
+    /**
+     * Can the given result of mapping a URI be reused for later requests for
+     * the same host and URI? Results that depend on the static resources of
+     * the context (welcome files, directory redirects and the default servlet)
+     * or that were obtained from a paused context can not.
+     *
+     * @param uri The URI that was mapped
+     * @param mappingData The result of the mapping
+     */
+    boolean isCacheable(CharChunk uri, MappingData mappingData) {
+        if (mappingData.wrapper == null || !mappingData.redirectPath.isNull()) {
+            return false;
+        }
+        if (uri.getLength() == 0 || uri.getBuffer()[uri.getEnd() - 1] == '/') {
+            // Welcome files may apply
+            return false;
+        }
+        ContextVersion contextVersion =
+                contextObjectToContextVersionMap.get(mappingData.context);
+        if (contextVersion == null || contextVersion.isPaused()) {
+            return false;
+        }
+        MappedWrapper defaultWrapper = contextVersion.defaultWrapper;
+        return defaultWrapper == null ||
+                defaultWrapper.object != mappingData.wrapper;
+    }
+
+
     /**
      * Map the specified URI relative to the context,
      * mutating the given mapping data.
@@ -852,8 +971,11 @@ public final class Mapper {
         // Rule 2 -- Prefix Match
         boolean checkJspWelcomeFiles = false;
         MappedWrapper[] wildcardWrappers = contextVersion.wildcardWrappers;
+        WrapperTrie wildcardTrie =
+                useWrapperTrie ? contextVersion.wildcardTrie : null;
         if (mappingData.wrapper == null) {
-            internalMapWildcardWrapper(wildcardWrappers, contextVersion.nesting,
+            internalMapWildcardWrapper(wildcardWrappers, wildcardTrie,
+                                       contextVersion.nesting,
                                        path, mappingData);
             if (mappingData.wrapper != null && mappingData.jspWildCard) {
                 char[] buf = path.getBuffer();
@@ -917,8 +1039,8 @@ public final class Mapper {
                     // Rule 4b -- Welcome resources processing for prefix match
                     if (mappingData.wrapper == null) {
                         internalMapWildcardWrapper
-                            (wildcardWrappers, contextVersion.nesting,
-                             path, mappingData);
+                            (wildcardWrappers, wildcardTrie,
+                             contextVersion.nesting, path, mappingData);
                     }
 
                     // Rule 4c -- Welcome resources processing
@@ -1052,8 +1174,27 @@ public final class Mapper {
      * Wildcard mapping.
      */
     private final void internalMapWildcardWrapper
-        (MappedWrapper[] wrappers, int nesting, CharChunk path,
-         MappingData mappingData) {
+        (MappedWrapper[] wrappers, WrapperTrie trie, int nesting,
+         CharChunk path, MappingData mappingData) {
+
+        if (trie != null) {
+            MappedWrapper wrapper = trie.find(path);
+            if (wrapper != null) {
+                int length = wrapper.name.length();
+                mappingData.wrapperPath.setString(wrapper.name);
+                if (path.getLength() > length) {
+                    mappingData.pathInfo.setChars
+                        (path.getBuffer(),
+                         path.getOffset() + length,
+                         path.getLength() - length);
+                }
+                mappingData.requestPath.setChars
+                    (path.getBuffer(), path.getOffset(), path.getLength());
+                mappingData.wrapper = wrapper.object;
+                mappingData.jspWildCard = wrapper.jspWildCard;
+            }
+            return;
+        }
 
         int pathEnd = path.getEnd();
 
@@ -1655,6 +1796,7 @@ public final class Mapper {
         public MappedWrapper defaultWrapper = null;
         public MappedWrapper[] exactWrappers = new MappedWrapper[0];
         public MappedWrapper[] wildcardWrappers = new MappedWrapper[0];
+        public WrapperTrie wildcardTrie = WrapperTrie.build(wildcardWrappers);
         public MappedWrapper[] extensionWrappers = new MappedWrapper[0];
         public int nesting = 0;
         private volatile boolean paused;
@@ -1693,4 +1835,161 @@ public final class Mapper {
             this.resourceOnly = resourceOnly;
         }
     }
+
+
+    // ----------------------------------------------- WrapperTrie Inner Class
+
+
+    /**
+     * An immutable trie of wildcard wrappers keyed by path segment. Finding
+     * the longest matching prefix needs a single pass over the path rather
+     * than one binary search of the wrapper array per path segment. A new
+     * trie is compiled whenever the wildcard wrappers of a context change.
+     */
+    protected static final class WrapperTrie {
+
+        private static final String[] NO_SEGMENTS = new String[0];
+        private static final WrapperTrie[] NO_CHILDREN = new WrapperTrie[0];
+
+        /**
+         * The wrapper mapped to the path ending at this node, if any.
+         */
+        private final MappedWrapper wrapper;
+
+        /**
+         * The child nodes and the sorted path segments that lead to them.
+         */
+        private final String[] segments;
+        private final WrapperTrie[] children;
+
+
+        private WrapperTrie(Builder builder) {
+            this.wrapper = builder.wrapper;
+            int size = builder.children.size();
+            if (size == 0) {
+                segments = NO_SEGMENTS;
+                children = NO_CHILDREN;
+            } else {
+                segments = new String[size];
+                children = new WrapperTrie[size];
+                int i = 0;
+                for (Map.Entry<String,Builder> entry :
+                        builder.children.entrySet()) {
+                    segments[i] = entry.getKey();
+                    children[i] = new WrapperTrie(entry.getValue());
+                    i++;
+                }
+            }
+        }
+
+
+        /**
+         * Compile the trie for the given wildcard wrappers.
+         *
+         * @param wrappers The wildcard wrappers, named by their mapping
+         *                 without the trailing "/*"
+         * @return the trie or <code>null</code> if a wrapper name is not
+         *         a path the trie can represent
+         */
+        public static WrapperTrie build(MappedWrapper[] wrappers) {
+            Builder root = new Builder();
+            for (MappedWrapper wrapper : wrappers) {
+                String name = wrapper.name;
+                Builder node = root;
+                if (name.length() > 0) {
+                    if (name.charAt(0) != '/') {
+                        return null;
+                    }
+                    for (String segment : name.substring(1).split("/", -1)) {
+                        Builder child = node.children.get(segment);
+                        if (child == null) {
+                            child = new Builder();
+                            node.children.put(segment, child);
+                        }
+                        node = child;
+                    }
+                }
+                node.wrapper = wrapper;
+            }
+            return new WrapperTrie(root);
+        }
+
+
+        /**
+         * Find the wrapper with the longest name that is either equal to the
+         * given path or a prefix of it followed by '/'.
+         *
+         * @param path The servlet path to match
+         * @return the matching wrapper or <code>null</code>
+         */
+        public MappedWrapper find(CharChunk path) {
+            char[] buf = path.getBuffer();
+            int pos = path.getStart();
+            int end = path.getEnd();
+            if (pos < end && buf[pos] != '/') {
+                return null;
+            }
+            MappedWrapper result = wrapper;
+            WrapperTrie node = this;
+            while (pos < end) {
+                // pos is on a '/'
+                int segmentStart = pos + 1;
+                int segmentEnd = segmentStart;
+                while (segmentEnd < end && buf[segmentEnd] != '/') {
+                    segmentEnd++;
+                }
+                node = node.child(buf, segmentStart, segmentEnd);
+                if (node == null) {
+                    break;
+                }
+                if (node.wrapper != null) {
+                    result = node.wrapper;
+                }
+                pos = segmentEnd;
+            }
+            return result;
+        }
+
+
+        private WrapperTrie child(char[] buf, int start, int end) {
+            int a = 0;
+            int b = segments.length - 1;
+            while (a <= b) {
+                int i = (a + b) >>> 1;
+                int result = compare(segments[i], buf, start, end);
+                if (result < 0) {
+                    a = i + 1;
+                } else if (result > 0) {
+                    b = i - 1;
+                } else {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+
+        /**
+         * Compare a segment with a range of chars using the same ordering as
+         * {@link String#compareTo(String)}.
+         */
+        private static int compare(String segment, char[] buf, int start,
+                int end) {
+            int len = end - start;
+            int n = Math.min(segment.length(), len);
+            for (int i = 0; i < n; i++) {
+                int result = segment.charAt(i) - buf[start + i];
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return segment.length() - len;
+        }
+
+
+        private static final class Builder {
+            private MappedWrapper wrapper;
+            private final TreeMap<String,Builder> children = new TreeMap<>();
+        }
+    }
 }
@@ -0,0 +1,256 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.mapper;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.Wrapper;
+import org.apache.tomcat.util.buf.Ascii;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * A bounded cache of {@link Mapper} results keyed by host name and decoded
+ * URI. The cache is a fixed size, direct mapped table so look-ups and updates
+ * never lock; an entry is simply replaced by the next result that hashes to
+ * the same slot. Entries record the {@link Mapper#getGeneration() generation}
+ * of the mappings they were created from and are ignored once the mappings
+ * change, e.g. when {@link MapperListener} registers, removes or pauses a
+ * web application. So that the cache does not keep removed web applications
+ * reachable, it should be {@link Mapper#addMappingCache(MappingCache)
+ * registered} with the mapper, which clears it on every change. Stale entries
+ * are also removed when they are found.
+ */
+public final class MappingCache {
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+
+
+    /**
+     * @param size The maximum number of mapping results to cache. This is
+     *             rounded up to the next power of two.
+     */
+    public MappingCache(int size) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        entries = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+
+    /**
+     * Map the specified host name and URI using the cached result if there is
+     * a current one, otherwise using the given mapper.
+     *
+     * @param mapper The mapper to use for cache misses
+     * @param host Virtual host name
+     * @param uri URI
+     * @param mappingData This structure will contain the result of the mapping
+     *                    operation
+     * @throws IOException if the buffers are too small to hold the results of
+     *                     the mapping.
+     */
+    public void map(Mapper mapper, MessageBytes host, MessageBytes uri,
+            MappingData mappingData) throws IOException {
+
+        if (host.isNull()) {
+            // The mapper uses the default host which may change
+            mapper.map(host, uri, null, mappingData);
+            return;
+        }
+
+        // Read the generation before mapping so a concurrent change
+        // invalidates the entry created below
+        long generation = mapper.getGeneration();
+        host.toChars();
+        uri.toChars();
+        CharChunk hostCC = host.getCharChunk();
+        CharChunk uriCC = uri.getCharChunk();
+
+        int hash = hash(hostCC, uriCC);
+        int index = hash & mask;
+        Entry entry = entries.get(index);
+        if (entry != null) {
+            if (entry.generation != generation) {
+                entries.compareAndSet(index, entry, null);
+            } else if (entry.hash == hash && uriCC.equals(entry.uri) &&
+                    hostCC.equalsIgnoreCase(entry.host)) {
+                hitCount.incrementAndGet();
+                entry.restore(mappingData);
+                return;
+            }
+        }
+
+        missCount.incrementAndGet();
+        mapper.map(host, uri, null, mappingData);
+        if (mapper.isCacheable(uriCC, mappingData)) {
+            entry = new Entry(hash, generation, hostCC.toString(),
+                    uriCC.toString(), mappingData);
+            entries.set(index, entry);
+            if (mapper.getGeneration() != generation) {
+                // The mappings changed, and the cache may have been cleared,
+                // while this result was created
+                entries.compareAndSet(index, entry, null);
+            }
+        }
+    }
+
+
+    /**
+     * Remove all cached mapping results.
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.set(i, null);
+        }
+    }
+
+
+    public int getSize() {
+        return entries.length();
+    }
+
+
+    /**
+     * @return the number of slots that currently hold a mapping result
+     */
+    int getEntryCount() {
+        int count = 0;
+        for (int i = 0; i < entries.length(); i++) {
+            if (entries.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+
+    /**
+     * @return the ratio of look-ups served from the cache to all look-ups
+     *         since the cache was created or the counters were reset
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hits / total;
+    }
+
+
+    public void resetCounters() {
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+
+    private static int hash(CharChunk host, CharChunk uri) {
+        int h = 0;
+        char[] buf = host.getBuffer();
+        for (int i = host.getStart(); i < host.getEnd(); i++) {
+            h = 31 * h + Ascii.toLower(buf[i]);
+        }
+        buf = uri.getBuffer();
+        for (int i = uri.getStart(); i < uri.getEnd(); i++) {
+            h = 31 * h + buf[i];
+        }
+        // Spread the high bits as only the low bits select the slot
+        return h ^ (h >>> 16);
+    }
+
+
+    /**
+     * An immutable snapshot of the result of a mapping.
+     */
+    private static final class Entry {
+
+        private final int hash;
+        private final long generation;
+        private final String host;
+        private final String uri;
+
+        private final Host mappedHost;
+        private final Context context;
+        private final int contextSlashCount;
+        private final Context[] contexts;
+        private final Wrapper wrapper;
+        private final boolean jspWildCard;
+        private final String contextPath;
+        private final String requestPath;
+        private final String wrapperPath;
+        private final String pathInfo;
+
+        private Entry(int hash, long generation, String host, String uri,
+                MappingData mappingData) {
+            this.hash = hash;
+            this.generation = generation;
+            this.host = host;
+            this.uri = uri;
+            mappedHost = mappingData.host;
+            context = mappingData.context;
+            contextSlashCount = mappingData.contextSlashCount;
+            contexts = mappingData.contexts;
+            wrapper = mappingData.wrapper;
+            jspWildCard = mappingData.jspWildCard;
+            contextPath = toString(mappingData.contextPath);
+            requestPath = toString(mappingData.requestPath);
+            wrapperPath = toString(mappingData.wrapperPath);
+            pathInfo = toString(mappingData.pathInfo);
+        }
+
+        private void restore(MappingData mappingData) {
+            mappingData.host = mappedHost;
+            mappingData.context = context;
+            mappingData.contextSlashCount = contextSlashCount;
+            mappingData.contexts = contexts;
+            mappingData.wrapper = wrapper;
+            mappingData.jspWildCard = jspWildCard;
+            mappingData.contextPath.setString(contextPath);
+            mappingData.requestPath.setString(requestPath);
+            mappingData.wrapperPath.setString(wrapperPath);
+            mappingData.pathInfo.setString(pathInfo);
+        }
+
+        private static String toString(MessageBytes mb) {
+            if (mb.isNull()) {
+                return null;
+            }
+            return mb.toString();
+        }
+    }
+}
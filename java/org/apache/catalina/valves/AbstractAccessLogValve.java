@@ -20,6 +20,7 @@ package org.apache.catalina.valves;
 import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -45,7 +46,10 @@ import org.apache.coyote.RequestInfo;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.collections.SynchronizedStack;
+import org.apache.tomcat.util.http.MimeHeaders;
 
 
 /**
@@ -436,6 +440,12 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
      */
     protected AccessLogElement[] logElements = null;
 
+    /**
+     * The same elements as {@link #logElements} if all of them are able to
+     * write the message as bytes, otherwise <code>null</code>.
+     */
+    private ByteAccessLogElement[] byteLogElements = null;
+
     /**
      * Should this valve set request attributes for IP address, hostname,
      * protocol and port used for the request.
@@ -451,6 +461,11 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
     private SynchronizedStack<CharArrayWriter> charArrayWriters =
             new SynchronizedStack<>();
 
+    /**
+     * Buffer pool used for log messages generated as bytes.
+     */
+    private SynchronizedStack<ByteChunk> byteChunks = new SynchronizedStack<>();
+
     /**
      * Log message buffers are usually recycled and re-used. To prevent
      * excessive memory usage, if a buffer grows beyond this size it will be
@@ -517,6 +532,7 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
             this.pattern = pattern;
         }
         logElements = createLogElements();
+        byteLogElements = toByteLogElements(logElements);
     }
 
     /**
@@ -640,6 +656,26 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
         long start = request.getCoyoteRequest().getStartTime();
         Date date = getDate(start + time);
 
+        ByteAccessLogElement[] byteLogElements = this.byteLogElements;
+        if (byteLogElements != null && isLogBytesSupported()) {
+            ByteChunk result = byteChunks.pop();
+            if (result == null) {
+                result = new ByteChunk(128);
+            }
+
+            for (int i = 0; i < byteLogElements.length; i++) {
+                byteLogElements[i].addElement(result, date, request, response, time);
+            }
+
+            log(result);
+
+            if (result.getLength() <= maxLogMessageBufferSize) {
+                result.recycle();
+                byteChunks.push(result);
+            }
+            return;
+        }
+
         CharArrayWriter result = charArrayWriters.pop();
         if (result == null) {
             result = new CharArrayWriter(128);
@@ -667,6 +703,38 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
      */
     protected abstract void log(CharArrayWriter message);
 
+
+    /**
+     * Are messages generated as ISO-8859-1 bytes acceptable to
+     * {@link #log(ByteChunk)}? Generating the message as bytes avoids
+     * creating Strings for values that the request already holds as bytes
+     * and avoids encoding the message again when it is written. This
+     * implementation returns <code>false</code>.
+     *
+     * @return <code>true</code> if messages may be passed to
+     *         {@link #log(ByteChunk)}
+     */
+    protected boolean isLogBytesSupported() {
+        return false;
+    }
+
+
+    /**
+     * Log the specified message. This implementation converts the message to
+     * characters and passes it to {@link #log(CharArrayWriter)}.
+     *
+     * @param message Message to be logged as ISO-8859-1 bytes. This object
+     *  will be recycled by the calling method.
+     */
+    protected void log(ByteChunk message) {
+        CharArrayWriter result = new CharArrayWriter(message.getLength());
+        byte[] bytes = message.getBuffer();
+        for (int i = message.getStart(); i < message.getEnd(); i++) {
+            result.write(bytes[i] & 0xFF);
+        }
+        log(result);
+    }
+
     // -------------------------------------------------------- Private Methods
 
     /**
@@ -730,6 +798,131 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
         setState(LifecycleState.STOPPING);
     }
 
+    private static ByteAccessLogElement[] toByteLogElements(
+            AccessLogElement[] elements) {
+        if (elements == null) {
+            return null;
+        }
+        ByteAccessLogElement[] result = new ByteAccessLogElement[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            if (!isByteAccessLogElement(elements[i])) {
+                return null;
+            }
+            result[i] = (ByteAccessLogElement) elements[i];
+        }
+        return result;
+    }
+
+
+    /**
+     * Can the given element be used to generate a message as bytes?
+     *
+     * @param element The element to test
+     * @return <code>true</code> if the element implements
+     *         {@link ByteAccessLogElement} and the byte based method is
+     *         declared by the same class as the character based one
+     */
+    protected static boolean isByteAccessLogElement(AccessLogElement element) {
+        if (!(element instanceof ByteAccessLogElement)) {
+            return false;
+        }
+        // A sub-class that only overrides the character based method must
+        // continue to be used for every message
+        Class<?> clazz = element.getClass();
+        try {
+            return clazz.getMethod("addElement", CharArrayWriter.class,
+                    Date.class, Request.class, Response.class,
+                    long.class).getDeclaringClass() ==
+                    clazz.getMethod("addElement", ByteChunk.class,
+                    Date.class, Request.class, Response.class,
+                    long.class).getDeclaringClass();
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Append a character to a message generated as bytes. Characters that
+     * can not be represented in ISO-8859-1 are written as <code>?</code>.
+     */
+    protected static void append(ByteChunk buf, char c) {
+        buf.makeSpace(1);
+        int end = buf.getEnd();
+        buf.getBuffer()[end] = c > 0xFF ? (byte) '?' : (byte) c;
+        buf.setEnd(end + 1);
+    }
+
+
+    /**
+     * Append a String to a message generated as bytes. Characters that can
+     * not be represented in ISO-8859-1 are written as <code>?</code>.
+     */
+    protected static void append(ByteChunk buf, String value) {
+        if (value == null) {
+            value = "null";
+        }
+        int len = value.length();
+        buf.makeSpace(len);
+        byte[] bytes = buf.getBuffer();
+        int end = buf.getEnd();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            bytes[end++] = c > 0xFF ? (byte) '?' : (byte) c;
+        }
+        buf.setEnd(end);
+    }
+
+
+    /**
+     * Append the decimal representation of a number to a message generated as
+     * bytes.
+     */
+    protected static void append(ByteChunk buf, long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                append(buf, Long.toString(value));
+                return;
+            }
+            append(buf, '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        buf.makeSpace(digits);
+        byte[] bytes = buf.getBuffer();
+        int end = buf.getEnd() + digits;
+        buf.setEnd(end);
+        do {
+            bytes[--end] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+    }
+
+
+    /**
+     * Append the value of a MessageBytes to a message generated as bytes. If
+     * the value is held as ISO-8859-1 bytes, they are copied without creating
+     * a String.
+     */
+    protected static void append(ByteChunk buf, MessageBytes value) {
+        if (value.getType() == MessageBytes.T_BYTES) {
+            ByteChunk bc = value.getByteChunk();
+            if (StandardCharsets.ISO_8859_1.equals(bc.getCharset())) {
+                int len = bc.getLength();
+                buf.makeSpace(len);
+                System.arraycopy(bc.getBuffer(), bc.getStart(), buf.getBuffer(),
+                        buf.getEnd(), len);
+                buf.setEnd(buf.getEnd() + len);
+                return;
+            }
+        }
+        append(buf, value.toString());
+    }
+
+
     /**
      * AccessLogElement writes the partial message into the buffer.
      */
@@ -739,10 +932,21 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
 
     }
 
+    /**
+     * AccessLogElement that is also able to write the partial message as
+     * ISO-8859-1 bytes. The message is only generated as bytes if every
+     * element of the pattern implements this interface.
+     */
+    protected interface ByteAccessLogElement extends AccessLogElement {
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time);
+
+    }
+
     /**
      * write thread name - %I
      */
-    protected static class ThreadNameElement implements AccessLogElement {
+    protected static class ThreadNameElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -753,12 +957,23 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append("-");
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            RequestInfo info = request.getCoyoteRequest().getRequestProcessor();
+            if(info != null) {
+                append(buf, info.getWorkerThreadName());
+            } else {
+                append(buf, '-');
+            }
+        }
     }
 
     /**
      * write local IP address - %A
      */
-    protected static class LocalAddrElement implements AccessLogElement {
+    protected static class LocalAddrElement implements ByteAccessLogElement {
 
         private static final String LOCAL_ADDR_VALUE;
 
@@ -778,12 +993,18 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 Response response, long time) {
             buf.append(LOCAL_ADDR_VALUE);
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            append(buf, LOCAL_ADDR_VALUE);
+        }
     }
 
     /**
      * write remote IP address - %a
      */
-    protected class RemoteAddrElement implements AccessLogElement {
+    protected class RemoteAddrElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -798,15 +1019,34 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append(request.getRemoteAddr());
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (requestAttributesEnabled) {
+                Object addr = request.getAttribute(REMOTE_ADDR_ATTRIBUTE);
+                if (addr == null) {
+                    append(buf, request.getRemoteAddr());
+                } else {
+                    append(buf, addr.toString());
+                }
+            } else {
+                append(buf, request.getRemoteAddr());
+            }
+        }
     }
 
     /**
      * write remote host name - %h
      */
-    protected class HostElement implements AccessLogElement {
+    protected class HostElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
+            buf.append(getValue(request));
+        }
+
+        private String getValue(Request request) {
             String value = null;
             if (requestAttributesEnabled) {
                 Object host = request.getAttribute(REMOTE_HOST_ATTRIBUTE);
@@ -820,25 +1060,37 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
             if (value == null || value.length() == 0) {
                 value = "-";
             }
-            buf.append(value);
+            return value;
+        }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            append(buf, getValue(request));
         }
     }
 
     /**
      * write remote logical username from identd (always returns '-') - %l
      */
-    protected static class LogicalUserNameElement implements AccessLogElement {
+    protected static class LogicalUserNameElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
             buf.append('-');
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            append(buf, '-');
+        }
     }
 
     /**
      * write request protocol - %H
      */
-    protected class ProtocolElement implements AccessLogElement {
+    protected class ProtocolElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -853,12 +1105,27 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append(request.getProtocol());
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (requestAttributesEnabled) {
+                Object proto = request.getAttribute(PROTOCOL_ATTRIBUTE);
+                if (proto == null) {
+                    append(buf, request.getCoyoteRequest().protocol());
+                } else {
+                    append(buf, proto.toString());
+                }
+            } else {
+                append(buf, request.getCoyoteRequest().protocol());
+            }
+        }
     }
 
     /**
      * write remote user that was authenticated (if any), else '-' - %u
      */
-    protected static class UserElement implements AccessLogElement {
+    protected static class UserElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -873,12 +1140,26 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append('-');
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            String value = null;
+            if (request != null) {
+                value = request.getRemoteUser();
+            }
+            if (value != null) {
+                append(buf, value);
+            } else {
+                append(buf, '-');
+            }
+        }
     }
 
     /**
      * write date and time, in configurable format (default CLF) - %t or %{format}t
      */
-    protected class DateAndTimeElement implements AccessLogElement {
+    protected class DateAndTimeElement implements ByteAccessLogElement {
 
         /**
          * Format prefix specifying request start time
@@ -1026,32 +1307,72 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append(Long.toString(frac));
                 break;
             case SDF:
-                String temp = localDateCache.get().getFormat(format, locale, timestamp);
-                if (usesMsecs) {
-                    frac = timestamp % 1000;
-                    StringBuilder trippleMsec = new StringBuilder(4);
-                    if (frac < 100) {
-                        if (frac < 10) {
-                            trippleMsec.append('0');
-                            trippleMsec.append('0');
-                        } else {
-                            trippleMsec.append('0');
-                        }
+                buf.append(formatSdf(timestamp));
+                break;
+            }
+        }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            long timestamp = date.getTime();
+            long frac;
+            if (usesBegin) {
+                timestamp -= time;
+            }
+            switch (type) {
+            case CLF:
+                append(buf, localDateCache.get().getFormat(timestamp));
+                break;
+            case SEC:
+                append(buf, timestamp / 1000);
+                break;
+            case MSEC:
+                append(buf, timestamp);
+                break;
+            case MSEC_FRAC:
+                frac = timestamp % 1000;
+                if (frac < 100) {
+                    if (frac < 10) {
+                        append(buf, '0');
+                        append(buf, '0');
+                    } else {
+                        append(buf, '0');
                     }
-                    trippleMsec.append(frac);
-                    temp = temp.replace(trippleMsecPattern, trippleMsec);
-                    temp = temp.replace(msecPattern, Long.toString(frac));
                 }
-                buf.append(temp);
+                append(buf, frac);
+                break;
+            case SDF:
+                append(buf, formatSdf(timestamp));
                 break;
             }
         }
+
+        private String formatSdf(long timestamp) {
+            String temp = localDateCache.get().getFormat(format, locale, timestamp);
+            if (usesMsecs) {
+                long frac = timestamp % 1000;
+                StringBuilder trippleMsec = new StringBuilder(4);
+                if (frac < 100) {
+                    if (frac < 10) {
+                        trippleMsec.append('0');
+                        trippleMsec.append('0');
+                    } else {
+                        trippleMsec.append('0');
+                    }
+                }
+                trippleMsec.append(frac);
+                temp = temp.replace(trippleMsecPattern, trippleMsec);
+                temp = temp.replace(msecPattern, Long.toString(frac));
+            }
+            return temp;
+        }
     }
 
     /**
      * write first line of the request (method and request URI) - %r
      */
-    protected static class RequestElement implements AccessLogElement {
+    protected static class RequestElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -1075,12 +1396,36 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append('-');
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (request != null) {
+                org.apache.coyote.Request coyoteRequest = request.getCoyoteRequest();
+                if (coyoteRequest.method().isNull()) {
+                    // No method means no request line
+                    append(buf, '-');
+                } else {
+                    append(buf, coyoteRequest.method());
+                    append(buf, ' ');
+                    append(buf, coyoteRequest.requestURI());
+                    if (!coyoteRequest.queryString().isNull()) {
+                        append(buf, '?');
+                        append(buf, coyoteRequest.queryString());
+                    }
+                    append(buf, ' ');
+                    append(buf, coyoteRequest.protocol());
+                }
+            } else {
+                append(buf, '-');
+            }
+        }
     }
 
     /**
      * write HTTP status code of the response - %s
      */
-    protected static class HttpStatusCodeElement implements AccessLogElement {
+    protected static class HttpStatusCodeElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -1098,12 +1443,22 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append('-');
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (response != null) {
+                append(buf, response.getStatus());
+            } else {
+                append(buf, '-');
+            }
+        }
     }
 
     /**
      * write local or remote port for request connection - %p and %{xxx}p
      */
-    protected class PortElement implements AccessLogElement {
+    protected class PortElement implements ByteAccessLogElement {
 
         /**
          * Type of port to log
@@ -1150,12 +1505,31 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 }
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (requestAttributesEnabled && portType == PortType.LOCAL) {
+                Object port = request.getAttribute(SERVER_PORT_ATTRIBUTE);
+                if (port == null) {
+                    append(buf, request.getServerPort());
+                } else {
+                    append(buf, port.toString());
+                }
+            } else {
+                if (portType == PortType.LOCAL) {
+                    append(buf, request.getServerPort());
+                } else {
+                    append(buf, request.getRemotePort());
+                }
+            }
+        }
     }
 
     /**
      * write bytes sent, excluding HTTP headers - %b, %B
      */
-    protected static class ByteSentElement implements AccessLogElement {
+    protected static class ByteSentElement implements ByteAccessLogElement {
         private final boolean conversion;
 
         /**
@@ -1168,6 +1542,15 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
+            long length = getLength(request, response);
+            if (length <= 0 && conversion) {
+                buf.append('-');
+            } else {
+                buf.append(Long.toString(length));
+            }
+        }
+
+        private static long getLength(Request request, Response response) {
             // Don't need to flush since trigger for log message is after the
             // response has been committed
             long length = response.getBytesWritten(false);
@@ -1185,10 +1568,17 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                     }
                 }
             }
+            return length;
+        }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            long length = getLength(request, response);
             if (length <= 0 && conversion) {
-                buf.append('-');
+                append(buf, '-');
             } else {
-                buf.append(Long.toString(length));
+                append(buf, length);
             }
         }
     }
@@ -1196,7 +1586,7 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
     /**
      * write request method (GET, POST, etc.) - %m
      */
-    protected static class MethodElement implements AccessLogElement {
+    protected static class MethodElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -1204,12 +1594,20 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append(request.getMethod());
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (request != null) {
+                append(buf, request.getCoyoteRequest().method());
+            }
+        }
     }
 
     /**
      * write time taken to process the request - %D, %T
      */
-    protected static class ElapsedTimeElement implements AccessLogElement {
+    protected static class ElapsedTimeElement implements ByteAccessLogElement {
         private final boolean millis;
 
         /**
@@ -1236,12 +1634,29 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append(Long.toString(remains % 10));
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (millis) {
+                append(buf, time);
+            } else {
+                // second
+                append(buf, time / 1000);
+                append(buf, '.');
+                int remains = (int) (time % 1000);
+                append(buf, (char) ('0' + remains / 100));
+                remains = remains % 100;
+                append(buf, (char) ('0' + remains / 10));
+                append(buf, (char) ('0' + remains % 10));
+            }
+        }
     }
 
     /**
      * write time until first byte is written (commit time) in millis - %F
      */
-    protected static class FirstByteTimeElement implements AccessLogElement {
+    protected static class FirstByteTimeElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request, Response response, long time) {
             long commitTime = response.getCoyoteResponse().getCommitTime();
@@ -1252,12 +1667,57 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append(Long.toString(delta));
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            long commitTime = response.getCoyoteResponse().getCommitTime();
+            if (commitTime == -1) {
+                append(buf, '-');
+            } else {
+                append(buf, commitTime - request.getCoyoteRequest().getStartTime());
+            }
+        }
+    }
+
+    /**
+     * write time in microseconds between the start of the request and a
+     * traced phase of its processing - %{xxx}P
+     */
+    protected static class PhaseTimeElement implements ByteAccessLogElement {
+        private final int phase;
+
+        public PhaseTimeElement(int phase) {
+            this.phase = phase;
+        }
+
+        @Override
+        public void addElement(CharArrayWriter buf, Date date, Request request,
+                Response response, long time) {
+            long nanos = request.getCoyoteRequest().getPhaseNanos(phase);
+            if (nanos == -1) {
+                buf.append('-');
+            } else {
+                buf.append(Long.toString(nanos / 1000));
+            }
+        }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            long nanos = request.getCoyoteRequest().getPhaseNanos(phase);
+            if (nanos == -1) {
+                append(buf, '-');
+            } else {
+                append(buf, nanos / 1000);
+            }
+        }
     }
 
     /**
      * write Query string (prepended with a '?' if it exists) - %q
      */
-    protected static class QueryElement implements AccessLogElement {
+    protected static class QueryElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -1270,12 +1730,24 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append(query);
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (request != null) {
+                MessageBytes query = request.getCoyoteRequest().queryString();
+                if (!query.isNull()) {
+                    append(buf, '?');
+                    append(buf, query);
+                }
+            }
+        }
     }
 
     /**
      * write user session ID - %S
      */
-    protected static class SessionIdElement implements AccessLogElement {
+    protected static class SessionIdElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -1290,12 +1762,26 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 }
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            Session session = null;
+            if (request != null) {
+                session = request.getSessionInternal(false);
+            }
+            if (session == null) {
+                append(buf, '-');
+            } else {
+                append(buf, session.getIdInternal());
+            }
+        }
     }
 
     /**
      * write requested URL path - %U
      */
-    protected static class RequestURIElement implements AccessLogElement {
+    protected static class RequestURIElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
@@ -1305,23 +1791,39 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 buf.append('-');
             }
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            if (request != null) {
+                append(buf, request.getCoyoteRequest().requestURI());
+            } else {
+                append(buf, '-');
+            }
+        }
     }
 
     /**
      * write local server name - %v
      */
-    protected static class LocalServerNameElement implements AccessLogElement {
+    protected static class LocalServerNameElement implements ByteAccessLogElement {
         @Override
         public void addElement(CharArrayWriter buf, Date date, Request request,
                 Response response, long time) {
             buf.append(request.getServerName());
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            append(buf, request.getServerName());
+        }
     }
 
     /**
      * write any string
      */
-    protected static class StringElement implements AccessLogElement {
+    protected static class StringElement implements ByteAccessLogElement {
         private final String str;
 
         public StringElement(String str) {
@@ -1333,12 +1835,18 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
                 Response response, long time) {
             buf.append(str);
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            append(buf, str);
+        }
     }
 
     /**
      * write incoming headers - %{xxx}i
      */
-    protected static class HeaderElement implements AccessLogElement {
+    protected static class HeaderElement implements ByteAccessLogElement {
         private final String header;
 
         public HeaderElement(String header) {
@@ -1358,6 +1866,22 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
             }
             buf.append('-');
         }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            MimeHeaders headers = request.getCoyoteRequest().getMimeHeaders();
+            int pos = headers.findHeader(header, 0);
+            if (pos < 0) {
+                append(buf, '-');
+                return;
+            }
+            append(buf, headers.getValue(pos));
+            while ((pos = headers.findHeader(header, pos + 1)) >= 0) {
+                append(buf, ',');
+                append(buf, headers.getValue(pos));
+            }
+        }
     }
 
     /**
@@ -1548,6 +2072,13 @@ public abstract class AbstractAccessLogValve extends ValveBase implements Access
             return new SessionAttributeElement(name);
         case 't':
             return new DateAndTimeElement(name);
+        case 'P': {
+            int phase = org.apache.coyote.Request.getPhase(name);
+            if (phase == -1) {
+                return new StringElement("???");
+            }
+            return new PhaseTimeElement(phase);
+        }
         default:
             return new StringElement("???");
         }
@@ -17,26 +17,33 @@
 package org.apache.catalina.valves;
 
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.catalina.LifecycleException;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
 import org.apache.tomcat.util.buf.B2CConverter;
+import org.apache.tomcat.util.buf.ByteChunk;
 
 
 /**
@@ -64,6 +71,9 @@ public class AccessLogValve extends AbstractAccessLogValve {
 
     private static final Log log = LogFactory.getLog(AccessLogValve.class);
 
+    private static final byte[] LINE_SEPARATOR =
+            System.lineSeparator().getBytes(StandardCharsets.ISO_8859_1);
+
     //------------------------------------------------------ Constructor
     public AccessLogValve() {
         super();
@@ -120,6 +130,14 @@ public class AccessLogValve extends AbstractAccessLogValve {
     protected PrintWriter writer = null;
 
 
+    /**
+     * The stream beneath {@link #writer} if the log file is encoded using
+     * ISO-8859-1, allowing messages generated as bytes to be written
+     * directly.
+     */
+    private volatile OutputStream outputStream = null;
+
+
     /**
      * A date formatter to format a Date using the format
      * given by <code>fileDateFormat</code>.
@@ -156,6 +174,31 @@ public class AccessLogValve extends AbstractAccessLogValve {
      */
     protected String encoding = null;
 
+    /**
+     * Should log messages be written by a dedicated writer thread rather than
+     * by the thread processing the request?
+     */
+    private boolean asyncWrite = false;
+
+    /**
+     * Maximum number of messages waiting for the writer thread.
+     */
+    private int queueSize = 8192;
+
+    /**
+     * Should messages be discarded, rather than waiting for space, when the
+     * queue of the writer thread is full?
+     */
+    private boolean dropWhenQueueFull = false;
+
+    /**
+     * Number of messages discarded because the queue was full.
+     */
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    private volatile MessageQueue queue = null;
+    private Thread writerThread = null;
+
     // ------------------------------------------------------------- Properties
 
 
@@ -340,6 +383,63 @@ public class AccessLogValve extends AbstractAccessLogValve {
         }
     }
 
+    /**
+     * @return <code>true</code> if log messages are written by a dedicated
+     *         writer thread
+     */
+    public boolean isAsyncWrite() {
+        return asyncWrite;
+    }
+
+    /**
+     * Configure whether log messages are written by a dedicated writer thread.
+     * Request processing threads then only copy the message into a bounded
+     * queue rather than competing for the lock on the log file. Changes take
+     * effect the next time the valve is started.
+     *
+     * @param asyncWrite <code>true</code> to use a writer thread
+     */
+    public void setAsyncWrite(boolean asyncWrite) {
+        this.asyncWrite = asyncWrite;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Set the maximum number of messages waiting for the writer thread. The
+     * value is rounded up to the next power of two. Changes take effect the
+     * next time the valve is started.
+     *
+     * @param queueSize The maximum number of waiting messages
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public boolean isDropWhenQueueFull() {
+        return dropWhenQueueFull;
+    }
+
+    /**
+     * Configure what happens when the queue of the writer thread is full.
+     *
+     * @param dropWhenQueueFull <code>true</code> to discard the message,
+     *        <code>false</code> to wait for space in the queue
+     */
+    public void setDropWhenQueueFull(boolean dropWhenQueueFull) {
+        this.dropWhenQueueFull = dropWhenQueueFull;
+    }
+
+    /**
+     * @return The number of messages discarded because the queue of the
+     *         writer thread was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -502,6 +602,7 @@ public class AccessLogValve extends AbstractAccessLogValve {
             }
         }
         writer = null;
+        outputStream = null;
         dateStamp = "";
         currentLogFile = null;
     }
@@ -516,27 +617,60 @@ public class AccessLogValve extends AbstractAccessLogValve {
     @Override
     public void log(CharArrayWriter message) {
 
-        rotate();
+        MessageQueue queue = this.queue;
+        if (queue != null) {
+            if (queue.offer(message, !dropWhenQueueFull)) {
+                return;
+            }
+            if (!queue.isClosed()) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            // The valve is stopping so write the message directly
+        }
+        write(message);
+    }
 
-        /* In case something external rotated the file instead */
-        if (checkExists) {
-            synchronized (this) {
-                if (currentLogFile != null && !currentLogFile.exists()) {
-                    try {
-                        close(false);
-                    } catch (Throwable e) {
-                        ExceptionUtils.handleThrowable(e);
-                        log.info(sm.getString("accessLogValve.closeFail"), e);
-                    }
 
-                    /* Make sure date is correct */
-                    dateStamp = fileDateFormatter.format(
-                            new Date(System.currentTimeMillis()));
+    /**
+     * Log the specified message to the log file, switching files if the date
+     * has changed since the previous log call.
+     *
+     * @param message Message to be logged as ISO-8859-1 bytes
+     */
+    @Override
+    protected void log(ByteChunk message) {
 
-                    open();
-                }
+        MessageQueue queue = this.queue;
+        if (queue != null) {
+            if (queue.offer(message, !dropWhenQueueFull)) {
+                return;
+            }
+            if (!queue.isClosed()) {
+                droppedCount.incrementAndGet();
+                return;
             }
+            // The valve is stopping so write the message directly
         }
+        write(message);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation returns <code>true</code> if the current log file
+     * is encoded using ISO-8859-1.
+     */
+    @Override
+    protected boolean isLogBytesSupported() {
+        return outputStream != null;
+    }
+
+
+    private void write(CharArrayWriter message) {
+
+        checkLogFile();
 
         // Log this message
         try {
@@ -556,6 +690,61 @@ public class AccessLogValve extends AbstractAccessLogValve {
     }
 
 
+    private void write(ByteChunk message) {
+
+        checkLogFile();
+
+        // Log this message
+        try {
+            synchronized(this) {
+                if (outputStream != null) {
+                    outputStream.write(message.getBuffer(), message.getStart(),
+                            message.getLength());
+                    outputStream.write(LINE_SEPARATOR);
+                    if (!buffered) {
+                        outputStream.flush();
+                    }
+                } else if (writer != null) {
+                    // The log file was re-opened using a different encoding
+                    writer.println(message.toString());
+                    if (!buffered) {
+                        writer.flush();
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            log.warn(sm.getString(
+                    "accessLogValve.writeFail", message.toString()), ioe);
+        }
+    }
+
+
+    private void checkLogFile() {
+
+        rotate();
+
+        /* In case something external rotated the file instead */
+        if (checkExists) {
+            synchronized (this) {
+                if (currentLogFile != null && !currentLogFile.exists()) {
+                    try {
+                        close(false);
+                    } catch (Throwable e) {
+                        ExceptionUtils.handleThrowable(e);
+                        log.info(sm.getString("accessLogValve.closeFail"), e);
+                    }
+
+                    /* Make sure date is correct */
+                    dateStamp = fileDateFormatter.format(
+                            new Date(System.currentTimeMillis()));
+
+                    open();
+                }
+            }
+        }
+    }
+
+
     /**
      * Open the new log file for the date specified by <code>dateStamp</code>.
      */
@@ -578,13 +767,20 @@ public class AccessLogValve extends AbstractAccessLogValve {
         }
 
         try {
-            writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(pathname, true), charset), 128000),
-                    false);
+            OutputStream os = new BufferedOutputStream(
+                    new FileOutputStream(pathname, true), 128000);
+            if (StandardCharsets.ISO_8859_1.equals(charset)) {
+                writer = new PrintWriter(new Iso88591Writer(os), false);
+                outputStream = os;
+            } else {
+                writer = new PrintWriter(new OutputStreamWriter(os, charset),
+                        false);
+            }
 
             currentLogFile = pathname;
         } catch (IOException e) {
             writer = null;
+            outputStream = null;
             currentLogFile = null;
             log.error(sm.getString("accessLogValve.openFail", pathname), e);
         }
@@ -610,6 +806,14 @@ public class AccessLogValve extends AbstractAccessLogValve {
         }
         open();
 
+        if (asyncWrite) {
+            queue = new MessageQueue(queueSize);
+            writerThread = new Thread(new AsyncWriter(queue),
+                    "AccessLogWriter[" + getContainer().getName() + "]");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
         super.startInternal();
     }
 
@@ -625,6 +829,358 @@ public class AccessLogValve extends AbstractAccessLogValve {
     protected synchronized void stopInternal() throws LifecycleException {
 
         super.stopInternal();
+        if (queue != null) {
+            // The writer thread only consumes messages while holding the lock
+            // on this valve, which is held here, so the remaining messages
+            // can be written by this thread
+            queue.close();
+            while (!queue.isDrained()) {
+                Message message = queue.poll();
+                if (message == null) {
+                    // A producer has claimed the slot but has not yet copied
+                    // its message
+                    Thread.yield();
+                    continue;
+                }
+                write(message);
+                queue.release();
+            }
+            queue = null;
+            LockSupport.unpark(writerThread);
+            writerThread = null;
+        }
         close(false);
     }
+
+
+    private void write(Message message) {
+        if (message.isBytes) {
+            write(message.bytes);
+        } else {
+            write(message.chars);
+        }
+    }
+
+
+    /**
+     * Consumes the messages queued by request processing threads.
+     */
+    private class AsyncWriter implements Runnable {
+
+        private static final int MAX_BATCH = 1024;
+
+        private final MessageQueue queue;
+
+        AsyncWriter(MessageQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int count = 0;
+                synchronized (AccessLogValve.this) {
+                    if (queue.isClosed()) {
+                        return;
+                    }
+                    Message message;
+                    while (count < MAX_BATCH && (message = queue.poll()) != null) {
+                        try {
+                            write(message);
+                        } catch (Throwable t) {
+                            ExceptionUtils.handleThrowable(t);
+                            log.warn(sm.getString("accessLogValve.writeFail",
+                                    message.toString()), t);
+                        }
+                        queue.release();
+                        count++;
+                    }
+                }
+                if (count == 0) {
+                    queue.await();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A slot in the {@link MessageQueue}. The buffers are created on first
+     * use and re-used for later messages.
+     */
+    private static class Message {
+
+        private CharArrayWriter chars = null;
+        private ByteChunk bytes = null;
+        private boolean isBytes = false;
+
+        void set(CharArrayWriter message) {
+            if (chars == null) {
+                chars = new CharArrayWriter(128);
+            } else {
+                chars.reset();
+            }
+            try {
+                message.writeTo(chars);
+            } catch (IOException ioe) {
+                // Writing to a CharArrayWriter does not throw
+            }
+            isBytes = false;
+        }
+
+        void set(ByteChunk message) {
+            if (bytes == null) {
+                bytes = new ByteChunk(128);
+            } else {
+                bytes.recycle();
+            }
+            int len = message.getLength();
+            bytes.makeSpace(len);
+            System.arraycopy(message.getBuffer(), message.getStart(),
+                    bytes.getBuffer(), 0, len);
+            bytes.setEnd(len);
+            isBytes = true;
+        }
+
+        @Override
+        public String toString() {
+            return isBytes ? bytes.toString() : chars.toString();
+        }
+    }
+
+
+    /**
+     * A bounded queue with many producers and a single consumer that does not
+     * use locks. Messages are copied into buffers owned by each slot, so
+     * queuing a message does not allocate memory once the buffers have grown
+     * to the typical message size.
+     */
+    private static class MessageQueue {
+
+        private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+        private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+        // The value of tail once the queue is closed
+        private static final long CLOSED = Long.MAX_VALUE;
+
+        private final Message[] messages;
+        /*
+         * A slot may be written by the producer that claims position p when
+         * its sequence is p and may be read by the consumer when its sequence
+         * is p + 1.
+         */
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong(0);
+        // Only accessed by the consumer
+        private long head = 0;
+        // The number of positions claimed before the queue was closed. Only
+        // accessed by the consumer.
+        private long end = -1;
+        private volatile Thread consumer = null;
+        private volatile boolean closed = false;
+
+        MessageQueue(int size) {
+            // A single slot could not tell a published message from a free
+            // slot
+            int capacity = 2;
+            while (capacity < size && capacity < (1 << 30)) {
+                capacity <<= 1;
+            }
+            messages = new Message[capacity];
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                messages[i] = new Message();
+                sequences.set(i, i);
+            }
+            mask = capacity - 1;
+        }
+
+        /**
+         * Copy a message into the queue.
+         *
+         * @param message   The message
+         * @param block     Should the caller wait for space if the queue is
+         *                  full?
+         * @return <code>true</code> if the message was queued,
+         *         <code>false</code> if the queue was full or has been closed
+         */
+        boolean offer(CharArrayWriter message, boolean block) {
+            long pos = claim(block);
+            if (pos < 0) {
+                return false;
+            }
+            try {
+                messages[(int) pos & mask].set(message);
+            } finally {
+                publish(pos);
+            }
+            return true;
+        }
+
+        /**
+         * Copy a message generated as bytes into the queue.
+         *
+         * @param message   The message
+         * @param block     Should the caller wait for space if the queue is
+         *                  full?
+         * @return <code>true</code> if the message was queued,
+         *         <code>false</code> if the queue was full or has been closed
+         */
+        boolean offer(ByteChunk message, boolean block) {
+            long pos = claim(block);
+            if (pos < 0) {
+                return false;
+            }
+            try {
+                messages[(int) pos & mask].set(message);
+            } finally {
+                publish(pos);
+            }
+            return true;
+        }
+
+        private long claim(boolean block) {
+            while (!closed) {
+                long pos = tail.get();
+                if (pos == CLOSED) {
+                    break;
+                }
+                long sequence = sequences.get((int) pos & mask);
+                if (sequence == pos) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        return pos;
+                    }
+                } else if (sequence < pos) {
+                    // Queue is full
+                    if (!block) {
+                        return -1;
+                    }
+                    LockSupport.parkNanos(FULL_WAIT_NANOS);
+                }
+                // else another producer claimed this position. Try again.
+            }
+            return -1;
+        }
+
+        private void publish(long pos) {
+            sequences.set((int) pos & mask, pos + 1);
+            Thread consumer = this.consumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        /**
+         * @return The oldest message or <code>null</code> if the queue is
+         *         empty. The message must be passed to {@link #release()}
+         *         once it has been written.
+         */
+        Message poll() {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            return messages[index];
+        }
+
+        void release() {
+            int index = (int) head & mask;
+            sequences.lazySet(index, head + messages.length);
+            head++;
+        }
+
+        /**
+         * Wait for a message to be queued.
+         */
+        void await() {
+            consumer = Thread.currentThread();
+            if (poll() == null && !closed) {
+                LockSupport.parkNanos(WAIT_NANOS);
+            }
+            consumer = null;
+        }
+
+        /**
+         * Close the queue. Once this method returns no further positions can
+         * be claimed, although producers may still be copying messages into
+         * positions claimed earlier.
+         */
+        void close() {
+            closed = true;
+            // Fails the compareAndSet of any producer that has read tail but
+            // not yet claimed its position
+            end = tail.getAndSet(CLOSED);
+        }
+
+        /**
+         * @return <code>true</code> if the queue has been closed and every
+         *         message claimed before it was closed has been consumed
+         */
+        boolean isDrained() {
+            return closed && head == end;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+    }
+
+
+    /**
+     * Encodes characters as ISO-8859-1 directly into the underlying stream so
+     * that messages written as characters and as bytes share the buffer of
+     * that stream. Characters that can not be represented are written as
+     * <code>?</code>.
+     */
+    private static class Iso88591Writer extends Writer {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[1024];
+
+        Iso88591Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            synchronized (lock) {
+                while (len > 0) {
+                    int count = Math.min(len, buffer.length);
+                    for (int i = 0; i < count; i++) {
+                        char c = cbuf[off + i];
+                        buffer[i] = c > 0xFF ? (byte) '?' : (byte) c;
+                    }
+                    out.write(buffer, 0, count);
+                    off += count;
+                    len -= count;
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            synchronized (lock) {
+                while (len > 0) {
+                    int count = Math.min(len, buffer.length);
+                    for (int i = 0; i < count; i++) {
+                        char c = str.charAt(off + i);
+                        buffer[i] = c > 0xFF ? (byte) '?' : (byte) c;
+                    }
+                    out.write(buffer, 0, count);
+                    off += count;
+                    len -= count;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
 }
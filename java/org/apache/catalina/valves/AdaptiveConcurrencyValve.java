@@ -0,0 +1,387 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.valves;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+
+/**
+ * <p>Implementation of a Valve that limits concurrency to a level that is
+ * continuously adjusted from the observed request latency.</p>
+ *
+ * <p>Requests are timed in windows of at least {@link #getSampleWindow()}
+ * milliseconds. At the end of each window the average latency of the window
+ * (the short term RTT) is compared with a moving average of previous windows
+ * (the long term RTT). While latency stays within {@link #getTolerance()}
+ * times the long term RTT, the limit grows by roughly its square root per
+ * window. When latency rises beyond that, requests are queuing somewhere
+ * downstream and the limit shrinks in proportion, by at most half per window.
+ * The limit does not grow while fewer than half the permits are in use.</p>
+ *
+ * <p>Requests that cannot get a permit within {@link #getMaxQueueWait()}
+ * milliseconds are rejected with a 503 response. The initial limit is the
+ * {@link #getConcurrency() concurrency} of the Semaphore Valve and the
+ * <code>block</code> and <code>interruptible</code> attributes are not
+ * used.</p>
+ */
+public class AdaptiveConcurrencyValve extends SemaphoreValve {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The current number of permits. Changes are made while holding the lock
+     * on {@link #limitLock} so that the permits of the semaphore track it.
+     */
+    private volatile int limit;
+
+    /**
+     * The unrounded limit so that small changes accumulate across windows.
+     * Only accessed by the thread that closes a window.
+     */
+    private double estimatedLimit;
+
+    private final Object limitLock = new Object();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong windowStart = new AtomicLong();
+    private final AtomicLong windowRttSum = new AtomicLong();
+    private final AtomicLong windowCount = new AtomicLong();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+
+    // Updated by the thread that closes a window
+    private volatile double shortRtt = 0;
+    private volatile double longRtt = 0;
+    private volatile double throughput = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * The lowest limit.
+     */
+    protected int minConcurrency = 1;
+    public int getMinConcurrency() { return minConcurrency; }
+    public void setMinConcurrency(int minConcurrency) {
+        this.minConcurrency = minConcurrency;
+    }
+
+
+    /**
+     * The highest limit.
+     */
+    protected int maxConcurrency = 1000;
+    public int getMaxConcurrency() { return maxConcurrency; }
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+
+    /**
+     * The minimum duration of a window in milliseconds.
+     */
+    protected long sampleWindow = 1000;
+    public long getSampleWindow() { return sampleWindow; }
+    public void setSampleWindow(long sampleWindow) {
+        this.sampleWindow = sampleWindow;
+    }
+
+
+    /**
+     * The minimum number of requests timed in a window before the limit is
+     * adjusted.
+     */
+    protected int minSamples = 10;
+    public int getMinSamples() { return minSamples; }
+    public void setMinSamples(int minSamples) { this.minSamples = minSamples; }
+
+
+    /**
+     * How much higher than the long term RTT the short term RTT may be before
+     * the limit is reduced.
+     */
+    protected double tolerance = 1.5;
+    public double getTolerance() { return tolerance; }
+    public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+
+
+    /**
+     * The weight of a new limit relative to the previous one.
+     */
+    protected double smoothing = 0.2;
+    public double getSmoothing() { return smoothing; }
+    public void setSmoothing(double smoothing) { this.smoothing = smoothing; }
+
+
+    /**
+     * The number of windows the long term RTT is averaged over.
+     */
+    protected int longWindow = 10;
+    public int getLongWindow() { return longWindow; }
+    public void setLongWindow(int longWindow) { this.longWindow = longWindow; }
+
+
+    /**
+     * The maximum time in milliseconds a request waits for a permit before it
+     * is rejected.
+     */
+    protected long maxQueueWait = 0;
+    public long getMaxQueueWait() { return maxQueueWait; }
+    public void setMaxQueueWait(long maxQueueWait) {
+        this.maxQueueWait = maxQueueWait;
+    }
+
+
+    /**
+     * @return the current concurrency limit
+     */
+    public int getLimit() { return limit; }
+
+
+    /**
+     * @return the number of requests currently holding a permit
+     */
+    public int getInFlight() { return inFlight.get(); }
+
+
+    /**
+     * @return the number of requests rejected because no permit became
+     *         available in time
+     */
+    public long getRejectedCount() { return rejectedCount.get(); }
+
+
+    /**
+     * @return the average time in milliseconds to process a request in the
+     *         most recent window
+     */
+    public double getShortRtt() { return shortRtt / 1000000; }
+
+
+    /**
+     * @return the moving average of the request processing time in
+     *         milliseconds over recent windows
+     */
+    public double getLongRtt() { return longRtt / 1000000; }
+
+
+    /**
+     * @return the number of requests per second completed in the most recent
+     *         window
+     */
+    public double getThroughput() { return throughput; }
+
+
+    /**
+     * Start this component and implement the requirements
+     * of {@link org.apache.catalina.util.LifecycleBase#startInternal()}.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+
+        limit = Math.max(minConcurrency, Math.min(maxConcurrency, concurrency));
+        estimatedLimit = limit;
+        semaphore = new ResizableSemaphore(limit, fairness);
+        inFlight.set(0);
+        shortRtt = 0;
+        longRtt = 0;
+        throughput = 0;
+        windowRttSum.set(0);
+        windowCount.set(0);
+        windowMaxInFlight.set(0);
+        windowStart.set(System.nanoTime());
+
+        setState(LifecycleState.STARTING);
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Do concurrency control on the request using the semaphore and time the
+     * request to adjust the number of permits.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    @Override
+    public void invoke(Request request, Response response)
+        throws IOException, ServletException {
+
+        if (!controlConcurrency(request, response)) {
+            getNext().invoke(request, response);
+            return;
+        }
+
+        Semaphore semaphore = this.semaphore;
+        boolean acquired;
+        if (maxQueueWait > 0) {
+            try {
+                acquired = semaphore.tryAcquire(maxQueueWait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                acquired = false;
+            }
+        } else {
+            acquired = semaphore.tryAcquire();
+        }
+        if (!acquired) {
+            rejectedCount.incrementAndGet();
+            permitDenied(request, response);
+            return;
+        }
+
+        int current = inFlight.incrementAndGet();
+        int max = windowMaxInFlight.get();
+        while (current > max && !windowMaxInFlight.compareAndSet(max, current)) {
+            max = windowMaxInFlight.get();
+        }
+
+        long start = System.nanoTime();
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            inFlight.decrementAndGet();
+            semaphore.release();
+            sample(start, System.nanoTime());
+        }
+    }
+
+
+    /**
+     * Reject the request with a 503 response.
+     *
+     * @param request The servlet request that was not granted a permit
+     * @param response The servlet response to be created
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    @Override
+    public void permitDenied(Request request, Response response)
+        throws IOException, ServletException {
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+    private void sample(long start, long end) {
+        windowRttSum.addAndGet(end - start);
+        long count = windowCount.incrementAndGet();
+
+        long windowStart = this.windowStart.get();
+        if (end - windowStart >= TimeUnit.MILLISECONDS.toNanos(sampleWindow) &&
+                count >= minSamples &&
+                this.windowStart.compareAndSet(windowStart, end)) {
+            // Only the thread that closed the window gets here
+            updateLimit(end - windowStart);
+        }
+    }
+
+
+    private void updateLimit(long windowDuration) {
+        long count = windowCount.getAndSet(0);
+        long rttSum = windowRttSum.getAndSet(0);
+        int maxInFlight = windowMaxInFlight.getAndSet(inFlight.get());
+        if (count == 0) {
+            return;
+        }
+
+        double shortRtt = (double) rttSum / count;
+        double longRtt = this.longRtt;
+        if (longRtt == 0) {
+            longRtt = shortRtt;
+        } else {
+            double factor = 2.0 / (longWindow + 1);
+            longRtt = longRtt * (1 - factor) + shortRtt * factor;
+            // Latency has been lower for a while so let the long term RTT
+            // recover faster than the moving average alone would allow
+            if (longRtt / shortRtt > 2) {
+                longRtt *= 0.95;
+            }
+        }
+        this.shortRtt = shortRtt;
+        this.longRtt = longRtt;
+        this.throughput = count * 1000000000.0 / windowDuration;
+
+        int limit = this.limit;
+        if (maxInFlight < limit / 2) {
+            // Not enough demand to tell whether a higher limit would help
+            return;
+        }
+
+        double gradient =
+                Math.max(0.5, Math.min(1.0, tolerance * longRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - smoothing) + newLimit * smoothing;
+        estimatedLimit = Math.max(minConcurrency, Math.min(maxConcurrency, newLimit));
+        setLimit((int) estimatedLimit);
+    }
+
+
+    private void setLimit(int newLimit) {
+        synchronized (limitLock) {
+            Semaphore semaphore = this.semaphore;
+            if (semaphore == null) {
+                // Stopped
+                return;
+            }
+            int delta = newLimit - limit;
+            if (delta > 0) {
+                semaphore.release(delta);
+            } else if (delta < 0) {
+                ((ResizableSemaphore) semaphore).reducePermits(-delta);
+            }
+            limit = newLimit;
+        }
+    }
+
+
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits, boolean fair) {
+            super(permits, fair);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
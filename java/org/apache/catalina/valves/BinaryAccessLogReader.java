@@ -0,0 +1,280 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.valves;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.tomcat.util.buf.ByteBufferUtils;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Reads the segment files written by {@link BinaryAccessLogValve}. Records
+ * are read with {@link #next()}. The fields of the current record may then
+ * be read individually, so a scan that only needs some of the fields does
+ * not decode the others.
+ * <p>
+ * When run from the command line, the records of the given segment files are
+ * written to standard out as tab separated text, preceded by a line naming
+ * the fields.
+ */
+public class BinaryAccessLogReader implements Closeable {
+
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final String[] fieldNames;
+    private final int[] offsets;
+    private final int[] lengths;
+
+
+    /**
+     * Open a segment file and read its header.
+     *
+     * @param file The segment file
+     *
+     * @throws IOException if the file can not be read or is not a segment
+     *         file written by {@link BinaryAccessLogValve}
+     */
+    public BinaryAccessLogReader(File file) throws IOException {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        try {
+            if (buffer.getInt() != BinaryAccessLogValve.MAGIC) {
+                throw new IOException(sm.getString(
+                        "binaryAccessLogReader.invalidFile", file));
+            }
+            int version = buffer.getShort() & 0xFFFF;
+            if (version != BinaryAccessLogValve.VERSION) {
+                throw new IOException(sm.getString(
+                        "binaryAccessLogReader.unsupportedVersion", file,
+                        Integer.valueOf(version)));
+            }
+            int count = buffer.getShort() & 0xFFFF;
+            fieldNames = new String[count];
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(name);
+                fieldNames[i] = new String(name, StandardCharsets.UTF_8);
+            }
+        } catch (BufferUnderflowException e) {
+            ByteBufferUtils.cleanDirectBuffer(buffer);
+            throw new IOException(sm.getString(
+                    "binaryAccessLogReader.invalidFile", file), e);
+        } catch (IOException e) {
+            ByteBufferUtils.cleanDirectBuffer(buffer);
+            throw e;
+        }
+        offsets = new int[fieldNames.length];
+        lengths = new int[fieldNames.length];
+    }
+
+
+    /**
+     * @return the names of the fields in each record. These are the pattern
+     *         elements that were configured for the valve, e.g.
+     *         <code>%s</code> or <code>%{User-Agent}i</code>.
+     */
+    public String[] getFieldNames() {
+        return fieldNames.clone();
+    }
+
+
+    /**
+     * @param name The name of the field
+     * @return the index of the field or <code>-1</code> if the records do not
+     *         contain the field
+     */
+    public int getFieldIndex(String name) {
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (fieldNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Move to the next record.
+     *
+     * @return <code>true</code> if there is another record,
+     *         <code>false</code> at the end of the segment
+     *
+     * @throws IOException if the record is corrupt
+     */
+    public boolean next() throws IOException {
+        int position = buffer.position();
+        if (buffer.remaining() < 4) {
+            return false;
+        }
+        int length = buffer.getInt(position);
+        if (length == 0) {
+            // End of the records in a segment that was not closed
+            return false;
+        }
+        int end = position + 4 + length;
+        if (length < 0 || end > buffer.limit()) {
+            throw new IOException(sm.getString(
+                    "binaryAccessLogReader.corruptRecord",
+                    Integer.valueOf(position), file));
+        }
+        int offset = position + 4;
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (offset + 2 > end) {
+                throw new IOException(sm.getString(
+                        "binaryAccessLogReader.corruptRecord",
+                        Integer.valueOf(position), file));
+            }
+            lengths[i] = buffer.getShort(offset) & 0xFFFF;
+            offsets[i] = offset + 2;
+            offset += 2 + lengths[i];
+        }
+        if (offset != end) {
+            throw new IOException(sm.getString(
+                    "binaryAccessLogReader.corruptRecord",
+                    Integer.valueOf(position), file));
+        }
+        buffer.position(end);
+        return true;
+    }
+
+
+    /**
+     * @param index The index of the field
+     * @return the length in bytes of the field in the current record
+     */
+    public int getFieldLength(int index) {
+        return lengths[index];
+    }
+
+
+    /**
+     * Copy the value of a field of the current record.
+     *
+     * @param index The index of the field
+     * @param dest  The array to copy the value to
+     * @param off   The offset in <code>dest</code> at which to start
+     * @return the number of bytes copied
+     */
+    public int getField(int index, byte[] dest, int off) {
+        int length = lengths[index];
+        int offset = offsets[index];
+        for (int i = 0; i < length; i++) {
+            dest[off + i] = buffer.get(offset + i);
+        }
+        return length;
+    }
+
+
+    /**
+     * @param index The index of the field
+     * @return the value of the field in the current record
+     */
+    public String getField(int index) {
+        byte[] value = new byte[lengths[index]];
+        getField(index, value, 0);
+        return new String(value, StandardCharsets.ISO_8859_1);
+    }
+
+
+    /**
+     * Release the mapping of the segment file. The reader must not be used
+     * after it has been closed.
+     */
+    @Override
+    public void close() {
+        ByteBufferUtils.cleanDirectBuffer(buffer);
+    }
+
+
+    /**
+     * Write the given segment files to standard out as tab separated text.
+     * Tabs and line breaks in values are escaped.
+     *
+     * @param args The segment files
+     *
+     * @throws IOException if a segment file can not be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println(sm.getString("binaryAccessLogReader.usage"));
+            return;
+        }
+        PrintStream out = System.out;
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            try (BinaryAccessLogReader reader =
+                    new BinaryAccessLogReader(new File(args[i]))) {
+                if (i == 0) {
+                    out.println(join(reader.getFieldNames(), line));
+                }
+                String[] values = new String[reader.fieldNames.length];
+                while (reader.next()) {
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = reader.getField(j);
+                    }
+                    out.println(join(values, line));
+                }
+            }
+        }
+        out.flush();
+    }
+
+
+    private static String join(String[] values, StringBuilder line) {
+        line.setLength(0);
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            String value = values[i];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                default:
+                    line.append(c);
+                }
+            }
+        }
+        return line.toString();
+    }
+}
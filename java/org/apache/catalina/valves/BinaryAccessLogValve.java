@@ -0,0 +1,548 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.valves;
+
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.ByteBufferUtils;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+
+/**
+ * <p>Implementation of the <b>Valve</b> interface that writes one compact
+ * binary record per request to a series of memory mapped segment files.
+ * Writing a record is a single copy into the mapping, and the records can be
+ * scanned field by field (see {@link BinaryAccessLogReader}) without parsing
+ * text.</p>
+ *
+ * <p>Each <code>%</code> element of the <code>pattern</code> becomes one
+ * field of the record. Literal text in the pattern is ignored. Field values
+ * are the same ISO-8859-1 text that the {@link AccessLogValve} would write for
+ * the element.</p>
+ *
+ * <p>Segment files are pre-allocated to <code>segmentSize</code> bytes and
+ * mapped into memory. A new segment is started when the current one is full
+ * and, if <code>rotatable</code> is set, when the date changes. When a segment
+ * is closed the unused space is removed. All numbers are big endian:</p>
+ * <pre>
+ * segment   = magic version fieldCount fieldName* record* [end]
+ * magic     = 4 bytes "TCAL"
+ * version   = u16 (1)
+ * fieldName = u16 length, UTF-8 bytes of the pattern element, e.g. "%s"
+ * record    = i32 length (&gt; 0), field*
+ * field     = u16 length, ISO-8859-1 bytes
+ * end       = i32 0
+ * </pre>
+ * <p>A segment that was not closed cleanly, e.g. after a crash, keeps its
+ * pre-allocated size and the space after the last record is zero padding.
+ * Readers must therefore stop at the first record with a length of zero.
+ * The valve writes through a memory mapping and the operating system may
+ * write the mapped pages back in any order so, after a crash, the last
+ * records of such a segment may also be incomplete.</p>
+ */
+public class BinaryAccessLogValve extends AbstractAccessLogValve {
+
+    private static final Log log = LogFactory.getLog(BinaryAccessLogValve.class);
+
+    /**
+     * The first four bytes of every segment file.
+     */
+    public static final int MAGIC = 0x5443414C;
+
+    /**
+     * The version of the segment file format written by this valve.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The pattern used if none is configured.
+     */
+    public static final String DEFAULT_PATTERN = "%{begin:msec}t %a %m %U %q " +
+            "%H %s %B %D %{Referer}i %{User-Agent}i";
+
+    /**
+     * The longest field value that can be stored. Longer values are
+     * truncated.
+     */
+    public static final int MAX_FIELD_LENGTH = 0xFFFF;
+
+    private static final int MIN_SEGMENT_SIZE = 4096;
+
+
+    //------------------------------------------------------ Constructor
+    public BinaryAccessLogValve() {
+        super();
+        setPattern(DEFAULT_PATTERN);
+    }
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The directory in which segment files are created.
+     */
+    private String directory = "logs";
+
+    /**
+     * The prefix that is added to segment file names.
+     */
+    private String prefix = "access_log";
+
+    /**
+     * The suffix that is added to segment file names.
+     */
+    private String suffix = ".bin";
+
+    /**
+     * Should a new segment be started when the date changes?
+     */
+    private boolean rotatable = true;
+
+    /**
+     * The date format used in segment file names.
+     */
+    private String fileDateFormat = ".yyyy-MM-dd";
+
+    /**
+     * The size, in bytes, to which segment files are pre-allocated.
+     */
+    private int segmentSize = 4 * 1024 * 1024;
+
+    /**
+     * The mapping of the current segment, if any.
+     */
+    private MappedByteBuffer segment = null;
+
+    /**
+     * The current segment file, if any.
+     */
+    private File currentSegmentFile = null;
+
+    /**
+     * The as-of date for the current segment file.
+     */
+    private String dateStamp = "";
+
+    /**
+     * The sequence number of the current segment within the current date.
+     */
+    private int sequence = 0;
+
+    /**
+     * The length of the header of the current segment.
+     */
+    private int headerLength = 0;
+
+    private SimpleDateFormat fileDateFormatter = null;
+
+    private volatile long rotationLastChecked = 0L;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    public String getDirectory() {
+        return directory;
+    }
+
+
+    /**
+     * Set the directory in which segment files are created. A relative
+     * directory is resolved against <code>catalina.base</code>.
+     *
+     * @param directory The new segment directory
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+
+    public boolean isRotatable() {
+        return rotatable;
+    }
+
+
+    public void setRotatable(boolean rotatable) {
+        this.rotatable = rotatable;
+    }
+
+
+    public String getFileDateFormat() {
+        return fileDateFormat;
+    }
+
+
+    public void setFileDateFormat(String fileDateFormat) {
+        this.fileDateFormat = fileDateFormat;
+    }
+
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+
+    /**
+     * Set the size to which segment files are pre-allocated. Values below
+     * 4096 bytes are treated as 4096. Changes take effect when the next
+     * segment is started.
+     *
+     * @param segmentSize The segment size in bytes
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Start a new segment if the date has changed since the current segment
+     * was started.
+     */
+    public void rotate() {
+        if (rotatable) {
+            // Only do a date check once a second, max.
+            long systime = System.currentTimeMillis();
+            if ((systime - rotationLastChecked) > 1000) {
+                synchronized(this) {
+                    if ((systime - rotationLastChecked) > 1000) {
+                        rotationLastChecked = systime;
+
+                        String tsDate = fileDateFormatter.format(new Date(systime));
+                        if (!dateStamp.equals(tsDate)) {
+                            close();
+                            dateStamp = tsDate;
+                            sequence = 0;
+                            open();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    // -------------------------------------------------------- Protected Methods
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Records are always generated as bytes so this implementation returns
+     * <code>true</code>.
+     */
+    @Override
+    protected boolean isLogBytesSupported() {
+        return true;
+    }
+
+
+    /**
+     * Records are normally generated as bytes. If a sub-class generates them
+     * as characters, the fields have the same length prefixed layout with one
+     * character per byte so they are converted and logged as bytes.
+     *
+     * @param message The fields of the record
+     */
+    @Override
+    protected void log(CharArrayWriter message) {
+        ByteChunk bytes = new ByteChunk(message.size());
+        append(bytes, message.toString());
+        log(bytes);
+    }
+
+
+    /**
+     * Append the record to the current segment, starting a new segment if the
+     * current one does not have enough space.
+     *
+     * @param message The fields of the record
+     */
+    @Override
+    protected void log(ByteChunk message) {
+
+        rotate();
+
+        int length = message.getLength();
+        synchronized (this) {
+            if (segment == null) {
+                return;
+            }
+            // Leave space for the end marker
+            if (segment.remaining() < length + 8) {
+                if (segment.position() > headerLength) {
+                    close();
+                    sequence++;
+                    open();
+                    if (segment == null) {
+                        return;
+                    }
+                }
+                if (segment.remaining() < length + 8) {
+                    log.warn(sm.getString("binaryAccessLogValve.recordTooLarge",
+                            Integer.valueOf(length),
+                            Integer.valueOf(segment.capacity())));
+                    return;
+                }
+            }
+            int position = segment.position();
+            segment.position(position + 4);
+            segment.put(message.getBuffer(), message.getStart(), length);
+            segment.putInt(position, length);
+        }
+    }
+
+
+    @Override
+    protected AccessLogElement[] createLogElements() {
+        // Literal text does not form part of a record
+        List<AccessLogElement> fields = new ArrayList<>();
+        for (AccessLogElement element : super.createLogElements()) {
+            if (element instanceof FieldElement) {
+                fields.add(element);
+            }
+        }
+        return fields.toArray(new AccessLogElement[0]);
+    }
+
+
+    @Override
+    protected AccessLogElement createAccessLogElement(String name, char pattern) {
+        return new FieldElement("%{" + name + "}" + pattern,
+                super.createAccessLogElement(name, pattern));
+    }
+
+
+    @Override
+    protected AccessLogElement createAccessLogElement(char pattern) {
+        return new FieldElement("%" + pattern,
+                super.createAccessLogElement(pattern));
+    }
+
+
+    /**
+     * Create and map the next segment file and write its header.
+     */
+    protected synchronized void open() {
+
+        // Create the directory if necessary
+        File dir = new File(directory);
+        if (!dir.isAbsolute()) {
+            dir = new File(getContainer().getCatalinaBase(), directory);
+        }
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            log.error(sm.getString("accessLogValve.openDirFail", dir));
+        }
+
+        // Never append to an existing segment
+        File pathname;
+        do {
+            pathname = new File(dir.getAbsoluteFile(), prefix +
+                    (rotatable ? dateStamp : "") + "." +
+                    String.format("%05d", Integer.valueOf(sequence)) + suffix);
+            sequence++;
+        } while (pathname.exists());
+        sequence--;
+
+        int size = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+        try (RandomAccessFile file = new RandomAccessFile(pathname, "rw")) {
+            file.setLength(size);
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            writeHeader();
+            currentSegmentFile = pathname;
+        } catch (IOException | RuntimeException e) {
+            log.error(sm.getString("binaryAccessLogValve.openFail", pathname), e);
+            ByteBufferUtils.cleanDirectBuffer(segment);
+            segment = null;
+            currentSegmentFile = null;
+        }
+    }
+
+
+    /**
+     * Start this component and implement the requirements
+     * of {@link org.apache.catalina.util.LifecycleBase#startInternal()}.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+
+        String format = fileDateFormat;
+        if (format == null || format.length() == 0) {
+            format = ".yyyy-MM-dd";
+        }
+        fileDateFormatter = new SimpleDateFormat(format, Locale.US);
+        fileDateFormatter.setTimeZone(TimeZone.getDefault());
+        dateStamp = fileDateFormatter.format(new Date(System.currentTimeMillis()));
+        sequence = 0;
+        open();
+
+        super.startInternal();
+    }
+
+
+    /**
+     * Stop this component and implement the requirements
+     * of {@link org.apache.catalina.util.LifecycleBase#stopInternal()}.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+
+        super.stopInternal();
+        close();
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    private void writeHeader() {
+        segment.putInt(MAGIC);
+        segment.putShort((short) VERSION);
+        segment.putShort((short) logElements.length);
+        for (AccessLogElement element : logElements) {
+            byte[] name = ((FieldElement) element).getName().getBytes(
+                    StandardCharsets.UTF_8);
+            segment.putShort((short) name.length);
+            segment.put(name);
+        }
+        headerLength = segment.position();
+    }
+
+
+    /**
+     * Unmap the current segment and remove its unused space.
+     */
+    private synchronized void close() {
+        if (segment == null) {
+            return;
+        }
+        int length = segment.position();
+        segment.force();
+        ByteBufferUtils.cleanDirectBuffer(segment);
+        segment = null;
+        try (RandomAccessFile file = new RandomAccessFile(currentSegmentFile, "rw")) {
+            file.setLength(length);
+        } catch (IOException e) {
+            // The unused space reads as an end marker so the segment is
+            // still valid
+            log.warn(sm.getString("binaryAccessLogValve.closeFail",
+                    currentSegmentFile), e);
+        }
+        currentSegmentFile = null;
+    }
+
+
+    /**
+     * Writes the value of an element as a length prefixed field.
+     */
+    protected static class FieldElement implements ByteAccessLogElement {
+
+        private final String name;
+        private final AccessLogElement element;
+        private final boolean byteElement;
+
+        public FieldElement(String name, AccessLogElement element) {
+            this.name = name;
+            this.element = element;
+            this.byteElement = isByteAccessLogElement(element);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void addElement(CharArrayWriter buf, Date date, Request request,
+                Response response, long time) {
+            CharArrayWriter chars = new CharArrayWriter();
+            element.addElement(chars, date, request, response, time);
+            int length = Math.min(chars.size(), MAX_FIELD_LENGTH);
+            buf.write(length >> 8);
+            buf.write(length & 0xFF);
+            buf.write(chars.toCharArray(), 0, length);
+        }
+
+        @Override
+        public void addElement(ByteChunk buf, Date date, Request request,
+                Response response, long time) {
+            int start = buf.getEnd();
+            buf.makeSpace(2);
+            buf.setEnd(start + 2);
+            if (byteElement) {
+                ((ByteAccessLogElement) element).addElement(
+                        buf, date, request, response, time);
+            } else {
+                CharArrayWriter chars = new CharArrayWriter();
+                element.addElement(chars, date, request, response, time);
+                append(buf, chars.toString());
+            }
+            int length = buf.getEnd() - start - 2;
+            if (length > MAX_FIELD_LENGTH) {
+                length = MAX_FIELD_LENGTH;
+                buf.setEnd(start + 2 + length);
+            }
+            byte[] bytes = buf.getBuffer();
+            bytes[start] = (byte) (length >> 8);
+            bytes[start + 1] = (byte) length;
+        }
+    }
+}
@@ -23,7 +23,14 @@ import java.sql.Driver;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 
@@ -103,6 +110,15 @@ import org.apache.tomcat.util.ExceptionUtils;
  * <code>remoteHost, user, timeStamp, query, status, bytes</code>
  * </p>
  * <p>
+ * By default each request is inserted by the thread that processed it. If
+ * <code>batchSize</code> is greater than zero, records are instead added to a
+ * queue of at most <code>queueSize</code> records and inserted by a
+ * background thread using JDBC batches of up to <code>batchSize</code>
+ * records, at least every <code>batchInterval</code> milliseconds. Records
+ * that arrive while the queue is full, or after the background thread has
+ * exited, are discarded and counted (see {@link #getDroppedCount()}).
+ * </p>
+ * <p>
  * <i>TO DO: provide option for excluding logging of certain MIME types.</i>
  * </p>
  *
@@ -205,7 +221,32 @@ public final class JDBCAccessLogValve extends ValveBase implements AccessLog {
     private PreparedStatement ps;
 
 
-    private long currentTimeMillis;
+    private volatile long currentTimeMillis;
+
+    /**
+     * The maximum number of records inserted with one JDBC batch. Zero or
+     * less disables batching.
+     */
+    private int batchSize = 0;
+
+    /**
+     * The maximum time, in milliseconds, a record waits for a batch to fill.
+     */
+    private long batchInterval = 1000;
+
+    /**
+     * The maximum number of records waiting to be inserted.
+     */
+    private int queueSize = 10000;
+
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    private volatile BlockingQueue<LogRecord> queue = null;
+    private volatile boolean batchRunning = false;
+    private volatile boolean batchInserterAlive = false;
+    private final AtomicBoolean droppedWarning = new AtomicBoolean(false);
+    private Thread batchThread = null;
 
     /**
      * Should this valve set request attributes for IP address, hostname,
@@ -437,6 +478,74 @@ public final class JDBCAccessLogValve extends ValveBase implements AccessLog {
         this.useLongContentLength = useLongContentLength;
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the maximum number of records inserted with one JDBC batch. If
+     * greater than zero, records are inserted by a background thread rather
+     * than by the thread that processed the request. Changes take effect the
+     * next time the valve is started.
+     *
+     * @param batchSize The maximum batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchInterval() {
+        return batchInterval;
+    }
+
+    /**
+     * Set the maximum time a record waits for a batch to fill before the
+     * batch is inserted.
+     *
+     * @param batchInterval The interval in milliseconds
+     */
+    public void setBatchInterval(long batchInterval) {
+        this.batchInterval = batchInterval;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Set the maximum number of records waiting to be inserted when batching
+     * is enabled. Changes take effect the next time the valve is started.
+     *
+     * @param queueSize The maximum number of waiting records
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @return the number of records waiting to be inserted
+     */
+    public int getQueueLength() {
+        BlockingQueue<LogRecord> queue = this.queue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return the number of records discarded because the queue was full or
+     *         the background thread was no longer running
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of records that could not be inserted because of a
+     *         database error
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -508,32 +617,29 @@ public final class JDBCAccessLogValve extends ValveBase implements AccessLog {
             referer = request.getHeader("referer");
             userAgent = request.getHeader("user-agent");
         }
+        LogRecord record = new LogRecord(remoteHost, user,
+                getCurrentTimeMillis(), query, status, bytes, virtualHost,
+                method, referer, userAgent);
+
+        BlockingQueue<LogRecord> queue = this.queue;
+        if (queue != null) {
+            if (!queue.offer(record)) {
+                droppedCount.incrementAndGet();
+            } else if (!batchInserterAlive && queue.remove(record)) {
+                // The inserter exited and will never take this record. If it
+                // was still alive, it drains the queue when it exits.
+                dropped(1);
+            }
+            return;
+        }
+
         synchronized (this) {
           int numberOfTries = 2;
           while (numberOfTries>0) {
             try {
                 open();
 
-                ps.setString(1, remoteHost);
-                ps.setString(2, user);
-                ps.setTimestamp(3, new Timestamp(getCurrentTimeMillis()));
-                ps.setString(4, query);
-                ps.setInt(5, status);
-
-                if(useLongContentLength) {
-                    ps.setLong(6, bytes);
-                } else {
-                    if (bytes > Integer.MAX_VALUE) {
-                        bytes = -1 ;
-                    }
-                    ps.setInt(6, (int) bytes);
-                }
-                if (logPattern.equals("combined")) {
-                      ps.setString(7, virtualHost);
-                      ps.setString(8, method);
-                      ps.setString(9, referer);
-                      ps.setString(10, userAgent);
-                }
+                bind(record);
                 ps.executeUpdate();
                 return;
               } catch (SQLException e) {
@@ -547,8 +653,83 @@ public final class JDBCAccessLogValve extends ValveBase implements AccessLog {
               }
               numberOfTries--;
            }
+           failedCount.incrementAndGet();
+        }
+
+    }
+
+
+    private void dropped(int count) {
+        droppedCount.addAndGet(count);
+        if (droppedWarning.compareAndSet(false, true)) {
+            container.getLogger().warn(sm.getString("jdbcAccessLogValve.inserterNotRunning"));
+        }
+    }
+
+
+    /**
+     * Insert a batch of records. Only called by the batch thread, which is
+     * the only user of the connection while batching is enabled.
+     */
+    private void insert(List<LogRecord> batch) {
+        int numberOfTries = 2;
+        while (numberOfTries > 0) {
+            try {
+                open();
+
+                for (LogRecord record : batch) {
+                    bind(record);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                conn.commit();
+                batch.clear();
+                return;
+            } catch (SQLException e) {
+                // Log the problem for posterity
+                container.getLogger().error(sm.getString("jdbcAccessLogValve.exception"), e);
+
+                // Discard any uncommitted records before closing the
+                // connection, so that it gets reopened next time. Some drivers
+                // commit on close and the retry would insert them again.
+                if (conn != null) {
+                    try {
+                        conn.rollback();
+                    } catch (SQLException sqle) {
+                        // Ignore
+                    }
+                    close();
+                }
+            }
+            numberOfTries--;
         }
+        failedCount.addAndGet(batch.size());
+        batch.clear();
+    }
+
 
+    private void bind(LogRecord record) throws SQLException {
+        ps.setString(1, record.remoteHost);
+        ps.setString(2, record.user);
+        ps.setTimestamp(3, new Timestamp(record.timestamp));
+        ps.setString(4, record.query);
+        ps.setInt(5, record.status);
+
+        long bytes = record.bytes;
+        if(useLongContentLength) {
+            ps.setLong(6, bytes);
+        } else {
+            if (bytes > Integer.MAX_VALUE) {
+                bytes = -1 ;
+            }
+            ps.setInt(6, (int) bytes);
+        }
+        if (pattern.equals("combined")) {
+              ps.setString(7, record.virtualHost);
+              ps.setString(8, record.method);
+              ps.setString(9, record.referer);
+              ps.setString(10, record.userAgent);
+        }
     }
 
 
@@ -585,7 +766,8 @@ public final class JDBCAccessLogValve extends ValveBase implements AccessLog {
             props.put("password", connectionPassword);
         }
         conn = driver.connect(connectionURL, props);
-        conn.setAutoCommit(true);
+        // Batches are committed once they have been inserted
+        conn.setAutoCommit(queue == null);
         String logPattern = pattern;
         if (logPattern.equals("common")) {
                 ps = conn.prepareStatement
@@ -648,12 +830,27 @@ public final class JDBCAccessLogValve extends ValveBase implements AccessLog {
     @Override
     protected synchronized void startInternal() throws LifecycleException {
 
+        if (batchSize > 0) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
         try {
             open() ;
         } catch (SQLException e) {
+            queue = null;
             throw new LifecycleException(e);
         }
 
+        if (queue != null) {
+            batchRunning = true;
+            batchInserterAlive = true;
+            droppedWarning.set(false);
+            batchThread = new Thread(new BatchInserter(queue),
+                    "JDBCAccessLogInserter[" + getContainer().getName() + "]");
+            batchThread.setDaemon(true);
+            batchThread.start();
+        }
+
         setState(LifecycleState.STARTING);
     }
 
@@ -670,6 +867,18 @@ public final class JDBCAccessLogValve extends ValveBase implements AccessLog {
 
         setState(LifecycleState.STOPPING);
 
+        if (batchThread != null) {
+            // The batch thread inserts any remaining records before it exits
+            batchRunning = false;
+            try {
+                batchThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batchThread = null;
+            queue = null;
+        }
+
         close() ;
     }
 
@@ -682,4 +891,109 @@ public final class JDBCAccessLogValve extends ValveBase implements AccessLog {
         return currentTimeMillis;
     }
 
+
+    /**
+     * The values logged for one request.
+     */
+    private static class LogRecord {
+
+        private final String remoteHost;
+        private final String user;
+        private final long timestamp;
+        private final String query;
+        private final int status;
+        private final long bytes;
+        private final String virtualHost;
+        private final String method;
+        private final String referer;
+        private final String userAgent;
+
+        LogRecord(String remoteHost, String user, long timestamp, String query,
+                int status, long bytes, String virtualHost, String method,
+                String referer, String userAgent) {
+            this.remoteHost = remoteHost;
+            this.user = user;
+            this.timestamp = timestamp;
+            this.query = query;
+            this.status = status;
+            this.bytes = bytes;
+            this.virtualHost = virtualHost;
+            this.method = method;
+            this.referer = referer;
+            this.userAgent = userAgent;
+        }
+    }
+
+
+    /**
+     * Inserts queued records in batches.
+     */
+    private class BatchInserter implements Runnable {
+
+        // Upper bound on how long it takes to notice the valve has stopped
+        private static final long POLL_MILLIS = 100;
+
+        private final BlockingQueue<LogRecord> queue;
+
+        BatchInserter(BlockingQueue<LogRecord> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                doRun();
+            } finally {
+                batchInserterAlive = false;
+                if (batchRunning) {
+                    container.getLogger().error(sm.getString("jdbcAccessLogValve.inserterExited"));
+                }
+                // Account for anything added before log() could see that
+                // this thread had exited
+                int remaining = queue.drainTo(new ArrayList<LogRecord>());
+                if (remaining > 0) {
+                    dropped(remaining);
+                }
+            }
+        }
+
+        private void doRun() {
+            List<LogRecord> batch = new ArrayList<>(batchSize);
+            while (batchRunning || !queue.isEmpty()) {
+                LogRecord record = poll(Math.min(batchInterval, POLL_MILLIS));
+                if (record == null) {
+                    continue;
+                }
+                batch.add(record);
+                long deadline = System.currentTimeMillis() + batchInterval;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || wait <= 0 || !batchRunning) {
+                        break;
+                    }
+                    record = poll(Math.min(wait, POLL_MILLIS));
+                    if (record != null) {
+                        batch.add(record);
+                    }
+                }
+                try {
+                    insert(batch);
+                } catch (Throwable t) {
+                    failedCount.addAndGet(batch.size());
+                    batch.clear();
+                    ExceptionUtils.handleThrowable(t);
+                    container.getLogger().error(sm.getString("jdbcAccessLogValve.exception"), t);
+                }
+            }
+        }
+
+        private LogRecord poll(long millis) {
+            try {
+                return queue.poll(millis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
 }
@@ -109,11 +109,24 @@ public abstract class AbstractProcessor<S> implements ActionHook, Processor<S> {
             if (getLog().isDebugEnabled()) {
                 getLog().debug(sm.getString("abstractProcessor.nonContainerThreadError"), t);
             }
-            getEndpoint().processSocket(socketWrapper, SocketStatus.ERROR, true);
+            processSocketEvent(SocketStatus.ERROR, true);
         }
     }
 
 
+    /**
+     * Trigger processing of the given event for the connection associated with
+     * this processor.
+     *
+     * @param event     The event to process
+     * @param dispatch  Should the processing be performed on a new container
+     *                  thread
+     */
+    protected void processSocketEvent(SocketStatus event, boolean dispatch) {
+        getEndpoint().processSocket(socketWrapper, event, dispatch);
+    }
+
+
     protected void resetErrorState() {
         errorState = ErrorState.NONE;
     }
@@ -163,6 +163,19 @@ public abstract class AbstractProtocol<S> implements ProtocolHandler,
     public void setClientCertProvider(String s) { this.clientCertProvider = s; }
 
 
+    /**
+     * Should the time at which each request reaches each phase of its
+     * processing be recorded? The times are available to access logs and are
+     * aggregated by the global request processor. The default is
+     * <code>false</code>.
+     */
+    protected boolean phaseTracing = false;
+    public boolean getPhaseTracing() { return phaseTracing; }
+    public void setPhaseTracing(boolean phaseTracing) {
+        this.phaseTracing = phaseTracing;
+    }
+
+
     @Override
     public boolean isAprRequired() {
         return false;
@@ -211,6 +224,11 @@ public abstract class AbstractProtocol<S> implements ProtocolHandler,
         endpoint.setMaxThreads(maxThreads);
     }
 
+    public String getSchedulingClass() { return endpoint.getSchedulingClass(); }
+    public void setSchedulingClass(String schedulingClass) {
+        endpoint.setSchedulingClass(schedulingClass);
+    }
+
     public int getMaxConnections() { return endpoint.getMaxConnections(); }
     public void setMaxConnections(int maxConnections) {
         endpoint.setMaxConnections(maxConnections);
@@ -365,6 +383,16 @@ public abstract class AbstractProtocol<S> implements ProtocolHandler,
     protected abstract Handler getHandler();
 
 
+    /**
+     * Obtain the statistics for all the requests processed by this protocol
+     * handler. Protocols nested within this one (e.g. upgrade protocols) use
+     * this to include their requests in the connector level statistics.
+     */
+    public RequestGroupInfo getGlobal() {
+        return (RequestGroupInfo) getHandler().getGlobal();
+    }
+
+
     // ----------------------------------------------------- JMX related methods
 
     protected String domain;
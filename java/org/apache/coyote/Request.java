@@ -65,6 +65,70 @@ public final class Request {
     // Expected maximum typica number of cookies per request.
     private static final int INITIAL_COOKIE_SIZE = 4;
 
+    // -------------------------------------------------------------- Constants
+
+    /*
+     * Phases of the processing of a request that may be traced. The time of
+     * each phase is recorded relative to the start time of the request.
+     */
+    /** The protocol processor has parsed the request headers. */
+    public static final int PHASE_HEADERS = 0;
+    /** The adapter has started to service the request. */
+    public static final int PHASE_SERVICE = 1;
+    /** The adapter has parsed and mapped the request. */
+    public static final int PHASE_MAPPED = 2;
+    /** The request has entered the Engine's basic valve. */
+    public static final int PHASE_ENGINE = 3;
+    /** The request has entered the Host's basic valve. */
+    public static final int PHASE_HOST = 4;
+    /** The request has entered the Context's authenticator. */
+    public static final int PHASE_AUTH = 5;
+    /** The request has entered the Context's basic valve. */
+    public static final int PHASE_CONTEXT = 6;
+    /** The request has entered the Wrapper's basic valve. */
+    public static final int PHASE_WRAPPER = 7;
+    /** The filter chain has been invoked. */
+    public static final int PHASE_FILTERS = 8;
+    /** The servlet has been invoked. */
+    public static final int PHASE_SERVLET = 9;
+    /** The servlet has returned. */
+    public static final int PHASE_SERVLET_END = 10;
+    /** The response has been committed. */
+    public static final int PHASE_COMMIT = 11;
+    /** The last byte of the response has been written. */
+    public static final int PHASE_COMPLETE = 12;
+
+    private static final String[] PHASE_NAMES = { "headers", "service",
+            "mapped", "engine", "host", "auth", "context", "wrapper", "filters",
+            "servlet", "servletEnd", "commit", "complete" };
+
+    public static final int PHASE_COUNT = PHASE_NAMES.length;
+
+
+    /**
+     * @param phase One of the PHASE_ constants
+     * @return the name of the phase as used in access log patterns and JMX
+     */
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+
+    /**
+     * @param name The name of a phase
+     * @return the PHASE_ constant with the given name or -1 if there is no
+     *         such phase
+     */
+    public static int getPhase(String name) {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if (PHASE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
     // ----------------------------------------------------------- Constructors
 
     public Request() {
@@ -138,6 +202,12 @@ public final class Request {
     private long bytesRead=0;
     // Time of the request - useful to avoid repeated calls to System.currentTime
     private long startTime = -1;
+    // Time of the request as per System.nanoTime - used to measure latency
+    private long startTimeNanos = -1;
+    // Time of each traced phase as per System.nanoTime. Null unless tracing
+    // is enabled. A bit is set in phasesMarked for every phase recorded.
+    private long[] phaseTimes = null;
+    private int phasesMarked = 0;
     private int available = 0;
 
     private final RequestInfo reqProcessorMX=new RequestInfo(this);
@@ -492,8 +562,77 @@ public final class Request {
         return startTime;
     }
 
+    /**
+     * Set the start time of the request. The value of
+     * {@link System#nanoTime()} is recorded at the same time so that the
+     * latency of the request can be measured precisely.
+     *
+     * @param startTime The start time as per
+     *                  {@link System#currentTimeMillis()}
+     */
     public void setStartTime(long startTime) {
         this.startTime = startTime;
+        this.startTimeNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} when the start time was
+     *         set or -1 if it has not been set
+     */
+    public long getStartTimeNanos() {
+        return startTimeNanos;
+    }
+
+    // -------------------- Phase tracing --------------------
+
+    /**
+     * Enable or disable the recording of the time of each phase of the
+     * processing of requests. The setting is retained when the request is
+     * recycled.
+     *
+     * @param phaseTracing <code>true</code> to record phase times
+     */
+    public void setPhaseTracing(boolean phaseTracing) {
+        if (phaseTracing) {
+            if (phaseTimes == null) {
+                phaseTimes = new long[PHASE_COUNT];
+            }
+        } else {
+            phaseTimes = null;
+        }
+        phasesMarked = 0;
+    }
+
+    public boolean isPhaseTracing() {
+        return phaseTimes != null;
+    }
+
+    /**
+     * Record that the given phase has been reached. This is a NO-OP unless
+     * phase tracing is enabled. If a phase is reached more than once, e.g. on
+     * an asynchronous dispatch, the latest time is retained.
+     *
+     * @param phase One of the PHASE_ constants
+     */
+    public void markPhase(int phase) {
+        long[] phaseTimes = this.phaseTimes;
+        if (phaseTimes != null) {
+            phaseTimes[phase] = System.nanoTime();
+            phasesMarked |= 1 << phase;
+        }
+    }
+
+    /**
+     * @param phase One of the PHASE_ constants
+     * @return the time in nanoseconds between the start of the request and
+     *         the given phase or -1 if the phase was not recorded
+     */
+    public long getPhaseNanos(int phase) {
+        if (phaseTimes == null || (phasesMarked & (1 << phase)) == 0 ||
+                startTimeNanos == -1) {
+            return -1;
+        }
+        return phaseTimes[phase] - startTimeNanos;
     }
 
     // -------------------- Per-Request "notes" --------------------
@@ -566,6 +705,8 @@ public final class Request {
         allDataReadEventSent.set(false);
 
         startTime = -1;
+        startTimeNanos = -1;
+        phasesMarked = 0;
     }
 
     // -------------------- Info  --------------------
@@ -18,6 +18,9 @@
 package org.apache.coyote;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.tomcat.util.LatencyHistogram;
 
 /** This can be moved to top level ( eventually with a better name ).
  *  It is currently used only as a JMX artifact, to aggregate the data
@@ -31,6 +34,13 @@ public class RequestGroupInfo {
     private int deadErrorCount = 0;
     private long deadBytesReceived = 0;
     private long deadBytesSent = 0;
+    // Shared by all processors as it is updated without locking
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+    // Sum and count of the offsets of each traced phase
+    private final AtomicLongArray phaseTotals =
+            new AtomicLongArray(Request.PHASE_COUNT);
+    private final AtomicLongArray phaseCounts =
+            new AtomicLongArray(Request.PHASE_COUNT);
 
     public synchronized void addRequestProcessor( RequestInfo rp ) {
         processors.add( rp );
@@ -153,6 +163,76 @@ public class RequestGroupInfo {
         }
     }
 
+    void recordLatency(long nanos) {
+        latencyHistogram.recordNanos(nanos);
+    }
+
+    public double getLatencyP50() {
+        return latencyHistogram.getPercentileMillis(50);
+    }
+
+    public double getLatencyP90() {
+        return latencyHistogram.getPercentileMillis(90);
+    }
+
+    public double getLatencyP99() {
+        return latencyHistogram.getPercentileMillis(99);
+    }
+
+    public double getLatencyP999() {
+        return latencyHistogram.getPercentileMillis(99.9);
+    }
+
+    /**
+     * @return the count, percentiles and maximum, in milliseconds, of the
+     *         latencies recorded since the interval was last reset
+     */
+    public String getLatencyInterval() {
+        return latencyHistogram.getIntervalSnapshot(false).toString();
+    }
+
+    /**
+     * Start a new latency interval.
+     *
+     * @return the count, percentiles and maximum, in milliseconds, of the
+     *         latencies recorded in the interval that has just ended
+     */
+    public String resetLatencyInterval() {
+        return latencyHistogram.getIntervalSnapshot(true).toString();
+    }
+
+    void recordPhases(Request req) {
+        for (int i = 0; i < Request.PHASE_COUNT; i++) {
+            long nanos = req.getPhaseNanos(i);
+            if (nanos >= 0) {
+                phaseTotals.addAndGet(i, nanos);
+                phaseCounts.incrementAndGet(i);
+            }
+        }
+    }
+
+    /**
+     * @return the average time in milliseconds between the start of a request
+     *         and each phase of its processing, for connectors with phase
+     *         tracing enabled
+     */
+    public String getPhaseTimes() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < Request.PHASE_COUNT; i++) {
+            long count = phaseCounts.get(i);
+            if (count > 0) {
+                if (result.length() > 0) {
+                    result.append(' ');
+                }
+                result.append(Request.getPhaseName(i));
+                result.append('=');
+                // Microsecond precision is sufficient
+                result.append(phaseTotals.get(i) / count / 1000 / 1000.0);
+            }
+        }
+        return result.toString();
+    }
+
     public void resetCounters() {
         this.setBytesReceived(0);
         this.setBytesSent(0);
@@ -160,5 +240,10 @@ public class RequestGroupInfo {
         this.setProcessingTime(0);
         this.setMaxTime(0);
         this.setErrorCount(0);
+        latencyHistogram.reset();
+        for (int i = 0; i < Request.PHASE_COUNT; i++) {
+            phaseTotals.set(i, 0);
+            phaseCounts.set(i, 0);
+        }
     }
 }
@@ -168,6 +168,12 @@ public class RequestInfo  {
         long time=t1-t0;
         this.lastRequestProcessingTime = time;
         processingTime+=time;
+        if (global != null && req.getStartTimeNanos() != -1) {
+            global.recordLatency(System.nanoTime() - req.getStartTimeNanos());
+            if (req.isPhaseTracing()) {
+                global.recordPhases(req);
+            }
+        }
         if( maxTime < time ) {
             maxTime=time;
             maxRequestUri=req.requestURI().toString();
@@ -179,6 +179,9 @@ public final class Response {
                 hook.action(actionCode, param);
             }
         }
+        if (actionCode == ActionCode.CLOSE && req != null) {
+            req.markPhase(Request.PHASE_COMPLETE);
+        }
     }
 
 
@@ -221,6 +224,9 @@ public final class Response {
     public void setCommitted(boolean v) {
         if (v && !this.commited) {
             this.commitTime = System.currentTimeMillis();
+            if (req != null) {
+                req.markPhase(Request.PHASE_COMMIT);
+            }
         }
         this.commited = v;
     }
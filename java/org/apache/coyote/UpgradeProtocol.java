@@ -0,0 +1,86 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote;
+
+import javax.servlet.http.HttpUpgradeHandler;
+
+import org.apache.coyote.http11.AbstractHttp11Protocol;
+
+/**
+ * A protocol that an HTTP/1.1 connection may be upgraded to, either via the
+ * HTTP/1.1 upgrade mechanism or, for TLS connections, via ALPN. Upgrade
+ * protocols are internal to Tomcat and are configured per Connector.
+ */
+public interface UpgradeProtocol {
+
+    /**
+     * @param isSSLEnabled Is this for a connector that is configured to support
+     *                     TLS. Some protocols (e.g. HTTP/2) only support HTTP
+     *                     upgrade over non-secure connections.
+     * @return The name that clients will use to request an upgrade to this
+     *         protocol via an HTTP/1.1 upgrade request or <code>null</code> if
+     *         upgrade via an HTTP/1.1 upgrade request is not supported.
+     */
+    public String getHttpUpgradeName(boolean isSSLEnabled);
+
+    /**
+     * @return The name of the protocol as listed in the IANA registry if
+     *         secure connections may negotiate this protocol via ALPN,
+     *         otherwise <code>null</code>.
+     */
+    public String getAlpnName();
+
+    /**
+     * Allows the protocol to examine an HTTP/1.1 upgrade request before the
+     * upgrade is accepted. If the request is not acceptable, it is processed as
+     * a normal HTTP/1.1 request.
+     *
+     * @param request The request that included an upgrade header for this
+     *                protocol
+     *
+     * @return <code>true</code> if the upgrade should proceed, otherwise
+     *         <code>false</code>
+     */
+    public boolean accept(Request request);
+
+    /**
+     * Create the handler that will process the connection once the upgrade is
+     * complete. The handler is not associated with a web application so it
+     * will be initialised and destroyed without an InstanceManager.
+     *
+     * @param adapter The Adapter to use to pass requests received via the
+     *                upgraded protocol to the container
+     * @param request A copy of the request that triggered the upgrade. It
+     *                carries the connection level information (remote and
+     *                local address, port, scheme and any TLS attributes) and,
+     *                for an HTTP/1.1 upgrade request, the request line and
+     *                headers of the original request.
+     *
+     * @return A handler for the upgraded connection
+     */
+    public HttpUpgradeHandler getInternalUpgradeHandler(Adapter adapter,
+            Request request);
+
+    /**
+     * Configure the HTTP/1.1 protocol that this upgrade protocol is nested
+     * under. Connection level settings such as the executor and the header
+     * limits are shared with the HTTP/1.1 protocol.
+     *
+     * @param protocol The HTTP/1.1 protocol handler
+     */
+    public void setHttp11Protocol(AbstractHttp11Protocol<?> protocol);
+}
@@ -845,6 +845,7 @@ public abstract class AbstractAjpProcessor<S> extends AbstractProcessor<S> {
                 rp.setStage(org.apache.coyote.Constants.STAGE_PREPARE);
                 try {
                     prepareRequest();
+                    request.markPhase(Request.PHASE_HEADERS);
                 } catch (Throwable t) {
                     ExceptionUtils.handleThrowable(t);
                     getLog().debug(sm.getString("ajpprocessor.request.prepare"), t);
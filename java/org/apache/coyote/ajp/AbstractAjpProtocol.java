@@ -114,6 +114,7 @@ public abstract class AbstractAjpProtocol<S> extends AbstractProtocol<S> {
         processor.setKeepAliveTimeout(getKeepAliveTimeout());
         processor.setClientCertProvider(getClientCertProvider());
         processor.setMaxCookieCount(getMaxCookieCount());
+        processor.getRequest().setPhaseTracing(getPhaseTracing());
     }
 
     protected abstract static class AbstractAjpConnectionHandler<S,P extends AbstractAjpProcessor<S>>
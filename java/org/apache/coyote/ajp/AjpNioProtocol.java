@@ -167,6 +167,9 @@ public class AjpNioProtocol extends AbstractAjpProtocol<NioChannel> {
                 // is when the socket is in keep-alive so set the appropriate
                 // timeout.
                 socket.setTimeout(getProtocol().getKeepAliveTimeout());
+                // Nothing is in flight while the socket waits for the next
+                // request
+                ((NioEndpoint) proto.endpoint).releaseBuffers(socket.getSocket());
                 socket.getSocket().getPoller().add(socket.getSocket());
             }
         }
@@ -97,6 +97,16 @@ public abstract class AbstractHttp11JsseProtocol<S>
     public void setSessionTimeout(String s){endpoint.setSessionTimeout(s);}
     public String getSessionTimeout(){ return endpoint.getSessionTimeout();}
 
+    public void setSessionCacheGroup(String s){endpoint.setSessionCacheGroup(s);}
+    public String getSessionCacheGroup(){ return endpoint.getSessionCacheGroup();}
+
+    public void setSessionCacheGroupScope(Object scope) {
+        endpoint.setSessionCacheGroupScope(scope);
+    }
+    public Object getSessionCacheGroupScope() {
+        return endpoint.getSessionCacheGroupScope();
+    }
+
     public void setAllowUnsafeLegacyRenegotiation(String s) {
         endpoint.setAllowUnsafeLegacyRenegotiation(s);
     }
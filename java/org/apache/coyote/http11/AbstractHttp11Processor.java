@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -32,7 +33,9 @@ import org.apache.coyote.AbstractProcessor;
 import org.apache.coyote.ActionCode;
 import org.apache.coyote.AsyncContextCallback;
 import org.apache.coyote.ErrorState;
+import org.apache.coyote.Request;
 import org.apache.coyote.RequestInfo;
+import org.apache.coyote.UpgradeProtocol;
 import org.apache.coyote.UpgradeToken;
 import org.apache.coyote.http11.filters.BufferedInputFilter;
 import org.apache.coyote.http11.filters.ChunkedInputFilter;
@@ -57,6 +60,7 @@ import org.apache.tomcat.util.net.DispatchType;
 import org.apache.tomcat.util.net.SocketStatus;
 import org.apache.tomcat.util.net.SocketWrapper;
 import org.apache.tomcat.util.res.StringManager;
+import org.apache.tomcat.util.threads.ClassOfServiceScheduler;
 
 public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
 
@@ -170,6 +174,12 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
      */
     protected int keepAliveTimeout = -1;
 
+    /**
+     * Should the responses to pipelined requests be combined into as few
+     * writes as possible?
+     */
+    protected boolean batchPipelinedResponses = false;
+
     /**
      * Maximum timeout on uploads. 5 minutes as in Apache HTTPD server.
      */
@@ -226,9 +236,23 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     protected UpgradeToken upgradeToken = null;
 
 
+    /**
+     * The protocol handler that created this processor. Used to locate any
+     * configured upgrade protocols.
+     */
+    protected AbstractHttp11Protocol<?> http11Protocol = null;
+
+
     private boolean allowHostHeaderMismatch = true;
 
 
+    /**
+     * The rules used to assign requests to scheduling classes or
+     * <code>null</code> if requests are not classified.
+     */
+    private SchedulingClassRules schedulingClassRules = null;
+
+
     protected HttpParser httpParser;
 
 
@@ -256,6 +280,16 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     }
 
 
+    public void setSchedulingClassRules(SchedulingClassRules schedulingClassRules) {
+        this.schedulingClassRules = schedulingClassRules;
+    }
+
+
+    public void setHttp11Protocol(AbstractHttp11Protocol<?> http11Protocol) {
+        this.http11Protocol = http11Protocol;
+    }
+
+
     public AbstractHttp11Processor(AbstractEndpoint<S> endpoint) {
         super(endpoint);
     }
@@ -465,6 +499,21 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         return maxKeepAliveRequests;
     }
 
+    /**
+     * Set whether the responses to pipelined requests should be held and
+     * written together. Only supported by connectors whose output buffer
+     * supports deferred writes.
+     */
+    public void setBatchPipelinedResponses(boolean batchPipelinedResponses) {
+        this.batchPipelinedResponses = batchPipelinedResponses;
+    }
+
+
+    public boolean getBatchPipelinedResponses() {
+        return batchPipelinedResponses;
+    }
+
+
     /**
      * Set the Keep-Alive timeout.
      */
@@ -1055,6 +1104,20 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
             socketWrapper.setKeepAliveLeft(0);
         }
 
+        // Has a protocol other than HTTP/1.1 been negotiated via ALPN?
+        if (http11Protocol != null && endpoint.hasNegotiableProtocols()) {
+            String negotiatedProtocol = getNegotiatedProtocol();
+            if (negotiatedProtocol != null) {
+                UpgradeProtocol upgradeProtocol =
+                        http11Protocol.getNegotiatedProtocol(negotiatedProtocol);
+                if (upgradeProtocol != null) {
+                    upgrade(upgradeProtocol, false);
+                    rp.setStage(org.apache.coyote.Constants.STAGE_ENDED);
+                    return SocketState.UPGRADING;
+                }
+            }
+        }
+
         while (!getErrorState().isError() && keepAlive && !comet && !isAsync() &&
                 upgradeToken == null && !endpoint.isPaused()) {
 
@@ -1085,9 +1148,20 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                         readComplete = false;
                         break;
                     }
+                    request.markPhase(Request.PHASE_HEADERS);
                     if (!disableUploadTimeout) {
                         setSocketTimeout(connectionUploadTimeout);
                     }
+                    if (schedulingClassRules != null) {
+                        // Later processing of this connection is scheduled in
+                        // the class of its most recent request
+                        String schedulingClass =
+                                schedulingClassRules.classify(request);
+                        socketWrapper.setSchedulingClass(schedulingClass);
+                        ClassOfServiceScheduler.reclassifyCurrentTask(
+                                schedulingClass == null ?
+                                        endpoint.getSchedulingClass() : schedulingClass);
+                    }
                 }
             } catch (IOException e) {
                 if (getLog().isDebugEnabled()) {
@@ -1120,6 +1194,21 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 getAdapter().log(request, response, 0);
             }
 
+            // A client with prior knowledge that this connector supports
+            // HTTP/2 over clear text starts with the connection preface which
+            // looks like a request with the method PRI
+            if (!getErrorState().isError() && http11Protocol != null &&
+                    request.method().equals("PRI") &&
+                    request.requestURI().equals("*") &&
+                    request.protocol().equals("HTTP/2.0")) {
+                UpgradeProtocol upgradeProtocol =
+                        http11Protocol.getUpgradeProtocol("h2c");
+                if (upgradeProtocol != null) {
+                    upgrade(upgradeProtocol, true);
+                    break;
+                }
+            }
+
             if (!getErrorState().isError()) {
                 // Setting up filters, and parse some request headers
                 rp.setStage(org.apache.coyote.Constants.STAGE_PREPARE);
@@ -1138,6 +1227,24 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 }
             }
 
+            // Has an upgrade to a protocol supported by this connector been
+            // requested?
+            if (!getErrorState().isError() && http11 && http11Protocol != null) {
+                UpgradeProtocol upgradeProtocol = getRequestedUpgradeProtocol();
+                if (upgradeProtocol != null) {
+                    response.setStatus(HttpServletResponse.SC_SWITCHING_PROTOCOLS);
+                    response.setHeader(Constants.CONNECTION, "Upgrade");
+                    response.setHeader("Upgrade", upgradeProtocol.getHttpUpgradeName(
+                            endpoint.isSSLEnabled()));
+                    // Write the 101 response before the HTTP output is
+                    // disabled by the upgrade
+                    action(ActionCode.CLOSE, null);
+                    getAdapter().log(request, response, 0);
+                    upgrade(upgradeProtocol, true);
+                    break;
+                }
+            }
+
             if (maxKeepAliveRequests == 1) {
                 keepAlive = false;
             } else if (maxKeepAliveRequests > 0 &&
@@ -1145,6 +1252,16 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 keepAlive = false;
             }
 
+            if (batchPipelinedResponses) {
+                if (!getErrorState().isError() && isNextRequestBuffered()) {
+                    getOutputBuffer().setDeferWrites(true);
+                } else {
+                    // Don't hold earlier responses while this request is
+                    // processed as it may need to wait for the client
+                    flushDeferredWrites();
+                }
+            }
+
             // Process the request in the adapter
             if (!getErrorState().isError()) {
                 try {
@@ -1184,6 +1301,11 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
                 }
             }
 
+            if (isAsync() || comet || upgradeToken != null) {
+                // The response will not be completed in this loop
+                flushDeferredWrites();
+            }
+
             // Finish the handling of the request
             rp.setStage(org.apache.coyote.Constants.STAGE_ENDINPUT);
 
@@ -1233,6 +1355,9 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
             }
         }
 
+        // There are no more pipelined requests to process
+        flushDeferredWrites();
+
         rp.setStage(org.apache.coyote.Constants.STAGE_ENDED);
 
         if (getErrorState().isError() || endpoint.isPaused()) {
@@ -1259,6 +1384,37 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     }
 
 
+    /**
+     * Is the next request already in the input buffer? Only requests without
+     * a body are considered so that any data after the headers must be the
+     * start of the next request.
+     */
+    private boolean isNextRequestBuffered() {
+        return keepAlive && request.getContentLengthLong() <= 0 &&
+                request.getMimeHeaders().getValue("transfer-encoding") == null &&
+                getInputBuffer().hasDataAfterHeaders();
+    }
+
+
+    /**
+     * Write any responses that have been held so they can be combined with
+     * the responses to subsequent pipelined requests.
+     */
+    private void flushDeferredWrites() {
+        if (!getOutputBuffer().getDeferWrites()) {
+            return;
+        }
+        getOutputBuffer().setDeferWrites(false);
+        if (getErrorState().isIoAllowed()) {
+            try {
+                getOutputBuffer().flushBuffer(true);
+            } catch (IOException e) {
+                setErrorState(ErrorState.CLOSE_NOW, e);
+            }
+        }
+    }
+
+
     private void checkExpectationAndResponseStatus() {
         if (expectation && (response.getStatus() < 200 || response.getStatus() > 299)) {
             // Client sent Expect: 100-continue but received a
@@ -1273,6 +1429,107 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
     }
 
 
+    /**
+     * Look for an HTTP/1.1 upgrade request for one of the upgrade protocols
+     * configured for this connector.
+     *
+     * @return The requested protocol if it is supported and it has accepted
+     *         the request, otherwise <code>null</code>
+     */
+    private UpgradeProtocol getRequestedUpgradeProtocol() {
+        MimeHeaders headers = request.getMimeHeaders();
+        MessageBytes connectionValueMB = headers.getValue(Constants.CONNECTION);
+        if (connectionValueMB == null ||
+                connectionValueMB.indexOfIgnoreCase("upgrade", 0) == -1) {
+            return null;
+        }
+        String upgradeValue = request.getHeader("Upgrade");
+        if (upgradeValue == null) {
+            return null;
+        }
+        // Upgrade options are listed in the client's order of preference
+        StringTokenizer tokens = new StringTokenizer(upgradeValue, ",");
+        while (tokens.hasMoreTokens()) {
+            UpgradeProtocol upgradeProtocol =
+                    http11Protocol.getUpgradeProtocol(tokens.nextToken().trim());
+            if (upgradeProtocol != null && upgradeProtocol.accept(request)) {
+                return upgradeProtocol;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Switch the connection to the given upgrade protocol. The new protocol is
+     * passed a copy of the current request since this processor, and its
+     * request, will be recycled before the upgraded connection is processed.
+     *
+     * @param upgradeProtocol   The protocol to switch to
+     * @param copyRequest       Should the request line and headers be copied
+     *                          (for an HTTP/1.1 upgrade request or a
+     *                          connection preface) or has the protocol been
+     *                          selected before any data was read (ALPN)
+     */
+    private void upgrade(UpgradeProtocol upgradeProtocol, boolean copyRequest) {
+        Request upgradeRequest = new Request();
+
+        request.action(ActionCode.REQ_HOST_ADDR_ATTRIBUTE, null);
+        request.action(ActionCode.REQ_REMOTEPORT_ATTRIBUTE, null);
+        request.action(ActionCode.REQ_LOCAL_ADDR_ATTRIBUTE, null);
+        request.action(ActionCode.REQ_LOCAL_NAME_ATTRIBUTE, null);
+        request.action(ActionCode.REQ_LOCALPORT_ATTRIBUTE, null);
+        upgradeRequest.remoteAddr().setString(request.remoteAddr().toString());
+        upgradeRequest.remoteHost().setString(request.remoteAddr().toString());
+        upgradeRequest.setRemotePort(request.getRemotePort());
+        upgradeRequest.localAddr().setString(request.localAddr().toString());
+        upgradeRequest.localName().setString(request.localName().toString());
+        upgradeRequest.setLocalPort(request.getLocalPort());
+
+        if (endpoint.isSSLEnabled()) {
+            upgradeRequest.scheme().setString("https");
+            request.action(ActionCode.REQ_SSL_ATTRIBUTE, null);
+            for (Map.Entry<String,Object> attribute :
+                    request.getAttributes().entrySet()) {
+                upgradeRequest.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+        } else {
+            upgradeRequest.scheme().setString("http");
+        }
+
+        if (copyRequest) {
+            upgradeRequest.method().setString(request.method().toString());
+            upgradeRequest.requestURI().setString(request.requestURI().toString());
+            upgradeRequest.queryString().setString(request.queryString().toString());
+            upgradeRequest.protocol().setString(request.protocol().toString());
+            MimeHeaders headers = request.getMimeHeaders();
+            MimeHeaders upgradeHeaders = upgradeRequest.getMimeHeaders();
+            int size = headers.size();
+            for (int i = 0; i < size; i++) {
+                upgradeHeaders.addValue(headers.getName(i).toString()).setString(
+                        headers.getValue(i).toString());
+            }
+        }
+
+        action(ActionCode.UPGRADE, new UpgradeToken(
+                upgradeProtocol.getInternalUpgradeHandler(getAdapter(), upgradeRequest),
+                null, null));
+    }
+
+
+    /**
+     * Obtain the name of the protocol negotiated via ALPN for the current
+     * connection. Connectors that do not support ALPN always return
+     * <code>null</code>.
+     *
+     * @return The negotiated protocol or <code>null</code> if no protocol was
+     *         negotiated
+     */
+    protected String getNegotiatedProtocol() {
+        return null;
+    }
+
+
     /**
      * After reading the request headers, we have to setup the request filters.
      */
@@ -1608,6 +1865,11 @@ public abstract class AbstractHttp11Processor<S> extends AbstractProcessor<S> {
         boolean sendingWithSendfile = false;
         if (getEndpoint().getUseSendfile()) {
             sendingWithSendfile = prepareSendfile(outputFilters);
+            if (sendingWithSendfile) {
+                // The file is written directly to the socket so any held
+                // responses (and these headers) must be written first
+                flushDeferredWrites();
+            }
         }
 
         // Check for compression
@@ -18,13 +18,17 @@ package org.apache.coyote.http11;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.UpgradeProtocol;
+import org.apache.tomcat.util.compat.JreCompat;
 
 public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
 
@@ -34,6 +38,47 @@ public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
     }
 
 
+    @Override
+    public void init() throws Exception {
+        for (UpgradeProtocol upgradeProtocol : upgradeProtocols) {
+            configureUpgradeProtocol(upgradeProtocol);
+        }
+
+        super.init();
+    }
+
+
+    private void configureUpgradeProtocol(UpgradeProtocol upgradeProtocol) {
+        upgradeProtocol.setHttp11Protocol(this);
+
+        boolean secure = isSSLEnabled();
+        String httpUpgradeName = upgradeProtocol.getHttpUpgradeName(secure);
+        boolean httpUpgradeConfigured = false;
+        if (httpUpgradeName != null && httpUpgradeName.length() > 0) {
+            httpUpgradeProtocols.put(httpUpgradeName, upgradeProtocol);
+            httpUpgradeConfigured = true;
+            getLog().info(sm.getString("abstractHttp11Protocol.httpUpgradeConfigured",
+                    getName(), httpUpgradeName));
+        }
+
+        String alpnName = upgradeProtocol.getAlpnName();
+        if (alpnName != null && alpnName.length() > 0 && secure) {
+            if (JreCompat.getInstance().isAlpnSupported()) {
+                negotiatedProtocols.put(alpnName, upgradeProtocol);
+                endpoint.addNegotiatedProtocol(alpnName);
+                getLog().info(sm.getString("abstractHttp11Protocol.alpnConfigured",
+                        getName(), alpnName));
+            } else {
+                getLog().warn(sm.getString("abstractHttp11Protocol.alpnUnsupported",
+                        getName(), alpnName));
+            }
+        } else if (!httpUpgradeConfigured) {
+            getLog().warn(sm.getString("abstractHttp11Protocol.upgradeUnusable",
+                    getName(), upgradeProtocol.getClass().getName()));
+        }
+    }
+
+
     // ------------------------------------------------ HTTP specific properties
     // ------------------------------------------ managed in the ProtocolHandler
 
@@ -55,6 +100,29 @@ public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
     }
 
 
+    private String schedulingClassRules = null;
+    private SchedulingClassRules parsedSchedulingClassRules = null;
+    /**
+     * The rules used to assign requests to the scheduling classes of an
+     * executor that supports class-of-service scheduling.
+     *
+     * @return the rules as described by {@link SchedulingClassRules} or
+     *         <code>null</code> if requests are not classified
+     */
+    public String getSchedulingClassRules() {
+        return schedulingClassRules;
+    }
+    public void setSchedulingClassRules(String schedulingClassRules) {
+        if (schedulingClassRules == null) {
+            this.parsedSchedulingClassRules = null;
+        } else {
+            this.parsedSchedulingClassRules =
+                    new SchedulingClassRules(schedulingClassRules);
+        }
+        this.schedulingClassRules = schedulingClassRules;
+    }
+
+
     private boolean allowHostHeaderMismatch = true;
     /**
      * Will Tomcat accept an HTTP 1.1 request where the host header does not
@@ -325,6 +393,47 @@ public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
     }
 
 
+    // ----------------------------------------------- Upgrade protocol support
+
+    /**
+     * The upgrade protocols configured for this connector. These are
+     * configured via the Digester before the protocol is initialised.
+     */
+    private final List<UpgradeProtocol> upgradeProtocols = new ArrayList<>();
+    public void addUpgradeProtocol(UpgradeProtocol upgradeProtocol) {
+        upgradeProtocols.add(upgradeProtocol);
+    }
+    public UpgradeProtocol[] findUpgradeProtocols() {
+        return upgradeProtocols.toArray(new UpgradeProtocol[0]);
+    }
+    /**
+     * @return <code>true</code> if this protocol handler can hand connections
+     *         over to an {@link UpgradeProtocol}. Only the NIO and NIO2
+     *         handlers can.
+     */
+    public boolean isUpgradeProtocolSupported() {
+        return false;
+    }
+
+    /**
+     * The protocols that are available via HTTP upgrade, keyed by the name
+     * used in the Upgrade header.
+     */
+    private final Map<String,UpgradeProtocol> httpUpgradeProtocols = new HashMap<>();
+    public UpgradeProtocol getUpgradeProtocol(String upgradedName) {
+        return httpUpgradeProtocols.get(upgradedName);
+    }
+
+    /**
+     * The protocols that are available via ALPN, keyed by the name used during
+     * negotiation.
+     */
+    private final Map<String,UpgradeProtocol> negotiatedProtocols = new HashMap<>();
+    public UpgradeProtocol getNegotiatedProtocol(String negotiatedName) {
+        return negotiatedProtocols.get(negotiatedName);
+    }
+
+
     // ------------------------------------------------ HTTP specific properties
     // ------------------------------------------ passed through to the EndPoint
 
@@ -365,5 +474,8 @@ public abstract class AbstractHttp11Protocol<S> extends AbstractProtocol<S> {
         processor.setServer(getServer());
         processor.setMaxCookieCount(getMaxCookieCount());
         processor.setAllowHostHeaderMismatch(getAllowHostHeaderMismatch());
+        processor.setSchedulingClassRules(parsedSchedulingClassRules);
+        processor.getRequest().setPhaseTracing(getPhaseTracing());
+        processor.setHttp11Protocol(this);
     }
 }
@@ -22,6 +22,7 @@ import java.nio.ByteBuffer;
 import org.apache.coyote.InputBuffer;
 import org.apache.coyote.Request;
 import org.apache.juli.logging.Log;
+import org.apache.tomcat.util.buf.ByteArrayScanner;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.util.http.MimeHeaders;
 import org.apache.tomcat.util.http.parser.HttpParser;
@@ -116,6 +117,12 @@ public abstract class AbstractInputBuffer<S> implements InputBuffer{
     protected HttpParser httpParser;
 
 
+    /**
+     * Used to locate the end of header lines in {@link #buf}.
+     */
+    private final ByteArrayScanner bufScanner = new ByteArrayScanner();
+
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -204,6 +211,32 @@ public abstract class AbstractInputBuffer<S> implements InputBuffer{
     protected abstract Log getLog();
 
 
+    /**
+     * Has any data been received after the request line and headers of the
+     * current request? Only meaningful once the headers have been parsed and
+     * before any of the request body has been read.
+     *
+     * @return <code>true</code> if there is unread data after the headers
+     */
+    boolean hasDataAfterHeaders() {
+        return lastValid > end;
+    }
+
+
+    /**
+     * Find the first CR or LF in the buffer at or after the given position.
+     *
+     * @param start The position in the buffer to start searching from
+     *
+     * @return The position of the first CR or LF before {@link #lastValid} or
+     *         -1 if there is none
+     */
+    protected final int findEol(int start) {
+        bufScanner.setBytes(buf);
+        return bufScanner.findCrOrLf(start, lastValid);
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -527,6 +527,13 @@ public abstract class AbstractNioInputBuffer<S> extends AbstractInputBuffer<S> {
                         pos++;
                     } else {
                         headerParsePos = HeaderParsePosition.HEADER_VALUE;
+                        if (headerData.realPos == headerData.start) {
+                            // Nothing harvested yet so start the value here
+                            // rather than copying it over the skipped spaces
+                            headerData.start = pos;
+                            headerData.realPos = pos;
+                            headerData.lastSignificantChar = pos;
+                        }
                         break;
                     }
                 }
@@ -545,6 +552,15 @@ public abstract class AbstractNioInputBuffer<S> extends AbstractInputBuffer<S> {
                         }
                     }
 
+                    if (headerData.realPos == pos) {
+                        // Nothing has been removed from the value so no bytes
+                        // need to be copied
+                        skipHeaderValue();
+                        if (pos >= lastValid) {
+                            continue;
+                        }
+                    }
+
                     chr = buf[pos];
                     if (chr == Constants.CR) {
                         // Skip
@@ -598,6 +614,25 @@ public abstract class AbstractNioInputBuffer<S> extends AbstractInputBuffer<S> {
         return HeaderParseStatus.HAVE_MORE_HEADERS;
     }
 
+    /**
+     * Moves {@link #pos} to the next CR or LF (or the end of the available
+     * data) in a header value that is being read in place.
+     */
+    private void skipHeaderValue() {
+        int eolPos = findEol(pos);
+        if (eolPos == -1) {
+            eolPos = lastValid;
+        }
+        for (int i = eolPos - 1; i >= pos; i--) {
+            if (buf[i] != Constants.SP && buf[i] != Constants.HT) {
+                headerData.lastSignificantChar = i + 1;
+                break;
+            }
+        }
+        pos = eolPos;
+        headerData.realPos = eolPos;
+    }
+
     public int getParsingRequestLinePhase() {
         return parsingRequestLinePhase;
     }
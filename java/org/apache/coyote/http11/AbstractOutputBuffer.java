@@ -57,6 +57,12 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer {
     protected boolean finished;
 
 
+    /**
+     * Should writes be deferred to combine responses?
+     */
+    protected boolean deferWrites = false;
+
+
     /**
      * The buffer used for header composition.
      */
@@ -331,6 +337,7 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer {
         // Sub-classes may wish to do more than this.
         nextRequest();
         bufferedWrites.clear();
+        deferWrites = false;
     }
 
     /**
@@ -375,7 +382,9 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer {
         if (lastActiveFilter != -1)
             activeFilters[lastActiveFilter].end();
 
-        flushBuffer(true);
+        if (!deferWrites) {
+            flushBuffer(true);
+        }
 
         finished = true;
     }
@@ -620,6 +629,26 @@ public abstract class AbstractOutputBuffer<S> implements OutputBuffer {
     protected abstract boolean flushBuffer(boolean block) throws IOException;
 
 
+    /**
+     * Should blocking writes be held in the socket write buffer until it is
+     * full rather than written immediately? Used to combine the responses to
+     * pipelined requests. Implementations that do not support this may ignore
+     * it. When enabled, {@link #endRequest()} does not flush the response and
+     * the caller is responsible for calling {@link #flushBuffer(boolean)} once
+     * there are no further responses to combine.
+     *
+     * @param deferWrites <code>true</code> to defer writes
+     */
+    public void setDeferWrites(boolean deferWrites) {
+        this.deferWrites = deferWrites;
+    }
+
+
+    public boolean getDeferWrites() {
+        return deferWrites;
+    }
+
+
     /**
      * Is standard Servlet blocking IO being used for output?
      */
@@ -32,6 +32,7 @@ import org.apache.coyote.http11.filters.BufferedInputFilter;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.compat.JreCompat;
 import org.apache.tomcat.util.http.parser.HttpParser;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.net.Nio2Channel;
@@ -594,6 +595,19 @@ public class Http11Nio2Processor extends AbstractHttp11Processor<Nio2Channel> {
         return outputBuffer;
     }
 
+    @Override
+    protected String getNegotiatedProtocol() {
+        Nio2Channel socket = socketWrapper.getSocket();
+        if (socket instanceof SecureNio2Channel) {
+            SSLEngine engine = ((SecureNio2Channel) socket).getSslEngine();
+            if (engine != null) {
+                return JreCompat.getInstance().getApplicationProtocol(engine);
+            }
+        }
+        return null;
+    }
+
+
     /**
      * Set the SSL information for this HTTP connection.
      */
@@ -100,6 +100,19 @@ public class Http11Nio2Protocol extends AbstractHttp11JsseProtocol<Nio2Channel>
         ((Nio2Endpoint)endpoint).setUseSendfile(useSendfile);
     }
 
+    public int getMaxMappedSendfileSize() {
+        return ((Nio2Endpoint)endpoint).getMaxMappedSendfileSize();
+    }
+
+    public void setMaxMappedSendfileSize(int maxMappedSendfileSize) {
+        ((Nio2Endpoint)endpoint).setMaxMappedSendfileSize(maxMappedSendfileSize);
+    }
+
+    @Override
+    public boolean isUpgradeProtocolSupported() {
+        return true;
+    }
+
     // -------------------- Tcp setup --------------------
 
     public void setOomParachute(int oomParachute) {
@@ -31,6 +31,7 @@ import org.apache.coyote.http11.filters.BufferedInputFilter;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.compat.JreCompat;
 import org.apache.tomcat.util.http.parser.HttpParser;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.net.NioChannel;
@@ -577,6 +578,19 @@ public class Http11NioProcessor extends AbstractHttp11Processor<NioChannel> {
         return outputBuffer;
     }
 
+    @Override
+    protected String getNegotiatedProtocol() {
+        NioChannel socket = socketWrapper.getSocket();
+        if (socket instanceof SecureNioChannel) {
+            SSLEngine engine = ((SecureNioChannel) socket).getSslEngine();
+            if (engine != null) {
+                return JreCompat.getInstance().getApplicationProtocol(engine);
+            }
+        }
+        return null;
+    }
+
+
     /**
      * Set the SSL information for this HTTP connection.
      */
@@ -88,6 +88,30 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
         return ((NioEndpoint)endpoint).getPollerThreadCount();
     }
 
+    public void setLeastLoadedPoller(boolean leastLoadedPoller) {
+        ((NioEndpoint)endpoint).setLeastLoadedPoller(leastLoadedPoller);
+    }
+
+    public boolean getLeastLoadedPoller() {
+        return ((NioEndpoint)endpoint).getLeastLoadedPoller();
+    }
+
+    public void setMaxPreReadBodySize(int maxPreReadBodySize) {
+        ((NioEndpoint)endpoint).setMaxPreReadBodySize(maxPreReadBodySize);
+    }
+
+    public int getMaxPreReadBodySize() {
+        return ((NioEndpoint)endpoint).getMaxPreReadBodySize();
+    }
+
+    public void setMaxPreReadBodyMemory(long maxPreReadBodyMemory) {
+        ((NioEndpoint)endpoint).setMaxPreReadBodyMemory(maxPreReadBodyMemory);
+    }
+
+    public long getMaxPreReadBodyMemory() {
+        return ((NioEndpoint)endpoint).getMaxPreReadBodyMemory();
+    }
+
     public void setSelectorTimeout(long timeout) {
         ((NioEndpoint)endpoint).setSelectorTimeout(timeout);
     }
@@ -121,6 +145,23 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
         ((NioEndpoint)endpoint).setUseSendfile(useSendfile);
     }
 
+    @Override
+    public boolean isUpgradeProtocolSupported() {
+        return true;
+    }
+
+    /**
+     * Should the responses to pipelined requests be combined into as few
+     * writes as possible?
+     */
+    private boolean batchPipelinedResponses = false;
+    public boolean getBatchPipelinedResponses() {
+        return batchPipelinedResponses;
+    }
+    public void setBatchPipelinedResponses(boolean batchPipelinedResponses) {
+        this.batchPipelinedResponses = batchPipelinedResponses;
+    }
+
     // -------------------- Tcp setup --------------------
     public void setOomParachute(int oomParachute) {
         ((NioEndpoint)endpoint).setOomParachute(oomParachute);
@@ -224,6 +265,9 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
                 // is when the socket is in keep-alive so set the appropriate
                 // timeout.
                 socket.setTimeout(getProtocol().getKeepAliveTimeout());
+                // Nothing is in flight while the socket waits for the next
+                // request
+                proto.getEndpoint().releaseBuffers(socket.getSocket());
                 socket.getSocket().getPoller().add(socket.getSocket());
             }
         }
@@ -270,6 +314,7 @@ public class Http11NioProtocol extends AbstractHttp11JsseProtocol<NioChannel> {
                     proto.getMaxSwallowSize(), proto.getRelaxedPathChars(),
                     proto.getRelaxedQueryChars());
             proto.configureProcessor(processor);
+            processor.setBatchPipelinedResponses(proto.getBatchPipelinedResponses());
             register(processor);
             return processor;
         }
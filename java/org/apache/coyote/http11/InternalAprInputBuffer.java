@@ -447,6 +447,13 @@ public class InternalAprInputBuffer extends AbstractInputBuffer<Long> {
 
             }
 
+            if (realPos == start) {
+                // Nothing harvested yet so start the value here rather than
+                // copying it over the skipped spaces
+                start = pos;
+                realPos = pos;
+            }
+
             int lastSignificantChar = realPos;
 
             // Reading bytes until the end of the line
@@ -458,6 +465,26 @@ public class InternalAprInputBuffer extends AbstractInputBuffer<Long> {
                         throw new EOFException(sm.getString("iib.eof.error"));
                 }
 
+                if (realPos == pos) {
+                    // Nothing has been removed from the value so no bytes
+                    // need to be copied. Skip to the next CR or LF.
+                    int eolPos = findEol(pos);
+                    if (eolPos == -1) {
+                        eolPos = lastValid;
+                    }
+                    for (int i = eolPos - 1; i >= pos; i--) {
+                        if (buf[i] != Constants.SP) {
+                            lastSignificantChar = i + 1;
+                            break;
+                        }
+                    }
+                    pos = eolPos;
+                    realPos = eolPos;
+                    if (pos >= lastValid) {
+                        continue;
+                    }
+                }
+
                 if (buf[pos] == Constants.CR) {
                     // Skip
                 } else if (buf[pos] == Constants.LF) {
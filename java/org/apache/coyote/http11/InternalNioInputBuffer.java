@@ -26,11 +26,13 @@ import org.apache.coyote.Request;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.MimeHeaders;
 import org.apache.tomcat.util.http.parser.HttpParser;
 import org.apache.tomcat.util.net.AbstractEndpoint;
 import org.apache.tomcat.util.net.NioChannel;
 import org.apache.tomcat.util.net.NioEndpoint;
 import org.apache.tomcat.util.net.NioSelectorPool;
+import org.apache.tomcat.util.net.SecureNioChannel;
 import org.apache.tomcat.util.net.SocketWrapper;
 
 /**
@@ -64,6 +66,17 @@ public class InternalNioInputBuffer extends AbstractNioInputBuffer<NioChannel> {
      */
     private NioSelectorPool pool;
 
+    /**
+     * The endpoint that owns the socket.
+     */
+    private NioEndpoint endpoint;
+
+    /**
+     * The remainder of the request body, if it was read by the Poller before
+     * the request was dispatched.
+     */
+    private NioEndpoint.PreReadBody preReadBody = null;
+
 
     // --------------------------------------------------------- Public Methods
 
@@ -80,9 +93,39 @@ public class InternalNioInputBuffer extends AbstractNioInputBuffer<NioChannel> {
     @Override
     public void recycle() {
         super.recycle();
+        releasePreReadBody();
         socket = null;
     }
 
+
+    /**
+     * End processing of current HTTP request.
+     */
+    @Override
+    public void nextRequest() {
+        super.nextRequest();
+        releasePreReadBody();
+    }
+
+
+    /**
+     * Parse the HTTP headers. Once the headers have been parsed, the rest of
+     * the request body may be handed to the Poller to read without blocking in
+     * which case <code>false</code> is returned and the headers are reported
+     * as parsed when the processor is next called.
+     */
+    @Override
+    public boolean parseHeaders() throws IOException {
+        if (preReadBody != null) {
+            // Resumed by the Poller
+            return preReadBody.isComplete();
+        }
+        if (!super.parseHeaders()) {
+            return false;
+        }
+        return !startPreRead();
+    }
+
     // ------------------------------------------------------ Protected Methods
 
     @Override
@@ -102,7 +145,58 @@ public class InternalNioInputBuffer extends AbstractNioInputBuffer<NioChannel> {
             buf = new byte[bufLength];
         }
 
-        pool = ((NioEndpoint)endpoint).getSelectorPool();
+        this.endpoint = (NioEndpoint) endpoint;
+        pool = this.endpoint.getSelectorPool();
+    }
+
+
+    /**
+     * @return <code>true</code> if the Poller has been asked to read the rest
+     *         of the request body before the request is processed
+     */
+    private boolean startPreRead() throws IOException {
+        if (endpoint.getMaxPreReadBodySize() <= 0 ||
+                socket instanceof SecureNioChannel) {
+            return false;
+        }
+        MimeHeaders headers = request.getMimeHeaders();
+        // Clients that expect a 100 response will not send the body until
+        // the request is processed
+        if (headers.getValue("transfer-encoding") != null ||
+                headers.getValue("expect") != null) {
+            return false;
+        }
+        long contentLength;
+        try {
+            contentLength = request.getContentLengthLong();
+        } catch (IllegalArgumentException e) {
+            // Rejected later when the request is prepared
+            return false;
+        }
+        preReadBody = endpoint.allocatePreReadBody(
+                contentLength, contentLength - (lastValid - end));
+        if (preReadBody == null) {
+            return false;
+        }
+        if (preReadBody.read(socket)) {
+            // The body had already arrived
+            return false;
+        }
+        NioEndpoint.KeyAttachment att =
+                (NioEndpoint.KeyAttachment) socket.getAttachment();
+        if (att == null) {
+            throw new IOException(sm.getString("iib.socketClosed"));
+        }
+        att.setPreReadBody(preReadBody);
+        return true;
+    }
+
+
+    private void releasePreReadBody() {
+        if (preReadBody != null) {
+            endpoint.releasePreReadBody(preReadBody);
+            preReadBody = null;
+        }
     }
 
 
@@ -115,6 +209,10 @@ public class InternalNioInputBuffer extends AbstractNioInputBuffer<NioChannel> {
             }
         } else {
             lastValid = pos = end;
+            if (preReadBody != null && preReadBody.hasRemaining()) {
+                lastValid = pos + preReadBody.get(buf, pos, buf.length - pos);
+                return true;
+            }
         }
         int nRead = 0;
         ByteBuffer readBuffer = socket.getBufHandler().getReadBuffer();
@@ -186,21 +186,35 @@ public class InternalNioOutputBuffer extends AbstractOutputBuffer<NioChannel> {
 
         if (length == 0) return;
 
-        // Try to flush any data in the socket's write buffer first
-        boolean dataLeft = flushBuffer(isBlocking());
-
-        // Keep writing until all the data is written or a non-blocking write
-        // leaves data in the buffer
-        while (!dataLeft && length > 0) {
-            int thisTime = transfer(buf,offset,length,socket.getBufHandler().getWriteBuffer());
-            length = length - thisTime;
-            offset = offset + thisTime;
-            int written = writeToSocket(socket.getBufHandler().getWriteBuffer(),
-                    isBlocking(), true);
-            if (written == 0) {
-                dataLeft = true;
-            } else {
-                dataLeft = flushBuffer(isBlocking());
+        if (deferWrites && isBlocking() && bufferedWrites.size() == 0) {
+            // Accumulate the data in the socket's write buffer and only write
+            // it once the buffer is full
+            ByteBuffer writeBuffer = socket.getBufHandler().getWriteBuffer();
+            while (length > 0) {
+                if (flipped || !writeBuffer.hasRemaining()) {
+                    writeToSocket(writeBuffer, true, !flipped);
+                }
+                int thisTime = transfer(buf, offset, length, writeBuffer);
+                length = length - thisTime;
+                offset = offset + thisTime;
+            }
+        } else {
+            // Try to flush any data in the socket's write buffer first
+            boolean dataLeft = flushBuffer(isBlocking());
+
+            // Keep writing until all the data is written or a non-blocking
+            // write leaves data in the buffer
+            while (!dataLeft && length > 0) {
+                int thisTime = transfer(buf,offset,length,socket.getBufHandler().getWriteBuffer());
+                length = length - thisTime;
+                offset = offset + thisTime;
+                int written = writeToSocket(socket.getBufHandler().getWriteBuffer(),
+                        isBlocking(), true);
+                if (written == 0) {
+                    dataLeft = true;
+                } else {
+                    dataLeft = flushBuffer(isBlocking());
+                }
             }
         }
 
@@ -0,0 +1,128 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.coyote.Request;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Assigns HTTP requests to the scheduling classes of an executor that supports
+ * class-of-service scheduling, based on the request URI or a request header.
+ * The rules are a comma separated list of <code>condition=class</code> entries
+ * and the first matching rule wins. A condition is one of:
+ * <ul>
+ * <li><code>/prefix</code> - the request URI starts with the prefix</li>
+ * <li><code>Header-Name:value</code> - the header has exactly the given
+ *     value</li>
+ * <li><code>Header-Name</code> - the header is present</li>
+ * </ul>
+ */
+public class SchedulingClassRules {
+
+    private static final StringManager sm =
+            StringManager.getManager(Constants.Package);
+
+    private final Rule[] rules;
+
+
+    /**
+     * @param rules The rules in the format described above
+     *
+     * @throws IllegalArgumentException if the rules are not valid
+     */
+    public SchedulingClassRules(String rules) {
+        List<Rule> result = new ArrayList<>();
+        for (String entry : rules.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int equals = entry.lastIndexOf('=');
+            if (equals < 1 || equals == entry.length() - 1) {
+                throw new IllegalArgumentException(sm.getString(
+                        "schedulingClassRules.invalidRule", entry));
+            }
+            String condition = entry.substring(0, equals).trim();
+            String schedulingClass = entry.substring(equals + 1).trim();
+            if (condition.startsWith("/")) {
+                result.add(new Rule(condition, null, null, schedulingClass));
+            } else {
+                int colon = condition.indexOf(':');
+                if (colon == -1) {
+                    result.add(new Rule(null, condition, null, schedulingClass));
+                } else {
+                    result.add(new Rule(null, condition.substring(0, colon).trim(),
+                            condition.substring(colon + 1).trim(), schedulingClass));
+                }
+            }
+        }
+        this.rules = result.toArray(new Rule[result.size()]);
+    }
+
+
+    /**
+     * @param request A request for which the request line and headers have
+     *                been parsed
+     *
+     * @return the scheduling class of the first matching rule or
+     *         <code>null</code> if no rule matches
+     */
+    public String classify(Request request) {
+        for (Rule rule : rules) {
+            if (rule.matches(request)) {
+                return rule.schedulingClass;
+            }
+        }
+        return null;
+    }
+
+
+    private static class Rule {
+
+        private final String uriPrefix;
+        private final String headerName;
+        private final String headerValue;
+        private final String schedulingClass;
+
+        Rule(String uriPrefix, String headerName, String headerValue,
+                String schedulingClass) {
+            this.uriPrefix = uriPrefix;
+            this.headerName = headerName;
+            this.headerValue = headerValue;
+            this.schedulingClass = schedulingClass;
+        }
+
+        boolean matches(Request request) {
+            if (uriPrefix != null) {
+                MessageBytes uri = request.requestURI();
+                if (uri.getType() == MessageBytes.T_BYTES) {
+                    return uri.getByteChunk().startsWith(uriPrefix, 0);
+                }
+                return uri.toString().startsWith(uriPrefix);
+            }
+            MessageBytes value = request.getMimeHeaders().getValue(headerName);
+            if (value == null) {
+                return false;
+            }
+            return headerValue == null || value.equals(headerValue);
+        }
+    }
+}
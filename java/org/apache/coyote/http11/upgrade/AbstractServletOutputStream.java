@@ -134,6 +134,18 @@ public abstract class AbstractServletOutputStream<S> extends ServletOutputStream
     }
 
 
+    @Override
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            // Only blocking IO needs an explicit flush. Non-blocking IO will
+            // write any remaining data as the socket becomes writable.
+            if (listener == null) {
+                doFlush();
+            }
+        }
+    }
+
+
     @Override
     public void close() throws IOException {
         closeRequired = true;
@@ -126,7 +126,7 @@ public class Nio2ServletOutputStream extends AbstractServletOutputStream<Nio2Cha
             Future<Integer> future = null;
             try {
                 future = channel.write(buffer);
-                written = future.get(socketWrapper.getTimeout(), TimeUnit.MILLISECONDS).intValue();
+                written = future.get(getBlockingTimeout(), TimeUnit.MILLISECONDS).intValue();
             } catch (ExecutionException e) {
                 if (e.getCause() instanceof IOException) {
                     onError(e.getCause());
@@ -163,10 +163,10 @@ public class Nio2ServletOutputStream extends AbstractServletOutputStream<Nio2Cha
         Future<Boolean> future = null;
         try {
             // Block until a possible non blocking write is done
-            if (writePending.tryAcquire(socketWrapper.getTimeout(), TimeUnit.MILLISECONDS)) {
+            if (writePending.tryAcquire(getBlockingTimeout(), TimeUnit.MILLISECONDS)) {
                 writePending.release();
                 future = channel.flush();
-                future.get(socketWrapper.getTimeout(), TimeUnit.MILLISECONDS);
+                future.get(getBlockingTimeout(), TimeUnit.MILLISECONDS);
             } else {
                 throw new TimeoutException();
             }
@@ -191,6 +191,19 @@ public class Nio2ServletOutputStream extends AbstractServletOutputStream<Nio2Cha
         }
     }
 
+    /*
+     * Upgraded connections use an infinite (negative) socket timeout which has
+     * to be converted for use with Future.get()
+     */
+    private long getBlockingTimeout() {
+        long timeout = socketWrapper.getTimeout();
+        if (timeout > 0) {
+            return timeout;
+        }
+        return Long.MAX_VALUE;
+    }
+
+
     @Override
     protected void doClose() throws IOException {
         // Close via the endpoint to ensure the connection count is correctly
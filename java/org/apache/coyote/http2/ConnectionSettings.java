@@ -0,0 +1,129 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * The settings (RFC 7540 section 6.5.2) advertised by the client for an HTTP/2
+ * connection. Settings with an unrecognised identifier are ignored.
+ */
+class ConnectionSettings {
+
+    private static final StringManager sm = StringManager.getManager(ConnectionSettings.class);
+
+    static final int HEADER_TABLE_SIZE = 0x1;
+    static final int ENABLE_PUSH = 0x2;
+    static final int MAX_CONCURRENT_STREAMS = 0x3;
+    static final int INITIAL_WINDOW_SIZE = 0x4;
+    static final int MAX_FRAME_SIZE = 0x5;
+    static final int MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final long UNLIMITED = -1;
+
+    private volatile int headerTableSize = Constants.DEFAULT_HEADER_TABLE_SIZE;
+    private volatile boolean enablePush = true;
+    private volatile long maxConcurrentStreams = UNLIMITED;
+    private volatile int initialWindowSize = Constants.DEFAULT_INITIAL_WINDOW_SIZE;
+    private volatile int maxFrameSize = Constants.DEFAULT_MAX_FRAME_SIZE;
+    private volatile long maxHeaderListSize = UNLIMITED;
+
+
+    /**
+     * Apply a single setting.
+     *
+     * @param id    The setting identifier
+     * @param value The setting value as an unsigned 32-bit integer
+     *
+     * @throws ConnectionException If the value is not valid for the setting
+     */
+    void set(int id, long value) throws ConnectionException {
+        switch (id) {
+        case HEADER_TABLE_SIZE:
+            // Values larger than this are capped by the encoder anyway
+            headerTableSize = (int) Math.min(value, Integer.MAX_VALUE);
+            break;
+        case ENABLE_PUSH:
+            if (value == 0) {
+                enablePush = false;
+            } else if (value == 1) {
+                enablePush = true;
+            } else {
+                throw new ConnectionException(sm.getString("connectionSettings.enablePushInvalid",
+                        Long.toString(value)), Http2Error.PROTOCOL_ERROR);
+            }
+            break;
+        case MAX_CONCURRENT_STREAMS:
+            maxConcurrentStreams = value;
+            break;
+        case INITIAL_WINDOW_SIZE:
+            if (value > Constants.MAX_WINDOW_SIZE) {
+                throw new ConnectionException(sm.getString("connectionSettings.windowSizeTooBig",
+                        Long.toString(value), Integer.toString(Constants.MAX_WINDOW_SIZE)),
+                        Http2Error.FLOW_CONTROL_ERROR);
+            }
+            initialWindowSize = (int) value;
+            break;
+        case MAX_FRAME_SIZE:
+            if (value < Constants.DEFAULT_MAX_FRAME_SIZE ||
+                    value > Constants.MAX_FRAME_SIZE_UPPER_BOUND) {
+                throw new ConnectionException(sm.getString("connectionSettings.maxFrameSizeInvalid",
+                        Long.toString(value), Integer.toString(Constants.DEFAULT_MAX_FRAME_SIZE),
+                        Integer.toString(Constants.MAX_FRAME_SIZE_UPPER_BOUND)),
+                        Http2Error.PROTOCOL_ERROR);
+            }
+            maxFrameSize = (int) value;
+            break;
+        case MAX_HEADER_LIST_SIZE:
+            maxHeaderListSize = value;
+            break;
+        default:
+            // Unknown settings must be ignored
+            break;
+        }
+    }
+
+
+    int getHeaderTableSize() {
+        return headerTableSize;
+    }
+
+
+    boolean getEnablePush() {
+        return enablePush;
+    }
+
+
+    long getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+
+    int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+
+    int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+
+    long getMaxHeaderListSize() {
+        return maxHeaderListSize;
+    }
+}
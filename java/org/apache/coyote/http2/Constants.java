@@ -0,0 +1,52 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.nio.charset.StandardCharsets;
+
+public class Constants {
+
+    public static final String Package = "org.apache.coyote.http2";
+
+    // Protocol names
+    public static final String HTTP_UPGRADE_NAME = "h2c";
+    public static final String ALPN_NAME = "h2";
+
+    // The connection preface sent by the client. The first part (up to and
+    // including the first blank line) may have been consumed by the HTTP/1.1
+    // parser as a request with the method PRI.
+    static final byte[] CLIENT_PREFACE_START =
+            "PRI * HTTP/2.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    static final byte[] CLIENT_PREFACE_END =
+            "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    // Frame layout
+    static final int FRAME_HEADER_LENGTH = 9;
+
+    // Default settings defined by RFC 7540
+    static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+    static final int DEFAULT_INITIAL_WINDOW_SIZE = (1 << 16) - 1;
+    static final int DEFAULT_MAX_FRAME_SIZE = 1 << 14;
+    static final int MAX_FRAME_SIZE_UPPER_BOUND = (1 << 24) - 1;
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    // Default configuration for the Tomcat implementation
+    public static final long DEFAULT_READ_TIMEOUT = 10000;
+    public static final long DEFAULT_WRITE_TIMEOUT = 10000;
+    public static final long DEFAULT_MAX_CONCURRENT_STREAMS = 200;
+    public static final int DEFAULT_MAX_HEADER_LIST_SIZE = 8 * 1024;
+}
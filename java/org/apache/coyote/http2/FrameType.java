@@ -0,0 +1,75 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+/**
+ * The frame types defined by RFC 7540 section 6. Frames of any other type are
+ * mapped to {@link #UNKNOWN} and are ignored.
+ */
+enum FrameType {
+
+    DATA          (0),
+    HEADERS       (1),
+    PRIORITY      (2),
+    RST           (3),
+    SETTINGS      (4),
+    PUSH_PROMISE  (5),
+    PING          (6),
+    GOAWAY        (7),
+    WINDOW_UPDATE (8),
+    CONTINUATION  (9),
+    UNKNOWN       (256);
+
+    private final int id;
+
+    private FrameType(int id) {
+        this.id = id;
+    }
+
+
+    byte getIdByte() {
+        return (byte) id;
+    }
+
+
+    static FrameType valueOf(int i) {
+        switch(i) {
+        case 0:
+            return DATA;
+        case 1:
+            return HEADERS;
+        case 2:
+            return PRIORITY;
+        case 3:
+            return RST;
+        case 4:
+            return SETTINGS;
+        case 5:
+            return PUSH_PROMISE;
+        case 6:
+            return PING;
+        case 7:
+            return GOAWAY;
+        case 8:
+            return WINDOW_UPDATE;
+        case 9:
+            return CONTINUATION;
+        default:
+            return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Functionality shared by the HPACK (RFC 7541) encoder and decoder.
+ */
+class Hpack {
+
+    private static final StringManager sm = StringManager.getManager(Hpack.class);
+
+    /**
+     * The per entry overhead defined by RFC 7541 section 4.1.
+     */
+    static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * The static table defined by RFC 7541 Appendix A. Entry zero is unused
+     * so that the array index matches the HPACK index.
+     */
+    static final HeaderField[] STATIC_TABLE = new HeaderField[] {
+            null,
+            new HeaderField(":authority", ""),
+            new HeaderField(":method", "GET"),
+            new HeaderField(":method", "POST"),
+            new HeaderField(":path", "/"),
+            new HeaderField(":path", "/index.html"),
+            new HeaderField(":scheme", "http"),
+            new HeaderField(":scheme", "https"),
+            new HeaderField(":status", "200"),
+            new HeaderField(":status", "204"),
+            new HeaderField(":status", "206"),
+            new HeaderField(":status", "304"),
+            new HeaderField(":status", "400"),
+            new HeaderField(":status", "404"),
+            new HeaderField(":status", "500"),
+            new HeaderField("accept-charset", ""),
+            new HeaderField("accept-encoding", "gzip, deflate"),
+            new HeaderField("accept-language", ""),
+            new HeaderField("accept-ranges", ""),
+            new HeaderField("accept", ""),
+            new HeaderField("access-control-allow-origin", ""),
+            new HeaderField("age", ""),
+            new HeaderField("allow", ""),
+            new HeaderField("authorization", ""),
+            new HeaderField("cache-control", ""),
+            new HeaderField("content-disposition", ""),
+            new HeaderField("content-encoding", ""),
+            new HeaderField("content-language", ""),
+            new HeaderField("content-length", ""),
+            new HeaderField("content-location", ""),
+            new HeaderField("content-range", ""),
+            new HeaderField("content-type", ""),
+            new HeaderField("cookie", ""),
+            new HeaderField("date", ""),
+            new HeaderField("etag", ""),
+            new HeaderField("expect", ""),
+            new HeaderField("expires", ""),
+            new HeaderField("from", ""),
+            new HeaderField("host", ""),
+            new HeaderField("if-match", ""),
+            new HeaderField("if-modified-since", ""),
+            new HeaderField("if-none-match", ""),
+            new HeaderField("if-range", ""),
+            new HeaderField("if-unmodified-since", ""),
+            new HeaderField("last-modified", ""),
+            new HeaderField("link", ""),
+            new HeaderField("location", ""),
+            new HeaderField("max-forwards", ""),
+            new HeaderField("proxy-authenticate", ""),
+            new HeaderField("proxy-authorization", ""),
+            new HeaderField("range", ""),
+            new HeaderField("referer", ""),
+            new HeaderField("refresh", ""),
+            new HeaderField("retry-after", ""),
+            new HeaderField("server", ""),
+            new HeaderField("set-cookie", ""),
+            new HeaderField("strict-transport-security", ""),
+            new HeaderField("transfer-encoding", ""),
+            new HeaderField("user-agent", ""),
+            new HeaderField("vary", ""),
+            new HeaderField("via", ""),
+            new HeaderField("www-authenticate", "")
+    };
+
+    static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length - 1;
+
+    /*
+     * Lookup maps for the static table. Where a name appears more than once,
+     * the lowest index is used for name only matches.
+     */
+    private static final Map<String,Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String,Integer> STATIC_NAME_VALUES = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE_LENGTH; i > 0; i--) {
+            HeaderField field = STATIC_TABLE[i];
+            STATIC_NAMES.put(field.name, Integer.valueOf(i));
+            if (field.value.length() > 0) {
+                STATIC_NAME_VALUES.put(field.name + ':' + field.value, Integer.valueOf(i));
+            }
+        }
+    }
+
+
+    private Hpack() {
+        // Hide default constructor
+    }
+
+
+    /**
+     * @return The static table index for an exact match or zero if there is
+     *         no exact match
+     */
+    static int findStatic(String name, String value) {
+        Integer index = STATIC_NAME_VALUES.get(name + ':' + value);
+        if (index == null) {
+            return 0;
+        }
+        return index.intValue();
+    }
+
+
+    /**
+     * @return The static table index for the name or zero if the name is not
+     *         in the static table
+     */
+    static int findStaticName(String name) {
+        Integer index = STATIC_NAMES.get(name);
+        if (index == null) {
+            return 0;
+        }
+        return index.intValue();
+    }
+
+
+    /**
+     * Decode an integer with an N-bit prefix as defined by RFC 7541 section
+     * 5.1. The buffer must be positioned at the byte containing the prefix.
+     *
+     * @param source    The data to decode
+     * @param n         The size of the prefix in bits
+     *
+     * @return The decoded value
+     *
+     * @throws HpackException If the data is truncated or the value overflows
+     */
+    static int decodeInteger(ByteBuffer source, int n) throws HpackException {
+        int mask = (1 << n) - 1;
+        int value = source.get() & mask;
+        if (value < mask) {
+            return value;
+        }
+        long result = value;
+        int shift = 0;
+        int b;
+        do {
+            if (!source.hasRemaining()) {
+                throw new HpackException(sm.getString("hpack.integerTruncated"));
+            }
+            b = source.get() & 0xFF;
+            result += ((long) (b & 0x7F)) << shift;
+            shift += 7;
+            if (result > Integer.MAX_VALUE) {
+                throw new HpackException(sm.getString("hpack.integerOverflow"));
+            }
+        } while ((b & 0x80) != 0);
+        return (int) result;
+    }
+
+
+    /**
+     * Encode an integer with an N-bit prefix as defined by RFC 7541 section
+     * 5.1.
+     *
+     * @param target        The stream to write the encoded value to
+     * @param prefixBits    The bits of the first byte not used by the prefix
+     * @param value         The value to encode
+     * @param n             The size of the prefix in bits
+     */
+    static void encodeInteger(ByteArrayOutputStream target, int prefixBits, int value,
+            int n) {
+        int mask = (1 << n) - 1;
+        if (value < mask) {
+            target.write(prefixBits | value);
+            return;
+        }
+        target.write(prefixBits | mask);
+        int remaining = value - mask;
+        while (remaining >= 0x80) {
+            target.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        target.write(remaining);
+    }
+
+
+    static class HeaderField {
+
+        final String name;
+        final String value;
+        final int size;
+
+        HeaderField(String name, String value) {
+            this.name = name;
+            this.value = value;
+            this.size = name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+
+    /**
+     * The dynamic table defined by RFC 7541 section 2.3.2. Entries are held in
+     * a circular buffer, with the most recently added entry having the lowest
+     * index.
+     */
+    static class DynamicTable {
+
+        private HeaderField[] entries = new HeaderField[16];
+        // Position of the oldest entry
+        private int first = 0;
+        private int count = 0;
+        private int currentSize = 0;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(0);
+        }
+
+
+        int length() {
+            return count;
+        }
+
+
+        /**
+         * @param index Zero based index where zero is the most recently added
+         *              entry
+         */
+        HeaderField get(int index) {
+            return entries[(first + count - 1 - index) % entries.length];
+        }
+
+
+        void add(String name, String value) {
+            HeaderField field = new HeaderField(name, value);
+            if (field.size > maxSize) {
+                // Adding an entry larger than the table empties the table
+                evict(maxSize);
+                return;
+            }
+            evict(field.size);
+            if (count == entries.length) {
+                HeaderField[] newEntries = new HeaderField[entries.length * 2];
+                for (int i = 0; i < count; i++) {
+                    newEntries[i] = entries[(first + i) % entries.length];
+                }
+                entries = newEntries;
+                first = 0;
+            }
+            entries[(first + count) % entries.length] = field;
+            count++;
+            currentSize += field.size;
+        }
+
+
+        /**
+         * Find an entry in the table.
+         *
+         * @return The zero based index of the entry that exactly matches the
+         *         name and value, otherwise the index of the first entry with a
+         *         matching name, as <code>-(index + 1)</code> or, if there is no
+         *         match, <code>Integer.MIN_VALUE</code>
+         */
+        int find(String name, String value) {
+            int nameMatch = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                HeaderField field = get(i);
+                if (field.name.equals(name)) {
+                    if (field.value.equals(value)) {
+                        return i;
+                    } else if (nameMatch == Integer.MIN_VALUE) {
+                        nameMatch = -(i + 1);
+                    }
+                }
+            }
+            return nameMatch;
+        }
+
+
+        private void evict(int required) {
+            while (count > 0 && currentSize + required > maxSize) {
+                HeaderField oldest = entries[first];
+                entries[first] = null;
+                first = (first + 1) % entries.length;
+                count--;
+                currentSize -= oldest.size;
+            }
+        }
+    }
+}
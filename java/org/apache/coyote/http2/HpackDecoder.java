@@ -0,0 +1,157 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.coyote.http2.Hpack.DynamicTable;
+import org.apache.coyote.http2.Hpack.HeaderField;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Decodes complete HPACK header blocks. There is one decoder per connection
+ * and header blocks must be decoded in the order they are received.
+ */
+class HpackDecoder {
+
+    private static final StringManager sm = StringManager.getManager(HpackDecoder.class);
+
+    /**
+     * The maximum size of the dynamic table that this decoder has advertised
+     * to the peer via SETTINGS_HEADER_TABLE_SIZE.
+     */
+    private final int maxAllowedTableSize;
+    private final DynamicTable table;
+    private final ByteArrayOutputStream stringBuffer = new ByteArrayOutputStream();
+
+
+    HpackDecoder(int maxAllowedTableSize) {
+        this.maxAllowedTableSize = maxAllowedTableSize;
+        this.table = new DynamicTable(maxAllowedTableSize);
+    }
+
+
+    HpackDecoder() {
+        this(Constants.DEFAULT_HEADER_TABLE_SIZE);
+    }
+
+
+    /**
+     * Decode a complete header block.
+     *
+     * @param buffer    The header block, positioned at the first byte
+     * @param emitter   The target for the decoded headers
+     *
+     * @throws HpackException If the header block can not be decoded
+     */
+    void decode(ByteBuffer buffer, HeaderEmitter emitter) throws HpackException {
+        // Table size updates are only permitted at the start of a block
+        boolean sizeUpdateAllowed = true;
+        while (buffer.hasRemaining()) {
+            int b = buffer.get(buffer.position()) & 0xFF;
+            if ((b & 0x80) != 0) {
+                // Indexed header field
+                int index = Hpack.decodeInteger(buffer, 7);
+                HeaderField field = getField(index);
+                emitter.emitHeader(field.name, field.value);
+            } else if ((b & 0x40) != 0) {
+                // Literal with incremental indexing
+                String name = readName(buffer, 6);
+                String value = readString(buffer);
+                table.add(name, value);
+                emitter.emitHeader(name, value);
+            } else if ((b & 0x20) != 0) {
+                // Dynamic table size update
+                if (!sizeUpdateAllowed) {
+                    throw new HpackException(sm.getString("hpackdecoder.sizeUpdateNotAtStart"));
+                }
+                int size = Hpack.decodeInteger(buffer, 5);
+                if (size > maxAllowedTableSize) {
+                    throw new HpackException(sm.getString("hpackdecoder.sizeUpdateTooLarge",
+                            Integer.toString(size), Integer.toString(maxAllowedTableSize)));
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                // Literal without indexing or never indexed
+                String name = readName(buffer, 4);
+                String value = readString(buffer);
+                emitter.emitHeader(name, value);
+            }
+            sizeUpdateAllowed = false;
+        }
+    }
+
+
+    private HeaderField getField(int index) throws HpackException {
+        if (index == 0) {
+            throw new HpackException(sm.getString("hpackdecoder.zeroIndex"));
+        }
+        if (index <= Hpack.STATIC_TABLE_LENGTH) {
+            return Hpack.STATIC_TABLE[index];
+        }
+        int dynamicIndex = index - Hpack.STATIC_TABLE_LENGTH - 1;
+        if (dynamicIndex >= table.length()) {
+            throw new HpackException(sm.getString("hpackdecoder.invalidIndex",
+                    Integer.toString(index)));
+        }
+        return table.get(dynamicIndex);
+    }
+
+
+    private String readName(ByteBuffer buffer, int prefix) throws HpackException {
+        int index = Hpack.decodeInteger(buffer, prefix);
+        if (index == 0) {
+            return readString(buffer);
+        }
+        return getField(index).name;
+    }
+
+
+    private String readString(ByteBuffer buffer) throws HpackException {
+        if (!buffer.hasRemaining()) {
+            throw new HpackException(sm.getString("hpackdecoder.stringTruncated"));
+        }
+        boolean huffman = (buffer.get(buffer.position()) & 0x80) != 0;
+        int length = Hpack.decodeInteger(buffer, 7);
+        if (length > buffer.remaining()) {
+            throw new HpackException(sm.getString("hpackdecoder.stringTruncated"));
+        }
+        if (huffman) {
+            stringBuffer.reset();
+            HPackHuffman.decode(buffer, length, stringBuffer);
+            return new String(stringBuffer.toByteArray(), StandardCharsets.ISO_8859_1);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+
+    /**
+     * Receives the headers as they are decoded. Implementations should not
+     * throw exceptions for invalid headers since the remainder of the block
+     * must still be decoded to keep the dynamic table synchronized with the
+     * peer.
+     */
+    interface HeaderEmitter {
+        void emitHeader(String name, String value);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.coyote.http2.Hpack.DynamicTable;
+
+/**
+ * Encodes HPACK header blocks. There is one encoder per connection and header
+ * blocks must be written to the connection in the order they are encoded.
+ */
+class HpackEncoder {
+
+    /*
+     * The dynamic table used by the encoder is never larger than this,
+     * regardless of what the peer allows, to bound per connection memory use.
+     */
+    private static final int MAX_TABLE_SIZE = Constants.DEFAULT_HEADER_TABLE_SIZE;
+
+    /*
+     * Headers whose values rarely repeat so indexing them would just churn the
+     * dynamic table.
+     */
+    private static final Set<String> SKIP_INDEXING = new HashSet<>();
+    /*
+     * Headers that should never be indexed by intermediaries either.
+     */
+    private static final Set<String> NEVER_INDEX = new HashSet<>();
+
+    static {
+        SKIP_INDEXING.add(":path");
+        SKIP_INDEXING.add("content-length");
+        SKIP_INDEXING.add("content-range");
+        SKIP_INDEXING.add("date");
+        SKIP_INDEXING.add("etag");
+        SKIP_INDEXING.add("expires");
+        SKIP_INDEXING.add("last-modified");
+        SKIP_INDEXING.add("location");
+        NEVER_INDEX.add("authorization");
+        NEVER_INDEX.add("proxy-authorization");
+        NEVER_INDEX.add("set-cookie");
+    }
+
+    private final DynamicTable table = new DynamicTable(MAX_TABLE_SIZE);
+
+    // Table size changes that have not yet been signalled to the peer
+    private int minPendingTableSize = -1;
+    private int pendingTableSize = -1;
+
+
+    /**
+     * Update the maximum table size following a change to the peer's
+     * SETTINGS_HEADER_TABLE_SIZE.
+     *
+     * @param peerMaxTableSize The new value of the setting
+     */
+    void setMaxTableSize(int peerMaxTableSize) {
+        int newSize = Math.min(peerMaxTableSize, MAX_TABLE_SIZE);
+        if (newSize == table.getMaxSize() && pendingTableSize == -1) {
+            return;
+        }
+        if (minPendingTableSize == -1 || newSize < minPendingTableSize) {
+            minPendingTableSize = newSize;
+        }
+        pendingTableSize = newSize;
+        table.setMaxSize(newSize);
+    }
+
+
+    /**
+     * Must be called at the start of every header block before any headers are
+     * encoded.
+     *
+     * @param target The stream the header block is written to
+     */
+    void startHeaderBlock(ByteArrayOutputStream target) {
+        if (pendingTableSize == -1) {
+            return;
+        }
+        if (minPendingTableSize < pendingTableSize) {
+            Hpack.encodeInteger(target, 0x20, minPendingTableSize, 5);
+        }
+        Hpack.encodeInteger(target, 0x20, pendingTableSize, 5);
+        minPendingTableSize = -1;
+        pendingTableSize = -1;
+    }
+
+
+    /**
+     * Encode a single header.
+     *
+     * @param name      The header name which must be in lower case
+     * @param value     The header value
+     * @param target    The stream the header block is written to
+     */
+    void encode(String name, String value, ByteArrayOutputStream target) {
+        int staticIndex = Hpack.findStatic(name, value);
+        if (staticIndex > 0) {
+            Hpack.encodeInteger(target, 0x80, staticIndex, 7);
+            return;
+        }
+
+        int dynamicIndex = table.find(name, value);
+        if (dynamicIndex >= 0) {
+            Hpack.encodeInteger(target, 0x80,
+                    Hpack.STATIC_TABLE_LENGTH + 1 + dynamicIndex, 7);
+            return;
+        }
+
+        int nameIndex = Hpack.findStaticName(name);
+        if (nameIndex == 0 && dynamicIndex != Integer.MIN_VALUE) {
+            nameIndex = Hpack.STATIC_TABLE_LENGTH + 1 + (-dynamicIndex - 1);
+        }
+
+        if (NEVER_INDEX.contains(name)) {
+            Hpack.encodeInteger(target, 0x10, nameIndex, 4);
+        } else if (!SKIP_INDEXING.contains(name) &&
+                name.length() + value.length() + Hpack.ENTRY_OVERHEAD <= table.getMaxSize() / 2) {
+            Hpack.encodeInteger(target, 0x40, nameIndex, 6);
+            table.add(name, value);
+        } else {
+            Hpack.encodeInteger(target, 0x00, nameIndex, 4);
+        }
+        if (nameIndex == 0) {
+            writeString(name, target);
+        }
+        writeString(value, target);
+    }
+
+
+    private void writeString(String value, ByteArrayOutputStream target) {
+        int huffmanLength = HPackHuffman.encodedLength(value);
+        if (huffmanLength < value.length()) {
+            Hpack.encodeInteger(target, 0x80, huffmanLength, 7);
+            HPackHuffman.encode(value, target);
+        } else {
+            Hpack.encodeInteger(target, 0x00, value.length(), 7);
+            for (int i = 0; i < value.length(); i++) {
+                target.write(value.charAt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Parses HTTP/2 frames from the data read from a connection. Data is provided
+ * in a buffer that may contain any number of frames including a partial frame
+ * at the end. Complete frames are validated against the rules of RFC 7540
+ * section 6 and passed to the {@link Output}. Header blocks split across
+ * HEADERS and CONTINUATION frames are reassembled before they are passed on.
+ */
+class Http2Parser {
+
+    private static final Log log = LogFactory.getLog(Http2Parser.class);
+    private static final StringManager sm = StringManager.getManager(Http2Parser.class);
+
+    static final int FLAG_END_STREAM = 0x01;
+    static final int FLAG_ACK = 0x01;
+    static final int FLAG_END_HEADERS = 0x04;
+    static final int FLAG_PADDED = 0x08;
+    static final int FLAG_PRIORITY = 0x20;
+
+    private final String connectionId;
+    private final Output output;
+    private final int maxFrameSize;
+    private final int maxHeaderBlockSize;
+
+    // The part of the client connection preface still to be read
+    private final byte[] expectedPreface;
+    private int prefaceRead = 0;
+    private boolean settingsReceived = false;
+
+    // State for a header block that spans multiple frames
+    private int headersStreamId = 0;
+    private boolean headersEndStream = false;
+    private StreamException headersStreamError = null;
+    private ByteBuffer headerBlock = ByteBuffer.allocate(1024);
+
+
+    /**
+     * @param connectionId          Used in log messages
+     * @param output                The target for the parsed frames
+     * @param expectedPreface       The part of the client connection preface
+     *                              that has not already been read
+     * @param maxFrameSize          The largest frame that will be accepted
+     * @param maxHeaderBlockSize    The largest (compressed) header block that
+     *                              will be accepted
+     */
+    Http2Parser(String connectionId, Output output, byte[] expectedPreface,
+            int maxFrameSize, int maxHeaderBlockSize) {
+        this.connectionId = connectionId;
+        this.output = output;
+        this.expectedPreface = expectedPreface;
+        this.maxFrameSize = maxFrameSize;
+        this.maxHeaderBlockSize = maxHeaderBlockSize;
+    }
+
+
+    /**
+     * Process all the complete frames in the buffer. On return the buffer is
+     * positioned at the start of the first incomplete frame (if any).
+     *
+     * @param input A heap buffer, ready for reading
+     *
+     * @throws Http2Exception If an error occurs. A {@link StreamException}
+     *         means that the frame that caused it has been fully processed and
+     *         parsing can continue once the stream has been reset.
+     */
+    void process(ByteBuffer input) throws Http2Exception {
+        if (!readPreface(input)) {
+            return;
+        }
+
+        while (input.remaining() >= Constants.FRAME_HEADER_LENGTH) {
+            int start = input.position();
+            byte[] frame = input.array();
+            int frameStart = input.arrayOffset() + start;
+
+            int payloadSize = ByteUtil.getThreeBytes(frame, frameStart);
+            if (payloadSize > maxFrameSize) {
+                throw new ConnectionException(sm.getString("http2Parser.payloadTooBig",
+                        connectionId, Integer.toString(payloadSize),
+                        Integer.toString(maxFrameSize)), Http2Error.FRAME_SIZE_ERROR);
+            }
+            if (input.remaining() < Constants.FRAME_HEADER_LENGTH + payloadSize) {
+                // Incomplete frame
+                return;
+            }
+
+            FrameType frameType = FrameType.valueOf(ByteUtil.getOneByte(frame, frameStart + 3));
+            int flags = ByteUtil.getOneByte(frame, frameStart + 4);
+            int streamId = ByteUtil.get31Bits(frame, frameStart + 5);
+            int payloadStart = frameStart + Constants.FRAME_HEADER_LENGTH;
+
+            // Move past the frame before processing it so a StreamException
+            // leaves the buffer ready for the next frame
+            input.position(start + Constants.FRAME_HEADER_LENGTH + payloadSize);
+
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("http2Parser.processFrame", connectionId,
+                        Integer.toString(streamId), frameType, Integer.toString(flags),
+                        Integer.toString(payloadSize)));
+            }
+
+            if (!settingsReceived) {
+                if (frameType != FrameType.SETTINGS || (flags & FLAG_ACK) != 0) {
+                    throw new ConnectionException(sm.getString("http2Parser.noInitialSettings",
+                            connectionId, frameType), Http2Error.PROTOCOL_ERROR);
+                }
+                settingsReceived = true;
+            }
+
+            if (headersStreamId != 0 && frameType != FrameType.CONTINUATION) {
+                throw new ConnectionException(sm.getString("http2Parser.headersInterrupted",
+                        connectionId, Integer.toString(headersStreamId), frameType),
+                        Http2Error.PROTOCOL_ERROR);
+            }
+
+            switch (frameType) {
+            case DATA:
+                processData(flags, streamId, frame, payloadStart, payloadSize);
+                break;
+            case HEADERS:
+                processHeaders(flags, streamId, frame, payloadStart, payloadSize);
+                break;
+            case PRIORITY:
+                processPriority(streamId, frame, payloadStart, payloadSize);
+                break;
+            case RST:
+                processRst(streamId, frame, payloadStart, payloadSize);
+                break;
+            case SETTINGS:
+                processSettings(flags, streamId, frame, payloadStart, payloadSize);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionException(sm.getString("http2Parser.pushPromise",
+                        connectionId), Http2Error.PROTOCOL_ERROR);
+            case PING:
+                processPing(flags, streamId, frame, payloadStart, payloadSize);
+                break;
+            case GOAWAY:
+                processGoaway(streamId, frame, payloadStart, payloadSize);
+                break;
+            case WINDOW_UPDATE:
+                processWindowUpdate(streamId, frame, payloadStart, payloadSize);
+                break;
+            case CONTINUATION:
+                processContinuation(flags, streamId, frame, payloadStart, payloadSize);
+                break;
+            case UNKNOWN:
+                // Unknown frame types must be ignored
+                break;
+            }
+        }
+    }
+
+
+    private boolean readPreface(ByteBuffer input) throws ConnectionException {
+        while (prefaceRead < expectedPreface.length) {
+            if (!input.hasRemaining()) {
+                return false;
+            }
+            if (input.get() != expectedPreface[prefaceRead]) {
+                throw new ConnectionException(sm.getString("http2Parser.invalidPreface",
+                        connectionId), Http2Error.PROTOCOL_ERROR);
+            }
+            prefaceRead++;
+        }
+        return true;
+    }
+
+
+    private void processData(int flags, int streamId, byte[] frame, int payloadStart,
+            int payloadSize) throws Http2Exception {
+        checkStreamIdNotZero(streamId, FrameType.DATA);
+        int padding = 0;
+        int dataStart = payloadStart;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = readPadding(frame, payloadStart, payloadSize) + 1;
+            dataStart++;
+        }
+        output.receivedData(streamId, frame, dataStart, payloadSize - padding,
+                payloadSize, (flags & FLAG_END_STREAM) != 0);
+    }
+
+
+    private void processHeaders(int flags, int streamId, byte[] frame, int payloadStart,
+            int payloadSize) throws Http2Exception {
+        checkStreamIdNotZero(streamId, FrameType.HEADERS);
+        int padding = 0;
+        int blockStart = payloadStart;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = readPadding(frame, payloadStart, payloadSize) + 1;
+            blockStart++;
+        }
+        headersStreamError = null;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            if (payloadSize - padding < 5) {
+                throw new ConnectionException(sm.getString("http2Parser.invalidPayloadSize",
+                        connectionId, Integer.toString(streamId), FrameType.HEADERS,
+                        Integer.toString(payloadSize)), Http2Error.FRAME_SIZE_ERROR);
+            }
+            int parentStreamId = ByteUtil.get31Bits(frame, blockStart);
+            if (parentStreamId == streamId) {
+                // The header block still has to be decoded to keep the HPACK
+                // state consistent so report this once the block is complete
+                headersStreamError = new StreamException(sm.getString(
+                        "http2Parser.selfDependency", connectionId, Integer.toString(streamId)),
+                        Http2Error.PROTOCOL_ERROR, streamId);
+            }
+            blockStart += 5;
+            padding += 5;
+        }
+
+        headersStreamId = streamId;
+        headersEndStream = (flags & FLAG_END_STREAM) != 0;
+        headerBlock.clear();
+        appendHeaderBlock(frame, blockStart, payloadSize - padding);
+
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endOfHeaders();
+        }
+    }
+
+
+    private void processContinuation(int flags, int streamId, byte[] frame,
+            int payloadStart, int payloadSize) throws Http2Exception {
+        if (headersStreamId == 0 || streamId != headersStreamId) {
+            throw new ConnectionException(sm.getString("http2Parser.unexpectedContinuation",
+                    connectionId, Integer.toString(streamId)), Http2Error.PROTOCOL_ERROR);
+        }
+        appendHeaderBlock(frame, payloadStart, payloadSize);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endOfHeaders();
+        }
+    }
+
+
+    private void appendHeaderBlock(byte[] frame, int start, int length)
+            throws ConnectionException {
+        if (headerBlock.position() + length > maxHeaderBlockSize) {
+            throw new ConnectionException(sm.getString("http2Parser.headerBlockTooBig",
+                    connectionId, Integer.toString(headersStreamId),
+                    Integer.toString(maxHeaderBlockSize)), Http2Error.ENHANCE_YOUR_CALM);
+        }
+        if (headerBlock.remaining() < length) {
+            int newSize = Math.max(headerBlock.capacity() * 2, headerBlock.position() + length);
+            ByteBuffer newBlock = ByteBuffer.allocate(Math.min(newSize, maxHeaderBlockSize));
+            headerBlock.flip();
+            newBlock.put(headerBlock);
+            headerBlock = newBlock;
+        }
+        headerBlock.put(frame, start, length);
+    }
+
+
+    private void endOfHeaders() throws Http2Exception {
+        int streamId = headersStreamId;
+        headersStreamId = 0;
+        headerBlock.flip();
+        output.receivedHeaders(streamId, headerBlock, headersEndStream);
+        if (headersStreamError != null) {
+            StreamException se = headersStreamError;
+            headersStreamError = null;
+            throw se;
+        }
+    }
+
+
+    private void processPriority(int streamId, byte[] frame, int payloadStart,
+            int payloadSize) throws Http2Exception {
+        checkStreamIdNotZero(streamId, FrameType.PRIORITY);
+        if (payloadSize != 5) {
+            throw new StreamException(sm.getString("http2Parser.invalidPayloadSize",
+                    connectionId, Integer.toString(streamId), FrameType.PRIORITY,
+                    Integer.toString(payloadSize)), Http2Error.FRAME_SIZE_ERROR, streamId);
+        }
+        int parentStreamId = ByteUtil.get31Bits(frame, payloadStart);
+        if (parentStreamId == streamId) {
+            throw new StreamException(sm.getString("http2Parser.selfDependency",
+                    connectionId, Integer.toString(streamId)), Http2Error.PROTOCOL_ERROR,
+                    streamId);
+        }
+        // Prioritisation is advisory and is not currently implemented
+    }
+
+
+    private void processRst(int streamId, byte[] frame, int payloadStart, int payloadSize)
+            throws Http2Exception {
+        checkStreamIdNotZero(streamId, FrameType.RST);
+        checkPayloadSize(streamId, FrameType.RST, payloadSize, 4);
+        output.receivedReset(streamId, ByteUtil.getFourBytes(frame, payloadStart));
+    }
+
+
+    private void processSettings(int flags, int streamId, byte[] frame, int payloadStart,
+            int payloadSize) throws Http2Exception {
+        checkStreamIdZero(streamId, FrameType.SETTINGS);
+        boolean ack = (flags & FLAG_ACK) != 0;
+        if (ack && payloadSize != 0) {
+            throw new ConnectionException(sm.getString("http2Parser.ackWithPayload",
+                    connectionId), Http2Error.FRAME_SIZE_ERROR);
+        }
+        if (payloadSize % 6 != 0) {
+            throw new ConnectionException(sm.getString("http2Parser.invalidPayloadSize",
+                    connectionId, Integer.toString(streamId), FrameType.SETTINGS,
+                    Integer.toString(payloadSize)), Http2Error.FRAME_SIZE_ERROR);
+        }
+        if (ack) {
+            output.receivedSettingsAck();
+            return;
+        }
+        for (int pos = payloadStart; pos < payloadStart + payloadSize; pos += 6) {
+            output.receivedSetting(ByteUtil.getTwoBytes(frame, pos),
+                    ByteUtil.getFourBytes(frame, pos + 2));
+        }
+        output.receivedSettingsEnd();
+    }
+
+
+    private void processPing(int flags, int streamId, byte[] frame, int payloadStart,
+            int payloadSize) throws Http2Exception {
+        checkStreamIdZero(streamId, FrameType.PING);
+        checkPayloadSize(streamId, FrameType.PING, payloadSize, 8);
+        byte[] payload = new byte[8];
+        System.arraycopy(frame, payloadStart, payload, 0, 8);
+        output.receivedPing(payload, (flags & FLAG_ACK) != 0);
+    }
+
+
+    private void processGoaway(int streamId, byte[] frame, int payloadStart,
+            int payloadSize) throws Http2Exception {
+        checkStreamIdZero(streamId, FrameType.GOAWAY);
+        if (payloadSize < 8) {
+            throw new ConnectionException(sm.getString("http2Parser.invalidPayloadSize",
+                    connectionId, Integer.toString(streamId), FrameType.GOAWAY,
+                    Integer.toString(payloadSize)), Http2Error.FRAME_SIZE_ERROR);
+        }
+        int lastStreamId = ByteUtil.get31Bits(frame, payloadStart);
+        long errorCode = ByteUtil.getFourBytes(frame, payloadStart + 4);
+        String debugData = null;
+        if (payloadSize > 8) {
+            debugData = new String(frame, payloadStart + 8, payloadSize - 8,
+                    StandardCharsets.UTF_8);
+        }
+        output.receivedGoaway(lastStreamId, errorCode, debugData);
+    }
+
+
+    private void processWindowUpdate(int streamId, byte[] frame, int payloadStart,
+            int payloadSize) throws Http2Exception {
+        checkPayloadSize(streamId, FrameType.WINDOW_UPDATE, payloadSize, 4);
+        int increment = ByteUtil.get31Bits(frame, payloadStart);
+        if (increment == 0) {
+            String msg = sm.getString("http2Parser.zeroWindowIncrement",
+                    connectionId, Integer.toString(streamId));
+            if (streamId == 0) {
+                throw new ConnectionException(msg, Http2Error.PROTOCOL_ERROR);
+            } else {
+                throw new StreamException(msg, Http2Error.PROTOCOL_ERROR, streamId);
+            }
+        }
+        output.receivedWindowUpdate(streamId, increment);
+    }
+
+
+    private int readPadding(byte[] frame, int payloadStart, int payloadSize)
+            throws ConnectionException {
+        if (payloadSize == 0) {
+            throw new ConnectionException(sm.getString("http2Parser.invalidPadding",
+                    connectionId), Http2Error.FRAME_SIZE_ERROR);
+        }
+        int padLength = ByteUtil.getOneByte(frame, payloadStart);
+        if (padLength >= payloadSize) {
+            throw new ConnectionException(sm.getString("http2Parser.invalidPadding",
+                    connectionId), Http2Error.PROTOCOL_ERROR);
+        }
+        return padLength;
+    }
+
+
+    private void checkStreamIdZero(int streamId, FrameType frameType)
+            throws ConnectionException {
+        if (streamId != 0) {
+            throw new ConnectionException(sm.getString("http2Parser.streamIdNotZero",
+                    connectionId, Integer.toString(streamId), frameType),
+                    Http2Error.PROTOCOL_ERROR);
+        }
+    }
+
+
+    private void checkStreamIdNotZero(int streamId, FrameType frameType)
+            throws ConnectionException {
+        if (streamId == 0) {
+            throw new ConnectionException(sm.getString("http2Parser.streamIdZero",
+                    connectionId, frameType), Http2Error.PROTOCOL_ERROR);
+        }
+    }
+
+
+    private void checkPayloadSize(int streamId, FrameType frameType, int actual,
+            int expected) throws ConnectionException {
+        if (actual != expected) {
+            throw new ConnectionException(sm.getString("http2Parser.invalidPayloadSize",
+                    connectionId, Integer.toString(streamId), frameType,
+                    Integer.toString(actual)), Http2Error.FRAME_SIZE_ERROR);
+        }
+    }
+
+
+    /**
+     * Receives the frames parsed from the connection.
+     */
+    interface Output {
+
+        /**
+         * @param flowControlledSize    The size of the frame payload, including
+         *                              any padding, that counts against the
+         *                              flow control windows
+         */
+        void receivedData(int streamId, byte[] data, int offset, int length,
+                int flowControlledSize, boolean endOfStream) throws Http2Exception;
+
+        /**
+         * @param headerBlock   The complete, compressed header block. It is
+         *                      only valid for the duration of the call.
+         */
+        void receivedHeaders(int streamId, ByteBuffer headerBlock, boolean endOfStream)
+                throws Http2Exception;
+
+        void receivedReset(int streamId, long errorCode) throws Http2Exception;
+
+        void receivedSetting(int id, long value) throws Http2Exception;
+
+        void receivedSettingsEnd() throws Http2Exception;
+
+        void receivedSettingsAck() throws Http2Exception;
+
+        void receivedPing(byte[] payload, boolean ack) throws Http2Exception;
+
+        void receivedGoaway(int lastStreamId, long errorCode, String debugData)
+                throws Http2Exception;
+
+        void receivedWindowUpdate(int streamId, int increment) throws Http2Exception;
+    }
+}
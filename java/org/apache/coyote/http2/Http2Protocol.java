@@ -0,0 +1,218 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.ObjectName;
+import javax.servlet.http.HttpUpgradeHandler;
+
+import org.apache.coyote.Adapter;
+import org.apache.coyote.Request;
+import org.apache.coyote.RequestGroupInfo;
+import org.apache.coyote.UpgradeProtocol;
+import org.apache.coyote.http11.AbstractHttp11Protocol;
+import org.apache.tomcat.util.net.SocketStatus;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+/**
+ * HTTP/2 support for an HTTP/1.1 connector. Clear text connections may switch
+ * to HTTP/2 via an HTTP/1.1 upgrade request (h2c) or by starting with the
+ * HTTP/2 connection preface (prior knowledge). TLS connections negotiate
+ * HTTP/2 via ALPN (h2) where the JRE supports it.
+ * <p>
+ * Configured by nesting an <code>&lt;UpgradeProtocol&gt;</code> element inside
+ * the <code>&lt;Connector&gt;</code>.
+ */
+public class Http2Protocol implements UpgradeProtocol {
+
+    private long readTimeout = Constants.DEFAULT_READ_TIMEOUT;
+    private long writeTimeout = Constants.DEFAULT_WRITE_TIMEOUT;
+    private long maxConcurrentStreams = Constants.DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int initialWindowSize = Constants.DEFAULT_INITIAL_WINDOW_SIZE;
+
+    private AbstractHttp11Protocol<?> http11Protocol = null;
+
+    /*
+     * Stream processors in async mode. Checked periodically for async
+     * timeouts by a thread that only runs while the set is not empty.
+     */
+    private final Set<StreamProcessor> waitingProcessors =
+            Collections.newSetFromMap(new ConcurrentHashMap<StreamProcessor,Boolean>());
+    // Guarded by this
+    private Thread asyncTimeoutThread = null;
+
+
+    @Override
+    public String getHttpUpgradeName(boolean isSSLEnabled) {
+        if (isSSLEnabled) {
+            // h2c is only defined for clear text connections
+            return null;
+        } else {
+            return Constants.HTTP_UPGRADE_NAME;
+        }
+    }
+
+
+    @Override
+    public String getAlpnName() {
+        return Constants.ALPN_NAME;
+    }
+
+
+    @Override
+    public boolean accept(Request request) {
+        // RFC 7540 section 3.2.1 requires exactly one HTTP2-Settings header
+        Enumeration<String> settings = request.getMimeHeaders().values("HTTP2-Settings");
+        int count = 0;
+        while (settings.hasMoreElements()) {
+            settings.nextElement();
+            count++;
+        }
+        if (count != 1) {
+            return false;
+        }
+        // The request is processed as stream 1 after the upgrade. A request
+        // body would have to be read before the upgrade completes so requests
+        // with a body are processed with HTTP/1.1 instead.
+        if (request.getContentLengthLong() > 0 ||
+                request.getMimeHeaders().getValue("transfer-encoding") != null) {
+            return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    public HttpUpgradeHandler getInternalUpgradeHandler(Adapter adapter, Request request) {
+        return new Http2UpgradeHandler(this, adapter, request);
+    }
+
+
+    @Override
+    public void setHttp11Protocol(AbstractHttp11Protocol<?> http11Protocol) {
+        this.http11Protocol = http11Protocol;
+    }
+
+
+    AbstractHttp11Protocol<?> getHttp11Protocol() {
+        return http11Protocol;
+    }
+
+
+    RequestGroupInfo getGlobal() {
+        return http11Protocol.getGlobal();
+    }
+
+
+    // ------------------------------------------------------------- Properties
+
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+
+    public void setReadTimeout(long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+
+    public long getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+
+    public void setMaxConcurrentStreams(long maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+
+    public int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+
+    public void setInitialWindowSize(int initialWindowSize) {
+        this.initialWindowSize = initialWindowSize;
+    }
+
+
+    // ----------------------------------------------------------- Async support
+
+    void addWaitingProcessor(StreamProcessor processor) {
+        waitingProcessors.add(processor);
+        synchronized (this) {
+            if (asyncTimeoutThread == null) {
+                asyncTimeoutThread = new Thread(new AsyncTimeout(),
+                        ObjectName.unquote(http11Protocol.getName()) + "-h2-AsyncTimeout");
+                asyncTimeoutThread.setDaemon(true);
+                asyncTimeoutThread.start();
+            }
+        }
+    }
+
+
+    void removeWaitingProcessor(StreamProcessor processor) {
+        waitingProcessors.remove(processor);
+    }
+
+
+    /**
+     * The equivalent of the endpoint's async timeout thread for streams.
+     */
+    private class AsyncTimeout implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                long now = System.currentTimeMillis();
+                for (StreamProcessor processor : waitingProcessors) {
+                    SocketWrapper<Stream> wrapper = processor.getStreamWrapper();
+                    long timeout = wrapper.getTimeout();
+                    if (timeout > 0 && now - wrapper.getLastAccess() > timeout) {
+                        waitingProcessors.remove(processor);
+                        processor.processSocketEvent(SocketStatus.TIMEOUT, true);
+                    }
+                }
+                synchronized (Http2Protocol.this) {
+                    if (waitingProcessors.isEmpty()) {
+                        asyncTimeoutThread = null;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,818 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.WebConnection;
+
+import org.apache.coyote.Adapter;
+import org.apache.coyote.Request;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.codec.binary.Base64;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Handles a connection once it has switched to HTTP/2. The client connection
+ * preface and all frames are read by the container thread that receives the
+ * read events for the connection. Each stream is then processed on its own
+ * container thread and writes its response directly to the connection.
+ * <p>
+ * Frames are written to the connection under a single lock so frames are never
+ * interleaved and HPACK header blocks are written in the order in which they
+ * are encoded. Writes of DATA frames block until both the stream and the
+ * connection flow control windows permit them.
+ */
+public class Http2UpgradeHandler implements HttpUpgradeHandler, ReadListener,
+        Http2Parser.Output {
+
+    private static final Log log = LogFactory.getLog(Http2UpgradeHandler.class);
+    private static final StringManager sm = StringManager.getManager(Http2UpgradeHandler.class);
+
+    private static final AtomicInteger connectionIdGenerator = new AtomicInteger(0);
+
+    private static final byte[] CLIENT_PREFACE;
+
+    static {
+        CLIENT_PREFACE = new byte[Constants.CLIENT_PREFACE_START.length +
+                                  Constants.CLIENT_PREFACE_END.length];
+        System.arraycopy(Constants.CLIENT_PREFACE_START, 0, CLIENT_PREFACE, 0,
+                Constants.CLIENT_PREFACE_START.length);
+        System.arraycopy(Constants.CLIENT_PREFACE_END, 0, CLIENT_PREFACE,
+                Constants.CLIENT_PREFACE_START.length, Constants.CLIENT_PREFACE_END.length);
+    }
+
+    /*
+     * Used to decode, and discard, header blocks for requests that will not be
+     * processed. The blocks still have to be decoded to keep the state of the
+     * HPACK decoder in step with the client's encoder.
+     */
+    private static final HpackDecoder.HeaderEmitter DISCARD_HEADERS =
+            new HpackDecoder.HeaderEmitter() {
+        @Override
+        public void emitHeader(String name, String value) {
+            // NO-OP
+        }
+    };
+
+    private final String connectionId;
+    private final Http2Protocol protocol;
+    private final Adapter adapter;
+    private final Request connectionRequest;
+
+    private volatile ServletInputStream in;
+    private volatile ServletOutputStream out;
+
+    // Only accessed by the thread reading from the connection
+    private Http2Parser parser;
+    private final HpackDecoder hpackDecoder = new HpackDecoder();
+    private final ByteBuffer inBuffer =
+            ByteBuffer.allocate(Constants.FRAME_HEADER_LENGTH + Constants.DEFAULT_MAX_FRAME_SIZE);
+    private int maxRemoteStreamId = 0;
+    private int pendingConnectionWindowUpdate = 0;
+
+    private final ConnectionSettings remoteSettings = new ConnectionSettings();
+    private final Map<Integer,Stream> streams = new ConcurrentHashMap<>();
+
+    // Guarded by writeLock
+    private final Object writeLock = new Object();
+    private final HpackEncoder hpackEncoder = new HpackEncoder();
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private final byte[] frameBuffer =
+            new byte[Constants.FRAME_HEADER_LENGTH + Constants.DEFAULT_MAX_FRAME_SIZE];
+
+    // Guarded by connectionWindowLock
+    private final Object connectionWindowLock = new Object();
+    private long connectionWindowSize = Constants.DEFAULT_INITIAL_WINDOW_SIZE;
+
+    private volatile boolean closed = false;
+
+
+    public Http2UpgradeHandler(Http2Protocol protocol, Adapter adapter,
+            Request connectionRequest) {
+        this.connectionId = Integer.toString(connectionIdGenerator.getAndIncrement());
+        this.protocol = protocol;
+        this.adapter = adapter;
+        this.connectionRequest = connectionRequest;
+    }
+
+
+    @Override
+    public void init(WebConnection webConnection) {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.init", connectionId));
+        }
+
+        try {
+            in = webConnection.getInputStream();
+            out = webConnection.getOutputStream();
+        } catch (IOException ioe) {
+            log.debug(sm.getString("upgradeHandler.ioerror", connectionId), ioe);
+            close();
+            return;
+        }
+
+        // How the connection was established determines how much of the
+        // client connection preface remains to be read
+        byte[] expectedPreface;
+        Stream upgradeStream = null;
+        ConnectionException settingsError = null;
+        String method = connectionRequest.method().isNull() ?
+                null : connectionRequest.method().toString();
+        if (method == null) {
+            // ALPN - nothing has been read from the connection yet
+            expectedPreface = CLIENT_PREFACE;
+        } else if ("PRI".equals(method)) {
+            // Prior knowledge - the first part of the preface was read as the
+            // request line of an HTTP/1.1 request
+            expectedPreface = Constants.CLIENT_PREFACE_END;
+        } else {
+            // HTTP/1.1 upgrade - the upgrade request is processed as stream 1
+            expectedPreface = CLIENT_PREFACE;
+            try {
+                applyUpgradeSettings(connectionRequest.getHeader("HTTP2-Settings"));
+            } catch (ConnectionException ce) {
+                settingsError = ce;
+            }
+            if (settingsError == null) {
+                upgradeStream = Stream.createFromUpgradeRequest(this, connectionRequest);
+            }
+        }
+        parser = new Http2Parser(connectionId, this, expectedPreface,
+                Constants.DEFAULT_MAX_FRAME_SIZE,
+                getMaxHeaderListSize() + Constants.DEFAULT_MAX_FRAME_SIZE);
+
+        try {
+            // The server connection preface
+            writeSettings();
+        } catch (IOException ioe) {
+            log.debug(sm.getString("upgradeHandler.ioerror", connectionId), ioe);
+            close();
+            return;
+        }
+
+        if (settingsError != null) {
+            closeConnection(settingsError);
+            return;
+        }
+
+        if (upgradeStream != null) {
+            maxRemoteStreamId = 1;
+            streams.put(Integer.valueOf(1), upgradeStream);
+            try {
+                upgradeStream.getProcessor().start();
+            } catch (RejectedExecutionException ree) {
+                log.warn(sm.getString("upgradeHandler.rejected", connectionId,
+                        Integer.toString(1)), ree);
+                resetStream(upgradeStream, Http2Error.REFUSED_STREAM);
+            }
+        }
+
+        // Reading will start when the connection's read event is processed
+        // after this method returns
+        in.setReadListener(this);
+    }
+
+
+    /**
+     * Apply the client settings received as the base64url encoded payload of
+     * a SETTINGS frame in the HTTP2-Settings header of an upgrade request.
+     */
+    private void applyUpgradeSettings(String value) throws ConnectionException {
+        byte[] payload = value == null ? null : Base64.decodeBase64(value.trim());
+        if (payload == null || payload.length % 6 != 0) {
+            throw new ConnectionException(sm.getString("upgradeHandler.invalidHttp2Settings",
+                    connectionId), Http2Error.PROTOCOL_ERROR);
+        }
+        for (int pos = 0; pos < payload.length; pos += 6) {
+            receivedSetting(ByteUtil.getTwoBytes(payload, pos),
+                    ByteUtil.getFourBytes(payload, pos + 2));
+        }
+    }
+
+
+    @Override
+    public void destroy() {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.destroy", connectionId));
+        }
+        close();
+    }
+
+
+    // ---------------------------------------------------------- ReadListener
+
+    @Override
+    public void onDataAvailable() {
+        if (closed) {
+            return;
+        }
+        try {
+            while (in.isReady()) {
+                int read = in.read(inBuffer.array(),
+                        inBuffer.arrayOffset() + inBuffer.position(), inBuffer.remaining());
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                inBuffer.position(inBuffer.position() + read);
+                inBuffer.flip();
+                try {
+                    processFrames();
+                } finally {
+                    inBuffer.compact();
+                }
+                if (pendingConnectionWindowUpdate >= Constants.DEFAULT_INITIAL_WINDOW_SIZE / 2) {
+                    sendConnectionWindowUpdate();
+                }
+            }
+            sendConnectionWindowUpdate();
+        } catch (ConnectionException ce) {
+            closeConnection(ce);
+        } catch (IOException ioe) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("upgradeHandler.ioerror", connectionId), ioe);
+            }
+            close();
+        }
+    }
+
+
+    private void processFrames() throws IOException {
+        while (true) {
+            try {
+                parser.process(inBuffer);
+                return;
+            } catch (StreamException se) {
+                // reset, processing can continue with the next frame
+                if (log.isDebugEnabled()) {
+                    log.debug(se.getMessage());
+                }
+                Stream stream = streams.get(Integer.valueOf(se.getStreamId()));
+                if (stream == null) {
+                    writeReset(se.getStreamId(), se.getError());
+                } else {
+                    resetStream(stream, se.getError());
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public void onAllDataRead() {
+        // NO-OP. Never called for an upgraded connection.
+    }
+
+
+    @Override
+    public void onError(Throwable t) {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.ioerror", connectionId), t);
+        }
+        close();
+    }
+
+
+    // ------------------------------------------------------- Frame processing
+
+    @Override
+    public void receivedData(int streamId, byte[] data, int offset, int length,
+            int flowControlledSize, boolean endOfStream) throws Http2Exception {
+        // Data on a closed or reset stream still uses the connection window
+        pendingConnectionWindowUpdate += flowControlledSize;
+
+        Stream stream = getStream(streamId, FrameType.DATA);
+        if (stream == null) {
+            throw new StreamException(sm.getString("upgradeHandler.streamClosed",
+                    connectionId, Integer.toString(streamId), FrameType.DATA),
+                    Http2Error.STREAM_CLOSED, streamId);
+        }
+        stream.receivedData(data, offset, length, flowControlledSize, endOfStream);
+        if (endOfStream) {
+            checkStreamClosed(stream);
+        }
+    }
+
+
+    @Override
+    public void receivedHeaders(int streamId, ByteBuffer block, boolean endOfStream)
+            throws Http2Exception {
+        if (streamId <= maxRemoteStreamId) {
+            // Trailers. These are not passed to the application.
+            decodeHeaders(block, DISCARD_HEADERS);
+            Stream stream = streams.get(Integer.valueOf(streamId));
+            if (stream == null) {
+                // The stream has been closed or reset. Frames that were in
+                // flight at the time are ignored.
+                return;
+            }
+            if (stream.isInputClosed()) {
+                throw new StreamException(sm.getString("upgradeHandler.streamClosed",
+                        connectionId, Integer.toString(streamId), FrameType.HEADERS),
+                        Http2Error.STREAM_CLOSED, streamId);
+            }
+            if (!endOfStream) {
+                throw new StreamException(sm.getString("upgradeHandler.trailersNotEnd",
+                        connectionId, Integer.toString(streamId)),
+                        Http2Error.PROTOCOL_ERROR, streamId);
+            }
+            stream.receivedEndOfStream();
+            checkStreamClosed(stream);
+            return;
+        }
+
+        if (streamId % 2 == 0) {
+            throw new ConnectionException(sm.getString("upgradeHandler.invalidStreamId",
+                    connectionId, Integer.toString(streamId)), Http2Error.PROTOCOL_ERROR);
+        }
+        maxRemoteStreamId = streamId;
+
+        if (streams.size() >= protocol.getMaxConcurrentStreams()) {
+            decodeHeaders(block, DISCARD_HEADERS);
+            throw new StreamException(sm.getString("upgradeHandler.tooManyStreams",
+                    connectionId, Integer.toString(streamId),
+                    Long.toString(protocol.getMaxConcurrentStreams())),
+                    Http2Error.REFUSED_STREAM, streamId);
+        }
+
+        Stream stream = new Stream(streamId, this, connectionRequest);
+        decodeHeaders(block, stream);
+        stream.headersEnd(endOfStream);
+
+        streams.put(Integer.valueOf(streamId), stream);
+        try {
+            stream.getProcessor().start();
+        } catch (RejectedExecutionException ree) {
+            log.warn(sm.getString("upgradeHandler.rejected", connectionId,
+                    Integer.toString(streamId)), ree);
+            streams.remove(Integer.valueOf(streamId));
+            throw new StreamException(ree.getMessage(), Http2Error.REFUSED_STREAM, streamId);
+        }
+    }
+
+
+    private void decodeHeaders(ByteBuffer block, HpackDecoder.HeaderEmitter emitter)
+            throws ConnectionException {
+        try {
+            hpackDecoder.decode(block, emitter);
+        } catch (HpackException he) {
+            throw new ConnectionException(sm.getString("upgradeHandler.hpackError",
+                    connectionId, he.getMessage()), Http2Error.COMPRESSION_ERROR, he);
+        }
+    }
+
+
+    @Override
+    public void receivedReset(int streamId, long errorCode) throws Http2Exception {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.reset.receive", connectionId,
+                    Integer.toString(streamId), Long.toString(errorCode)));
+        }
+        Stream stream = getStream(streamId, FrameType.RST);
+        if (stream != null) {
+            streams.remove(Integer.valueOf(streamId));
+            stream.reset();
+        }
+    }
+
+
+    @Override
+    public void receivedSetting(int id, long value) throws ConnectionException {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.setting", connectionId,
+                    Integer.toString(id), Long.toString(value)));
+        }
+        if (id == ConnectionSettings.INITIAL_WINDOW_SIZE) {
+            int oldValue = remoteSettings.getInitialWindowSize();
+            remoteSettings.set(id, value);
+            int delta = remoteSettings.getInitialWindowSize() - oldValue;
+            if (delta != 0) {
+                // Applies to all open streams (RFC 7540 section 6.9.2)
+                for (Stream stream : streams.values()) {
+                    try {
+                        stream.incrementWindowSize(delta);
+                    } catch (StreamException se) {
+                        throw new ConnectionException(se.getMessage(),
+                                Http2Error.FLOW_CONTROL_ERROR);
+                    }
+                }
+            }
+        } else if (id == ConnectionSettings.HEADER_TABLE_SIZE) {
+            remoteSettings.set(id, value);
+            synchronized (writeLock) {
+                hpackEncoder.setMaxTableSize(remoteSettings.getHeaderTableSize());
+            }
+        } else {
+            remoteSettings.set(id, value);
+        }
+    }
+
+
+    @Override
+    public void receivedSettingsEnd() throws Http2Exception {
+        try {
+            writeFrame(FrameType.SETTINGS, Http2Parser.FLAG_ACK, 0, null, 0, 0);
+        } catch (IOException ioe) {
+            throw new ConnectionException(ioe.getMessage(), Http2Error.INTERNAL_ERROR, ioe);
+        }
+    }
+
+
+    @Override
+    public void receivedSettingsAck() {
+        // NO-OP. The local settings never change once they have been sent.
+    }
+
+
+    @Override
+    public void receivedPing(byte[] payload, boolean ack) throws Http2Exception {
+        if (ack) {
+            // Pings are never sent
+            return;
+        }
+        try {
+            writeFrame(FrameType.PING, Http2Parser.FLAG_ACK, 0, payload, 0, payload.length);
+        } catch (IOException ioe) {
+            throw new ConnectionException(ioe.getMessage(), Http2Error.INTERNAL_ERROR, ioe);
+        }
+    }
+
+
+    @Override
+    public void receivedGoaway(int lastStreamId, long errorCode, String debugData) {
+        // The client will not open any new streams. Streams in progress are
+        // allowed to complete and the client will close the connection.
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.goaway.receive", connectionId,
+                    Integer.toString(lastStreamId), Long.toString(errorCode), debugData));
+        }
+    }
+
+
+    @Override
+    public void receivedWindowUpdate(int streamId, int increment) throws Http2Exception {
+        if (streamId == 0) {
+            synchronized (connectionWindowLock) {
+                long newWindowSize = connectionWindowSize + increment;
+                if (newWindowSize > Constants.MAX_WINDOW_SIZE) {
+                    throw new ConnectionException(sm.getString(
+                            "upgradeHandler.windowSizeTooBig", connectionId),
+                            Http2Error.FLOW_CONTROL_ERROR);
+                }
+                connectionWindowSize = newWindowSize;
+                connectionWindowLock.notifyAll();
+            }
+        } else {
+            Stream stream = getStream(streamId, FrameType.WINDOW_UPDATE);
+            if (stream != null) {
+                stream.incrementWindowSize(increment);
+            }
+        }
+    }
+
+
+    /**
+     * Look up an active stream.
+     *
+     * @return The stream or <code>null</code> if the stream has been closed
+     *
+     * @throws ConnectionException If the stream has never been opened
+     */
+    private Stream getStream(int streamId, FrameType frameType) throws ConnectionException {
+        Stream stream = streams.get(Integer.valueOf(streamId));
+        if (stream == null && streamId > maxRemoteStreamId) {
+            throw new ConnectionException(sm.getString("upgradeHandler.streamIdle",
+                    connectionId, Integer.toString(streamId), frameType),
+                    Http2Error.PROTOCOL_ERROR);
+        }
+        return stream;
+    }
+
+
+    private void checkStreamClosed(Stream stream) {
+        if (stream.isClosed()) {
+            streams.remove(Integer.valueOf(stream.getId()));
+        }
+    }
+
+
+    // ----------------------------------------------------- Methods for Stream
+
+    String getConnectionId() {
+        return connectionId;
+    }
+
+
+    Http2Protocol getProtocol() {
+        return protocol;
+    }
+
+
+    Adapter getAdapter() {
+        return adapter;
+    }
+
+
+    ConnectionSettings getRemoteSettings() {
+        return remoteSettings;
+    }
+
+
+    int getLocalInitialWindowSize() {
+        // The client may use the default window until the SETTINGS frame has
+        // been acknowledged so the window can not be smaller than that
+        return Math.max(protocol.getInitialWindowSize(), Constants.DEFAULT_INITIAL_WINDOW_SIZE);
+    }
+
+
+    int getMaxHeaderListSize() {
+        return protocol.getHttp11Protocol().getMaxHttpHeaderSize();
+    }
+
+
+    int getMaxFrameSize() {
+        // Larger frames are never sent even if the client permits them
+        return Math.min(remoteSettings.getMaxFrameSize(), Constants.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+
+    long getReadTimeout() {
+        return protocol.getReadTimeout();
+    }
+
+
+    boolean isClosed() {
+        return closed;
+    }
+
+
+    void streamOutputClosed(Stream stream) {
+        checkStreamClosed(stream);
+    }
+
+
+    /**
+     * Reset a stream from the server side.
+     */
+    void resetStream(Stream stream, Http2Error error) {
+        streams.remove(Integer.valueOf(stream.getId()));
+        if (stream.isReset()) {
+            return;
+        }
+        stream.reset();
+        try {
+            writeReset(stream.getId(), error);
+        } catch (IOException ioe) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("upgradeHandler.ioerror", connectionId), ioe);
+            }
+        }
+    }
+
+
+    /**
+     * Reserve space in both the stream and the connection flow control windows
+     * for sending data. Blocks until at least one byte may be sent.
+     *
+     * @return The number of bytes that may be sent
+     */
+    int reserveWindowSize(Stream stream, int requested) throws IOException {
+        long timeout = protocol.getWriteTimeout();
+        int streamAllocation = stream.reserveWindowSize(requested, timeout);
+        int allocation;
+        synchronized (connectionWindowLock) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (connectionWindowSize <= 0) {
+                // A negative timeout means wait indefinitely
+                long wait = timeout < 0 ? 0 : deadline - System.currentTimeMillis();
+                boolean timedOut = timeout >= 0 && wait <= 0;
+                if (closed || stream.isReset() || timedOut) {
+                    stream.releaseWindowSize(streamAllocation);
+                    if (timedOut) {
+                        throw new SocketTimeoutException(sm.getString(
+                                "upgradeHandler.writeTimeout", connectionId));
+                    }
+                    throw new IOException(sm.getString("upgradeHandler.closed", connectionId));
+                }
+                try {
+                    connectionWindowLock.wait(wait);
+                } catch (InterruptedException e) {
+                    stream.releaseWindowSize(streamAllocation);
+                    throw new IOException(e);
+                }
+            }
+            allocation = (int) Math.min(streamAllocation, connectionWindowSize);
+            connectionWindowSize -= allocation;
+        }
+        if (allocation < streamAllocation) {
+            stream.releaseWindowSize(streamAllocation - allocation);
+        }
+        return allocation;
+    }
+
+
+    // ----------------------------------------------------------------- Output
+
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[18];
+        ByteUtil.setTwoBytes(payload, 0, ConnectionSettings.MAX_CONCURRENT_STREAMS);
+        ByteUtil.setFourBytes(payload, 2, protocol.getMaxConcurrentStreams());
+        ByteUtil.setTwoBytes(payload, 6, ConnectionSettings.INITIAL_WINDOW_SIZE);
+        ByteUtil.setFourBytes(payload, 8, getLocalInitialWindowSize());
+        ByteUtil.setTwoBytes(payload, 12, ConnectionSettings.MAX_HEADER_LIST_SIZE);
+        ByteUtil.setFourBytes(payload, 14, getMaxHeaderListSize());
+        writeFrame(FrameType.SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+
+    /**
+     * Encode and write the response headers for a stream, splitting the header
+     * block across HEADERS and CONTINUATION frames if necessary.
+     */
+    void writeHeaders(Stream stream, MimeHeaders headers, boolean endOfStream)
+            throws IOException {
+        synchronized (writeLock) {
+            headerBlock.reset();
+            hpackEncoder.startHeaderBlock(headerBlock);
+            int size = headers.size();
+            for (int i = 0; i < size; i++) {
+                hpackEncoder.encode(headers.getName(i).toString(),
+                        headers.getValue(i).toString(), headerBlock);
+            }
+            byte[] block = headerBlock.toByteArray();
+            int maxFrameSize = getMaxFrameSize();
+            int pos = 0;
+            boolean first = true;
+            do {
+                int length = Math.min(block.length - pos, maxFrameSize);
+                int flags = 0;
+                if (pos + length == block.length) {
+                    flags |= Http2Parser.FLAG_END_HEADERS;
+                }
+                if (first && endOfStream) {
+                    flags |= Http2Parser.FLAG_END_STREAM;
+                }
+                writeFrameInternal(first ? FrameType.HEADERS : FrameType.CONTINUATION,
+                        flags, stream.getId(), block, pos, length);
+                pos += length;
+                first = false;
+            } while (pos < block.length);
+            out.flush();
+        }
+    }
+
+
+    void writeData(Stream stream, byte[] data, int offset, int length, boolean endOfStream)
+            throws IOException {
+        writeFrame(FrameType.DATA, endOfStream ? Http2Parser.FLAG_END_STREAM : 0,
+                stream.getId(), data, offset, length);
+    }
+
+
+    void writeWindowUpdate(Stream stream, int increment) throws IOException {
+        if (stream.isReset()) {
+            return;
+        }
+        writeWindowUpdate(stream.getId(), increment);
+    }
+
+
+    private void sendConnectionWindowUpdate() throws IOException {
+        if (pendingConnectionWindowUpdate > 0) {
+            writeWindowUpdate(0, pendingConnectionWindowUpdate);
+            pendingConnectionWindowUpdate = 0;
+        }
+    }
+
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        ByteUtil.set31Bits(payload, 0, increment);
+        writeFrame(FrameType.WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+
+    private void writeReset(int streamId, Http2Error error) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("upgradeHandler.reset.send", connectionId,
+                    Integer.toString(streamId), error));
+        }
+        byte[] payload = error.getCodeBytes();
+        writeFrame(FrameType.RST, 0, streamId, payload, 0, payload.length);
+    }
+
+
+    private void writeGoaway(Http2Error error, String debugData) throws IOException {
+        byte[] debugBytes = debugData == null ?
+                new byte[0] : debugData.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[8 + debugBytes.length];
+        ByteUtil.set31Bits(payload, 0, maxRemoteStreamId);
+        System.arraycopy(error.getCodeBytes(), 0, payload, 4, 4);
+        System.arraycopy(debugBytes, 0, payload, 8, debugBytes.length);
+        writeFrame(FrameType.GOAWAY, 0, 0, payload, 0, payload.length);
+    }
+
+
+    private void writeFrame(FrameType type, int flags, int streamId, byte[] payload,
+            int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            writeFrameInternal(type, flags, streamId, payload, offset, length);
+            out.flush();
+        }
+    }
+
+
+    /*
+     * Must hold writeLock. The frame header and payload are written with a
+     * single write to the socket.
+     */
+    private void writeFrameInternal(FrameType type, int flags, int streamId,
+            byte[] payload, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException(sm.getString("upgradeHandler.closed", connectionId));
+        }
+        ByteUtil.setThreeBytes(frameBuffer, 0, length);
+        frameBuffer[3] = type.getIdByte();
+        frameBuffer[4] = (byte) flags;
+        ByteUtil.set31Bits(frameBuffer, 5, streamId);
+        if (length > 0) {
+            System.arraycopy(payload, offset, frameBuffer, Constants.FRAME_HEADER_LENGTH, length);
+        }
+        out.write(frameBuffer, 0, Constants.FRAME_HEADER_LENGTH + length);
+    }
+
+
+    // ---------------------------------------------------------------- Closing
+
+    /**
+     * Close the connection because of a connection error (RFC 7540 section
+     * 5.4.1). The client is sent a GOAWAY frame first.
+     */
+    private void closeConnection(Http2Exception error) {
+        log.debug(sm.getString("upgradeHandler.connectionError", connectionId), error);
+        try {
+            writeGoaway(error.getError(), error.getMessage());
+        } catch (IOException ioe) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("upgradeHandler.ioerror", connectionId), ioe);
+            }
+        }
+        close();
+    }
+
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // Release any threads waiting to read or write
+        for (Stream stream : streams.values()) {
+            stream.reset();
+        }
+        streams.clear();
+        synchronized (connectionWindowLock) {
+            connectionWindowLock.notifyAll();
+        }
+
+        try {
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("upgradeHandler.ioerror", connectionId), ioe);
+            }
+        }
+    }
+}
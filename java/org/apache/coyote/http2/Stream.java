@@ -0,0 +1,688 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.InputBuffer;
+import org.apache.coyote.OutputBuffer;
+import org.apache.coyote.Request;
+import org.apache.coyote.Response;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.net.SocketStatus;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * A single HTTP/2 stream, i.e. one request/response exchange on a connection.
+ * The stream receives its request headers from the connection's HPACK decoder,
+ * buffers the request body as DATA frames arrive and writes the response via
+ * the connection, respecting both the stream and the connection flow control
+ * windows.
+ */
+class Stream implements HpackDecoder.HeaderEmitter {
+
+    private static final Log log = LogFactory.getLog(Stream.class);
+    private static final StringManager sm = StringManager.getManager(Stream.class);
+
+    /*
+     * Headers that are specific to an HTTP/1.1 connection. They are not
+     * permitted in HTTP/2 requests and are removed from responses.
+     */
+    static final Set<String> CONNECTION_HEADERS = new HashSet<>();
+
+    static {
+        CONNECTION_HEADERS.add("connection");
+        CONNECTION_HEADERS.add("keep-alive");
+        CONNECTION_HEADERS.add("proxy-connection");
+        CONNECTION_HEADERS.add("transfer-encoding");
+        CONNECTION_HEADERS.add("upgrade");
+    }
+
+    private final int id;
+    private final Http2UpgradeHandler handler;
+    private final StreamProcessor processor;
+    private final Request coyoteRequest;
+    private final Response coyoteResponse;
+    private final StreamInputBuffer inputBuffer;
+    private final StreamOutputBuffer outputBuffer = new StreamOutputBuffer();
+
+    // The flow control window for sending data to the client. Guarded by this.
+    private long windowSize;
+
+    private volatile boolean inputClosed = false;
+    private volatile boolean outputClosed = false;
+    private volatile boolean reset = false;
+
+    // Header decoding state. Only accessed by the thread reading from the
+    // connection.
+    private String headerError = null;
+    private Http2Error headerErrorCode = Http2Error.PROTOCOL_ERROR;
+    private long headerListSize = 0;
+    private boolean regularHeaderSeen = false;
+    private String authority = null;
+
+
+    Stream(int id, Http2UpgradeHandler handler, Request connectionRequest) {
+        this.id = id;
+        this.handler = handler;
+        this.windowSize = handler.getRemoteSettings().getInitialWindowSize();
+        this.inputBuffer = new StreamInputBuffer(handler.getLocalInitialWindowSize());
+        this.processor = new StreamProcessor(this, handler.getProtocol(),
+                handler.getAdapter());
+        this.coyoteRequest = processor.getRequest();
+        this.coyoteResponse = coyoteRequest.getResponse();
+        coyoteRequest.setInputBuffer(inputBuffer);
+        coyoteResponse.setOutputBuffer(outputBuffer);
+
+        // Connection level information is the same for every stream
+        coyoteRequest.protocol().setString("HTTP/2.0");
+        coyoteRequest.remoteAddr().setString(connectionRequest.remoteAddr().toString());
+        coyoteRequest.remoteHost().setString(connectionRequest.remoteHost().toString());
+        coyoteRequest.setRemotePort(connectionRequest.getRemotePort());
+        coyoteRequest.localAddr().setString(connectionRequest.localAddr().toString());
+        coyoteRequest.localName().setString(connectionRequest.localName().toString());
+        coyoteRequest.setLocalPort(connectionRequest.getLocalPort());
+        for (String name : connectionRequest.getAttributes().keySet()) {
+            coyoteRequest.setAttribute(name, connectionRequest.getAttribute(name));
+        }
+    }
+
+
+    /**
+     * Create a stream for the request that was included in an HTTP/1.1
+     * upgrade request. The request is treated as having been sent on stream 1
+     * and is half-closed (remote) since upgrade requests never have a body.
+     */
+    static Stream createFromUpgradeRequest(Http2UpgradeHandler handler,
+            Request upgradeRequest) {
+        Stream stream = new Stream(1, handler, upgradeRequest);
+        Request request = stream.coyoteRequest;
+        request.method().setString(upgradeRequest.method().toString());
+        request.scheme().setString(upgradeRequest.scheme().toString());
+        setBytes(request.requestURI(), upgradeRequest.requestURI().toString());
+        if (!upgradeRequest.queryString().isNull()) {
+            setBytes(request.queryString(), upgradeRequest.queryString().toString());
+        }
+        MimeHeaders source = upgradeRequest.getMimeHeaders();
+        MimeHeaders target = request.getMimeHeaders();
+        int size = source.size();
+        for (int i = 0; i < size; i++) {
+            String name = source.getName(i).toString().toLowerCase(Locale.ENGLISH);
+            if (CONNECTION_HEADERS.contains(name) || "http2-settings".equals(name)) {
+                continue;
+            }
+            target.addValue(name).setString(source.getValue(i).toString());
+        }
+        stream.inputClosed = true;
+        return stream;
+    }
+
+
+    int getId() {
+        return id;
+    }
+
+
+    StreamProcessor getProcessor() {
+        return processor;
+    }
+
+
+    Request getCoyoteRequest() {
+        return coyoteRequest;
+    }
+
+
+    Http2UpgradeHandler getHandler() {
+        return handler;
+    }
+
+
+    // --------------------------------------------------------- Header parsing
+
+    @Override
+    public void emitHeader(String name, String value) {
+        if (headerError != null) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("stream.header.debug", handler.getConnectionId(),
+                    Integer.toString(id), name, value));
+        }
+
+        headerListSize += name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+        if (headerListSize > handler.getMaxHeaderListSize()) {
+            headerError = sm.getString("stream.header.tooLarge", handler.getConnectionId(),
+                    Integer.toString(id), Integer.toString(handler.getMaxHeaderListSize()));
+            headerErrorCode = Http2Error.ENHANCE_YOUR_CALM;
+            return;
+        }
+
+        if (name.length() == 0) {
+            headerError = sm.getString("stream.header.empty", handler.getConnectionId(),
+                    Integer.toString(id));
+            return;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                headerError = sm.getString("stream.header.upperCase",
+                        handler.getConnectionId(), Integer.toString(id), name);
+                return;
+            }
+        }
+
+        if (name.charAt(0) == ':') {
+            if (regularHeaderSeen) {
+                headerError = sm.getString("stream.header.pseudoAfterRegular",
+                        handler.getConnectionId(), Integer.toString(id), name);
+                return;
+            }
+            switch (name) {
+            case ":method":
+                setPseudoHeader(coyoteRequest.method(), name, value);
+                break;
+            case ":scheme":
+                setPseudoHeader(coyoteRequest.scheme(), name, value);
+                break;
+            case ":path":
+                if (value.length() == 0) {
+                    headerError = sm.getString("stream.header.emptyPath",
+                            handler.getConnectionId(), Integer.toString(id));
+                    return;
+                }
+                if (!coyoteRequest.requestURI().isNull()) {
+                    duplicatePseudoHeader(name);
+                    return;
+                }
+                int queryStart = value.indexOf('?');
+                if (queryStart == -1) {
+                    setBytes(coyoteRequest.requestURI(), value);
+                } else {
+                    setBytes(coyoteRequest.requestURI(), value.substring(0, queryStart));
+                    setBytes(coyoteRequest.queryString(), value.substring(queryStart + 1));
+                }
+                break;
+            case ":authority":
+                if (authority != null) {
+                    duplicatePseudoHeader(name);
+                    return;
+                }
+                authority = value;
+                break;
+            default:
+                headerError = sm.getString("stream.header.unknownPseudoHeader",
+                        handler.getConnectionId(), Integer.toString(id), name);
+            }
+        } else {
+            regularHeaderSeen = true;
+            if (CONNECTION_HEADERS.contains(name) ||
+                    "te".equals(name) && !"trailers".equals(value)) {
+                headerError = sm.getString("stream.header.connection",
+                        handler.getConnectionId(), Integer.toString(id), name);
+                return;
+            }
+            coyoteRequest.getMimeHeaders().addValue(name).setString(value);
+        }
+    }
+
+
+    private void setPseudoHeader(MessageBytes target, String name, String value) {
+        if (target.isNull()) {
+            target.setString(value);
+        } else {
+            duplicatePseudoHeader(name);
+        }
+    }
+
+
+    /*
+     * The request URI and query string must be presented to the container as
+     * bytes so that they are %nn decoded and normalized in the same way as for
+     * HTTP/1.1 requests. HPACK strings are decoded as ISO-8859-1 so this is a
+     * lossless conversion back to the bytes that were received.
+     */
+    private static void setBytes(MessageBytes target, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        target.setBytes(bytes, 0, bytes.length);
+    }
+
+
+    private void duplicatePseudoHeader(String name) {
+        headerError = sm.getString("stream.header.duplicate",
+                handler.getConnectionId(), Integer.toString(id), name);
+    }
+
+
+    /**
+     * Called once the complete header block has been decoded.
+     *
+     * @param endOfStream Is the request complete, i.e. is there no body
+     *
+     * @throws StreamException If the headers do not form a valid request
+     */
+    void headersEnd(boolean endOfStream) throws StreamException {
+        if (headerError == null && (coyoteRequest.method().isNull() ||
+                coyoteRequest.scheme().isNull() || coyoteRequest.requestURI().isNull())) {
+            headerError = sm.getString("stream.header.required",
+                    handler.getConnectionId(), Integer.toString(id));
+        }
+        if (headerError != null) {
+            throw new StreamException(headerError, headerErrorCode, id);
+        }
+
+        // The :authority pseudo header replaces the Host header
+        MimeHeaders headers = coyoteRequest.getMimeHeaders();
+        if (authority != null && headers.getValue("host") == null) {
+            headers.addValue("host").setString(authority);
+        }
+        MessageBytes contentLength = headers.getValue("content-length");
+        if (contentLength != null) {
+            try {
+                coyoteRequest.setContentLength(contentLength.getLong());
+            } catch (NumberFormatException nfe) {
+                throw new StreamException(sm.getString("stream.header.contentLength",
+                        handler.getConnectionId(), Integer.toString(id)),
+                        Http2Error.PROTOCOL_ERROR, id);
+            }
+        }
+        if (endOfStream) {
+            inputClosed = true;
+        }
+    }
+
+
+    // ------------------------------------------------------------ Stream state
+
+    boolean isInputClosed() {
+        return inputClosed;
+    }
+
+
+    boolean isOutputClosed() {
+        return outputClosed;
+    }
+
+
+    boolean isReset() {
+        return reset;
+    }
+
+
+    /**
+     * @return <code>true</code> once no further frames may be sent or received
+     *         on this stream
+     */
+    boolean isClosed() {
+        return reset || inputClosed && outputClosed;
+    }
+
+
+    /**
+     * The stream has been reset, either by the client or because of an error
+     * detected locally. Any threads blocked on this stream are released.
+     */
+    void reset() {
+        reset = true;
+        synchronized (inputBuffer) {
+            inputBuffer.notifyAll();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        if (processor.isAsync()) {
+            processor.processSocketEvent(SocketStatus.ERROR, true);
+        }
+    }
+
+
+    void receivedData(byte[] data, int offset, int length, int flowControlledSize,
+            boolean endOfStream) throws StreamException {
+        if (inputClosed) {
+            throw new StreamException(sm.getString("stream.closed",
+                    handler.getConnectionId(), Integer.toString(id)),
+                    Http2Error.STREAM_CLOSED, id);
+        }
+        inputBuffer.receive(data, offset, length, flowControlledSize);
+        if (endOfStream) {
+            synchronized (inputBuffer) {
+                inputClosed = true;
+                inputBuffer.notifyAll();
+            }
+            inputBuffer.fireReadInterest();
+        }
+    }
+
+
+    void receivedEndOfStream() {
+        synchronized (inputBuffer) {
+            inputClosed = true;
+            inputBuffer.notifyAll();
+        }
+        inputBuffer.fireReadInterest();
+    }
+
+
+    // ---------------------------------------------------------- Flow control
+
+    /**
+     * Update the flow control window for sending data to the client.
+     *
+     * @param increment The (possibly negative) change to the window
+     *
+     * @throws StreamException If the window would exceed the maximum
+     */
+    synchronized void incrementWindowSize(int increment) throws StreamException {
+        long newWindowSize = windowSize + increment;
+        if (newWindowSize > Constants.MAX_WINDOW_SIZE) {
+            throw new StreamException(sm.getString("stream.windowSizeTooBig",
+                    handler.getConnectionId(), Integer.toString(id)),
+                    Http2Error.FLOW_CONTROL_ERROR, id);
+        }
+        windowSize = newWindowSize;
+        if (windowSize > 0) {
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Reserve part of the window for sending data, blocking until at least
+     * some of the window is available.
+     *
+     * @return The number of bytes that have been reserved
+     */
+    synchronized int reserveWindowSize(int requested, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (windowSize <= 0) {
+            checkWritable();
+            // A negative timeout means wait indefinitely
+            long wait = timeout < 0 ? 0 : deadline - System.currentTimeMillis();
+            if (timeout >= 0 && wait <= 0) {
+                throw new SocketTimeoutException(sm.getString("stream.writeTimeout",
+                        handler.getConnectionId(), Integer.toString(id)));
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        checkWritable();
+        int allocation = (int) Math.min(requested, windowSize);
+        windowSize -= allocation;
+        return allocation;
+    }
+
+
+    /**
+     * Return part of a reservation that could not be used.
+     */
+    synchronized void releaseWindowSize(int unused) {
+        windowSize += unused;
+        notifyAll();
+    }
+
+
+    private void checkWritable() throws IOException {
+        if (reset || handler.isClosed()) {
+            throw new IOException(sm.getString("stream.reset",
+                    handler.getConnectionId(), Integer.toString(id)));
+        }
+    }
+
+
+    // --------------------------------------------------------- Response output
+
+    /**
+     * Send the response headers.
+     *
+     * @param headers   The response headers, including the :status pseudo
+     *                  header
+     * @param noBody    Will the response be sent without a body
+     */
+    void writeHeaders(MimeHeaders headers, boolean noBody) throws IOException {
+        checkWritable();
+        boolean endOfStream = noBody || coyoteResponse.getContentLengthLong() == 0;
+        handler.writeHeaders(this, headers, endOfStream);
+        outputBuffer.noBody = noBody;
+        if (endOfStream) {
+            outputClosed();
+        }
+    }
+
+
+    /**
+     * Finish the response. If the end of the stream has not already been
+     * signalled to the client, an empty DATA frame is sent to do so.
+     */
+    void close() throws IOException {
+        if (outputClosed || reset) {
+            return;
+        }
+        handler.writeData(this, null, 0, 0, true);
+        outputClosed();
+    }
+
+
+    private void outputClosed() {
+        outputClosed = true;
+        handler.streamOutputClosed(this);
+    }
+
+
+    long getBytesWritten() {
+        return outputBuffer.bytesWritten;
+    }
+
+
+    /**
+     * Buffers the request body received in DATA frames until it is read by the
+     * application. The buffer is the same size as the flow control window
+     * advertised to the client so it can never overflow if the client obeys
+     * flow control.
+     */
+    class StreamInputBuffer implements InputBuffer {
+
+        // Guarded by this
+        private final ByteBuffer buffer;
+        private final byte[] readBuffer;
+        private final int windowUpdateThreshold;
+        private int receiveWindow;
+        private int pendingWindowUpdate = 0;
+        private boolean readInterest = false;
+
+        StreamInputBuffer(int windowSize) {
+            buffer = ByteBuffer.allocate(windowSize);
+            readBuffer = new byte[windowSize];
+            receiveWindow = windowSize;
+            windowUpdateThreshold = windowSize / 2;
+        }
+
+
+        @Override
+        public int doRead(ByteChunk chunk, Request request) throws IOException {
+            int read;
+            int windowUpdate = 0;
+            synchronized (this) {
+                long timeout = handler.getReadTimeout();
+                long deadline = System.currentTimeMillis() + timeout;
+                while (buffer.position() == 0 && !inputClosed && !reset) {
+                    // A negative timeout means wait indefinitely
+                    long wait = timeout < 0 ? 0 : deadline - System.currentTimeMillis();
+                    if (timeout >= 0 && wait <= 0) {
+                        throw new SocketTimeoutException(sm.getString("stream.readTimeout",
+                                handler.getConnectionId(), Integer.toString(id)));
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (reset) {
+                    throw new IOException(sm.getString("stream.reset",
+                            handler.getConnectionId(), Integer.toString(id)));
+                }
+                if (buffer.position() == 0) {
+                    return -1;
+                }
+                buffer.flip();
+                read = buffer.remaining();
+                buffer.get(readBuffer, 0, read);
+                buffer.clear();
+
+                pendingWindowUpdate += read;
+                if (pendingWindowUpdate >= windowUpdateThreshold && !inputClosed) {
+                    windowUpdate = pendingWindowUpdate;
+                    receiveWindow += windowUpdate;
+                    pendingWindowUpdate = 0;
+                }
+            }
+            if (windowUpdate > 0) {
+                handler.writeWindowUpdate(Stream.this, windowUpdate);
+            }
+            chunk.setBytes(readBuffer, 0, read);
+            return read;
+        }
+
+
+        void receive(byte[] data, int offset, int length, int flowControlledSize)
+                throws StreamException {
+            synchronized (this) {
+                receiveWindow -= flowControlledSize;
+                if (receiveWindow < 0) {
+                    throw new StreamException(sm.getString("stream.flowControlViolation",
+                            handler.getConnectionId(), Integer.toString(id)),
+                            Http2Error.FLOW_CONTROL_ERROR, id);
+                }
+                // Padding is discarded so it is available again immediately
+                pendingWindowUpdate += flowControlledSize - length;
+                buffer.put(data, offset, length);
+                notifyAll();
+            }
+            if (length > 0) {
+                fireReadInterest();
+            }
+        }
+
+
+        synchronized int available() {
+            return buffer.position();
+        }
+
+
+        synchronized boolean isFinished() {
+            return inputClosed && buffer.position() == 0;
+        }
+
+
+        /**
+         * Register interest in being notified, via a dispatch to the
+         * processor, when data becomes available to read.
+         */
+        void registerReadInterest() {
+            synchronized (this) {
+                if (buffer.position() == 0 && !inputClosed) {
+                    readInterest = true;
+                    return;
+                }
+            }
+            processor.processSocketEvent(SocketStatus.OPEN_READ, true);
+        }
+
+
+        void fireReadInterest() {
+            synchronized (this) {
+                if (!readInterest) {
+                    return;
+                }
+                readInterest = false;
+            }
+            processor.processSocketEvent(SocketStatus.OPEN_READ, true);
+        }
+    }
+
+
+    StreamInputBuffer getInputBuffer() {
+        return inputBuffer;
+    }
+
+
+    /**
+     * Writes the response body as DATA frames. Data is not buffered here since
+     * the Catalina OutputBuffer already buffers the response.
+     */
+    class StreamOutputBuffer implements OutputBuffer {
+
+        private volatile long bytesWritten = 0;
+        private volatile boolean noBody = false;
+
+        @Override
+        public int doWrite(ByteChunk chunk, Response response) throws IOException {
+            if (!response.isCommitted()) {
+                response.action(ActionCode.COMMIT, null);
+            }
+            int length = chunk.getLength();
+            if (noBody || outputClosed) {
+                // Body is not permitted (e.g. HEAD) or the declared content
+                // length has already been written
+                return length;
+            }
+            checkWritable();
+            byte[] data = chunk.getBuffer();
+            int offset = chunk.getStart();
+            int remaining = length;
+            long contentLength = response.getContentLengthLong();
+            while (remaining > 0 && !outputClosed) {
+                int toWrite = Math.min(remaining, handler.getMaxFrameSize());
+                if (contentLength >= 0) {
+                    // Never send more than the declared content length
+                    toWrite = (int) Math.min(toWrite, contentLength - bytesWritten);
+                }
+                int thisWrite = handler.reserveWindowSize(Stream.this, toWrite);
+                boolean endOfStream =
+                        contentLength >= 0 && bytesWritten + thisWrite == contentLength;
+                handler.writeData(Stream.this, data, offset, thisWrite, endOfStream);
+                bytesWritten += thisWrite;
+                offset += thisWrite;
+                remaining -= thisWrite;
+                if (endOfStream) {
+                    outputClosed();
+                }
+            }
+            return length;
+        }
+
+
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+    }
+}
@@ -0,0 +1,632 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.coyote.AbstractProcessor;
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.Adapter;
+import org.apache.coyote.AsyncContextCallback;
+import org.apache.coyote.ContainerThreadMarker;
+import org.apache.coyote.ErrorState;
+import org.apache.coyote.RequestInfo;
+import org.apache.coyote.UpgradeToken;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.FastHttpDateFormat;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
+import org.apache.tomcat.util.net.DispatchType;
+import org.apache.tomcat.util.net.SSLSupport;
+import org.apache.tomcat.util.net.SocketStatus;
+import org.apache.tomcat.util.net.SocketWrapper;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Processes the request received on a single HTTP/2 stream. Each stream is
+ * processed on a container thread obtained from the connector's executor. The
+ * processor is not recycled since a stream is only ever used for a single
+ * request.
+ */
+class StreamProcessor extends AbstractProcessor<Stream> {
+
+    private static final Log log = LogFactory.getLog(StreamProcessor.class);
+    private static final StringManager sm = StringManager.getManager(StreamProcessor.class);
+
+    private final Stream stream;
+    private final Http2Protocol protocol;
+
+    // Guarded by this
+    private boolean serviced = false;
+
+
+    StreamProcessor(Stream stream, Http2Protocol protocol, Adapter adapter) {
+        super(null);
+        this.stream = stream;
+        this.protocol = protocol;
+        setAdapter(adapter);
+        setSocketWrapper(new SocketWrapper<>(stream));
+        setMaxCookieCount(protocol.getHttp11Protocol().getMaxCookieCount());
+    }
+
+
+    /**
+     * Start processing the request on a container thread.
+     *
+     * @throws RejectedExecutionException If the executor has no capacity to
+     *         process the request
+     */
+    void start() {
+        request.setStartTime(System.currentTimeMillis());
+        request.getRequestProcessor().setGlobalProcessor(protocol.getGlobal());
+        getExecutor().execute(new StreamRunnable(SocketStatus.OPEN_READ));
+    }
+
+
+    @Override
+    protected void processSocketEvent(SocketStatus event, boolean dispatch) {
+        if (dispatch) {
+            try {
+                getExecutor().execute(new StreamRunnable(event));
+            } catch (RejectedExecutionException ree) {
+                log.warn(sm.getString("streamProcessor.dispatchFailed",
+                        stream.getHandler().getConnectionId(),
+                        Integer.toString(stream.getId()), event), ree);
+            }
+        } else {
+            processEvent(event);
+        }
+    }
+
+
+    /**
+     * The equivalent, for a single stream, of the connection handler's
+     * processing loop.
+     */
+    synchronized void processEvent(SocketStatus status) {
+        ContainerThreadMarker.set();
+        try {
+            if (serviced && !isAsync()) {
+                // The request has already been completed. This is a late
+                // event (e.g. a timeout that raced with complete()).
+                return;
+            }
+            SocketState state = SocketState.CLOSED;
+            Iterator<DispatchType> dispatches = null;
+            do {
+                if (dispatches != null) {
+                    state = asyncDispatch(dispatches.next().getSocketStatus());
+                } else if (!serviced) {
+                    serviced = true;
+                    state = service();
+                } else if (isAsync() || state == SocketState.ASYNC_END) {
+                    state = asyncDispatch(status);
+                }
+
+                if (state != SocketState.CLOSED && isAsync()) {
+                    state = asyncPostProcess();
+                }
+
+                if (dispatches == null || !dispatches.hasNext()) {
+                    // Only returns non-null iterator if there are dispatches
+                    // to process.
+                    dispatches = socketWrapper.getIteratorAndClearDispatches();
+                }
+            } while (state == SocketState.ASYNC_END ||
+                    dispatches != null && state != SocketState.CLOSED);
+
+            if (state == SocketState.LONG) {
+                protocol.addWaitingProcessor(this);
+            } else {
+                protocol.removeWaitingProcessor(this);
+                endRequest();
+            }
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            log.error(sm.getString("streamProcessor.error",
+                    stream.getHandler().getConnectionId(),
+                    Integer.toString(stream.getId())), t);
+            setErrorState(ErrorState.CLOSE_NOW, t);
+            endRequest();
+        } finally {
+            ContainerThreadMarker.clear();
+        }
+    }
+
+
+    private SocketState service() {
+        RequestInfo rp = request.getRequestProcessor();
+
+        prepareRequest();
+
+        if (!getErrorState().isError()) {
+            try {
+                rp.setStage(org.apache.coyote.Constants.STAGE_SERVICE);
+                getAdapter().service(request, response);
+            } catch (InterruptedIOException e) {
+                setErrorState(ErrorState.CLOSE_NOW, e);
+            } catch (Throwable t) {
+                ExceptionUtils.handleThrowable(t);
+                log.error(sm.getString("streamProcessor.service.error"), t);
+                // 500 - Internal Server Error
+                response.setStatus(500);
+                setErrorState(ErrorState.CLOSE_CLEAN, t);
+                getAdapter().log(request, response, 0);
+            }
+        } else {
+            getAdapter().log(request, response, 0);
+        }
+
+        if (getErrorState().isError()) {
+            return SocketState.CLOSED;
+        } else if (isAsync()) {
+            return SocketState.LONG;
+        } else {
+            return SocketState.OPEN;
+        }
+    }
+
+
+    private void prepareRequest() {
+        request.getRequestProcessor().setStage(org.apache.coyote.Constants.STAGE_PREPARE);
+        MessageBytes host = request.getMimeHeaders().getValue("host");
+        if (host != null) {
+            // Host parsing works on the bytes of the header value
+            host.toBytes();
+        }
+        parseHost(host);
+    }
+
+
+    @Override
+    protected void populateHost() {
+        // No :authority or host header so use the local name and port
+        request.serverName().setString(request.localName().toString());
+        request.setServerPort(request.getLocalPort());
+    }
+
+
+    @Override
+    public SocketState asyncDispatch(SocketStatus status) {
+        if (status == SocketStatus.OPEN_READ && request.getReadListener() != null ||
+                status == SocketStatus.OPEN_WRITE && response.getWriteListener() != null) {
+            try {
+                if (asyncStateMachine.isAsyncStarted()) {
+                    asyncStateMachine.asyncOperation();
+                }
+            } catch (IllegalStateException x) {
+                // ISE - Request/Response not in correct state for async IO
+                if (log.isDebugEnabled()) {
+                    log.debug(sm.getString("streamProcessor.asyncIo.error"), x);
+                }
+                status = SocketStatus.ERROR;
+            }
+        }
+
+        RequestInfo rp = request.getRequestProcessor();
+        try {
+            rp.setStage(org.apache.coyote.Constants.STAGE_SERVICE);
+            if (!getAdapter().asyncDispatch(request, response, status)) {
+                setErrorState(ErrorState.CLOSE_NOW, null);
+            }
+        } catch (InterruptedIOException e) {
+            setErrorState(ErrorState.CLOSE_NOW, e);
+        } catch (Throwable t) {
+            ExceptionUtils.handleThrowable(t);
+            setErrorState(ErrorState.CLOSE_NOW, t);
+            log.error(sm.getString("streamProcessor.service.error"), t);
+        }
+
+        if (getErrorState().isError()) {
+            return SocketState.CLOSED;
+        } else if (isAsync()) {
+            return SocketState.LONG;
+        } else {
+            return SocketState.OPEN;
+        }
+    }
+
+
+    /**
+     * Complete the response and release the resources associated with the
+     * stream.
+     */
+    private void endRequest() {
+        RequestInfo rp = request.getRequestProcessor();
+        if (getErrorState().isIoAllowed()) {
+            action(ActionCode.CLOSE, null);
+        }
+        if (!stream.isOutputClosed() && !stream.isReset()) {
+            // The response could not be completed
+            stream.getHandler().resetStream(stream, Http2Error.INTERNAL_ERROR);
+        }
+        rp.setStage(org.apache.coyote.Constants.STAGE_ENDED);
+        request.updateCounters();
+        rp.setGlobalProcessor(null);
+    }
+
+
+    // --------------------------------------------------------- Action handling
+
+    @Override
+    public final void action(ActionCode actionCode, Object param) {
+        switch (actionCode) {
+        case CLOSE: {
+            // End the processing of the current request
+            action(ActionCode.COMMIT, null);
+            try {
+                stream.close();
+            } catch (IOException e) {
+                setErrorState(ErrorState.CLOSE_NOW, e);
+            }
+            break;
+        }
+        case COMMIT: {
+            if (response.isCommitted()) {
+                return;
+            }
+            try {
+                response.setCommitted(true);
+                prepareResponse();
+            } catch (IOException e) {
+                setErrorState(ErrorState.CLOSE_NOW, e);
+            }
+            break;
+        }
+        case CLIENT_FLUSH: {
+            // Response data is not buffered so only the headers may need to
+            // be sent
+            action(ActionCode.COMMIT, null);
+            break;
+        }
+        case ACK: {
+            // The client is always able to send the request body (subject to
+            // flow control) so there is no need to send a 100 response
+            break;
+        }
+        case IS_ERROR: {
+            ((AtomicBoolean) param).set(getErrorState().isError());
+            break;
+        }
+        case DISABLE_SWALLOW_INPUT: {
+            // Unread request data is discarded when the stream is closed
+            setErrorState(ErrorState.CLOSE_CLEAN, null);
+            break;
+        }
+        case RESET: {
+            // Nothing is buffered here
+            break;
+        }
+        case CLOSE_NOW: {
+            if (param instanceof Throwable) {
+                setErrorState(ErrorState.CLOSE_NOW, (Throwable) param);
+            } else {
+                setErrorState(ErrorState.CLOSE_NOW, null);
+            }
+            break;
+        }
+        case END_REQUEST: {
+            // Handled when processing exits
+            break;
+        }
+        case REQ_HOST_ATTRIBUTE:
+        case REQ_HOST_ADDR_ATTRIBUTE:
+        case REQ_LOCAL_NAME_ATTRIBUTE:
+        case REQ_LOCAL_ADDR_ATTRIBUTE:
+        case REQ_REMOTEPORT_ATTRIBUTE:
+        case REQ_LOCALPORT_ATTRIBUTE:
+        case REQ_SSL_ATTRIBUTE:
+        case REQ_SSL_CERTIFICATE: {
+            // Populated from the connection when the stream was created
+            break;
+        }
+        case REQ_SET_BODY_REPLAY: {
+            // Not supported for HTTP/2. FORM authentication saves the body
+            // but it is only replayed for HTTP/1.1.
+            break;
+        }
+        case AVAILABLE: {
+            request.setAvailable(stream.getInputBuffer().available());
+            break;
+        }
+        case NB_READ_INTEREST: {
+            stream.getInputBuffer().registerReadInterest();
+            break;
+        }
+        case NB_WRITE_INTEREST: {
+            // Writes block until flow control permits them to complete so
+            // writing is always possible
+            ((AtomicBoolean) param).set(true);
+            break;
+        }
+        case REQUEST_BODY_FULLY_READ: {
+            ((AtomicBoolean) param).set(stream.getInputBuffer().isFinished());
+            break;
+        }
+        case DISPATCH_READ: {
+            socketWrapper.addDispatch(DispatchType.NON_BLOCKING_READ);
+            break;
+        }
+        case DISPATCH_WRITE: {
+            socketWrapper.addDispatch(DispatchType.NON_BLOCKING_WRITE);
+            break;
+        }
+        case DISPATCH_EXECUTE: {
+            Iterator<DispatchType> dispatches = socketWrapper.getIteratorAndClearDispatches();
+            while (dispatches != null && dispatches.hasNext()) {
+                processSocketEvent(dispatches.next().getSocketStatus(), true);
+            }
+            break;
+        }
+        case ASYNC_START: {
+            asyncStateMachine.asyncStart((AsyncContextCallback) param);
+            // Async time out is based on the time async processing started
+            socketWrapper.access(System.currentTimeMillis());
+            break;
+        }
+        case ASYNC_DISPATCHED: {
+            asyncStateMachine.asyncDispatched();
+            break;
+        }
+        case ASYNC_TIMEOUT: {
+            ((AtomicBoolean) param).set(asyncStateMachine.asyncTimeout());
+            break;
+        }
+        case ASYNC_RUN: {
+            asyncStateMachine.asyncRun((Runnable) param);
+            break;
+        }
+        case ASYNC_ERROR: {
+            asyncStateMachine.asyncError();
+            break;
+        }
+        case ASYNC_IS_STARTED: {
+            ((AtomicBoolean) param).set(asyncStateMachine.isAsyncStarted());
+            break;
+        }
+        case ASYNC_IS_COMPLETING: {
+            ((AtomicBoolean) param).set(asyncStateMachine.isCompleting());
+            break;
+        }
+        case ASYNC_IS_DISPATCHING: {
+            ((AtomicBoolean) param).set(asyncStateMachine.isAsyncDispatching());
+            break;
+        }
+        case ASYNC_IS_ASYNC: {
+            ((AtomicBoolean) param).set(asyncStateMachine.isAsync());
+            break;
+        }
+        case ASYNC_IS_TIMINGOUT: {
+            ((AtomicBoolean) param).set(asyncStateMachine.isAsyncTimingOut());
+            break;
+        }
+        case ASYNC_IS_ERROR: {
+            ((AtomicBoolean) param).set(asyncStateMachine.isAsyncError());
+            break;
+        }
+        case ASYNC_COMPLETE: {
+            socketWrapper.clearDispatches();
+            if (asyncStateMachine.asyncComplete()) {
+                processSocketEvent(SocketStatus.OPEN_READ, true);
+            }
+            break;
+        }
+        case ASYNC_SETTIMEOUT: {
+            if (param == null) {
+                return;
+            }
+            socketWrapper.setTimeout(((Long) param).longValue());
+            break;
+        }
+        case ASYNC_DISPATCH: {
+            if (asyncStateMachine.asyncDispatch()) {
+                processSocketEvent(SocketStatus.OPEN_READ, true);
+            }
+            break;
+        }
+        case ASYNC_POST_PROCESS: {
+            asyncStateMachine.asyncPostProcess();
+            break;
+        }
+        case IS_COMET: {
+            ((AtomicBoolean) param).set(false);
+            break;
+        }
+        case UPGRADE: {
+            // HTTP upgrade is not permitted for HTTP/2 (RFC 7540 section 8.1.1)
+            log.warn(sm.getString("streamProcessor.upgradeNotSupported",
+                    stream.getHandler().getConnectionId(),
+                    Integer.toString(stream.getId())));
+            setErrorState(ErrorState.CLOSE_NOW, null);
+            break;
+        }
+        default: {
+            // COMET_* and any other actions are not supported for HTTP/2
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("streamProcessor.unsupportedAction", actionCode));
+            }
+            break;
+        }
+        }
+    }
+
+
+    /**
+     * Convert the response status and headers to the HTTP/2 form and pass them
+     * to the stream for writing.
+     */
+    private void prepareResponse() throws IOException {
+        MimeHeaders headers = response.getMimeHeaders();
+        int statusCode = response.getStatus();
+
+        // HTTP/2 has no status line so the status is sent as a pseudo header
+        // that must precede all other headers
+        MimeHeaders h2Headers = new MimeHeaders();
+        h2Headers.addValue(":status").setString(Integer.toString(statusCode));
+
+        boolean noBody = statusCode < 200 || statusCode == 204 || statusCode == 304 ||
+                "HEAD".equals(request.method().toString());
+
+        if (statusCode != 204 && statusCode != 304) {
+            String contentType = response.getContentType();
+            if (contentType != null) {
+                headers.setValue("Content-Type").setString(contentType);
+            }
+            String contentLanguage = response.getContentLanguage();
+            if (contentLanguage != null) {
+                headers.setValue("Content-Language").setString(contentLanguage);
+            }
+            long contentLength = response.getContentLengthLong();
+            if (contentLength != -1) {
+                headers.setValue("Content-Length").setLong(contentLength);
+            }
+        }
+
+        // Add date header unless application has already set one (e.g. in a
+        // Caching Filter)
+        if (headers.getValue("Date") == null) {
+            headers.setValue("Date").setString(FastHttpDateFormat.getCurrentDate());
+        }
+
+        String server = protocol.getHttp11Protocol().getServer();
+        if (server != null) {
+            // Always overrides anything the app might set
+            headers.setValue("Server").setString(server);
+        }
+
+        int size = headers.size();
+        for (int i = 0; i < size; i++) {
+            String name = headers.getName(i).toString().toLowerCase(Locale.ENGLISH);
+            if (Stream.CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            MessageBytes value = headers.getValue(i);
+            h2Headers.addValue(name).setString(value.toString());
+        }
+
+        stream.writeHeaders(h2Headers, noBody);
+    }
+
+
+    // ------------------------------------------------- Processor methods
+
+    @Override
+    public Executor getExecutor() {
+        return protocol.getHttp11Protocol().getExecutor();
+    }
+
+
+    @Override
+    public boolean isComet() {
+        return false;
+    }
+
+
+    @Override
+    public boolean isUpgrade() {
+        return false;
+    }
+
+
+    @Override
+    public SocketState process(SocketWrapper<Stream> socketWrapper) throws IOException {
+        // Processing is driven by processEvent()
+        throw new IllegalStateException();
+    }
+
+
+    @Override
+    public SocketState event(SocketStatus status) throws IOException {
+        // Comet is not supported for HTTP/2
+        throw new IllegalStateException();
+    }
+
+
+    @Override
+    public SocketState upgradeDispatch(SocketStatus status) throws IOException {
+        throw new IllegalStateException();
+    }
+
+
+    @Override
+    public UpgradeToken getUpgradeToken() {
+        return null;
+    }
+
+
+    @Override
+    public void recycle(boolean socketClosing) {
+        // NO-OP. Stream processors are not recycled.
+    }
+
+
+    @Override
+    public void setSslSupport(SSLSupport sslSupport) {
+        // NO-OP. TLS attributes are copied from the connection.
+    }
+
+
+    @Override
+    public ByteBuffer getLeftoverInput() {
+        return null;
+    }
+
+
+    @Override
+    protected void registerForEvent(boolean read, boolean write) {
+        // NO-OP. Streams do not have their own socket.
+    }
+
+
+    @Override
+    protected Log getLog() {
+        return log;
+    }
+
+
+    /**
+     * Used by the async timeout checker.
+     */
+    SocketWrapper<Stream> getStreamWrapper() {
+        return socketWrapper;
+    }
+
+
+    private class StreamRunnable implements Runnable {
+
+        private final SocketStatus status;
+
+        StreamRunnable(SocketStatus status) {
+            this.status = status;
+        }
+
+        @Override
+        public void run() {
+            processEvent(status);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies, in the style of HdrHistogram, that may
+ * be updated concurrently without locking. Latencies are recorded in
+ * microseconds. Values below 32&micro;s have their own bucket and each higher
+ * power of two is split into 32 equal buckets, so a reported percentile is
+ * within about 3% of the recorded value. Values above roughly 19 hours are
+ * recorded as 19 hours. The histogram uses 8kB whatever the number of values
+ * recorded.
+ * <p>
+ * In addition to the counts since the histogram was created or
+ * {@link #reset()}, an interval snapshot returns the counts recorded since the
+ * previous interval snapshot that reset the interval.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 36;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT =
+            (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    // Guarded by this
+    private long[] intervalStart = new long[BUCKET_COUNT];
+
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+
+    /**
+     * Record a latency.
+     *
+     * @param micros The latency in microseconds
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        } else if (micros > MAX_VALUE) {
+            micros = MAX_VALUE;
+        }
+        counts.incrementAndGet(getIndex(micros));
+    }
+
+
+    /**
+     * @param percentile The percentile, between 0 and 100
+     *
+     * @return the latency in milliseconds at the given percentile of all the
+     *         values recorded since the histogram was created or reset
+     */
+    public double getPercentileMillis(double percentile) {
+        return getSnapshot().getValueAtPercentile(percentile) / 1000.0;
+    }
+
+
+    /**
+     * @return the counts recorded since the histogram was created or reset
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(copyCounts());
+    }
+
+
+    /**
+     * Obtain the counts recorded since the last time the interval was reset.
+     *
+     * @param reset Should a new interval be started?
+     *
+     * @return the counts recorded in the interval
+     */
+    public synchronized Snapshot getIntervalSnapshot(boolean reset) {
+        long[] current = copyCounts();
+        long[] interval = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            // Negative if a value was recorded during a reset
+            interval[i] = Math.max(0, current[i] - intervalStart[i]);
+        }
+        if (reset) {
+            intervalStart = current;
+        }
+        return new Snapshot(interval);
+    }
+
+
+    /**
+     * Discard all recorded values and start a new interval. Values recorded
+     * concurrently may or may not be discarded.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        intervalStart = new long[BUCKET_COUNT];
+    }
+
+
+    private long[] copyCounts() {
+        long[] result = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+
+    static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Keep the most significant SUB_BUCKET_BITS + 1 bits
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+
+    static long getHighestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = index - (shift << SUB_BUCKET_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+
+    /**
+     * An immutable copy of the counts of a histogram.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param percentile The percentile, between 0 and 100
+         *
+         * @return the highest latency in microseconds that is equivalent, to
+         *         the precision of the histogram, to the value at the given
+         *         percentile or zero if no values were recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(
+                    Math.min(100, Math.max(0, percentile)) * count / 100);
+            target = Math.max(1, target);
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i];
+                if (total >= target) {
+                    return getHighestEquivalentValue(i);
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * @return the highest latency in microseconds that is equivalent, to
+         *         the precision of the histogram, to the largest recorded value
+         *         or zero if no values were recorded
+         */
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return getHighestEquivalentValue(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the count and the 50th, 90th, 99th and 99.9th percentiles and
+         *         maximum in milliseconds
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("count=").append(count);
+            sb.append(" p50=").append(getValueAtPercentile(50) / 1000.0);
+            sb.append(" p90=").append(getValueAtPercentile(90) / 1000.0);
+            sb.append(" p99=").append(getValueAtPercentile(99) / 1000.0);
+            sb.append(" p999=").append(getValueAtPercentile(99.9) / 1000.0);
+            sb.append(" max=").append(getMax() / 1000.0);
+            return sb.toString();
+        }
+    }
+}
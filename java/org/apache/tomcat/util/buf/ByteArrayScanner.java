@@ -0,0 +1,99 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.buf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Scans a byte array for line terminators eight bytes at a time by treating
+ * each group of eight bytes as a single long (SIMD within a register) rather
+ * than testing one byte at a time. The long view of the array is created once
+ * and re-used until a different array is provided so scanning does not
+ * allocate.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class ByteArrayScanner {
+
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long CR_BYTES = 0x0D0D0D0D0D0D0D0DL;
+    private static final long LF_BYTES = 0x0A0A0A0A0A0A0A0AL;
+
+    private byte[] bytes;
+    private ByteBuffer view;
+
+
+    /**
+     * Set the array to scan. The current view is retained if the same array
+     * is provided again.
+     *
+     * @param bytes The array to scan
+     */
+    public void setBytes(byte[] bytes) {
+        if (this.bytes != bytes) {
+            this.bytes = bytes;
+            if (bytes == null) {
+                view = null;
+            } else {
+                // Big endian so the first byte is the most significant
+                view = ByteBuffer.wrap(bytes);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the first CR or LF in the array between the specified start and
+     * end.
+     *
+     * @param start The point to start searching from in the byte array
+     * @param end The point to stop searching in the byte array
+     * @return The position of the first CR or LF or -1 if neither is found
+     */
+    public int findCrOrLf(int start, int end) {
+        int offset = start;
+        int limit = end - 7;
+        while (offset < limit) {
+            long word = view.getLong(offset);
+            long found = zeroBytes(word ^ CR_BYTES) | zeroBytes(word ^ LF_BYTES);
+            if (found != 0) {
+                return offset + (Long.numberOfLeadingZeros(found) >>> 3);
+            }
+            offset += 8;
+        }
+        while (offset < end) {
+            byte b = bytes[offset];
+            if (b == '\r' || b == '\n') {
+                return offset;
+            }
+            offset++;
+        }
+        return -1;
+    }
+
+
+    /*
+     * Sets the high bit of every byte of the result where the corresponding
+     * byte of the input is zero and clears all other bits. Unlike the more
+     * common (x - 0x01..01) & ~x & 0x80..80 test this is exact for every byte,
+     * not just the first zero byte, as no borrow can cross a byte boundary.
+     */
+    private static long zeroBytes(long x) {
+        long t = (x & LOW_BITS) + LOW_BITS;
+        return ~(t | x | LOW_BITS);
+    }
+}
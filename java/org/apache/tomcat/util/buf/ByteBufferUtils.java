@@ -0,0 +1,117 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.buf;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.compat.JreCompat;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Utility methods for working with direct and mapped {@link ByteBuffer}s.
+ */
+public class ByteBufferUtils {
+
+    private static final StringManager sm = StringManager.getManager(ByteBufferUtils.class);
+    private static final Log log = LogFactory.getLog(ByteBufferUtils.class);
+
+    private static final Object unsafe;
+    private static final Method invokeCleanerMethod;
+    private static final Method cleanerMethod;
+    private static final Method cleanMethod;
+
+    static {
+        ByteBuffer tempBuffer = ByteBuffer.allocateDirect(0);
+        Object unsafeLocal = null;
+        Method invokeCleanerMethodLocal = null;
+        Method cleanerMethodLocal = null;
+        Method cleanMethodLocal = null;
+        if (JreCompat.isJre9Available()) {
+            try {
+                Class<?> clazz = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = clazz.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafeLocal = theUnsafe.get(null);
+                invokeCleanerMethodLocal = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+                invokeCleanerMethodLocal.invoke(unsafeLocal, tempBuffer);
+            } catch (Throwable t) {
+                ExceptionUtils.handleThrowable(t);
+                log.warn(sm.getString("byteBufferUtils.cleaner"), t);
+                unsafeLocal = null;
+                invokeCleanerMethodLocal = null;
+            }
+        } else {
+            try {
+                cleanerMethodLocal = tempBuffer.getClass().getMethod("cleaner");
+                cleanerMethodLocal.setAccessible(true);
+                Object cleanerObject = cleanerMethodLocal.invoke(tempBuffer);
+                cleanMethodLocal = cleanerObject.getClass().getMethod("clean");
+                cleanMethodLocal.invoke(cleanerObject);
+            } catch (Throwable t) {
+                ExceptionUtils.handleThrowable(t);
+                log.warn(sm.getString("byteBufferUtils.cleaner"), t);
+                cleanerMethodLocal = null;
+                cleanMethodLocal = null;
+            }
+        }
+        unsafe = unsafeLocal;
+        invokeCleanerMethod = invokeCleanerMethodLocal;
+        cleanerMethod = cleanerMethodLocal;
+        cleanMethod = cleanMethodLocal;
+    }
+
+
+    private ByteBufferUtils() {
+        // Hide the default constructor since this is a utility class.
+    }
+
+
+    /**
+     * Release the native memory (or the file mapping) associated with a direct
+     * buffer immediately rather than waiting for the buffer to be garbage
+     * collected. The buffer must not be used after this method has been
+     * called. Heap buffers and buffers that can not be cleaned on the current
+     * JRE are ignored.
+     *
+     * @param buf The buffer to clean
+     */
+    public static void cleanDirectBuffer(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return;
+        }
+        try {
+            if (invokeCleanerMethod != null) {
+                invokeCleanerMethod.invoke(unsafe, buf);
+            } else if (cleanMethod != null) {
+                Object cleaner = cleanerMethod.invoke(buf);
+                if (cleaner != null) {
+                    cleanMethod.invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            // Duplicates and slices can't be cleaned. Leave them to the GC.
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("byteBufferUtils.cleaner"), e);
+            }
+        }
+    }
+}
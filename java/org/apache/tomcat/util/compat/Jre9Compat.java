@@ -22,14 +22,21 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Deque;
 import java.util.Set;
 import java.util.jar.JarFile;
 import java.util.zip.ZipFile;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.res.StringManager;
@@ -50,6 +57,9 @@ class Jre9Compat extends Jre8Compat {
     private static final Method getMethod;
     private static final Constructor<JarFile> jarFileConstructor;
     private static final Method isMultiReleaseMethod;
+    private static final Method setApplicationProtocolsMethod;
+    private static final Method getApplicationProtocolMethod;
+    private static final SocketOption<Boolean> reusePortOption;
 
     private static final Object RUNTIME_VERSION;
     private static final int RUNTIME_MAJOR_VERSION;
@@ -68,6 +78,9 @@ class Jre9Compat extends Jre8Compat {
         Method m13 = null;
         Object o14 = null;
         Object o15 = null;
+        Method m16 = null;
+        Method m17 = null;
+        SocketOption<Boolean> o18 = null;
 
         try {
             Class<?> moduleLayerClazz = Class.forName("java.lang.ModuleLayer");
@@ -111,6 +124,34 @@ class Jre9Compat extends Jre8Compat {
         jarFileConstructor = c12;
         isMultiReleaseMethod = m13;
 
+        // ALPN and SO_REUSEPORT are looked up independently of each other and
+        // of the module support above
+        try {
+            m16 = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            m17 = SSLEngine.class.getMethod("getApplicationProtocol");
+        } catch (NoSuchMethodException e) {
+            // ALPN not supported
+            m16 = null;
+            m17 = null;
+        }
+        setApplicationProtocolsMethod = m16;
+        getApplicationProtocolMethod = m17;
+
+        try {
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> option = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            // The option is only available on some operating systems
+            try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+                if (channel.supportedOptions().contains(option)) {
+                    o18 = option;
+                }
+            }
+        } catch (ReflectiveOperationException | IOException e) {
+            // SO_REUSEPORT not supported
+        }
+        reusePortOption = o18;
+
         RUNTIME_VERSION = o14;
         if (o15 != null) {
             RUNTIME_MAJOR_VERSION = ((Integer) o15).intValue();
@@ -197,8 +238,52 @@ class Jre9Compat extends Jre8Compat {
     }
 
 
+    @Override
+    public boolean isAlpnSupported() {
+        return setApplicationProtocolsMethod != null &&
+                getApplicationProtocolMethod != null;
+    }
+
+
+    @Override
+    public void setApplicationProtocols(SSLParameters sslParameters,
+            String[] protocols) {
+        try {
+            setApplicationProtocolsMethod.invoke(sslParameters, (Object) protocols);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+
+    @Override
+    public String getApplicationProtocol(SSLEngine sslEngine) {
+        try {
+            return (String) getApplicationProtocolMethod.invoke(sslEngine);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+
     @Override
     public int jarFileRuntimeMajorVersion() {
         return RUNTIME_MAJOR_VERSION;
     }
+
+
+    @Override
+    public boolean isReusePortSupported() {
+        return reusePortOption != null;
+    }
+
+
+    @Override
+    public void setReusePort(NetworkChannel channel) throws IOException {
+        if (reusePortOption == null) {
+            super.setReusePort(channel);
+        } else {
+            channel.setOption(reusePortOption, Boolean.TRUE);
+        }
+    }
 }
@@ -20,10 +20,12 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.NetworkChannel;
 import java.util.Deque;
 import java.util.jar.JarFile;
 
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLServerSocket;
 
 import org.apache.tomcat.util.res.StringManager;
@@ -98,6 +100,73 @@ public class JreCompat {
     }
 
 
+    /**
+     * Does this JRE support the TLS Application Layer Protocol Negotiation
+     * (ALPN) extension via the standard JSSE API?
+     *
+     * @return {@code true} if ALPN is supported, otherwise {@code false}
+     */
+    public boolean isAlpnSupported() {
+        return false;
+    }
+
+
+    /**
+     * Set the application protocols (in preference order) that a server side
+     * {@link SSLEngine} may negotiate via ALPN.
+     *
+     * @param sslParameters The parameters that will be applied to the engine
+     * @param protocols     The protocol names in preference order
+     */
+    @SuppressWarnings("unused")
+    public void setApplicationProtocols(SSLParameters sslParameters,
+            String[] protocols) {
+        throw new UnsupportedOperationException(sm.getString("jreCompat.noApplicationProtocols"));
+    }
+
+
+    /**
+     * Obtain the application protocol negotiated via ALPN for the given
+     * engine.
+     *
+     * @param sslEngine The engine for which the negotiated protocol is
+     *                  required
+     *
+     * @return The negotiated protocol, an empty string if ALPN was not used or
+     *         {@code null} if the handshake has not yet determined the protocol
+     */
+    @SuppressWarnings("unused")
+    public String getApplicationProtocol(SSLEngine sslEngine) {
+        throw new UnsupportedOperationException(sm.getString("jreCompat.noApplicationProtocol"));
+    }
+
+
+    /**
+     * Does this JRE (and the underlying operating system) support the
+     * SO_REUSEPORT socket option for server socket channels?
+     *
+     * @return {@code true} if SO_REUSEPORT is supported, otherwise
+     *         {@code false}
+     */
+    public boolean isReusePortSupported() {
+        return false;
+    }
+
+
+    /**
+     * Enable SO_REUSEPORT on the given channel. This must be called before the
+     * channel is bound.
+     *
+     * @param channel   The channel to configure
+     *
+     * @throws IOException If the option could not be set
+     */
+    @SuppressWarnings("unused")
+    public void setReusePort(NetworkChannel channel) throws IOException {
+        throw new UnsupportedOperationException(sm.getString("jreCompat.noReusePort"));
+    }
+
+
     /**
      * Test if the provided exception is an instance of
      * java.lang.reflect.InaccessibleObjectException.
@@ -21,6 +21,7 @@ import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
@@ -28,6 +29,7 @@ import java.util.Map;
 
 import org.apache.tomcat.util.buf.B2CConverter;
 import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.HexUtils;
 import org.apache.tomcat.util.buf.MessageBytes;
 import org.apache.tomcat.util.buf.UDecoder;
 import org.apache.tomcat.util.log.UserDataHelper;
@@ -49,7 +51,7 @@ public final class Parameters {
     private static final StringManager sm =
         StringManager.getManager("org.apache.tomcat.util.http");
 
-    private final Map<String,ArrayList<String>> paramHashValues =
+    private final Map<String,ArrayList<ParameterValue>> paramHashValues =
             new LinkedHashMap<>();
     private boolean didQueryParameters=false;
 
@@ -64,6 +66,12 @@ public final class Parameters {
     private int limit = -1;
     private int parameterCount = 0;
 
+    /**
+     * If <code>true</code> parameter values are kept as views of the bytes
+     * they were parsed from and only decoded when they are first read.
+     */
+    private boolean lazyDecoding = false;
+
     /**
      * Set to the reason for the failure (the first failure if there is more
      * than one) if there were failures during parameter parsing.
@@ -82,6 +90,24 @@ public final class Parameters {
         this.limit = limit;
     }
 
+    public boolean getLazyDecoding() {
+        return lazyDecoding;
+    }
+
+    /**
+     * Should parameter values be decoded when they are first read rather than
+     * when they are parsed? Names are always decoded when parsed. With lazy
+     * decoding the byte arrays passed to {@link #processParameters(byte[], int,
+     * int)} must not be modified until this object is recycled. Values are
+     * decoded using only local state so, as with eager decoding, parameters
+     * may be read concurrently once they have been parsed.
+     *
+     * @param lazyDecoding <code>true</code> to decode values on demand
+     */
+    public void setLazyDecoding(boolean lazyDecoding) {
+        this.lazyDecoding = lazyDecoding;
+    }
+
     public String getEncoding() {
         return encoding;
     }
@@ -135,11 +161,15 @@ public final class Parameters {
     public String[] getParameterValues(String name) {
         handleQueryParameters();
         // no "facade"
-        ArrayList<String> values = paramHashValues.get(name);
+        ArrayList<ParameterValue> values = paramHashValues.get(name);
         if (values == null) {
             return null;
         }
-        return values.toArray(new String[values.size()]);
+        String[] result = new String[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getValue(values.get(i));
+        }
+        return result;
     }
 
     public Enumeration<String> getParameterNames() {
@@ -149,12 +179,12 @@ public final class Parameters {
 
     public String getParameter(String name ) {
         handleQueryParameters();
-        ArrayList<String> values = paramHashValues.get(name);
+        ArrayList<ParameterValue> values = paramHashValues.get(name);
         if (values != null) {
             if(values.size() == 0) {
                 return "";
             }
-            return values.get(0);
+            return getValue(values.get(0));
         } else {
             return null;
         }
@@ -190,6 +220,12 @@ public final class Parameters {
 
     public void addParameter( String key, String value )
             throws IllegalStateException {
+        addParameter(key, new ParameterValue(value));
+    }
+
+
+    private void addParameter(String key, ParameterValue value)
+            throws IllegalStateException {
 
         if( key==null ) {
             return;
@@ -204,7 +240,7 @@ public final class Parameters {
                     "parameters.maxCountFail", Integer.valueOf(limit)));
         }
 
-        ArrayList<String> values = paramHashValues.get(key);
+        ArrayList<ParameterValue> values = paramHashValues.get(key);
         if (values == null) {
             values = new ArrayList<>(1);
             paramHashValues.put(key, values);
@@ -375,7 +411,7 @@ public final class Parameters {
 
             try {
                 String name;
-                String value;
+                ParameterValue value;
 
                 if (decodeName) {
                     urlDecode(tmpName);
@@ -384,13 +420,20 @@ public final class Parameters {
                 name = tmpName.toString();
 
                 if (valueStart >= 0) {
-                    if (decodeValue) {
-                        urlDecode(tmpValue);
+                    if (lazyDecoding && (!decodeValue ||
+                            isValidEncoding(bytes, valueStart, valueEnd))) {
+                        // Decoding can't fail so it can be deferred
+                        value = new ParameterValue(bytes, valueStart,
+                                valueEnd - valueStart, decodeValue, charset);
+                    } else {
+                        if (decodeValue) {
+                            urlDecode(tmpValue);
+                        }
+                        tmpValue.setCharset(charset);
+                        value = new ParameterValue(tmpValue.toString());
                     }
-                    tmpValue.setCharset(charset);
-                    value = tmpValue.toString();
                 } else {
-                    value = "";
+                    value = new ParameterValue("");
                 }
 
                 try {
@@ -472,6 +515,57 @@ public final class Parameters {
         }
     }
 
+    /**
+     * Would URL decoding the given bytes as a query string succeed?
+     */
+    private static boolean isValidEncoding(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '%') {
+                if (i + 2 >= end || HexUtils.getDec(bytes[i + 1]) < 0 ||
+                        HexUtils.getDec(bytes[i + 2]) < 0) {
+                    return false;
+                }
+                i += 2;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Return the decoded value, decoding it first if required. Decoding only
+     * uses local state and never modifies the bytes the value is decoded from
+     * so, as with eagerly decoded values, parameters may be read by several
+     * threads, e.g. during asynchronous processing.
+     */
+    private String getValue(ParameterValue value) {
+        String result = value.value;
+        if (result == null) {
+            ByteChunk bc = new ByteChunk();
+            if (value.decode) {
+                // URL decoding is performed in place so decode a copy
+                byte[] copy = Arrays.copyOfRange(value.bytes, value.start,
+                        value.start + value.length);
+                bc.setBytes(copy, 0, copy.length);
+                try {
+                    urlDecode(bc);
+                } catch (IOException e) {
+                    // Can't happen as the encoding was validated when the
+                    // parameters were parsed. Use the value as received.
+                    bc.setBytes(value.bytes, value.start, value.length);
+                }
+            } else {
+                bc.setBytes(value.bytes, value.start, value.length);
+            }
+            bc.setCharset(value.charset);
+            result = bc.toString();
+            // Concurrent readers may both decode the value but will obtain
+            // equal results
+            value.value = result;
+        }
+        return result;
+    }
+
     private void urlDecode(ByteChunk bc)
         throws IOException {
         if( urlDec==null ) {
@@ -510,11 +604,11 @@ public final class Parameters {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, ArrayList<String>> e : paramHashValues.entrySet()) {
+        for (Map.Entry<String, ArrayList<ParameterValue>> e : paramHashValues.entrySet()) {
             sb.append(e.getKey()).append('=');
-            ArrayList<String> values = e.getValue();
-            for (String value : values) {
-                sb.append(value).append(',');
+            ArrayList<ParameterValue> values = e.getValue();
+            for (ParameterValue value : values) {
+                sb.append(getValue(value)).append(',');
             }
             sb.append('\n');
         }
@@ -522,6 +616,40 @@ public final class Parameters {
     }
 
 
+    /**
+     * A parameter value. Either the decoded value or, with lazy decoding, a
+     * view of the bytes it is to be decoded from.
+     */
+    private static final class ParameterValue {
+
+        private volatile String value;
+
+        private final byte[] bytes;
+        private final int start;
+        private final int length;
+        private final boolean decode;
+        private final Charset charset;
+
+        private ParameterValue(String value) {
+            this.value = value;
+            this.bytes = null;
+            this.start = 0;
+            this.length = 0;
+            this.decode = false;
+            this.charset = null;
+        }
+
+        private ParameterValue(byte[] bytes, int start, int length,
+                boolean decode, Charset charset) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+            this.decode = decode;
+            this.charset = charset;
+        }
+    }
+
+
     public enum FailReason {
         CLIENT_DISCONNECT,
         MULTIPART_CONFIG_INVALID,
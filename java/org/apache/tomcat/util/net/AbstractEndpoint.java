@@ -27,14 +27,18 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 
 import org.apache.juli.logging.Log;
 import org.apache.tomcat.util.IntrospectionUtils;
@@ -103,6 +107,26 @@ public abstract class AbstractEndpoint<S> {
         protected final String getThreadName() {
             return threadName;
         }
+
+        private int index;
+        protected final void setIndex(final int index) {
+            this.index = index;
+        }
+        protected final int getIndex() {
+            return index;
+        }
+
+        /*
+         * Only ever written by the acceptor thread so a volatile is sufficient
+         * to make the current value visible to monitoring threads.
+         */
+        private volatile long acceptCount = 0;
+        protected final void countAccept() {
+            acceptCount++;
+        }
+        public final long getAcceptCount() {
+            return acceptCount;
+        }
     }
 
 
@@ -228,6 +252,60 @@ public abstract class AbstractEndpoint<S> {
     public int getAcceptorThreadCount() { return acceptorThreadCount; }
 
 
+    /**
+     * Should the endpoint bind one listening socket per acceptor thread using
+     * SO_REUSEPORT so that the operating system distributes new connections
+     * between them? Only used by endpoints that support it and ignored (with a
+     * warning) if the JRE or operating system does not support SO_REUSEPORT.
+     */
+    private boolean reusePort = false;
+    public void setReusePort(boolean reusePort) { this.reusePort = reusePort; }
+    public boolean getReusePort() { return reusePort; }
+
+
+    /**
+     * The total number of connections accepted by the acceptor threads of this
+     * endpoint since it was last started.
+     *
+     * @return the total number of accepted connections
+     */
+    public long getAcceptCount() {
+        Acceptor[] acceptors = this.acceptors;
+        if (acceptors == null) {
+            return 0;
+        }
+        long count = 0;
+        for (Acceptor acceptor : acceptors) {
+            count += acceptor.getAcceptCount();
+        }
+        return count;
+    }
+
+
+    /**
+     * The number of connections accepted by each acceptor thread since the
+     * endpoint was last started. When {@link #getReusePort()} is enabled each
+     * acceptor has its own listening socket so this shows how the operating
+     * system is distributing connections between the sockets. Accept rates
+     * may be derived by sampling these values.
+     *
+     * @return one entry per acceptor in the form
+     *         <code>&lt;thread name&gt;: &lt;count&gt;</code>
+     */
+    public String[] getAcceptCounts() {
+        Acceptor[] acceptors = this.acceptors;
+        if (acceptors == null) {
+            return new String[0];
+        }
+        String[] result = new String[acceptors.length];
+        for (int i = 0; i < acceptors.length; i++) {
+            result[i] = acceptors[i].getThreadName() + ": " +
+                    acceptors[i].getAcceptCount();
+        }
+        return result;
+    }
+
+
     /**
      * Priority of the acceptor threads.
      */
@@ -453,6 +531,31 @@ public abstract class AbstractEndpoint<S> {
     }
 
 
+    /**
+     * The scheduling class of tasks submitted by this endpoint for connections
+     * that have not been classified more precisely. Only used if the executor
+     * supports class-of-service scheduling.
+     */
+    protected String schedulingClass = null;
+    public void setSchedulingClass(String schedulingClass) {
+        this.schedulingClass = schedulingClass;
+    }
+    public String getSchedulingClass() { return schedulingClass; }
+
+    /**
+     * Obtain the scheduling class for a task that processes the given socket.
+     *
+     * @param socket The socket to be processed
+     *
+     * @return the scheduling class of the socket's most recent request, if any,
+     *         otherwise the scheduling class of this endpoint
+     */
+    protected String getSchedulingClassForSocket(SocketWrapper<?> socket) {
+        String result = socket.getSchedulingClass();
+        return (result == null) ? schedulingClass : result;
+    }
+
+
     /**
      * Max keep alive requests
      */
@@ -849,6 +952,7 @@ public abstract class AbstractEndpoint<S> {
             acceptors[i] = createAcceptor();
             String threadName = getName() + "-Acceptor-" + i;
             acceptors[i].setThreadName(threadName);
+            acceptors[i].setIndex(i);
             Thread t = new Thread(acceptors[i], threadName);
             t.setPriority(getAcceptorThreadPriority());
             t.setDaemon(getDaemon());
@@ -1079,6 +1183,87 @@ public abstract class AbstractEndpoint<S> {
     public String getSessionTimeout() { return sessionTimeout;}
     public void setSessionTimeout(String s) { sessionTimeout = s;}
 
+    /**
+     * Connectors with the same session cache group and identical SSL
+     * configuration share a single SSL context and therefore a single TLS
+     * session cache and set of session ticket keys.
+     */
+    private String sessionCacheGroup = null;
+    public String getSessionCacheGroup() { return sessionCacheGroup;}
+    public void setSessionCacheGroup(String s) { sessionCacheGroup = s;}
+
+    /**
+     * The object that owns this endpoint's session cache group, typically the
+     * Server. Groups with the same name but a different scope are distinct.
+     */
+    private Object sessionCacheGroupScope = null;
+    public Object getSessionCacheGroupScope() { return sessionCacheGroupScope;}
+    public void setSessionCacheGroupScope(Object scope) {
+        sessionCacheGroupScope = scope;
+    }
+
+    private final AtomicLong sessionCacheHitCount = new AtomicLong(0);
+    private final AtomicLong sessionCacheMissCount = new AtomicLong(0);
+    /**
+     * @return The number of completed TLS handshakes that resumed an existing
+     *         session
+     */
+    public long getSessionCacheHitCount() { return sessionCacheHitCount.get();}
+    /**
+     * @return The number of completed TLS handshakes that created a new
+     *         session
+     */
+    public long getSessionCacheMissCount() { return sessionCacheMissCount.get();}
+    protected void countHandshake(boolean resumed) {
+        if (resumed) {
+            sessionCacheHitCount.incrementAndGet();
+        } else {
+            sessionCacheMissCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Obtain the SSL context for this endpoint from its session cache group, if
+     * one is configured.
+     *
+     * @param implementation    The SSL implementation used by this endpoint
+     *
+     * @return The shared context or <code>null</code> if the endpoint needs to
+     *         create its own context
+     */
+    protected SSLContext acquireSharedSSLContext(SSLImplementation implementation) {
+        if (sessionCacheGroup == null) {
+            return null;
+        }
+        return SSLContextRegistry.acquire(sessionCacheGroupScope, sessionCacheGroup,
+                SSLContextRegistry.getConfig(this, implementation));
+    }
+
+    /**
+     * Make a newly created SSL context available to the other endpoints in this
+     * endpoint's session cache group, if one is configured.
+     *
+     * @param implementation    The SSL implementation used by this endpoint
+     * @param context           The newly created context
+     *
+     * @return The context this endpoint should use
+     */
+    protected SSLContext registerSharedSSLContext(SSLImplementation implementation,
+            SSLContext context) {
+        if (sessionCacheGroup == null) {
+            return context;
+        }
+        return SSLContextRegistry.register(sessionCacheGroupScope, sessionCacheGroup,
+                SSLContextRegistry.getConfig(this, implementation), context);
+    }
+
+    protected void releaseSharedSSLContext(SSLContext context) {
+        if (sessionCacheGroup != null && context != null) {
+            SSLContextRegistry.release(sessionCacheGroupScope, sessionCacheGroup,
+                    context);
+        }
+    }
+
     private String allowUnsafeLegacyRenegotiation = null;
     public String getAllowUnsafeLegacyRenegotiation() {
         return allowUnsafeLegacyRenegotiation;
@@ -1135,6 +1320,38 @@ public abstract class AbstractEndpoint<S> {
         }
     }
 
+    /**
+     * Protocols, in addition to HTTP/1.1, that may be negotiated via ALPN
+     * during the TLS handshake.
+     */
+    private final List<String> negotiableProtocols = new ArrayList<>();
+    public void addNegotiatedProtocol(String negotiableProtocol) {
+        negotiableProtocols.add(negotiableProtocol);
+    }
+    public boolean hasNegotiableProtocols() {
+        return (negotiableProtocols.size() > 0);
+    }
+
+
+    /**
+     * Configures SSLEngine to offer any configured protocols, followed by
+     * HTTP/1.1, via ALPN. This is a NO-OP if no additional protocols have been
+     * configured or the JRE does not support ALPN.
+     */
+    protected void configureNegotiatedProtocols(SSLEngine engine) {
+        if (negotiableProtocols.isEmpty() ||
+                !JreCompat.getInstance().isAlpnSupported()) {
+            return;
+        }
+        String[] protocols = new String[negotiableProtocols.size() + 1];
+        negotiableProtocols.toArray(protocols);
+        protocols[protocols.length - 1] = "http/1.1";
+
+        SSLParameters sslParameters = engine.getSSLParameters();
+        JreCompat.getInstance().setApplicationProtocols(sslParameters, protocols);
+        engine.setSSLParameters(sslParameters);
+    }
+
     /**
      * The async timeout thread.
      */
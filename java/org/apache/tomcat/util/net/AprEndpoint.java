@@ -44,6 +44,7 @@ import org.apache.tomcat.jni.Status;
 import org.apache.tomcat.util.ExceptionUtils;
 import org.apache.tomcat.util.net.AbstractEndpoint.Acceptor.AcceptorState;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
+import org.apache.tomcat.util.threads.ClassifiedTask;
 
 
 /**
@@ -1088,6 +1089,7 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
                     }
                     // Successful accept, reset the error delay
                     errorDelay = 0;
+                    countAccept();
 
                     if (running && !paused) {
                         // Hand this socket off to an appropriate processor
@@ -2430,7 +2432,7 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
      *
      * This is called after an accept().
      */
-    protected class SocketWithOptionsProcessor implements Runnable {
+    protected class SocketWithOptionsProcessor implements ClassifiedTask {
 
         protected SocketWrapper<Long> socket = null;
 
@@ -2439,6 +2441,11 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
             this.socket = socket;
         }
 
+        @Override
+        public String getSchedulingClass() {
+            return getSchedulingClassForSocket(socket);
+        }
+
         @Override
         public void run() {
 
@@ -2486,7 +2493,7 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
      * This class is the equivalent of the Worker, but will simply use in an
      * external Executor thread pool.
      */
-    protected class SocketProcessor implements Runnable {
+    protected class SocketProcessor implements ClassifiedTask {
 
         private final SocketWrapper<Long> socket;
         private final SocketStatus status;
@@ -2501,6 +2508,11 @@ public class AprEndpoint extends AbstractEndpoint<Long> {
             this.status = status;
         }
 
+        @Override
+        public String getSchedulingClass() {
+            return getSchedulingClassForSocket(socket);
+        }
+
         @Override
         public void run() {
 
@@ -30,6 +30,7 @@ import org.apache.tomcat.util.ExceptionUtils;
 import org.apache.tomcat.util.compat.JreCompat;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.net.jsse.JSSESocketFactory;
+import org.apache.tomcat.util.threads.ClassifiedTask;
 
 
 /**
@@ -196,6 +197,7 @@ public class JIoEndpoint extends AbstractEndpoint<Socket> {
                     }
                     // Successful accept, reset the error delay
                     errorDelay = 0;
+                    countAccept();
 
                     // Configure the socket
                     if (running && !paused && setSocketOptions(socket)) {
@@ -244,7 +246,7 @@ public class JIoEndpoint extends AbstractEndpoint<Socket> {
      * This class is the equivalent of the Worker, but will simply use in an
      * external Executor thread pool.
      */
-    protected class SocketProcessor implements Runnable {
+    protected class SocketProcessor implements ClassifiedTask {
 
         protected SocketWrapper<Socket> socket = null;
         protected SocketStatus status = null;
@@ -259,6 +261,11 @@ public class JIoEndpoint extends AbstractEndpoint<Socket> {
             this.status = status;
         }
 
+        @Override
+        public String getSchedulingClass() {
+            return getSchedulingClassForSocket(socket);
+        }
+
         @Override
         public void run() {
             boolean launch = false;
@@ -45,11 +45,13 @@ import javax.net.ssl.X509KeyManager;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.buf.ByteBufferUtils;
 import org.apache.tomcat.util.collections.SynchronizedStack;
 import org.apache.tomcat.util.compat.JreCompat;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.net.SecureNio2Channel.ApplicationBufferHandler;
 import org.apache.tomcat.util.net.jsse.NioX509KeyManager;
+import org.apache.tomcat.util.threads.ClassifiedTask;
 
 /**
  * NIO2 endpoint.
@@ -70,6 +72,12 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
      */
     private AsynchronousServerSocketChannel serverSock = null;
 
+    /**
+     * All the server sockets. There is more than one only if reusePort is
+     * enabled, in which case each acceptor has its own socket.
+     */
+    private AsynchronousServerSocketChannel[] serverSocks = null;
+
     /**
      * use send file
      */
@@ -178,6 +186,17 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
         this.useSendfile = useSendfile;
     }
 
+
+    /**
+     * Sendfile writes files no larger than this from memory mapped regions of
+     * the file. Larger files are copied through the socket's write buffer.
+     */
+    private int maxMappedSendfileSize = SENDFILE_MAX_MAPPED_REGION;
+    public void setMaxMappedSendfileSize(int maxMappedSendfileSize) {
+        this.maxMappedSendfileSize = maxMappedSendfileSize;
+    }
+    public int getMaxMappedSendfileSize() { return maxMappedSendfileSize; }
+
     /**
      * Is deferAccept supported?
      */
@@ -294,29 +313,75 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
             log.warn(sm.getString("endpoint.nio2.exclusiveExecutor"));
         }
 
-        serverSock = AsynchronousServerSocketChannel.open(threadGroup);
-        socketProperties.setProperties(serverSock);
-        InetSocketAddress addr = (getAddress()!=null?new InetSocketAddress(getAddress(),getPort()):new InetSocketAddress(getPort()));
-        serverSock.bind(addr,getBacklog());
-
         // Initialize thread count defaults for acceptor, poller
-        if (acceptorThreadCount != 1) {
+        int socketCount = 1;
+        if (getReusePort()) {
+            if (JreCompat.getInstance().isReusePortSupported()) {
+                // Each acceptor has its own server socket
+                if (acceptorThreadCount < 1) {
+                    acceptorThreadCount = 1;
+                }
+                socketCount = acceptorThreadCount;
+            } else {
+                log.warn(sm.getString("endpoint.warn.noReusePort"));
+            }
+        }
+        if (socketCount == 1 && acceptorThreadCount != 1) {
             // NIO2 does not allow any form of IO concurrency
             acceptorThreadCount = 1;
         }
 
+        serverSocks = new AsynchronousServerSocketChannel[socketCount];
+        InetSocketAddress addr = (getAddress()!=null?new InetSocketAddress(getAddress(),getPort()):new InetSocketAddress(getPort()));
+        try {
+            for (int i = 0; i < socketCount; i++) {
+                AsynchronousServerSocketChannel ssc = AsynchronousServerSocketChannel.open(threadGroup);
+                serverSocks[i] = ssc;
+                socketProperties.setProperties(ssc);
+                if (socketCount > 1) {
+                    JreCompat.getInstance().setReusePort(ssc);
+                }
+                ssc.bind(addr,getBacklog());
+                if (i == 0) {
+                    // If an ephemeral port was requested, the remaining sockets
+                    // must share the port the first one was given
+                    addr = new InetSocketAddress(addr.getAddress(),
+                            ((InetSocketAddress) ssc.getLocalAddress()).getPort());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Don't leak the sockets that were bound before the failure
+            for (AsynchronousServerSocketChannel ssc : serverSocks) {
+                if (ssc != null) {
+                    try {
+                        ssc.close();
+                    } catch (IOException ioe) {
+                        // Ignore
+                    }
+                }
+            }
+            serverSocks = null;
+            throw e;
+        }
+        serverSock = serverSocks[0];
+
         // Initialize SSL if needed
         if (isSSLEnabled()) {
-            SSLUtil sslUtil = handler.getSslImplementation().getSSLUtil(this);
-
-            sslContext = sslUtil.createSSLContext();
-            sslContext.init(wrap(sslUtil.getKeyManagers()),
-                    sslUtil.getTrustManagers(), null);
-
-            SSLSessionContext sessionContext =
-                sslContext.getServerSessionContext();
-            if (sessionContext != null) {
-                sslUtil.configureSessionContext(sessionContext);
+            SSLImplementation sslImplementation = handler.getSslImplementation();
+            SSLUtil sslUtil = sslImplementation.getSSLUtil(this);
+
+            sslContext = acquireSharedSSLContext(sslImplementation);
+            if (sslContext == null) {
+                SSLContext context = sslUtil.createSSLContext();
+                context.init(wrap(sslUtil.getKeyManagers()),
+                        sslUtil.getTrustManagers(), null);
+
+                SSLSessionContext sessionContext =
+                    context.getServerSessionContext();
+                if (sessionContext != null) {
+                    sslUtil.configureSessionContext(sessionContext);
+                }
+                sslContext = registerSharedSSLContext(sslImplementation, context);
             }
             // Determine which cipher suites and protocols to enable
             enabledCiphers = sslUtil.getEnableableCiphers(sslContext);
@@ -330,10 +395,12 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
         if (managers==null) return null;
         KeyManager[] result = new KeyManager[managers.length];
         for (int i=0; i<result.length; i++) {
-            if (managers[i] instanceof X509KeyManager && getKeyAlias()!=null) {
+            // Always wrapped so that full handshakes can be told apart from
+            // resumed sessions
+            if (managers[i] instanceof X509KeyManager) {
                 String keyAlias = getKeyAlias();
                 // JKS keystores always convert the alias name to lower case
-                if ("jks".equalsIgnoreCase(getKeystoreType())) {
+                if (keyAlias != null && "jks".equalsIgnoreCase(getKeystoreType())) {
                     keyAlias = keyAlias.toLowerCase(Locale.ENGLISH);
                 }
                 result[i] = new NioX509KeyManager((X509KeyManager) managers[i], keyAlias);
@@ -428,9 +495,13 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
         if (running) {
             stop();
         }
-        // Close server socket
-        serverSock.close();
+        // Close server socket(s)
+        for (AsynchronousServerSocketChannel ssc : serverSocks) {
+            ssc.close();
+        }
         serverSock = null;
+        serverSocks = null;
+        releaseSharedSSLContext(sslContext);
         sslContext = null;
         // Unlike other connectors, the thread pool is tied to the server socket
         shutdownExecutor();
@@ -569,6 +640,7 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
         engine.setEnabledProtocols(enabledProtocols);
 
         configureUseServerCipherSuitesOrder(engine);
+        configureNegotiatedProtocols(engine);
 
         return engine;
     }
@@ -691,6 +763,8 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
         public void run() {
 
             int errorDelay = 0;
+            AsynchronousServerSocketChannel ssc =
+                    serverSocks[getIndex() % serverSocks.length];
 
             // Loop until we receive a shutdown command
             while (running) {
@@ -718,7 +792,7 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
                     try {
                         // Accept the next incoming connection from the server
                         // socket
-                        socket = serverSock.accept().get();
+                        socket = ssc.accept().get();
                     } catch (Exception e) {
                         countDownConnection();
                         if (running) {
@@ -732,6 +806,7 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
                     }
                     // Successful accept, reset the error delay
                     errorDelay = 0;
+                    countAccept();
 
                     // Configure the socket
                     if (running && !paused) {
@@ -895,6 +970,51 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
                TimeUnit.MILLISECONDS, socket, awaitBytes);
     }
 
+    /**
+     * The maximum size of the file region that is mapped into memory at any
+     * one time for a sendfile write.
+     */
+    private static final int SENDFILE_MAX_MAPPED_REGION = 16 * 1024 * 1024;
+
+    /*
+     * Asynchronous socket channels do not support transferTo() so sendfile
+     * writes memory mapped regions of the file where that is allowed, so the
+     * data is written directly from the page cache rather than being copied
+     * through a Java buffer. While mapped, the file cannot be deleted on
+     * Windows and truncating it crashes the JVM, so larger files, for which
+     * those windows are longest, are read into the socket's write buffer.
+     */
+    private static ByteBuffer nextSendfileBuffer(SendfileData data) throws IOException {
+        if (data.mapped) {
+            long size = Math.min(data.length, SENDFILE_MAX_MAPPED_REGION);
+            ByteBuffer buffer = data.fchannel.map(FileChannel.MapMode.READ_ONLY, data.pos, size);
+            data.pos += size;
+            data.length -= size;
+            return buffer;
+        }
+        ByteBuffer buffer = data.socket.getSocket().getBufHandler().getWriteBuffer();
+        buffer.clear();
+        if (data.length < buffer.remaining()) {
+            buffer.limit((int) data.length);
+        }
+        int nRead = data.fchannel.read(buffer, data.pos);
+        if (nRead < 0) {
+            throw new EOFException();
+        }
+        buffer.flip();
+        data.pos += nRead;
+        data.length -= nRead;
+        return buffer;
+    }
+
+    private static void releaseSendfileBuffer(SendfileData data) {
+        // Only called once the write using the buffer has completed
+        if (data.mapped) {
+            ByteBufferUtils.cleanDirectBuffer(data.buffer);
+        }
+        data.buffer = null;
+    }
+
     private CompletionHandler<Integer, SendfileData> sendfile = new CompletionHandler<Integer, SendfileData>() {
 
         @Override
@@ -903,12 +1023,11 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
                 failed(new EOFException(), attachment);
                 return;
             }
-            attachment.pos += nWrite.intValue();
             if (!attachment.buffer.hasRemaining()) {
+                releaseSendfileBuffer(attachment);
                 if (attachment.length <= 0) {
                     // All data has now been written
                     attachment.socket.setSendfileData(null);
-                    attachment.buffer.clear();
                     try {
                         attachment.fchannel.close();
                     } catch (IOException e) {
@@ -934,24 +1053,12 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
                     }
                     return;
                 } else {
-                    attachment.buffer.clear();
-                    int nRead = -1;
                     try {
-                        nRead = attachment.fchannel.read(attachment.buffer);
+                        attachment.buffer = nextSendfileBuffer(attachment);
                     } catch (IOException e) {
                         failed(e, attachment);
                         return;
                     }
-                    if (nRead > 0) {
-                        attachment.buffer.flip();
-                        if (attachment.length < attachment.buffer.remaining()) {
-                            attachment.buffer.limit(attachment.buffer.limit() - attachment.buffer.remaining() + (int) attachment.length);
-                        }
-                        attachment.length -= nRead;
-                    } else {
-                        failed(new EOFException(), attachment);
-                        return;
-                    }
                 }
             }
             attachment.socket.getSocket().write(attachment.buffer, attachment.socket.getTimeout(),
@@ -960,6 +1067,7 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
 
         @Override
         public void failed(Throwable exc, SendfileData attachment) {
+            releaseSendfileBuffer(attachment);
             try {
                 attachment.fchannel.close();
             } catch (IOException e) {
@@ -982,43 +1090,39 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
             java.nio.file.Path path = new File(data.fileName).toPath();
             try {
                 data.fchannel = java.nio.channels.FileChannel
-                        .open(path, StandardOpenOption.READ).position(data.pos);
+                        .open(path, StandardOpenOption.READ);
             } catch (IOException e) {
                 return SendfileState.ERROR;
             }
         }
-        ByteBuffer buffer = socket.getSocket().getBufHandler().getWriteBuffer();
-        buffer.clear();
-        int nRead = -1;
+        data.socket = socket;
+        data.mapped = data.length <= maxMappedSendfileSize;
         try {
-            nRead = data.fchannel.read(buffer);
-        } catch (IOException e1) {
+            data.buffer = nextSendfileBuffer(data);
+        } catch (IOException e) {
+            try {
+                data.fchannel.close();
+            } catch (IOException ioe) {
+                // Ignore
+            }
             return SendfileState.ERROR;
         }
 
-        if (nRead >= 0) {
-            buffer.flip();
-            data.socket = socket;
-            data.buffer = buffer;
-            data.length -= nRead;
-            startInline();
-            try {
-                socket.getSocket().write(buffer, socket.getTimeout(), TimeUnit.MILLISECONDS,
-                        data, sendfile);
-            } finally {
-                endInline();
-            }
-            if (data.doneInline) {
-                if (data.error) {
-                    return SendfileState.ERROR;
-                } else {
-                    return SendfileState.DONE;
-                }
+        startInline();
+        try {
+            socket.getSocket().write(data.buffer, socket.getTimeout(), TimeUnit.MILLISECONDS,
+                    data, sendfile);
+        } finally {
+            endInline();
+        }
+        if (data.doneInline) {
+            if (data.error) {
+                return SendfileState.ERROR;
             } else {
-                return SendfileState.PENDING;
+                return SendfileState.DONE;
             }
         } else {
-            return SendfileState.ERROR;
+            return SendfileState.PENDING;
         }
     }
 
@@ -1027,7 +1131,7 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
      * This class is the equivalent of the Worker, but will simply use in an
      * external Executor thread pool.
      */
-    protected class SocketProcessor implements Runnable {
+    protected class SocketProcessor implements ClassifiedTask {
 
         private SocketWrapper<Nio2Channel> socket = null;
         private SocketStatus status = null;
@@ -1041,6 +1145,11 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
             this.status = status;
         }
 
+        @Override
+        public String getSchedulingClass() {
+            return getSchedulingClassForSocket(socket);
+        }
+
         @Override
         public void run() {
             // Upgraded connections need to allow multiple threads to access the
@@ -1072,6 +1181,9 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
                             handshake = 0;
                         } else {
                             handshake = socket.getSocket().handshake();
+                            if (handshake == 0 && socket.getSocket() instanceof SecureNio2Channel) {
+                                countHandshake(((SecureNio2Channel) socket.getSocket()).isSessionResumed());
+                            }
                             // The handshake process reads/writes from/to the
                             // socket. status may therefore be OPEN_WRITE once
                             // the handshake completes. However, the handshake
@@ -1171,6 +1283,7 @@ public class Nio2Endpoint extends AbstractEndpoint<Nio2Channel> {
         // Internal use only
         private Nio2SocketWrapper socket;
         private ByteBuffer buffer;
+        private boolean mapped = false;
         private boolean doneInline = false;
         private boolean error = false;
     }
@@ -0,0 +1,175 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tomcat.util.buf.ByteBufferUtils;
+import org.apache.tomcat.util.collections.SynchronizedStack;
+
+/**
+ * An arena of direct {@link ByteBuffer}s that is shared by all the connections
+ * of an endpoint. Connections borrow buffers while they have data in flight and
+ * give them back when they become idle, so the memory used for application
+ * buffers is proportional to the number of active connections rather than the
+ * number of open connections.
+ * <p>
+ * Buffers are kept in a free list per buffer size. Buffers that are given back
+ * when the free lists already hold <code>maxSize</code> bytes are released
+ * immediately. Buffers that are never given back (e.g. because the connection
+ * was closed asynchronously) must be reported via {@link #abandon(ByteBuffer)}
+ * and are left to the garbage collector.
+ */
+public class NioBufferArena {
+
+    private final long maxSize;
+
+    private final ConcurrentMap<Integer,SynchronizedStack<ByteBuffer>> freeLists =
+            new ConcurrentHashMap<>();
+
+    private final AtomicInteger lentBuffers = new AtomicInteger();
+    private final AtomicLong lentBytes = new AtomicLong();
+    private final AtomicInteger freeBuffers = new AtomicInteger();
+    private final AtomicLong freeBytes = new AtomicLong();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong allocationCount = new AtomicLong();
+
+
+    /**
+     * @param maxSize The maximum number of bytes to hold in the free lists or
+     *                -1 for unlimited
+     */
+    public NioBufferArena(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Borrow a cleared buffer of the given capacity.
+     *
+     * @param size The required buffer capacity in bytes
+     *
+     * @return A direct buffer with the given capacity
+     */
+    public ByteBuffer borrow(int size) {
+        ByteBuffer buffer = getFreeList(size).pop();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+            allocationCount.incrementAndGet();
+        } else {
+            freeBuffers.decrementAndGet();
+            freeBytes.addAndGet(-size);
+            buffer.clear();
+        }
+        borrowCount.incrementAndGet();
+        lentBuffers.incrementAndGet();
+        lentBytes.addAndGet(size);
+        return buffer;
+    }
+
+
+    /**
+     * Give back a buffer obtained from {@link #borrow(int)}. The caller must
+     * not use the buffer after this method has been called.
+     *
+     * @param buffer The buffer to return to the arena
+     */
+    public void giveBack(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        lentBuffers.decrementAndGet();
+        lentBytes.addAndGet(-size);
+        long newFreeBytes = freeBytes.addAndGet(size);
+        if (maxSize >= 0 && newFreeBytes > maxSize) {
+            freeBytes.addAndGet(-size);
+            ByteBufferUtils.cleanDirectBuffer(buffer);
+            return;
+        }
+        freeBuffers.incrementAndGet();
+        getFreeList(size).push(buffer);
+    }
+
+
+    /**
+     * Record that a borrowed buffer will not be given back. The buffer is not
+     * released since it may still be referenced elsewhere.
+     *
+     * @param buffer The buffer that has been abandoned
+     */
+    public void abandon(ByteBuffer buffer) {
+        lentBuffers.decrementAndGet();
+        lentBytes.addAndGet(-buffer.capacity());
+    }
+
+
+    /**
+     * Release all the buffers in the free lists.
+     */
+    public void clear() {
+        for (SynchronizedStack<ByteBuffer> freeList : freeLists.values()) {
+            ByteBuffer buffer = freeList.pop();
+            while (buffer != null) {
+                freeBuffers.decrementAndGet();
+                freeBytes.addAndGet(-buffer.capacity());
+                ByteBufferUtils.cleanDirectBuffer(buffer);
+                buffer = freeList.pop();
+            }
+        }
+    }
+
+
+    private SynchronizedStack<ByteBuffer> getFreeList(int size) {
+        Integer key = Integer.valueOf(size);
+        SynchronizedStack<ByteBuffer> freeList = freeLists.get(key);
+        if (freeList == null) {
+            freeList = new SynchronizedStack<>(SynchronizedStack.DEFAULT_SIZE, -1);
+            SynchronizedStack<ByteBuffer> existing = freeLists.putIfAbsent(key, freeList);
+            if (existing != null) {
+                freeList = existing;
+            }
+        }
+        return freeList;
+    }
+
+
+    public int getLentBuffers() {
+        return lentBuffers.get();
+    }
+
+    public long getLentBytes() {
+        return lentBytes.get();
+    }
+
+    public int getFreeBuffers() {
+        return freeBuffers.get();
+    }
+
+    public long getFreeBytes() {
+        return freeBytes.get();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+}
@@ -16,6 +16,7 @@
  */
 package org.apache.tomcat.util.net;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -31,13 +32,19 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -58,6 +65,8 @@ import org.apache.tomcat.util.compat.JreCompat;
 import org.apache.tomcat.util.net.AbstractEndpoint.Handler.SocketState;
 import org.apache.tomcat.util.net.SecureNioChannel.ApplicationBufferHandler;
 import org.apache.tomcat.util.net.jsse.NioX509KeyManager;
+import org.apache.tomcat.util.threads.ClassifiedTask;
+import org.apache.tomcat.util.threads.TaskThreadFactory;
 
 /**
  * NIO tailored thread pool, providing the following services:
@@ -95,6 +104,12 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
      */
     private ServerSocketChannel serverSock = null;
 
+    /**
+     * All the server sockets. There is more than one only if reusePort is
+     * enabled, in which case each acceptor has its own socket.
+     */
+    private ServerSocketChannel[] serverSocks = null;
+
     /**
      * use send file
      */
@@ -122,11 +137,6 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
      */
     private long lastParachuteCheck = System.currentTimeMillis();
 
-    /**
-     *
-     */
-    private volatile CountDownLatch stopLatch = null;
-
     /**
      * Cache for SocketProcessor objects
      */
@@ -142,6 +152,12 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
      */
     private SynchronizedStack<NioChannel> nioChannels;
 
+    /**
+     * Arena of application buffers shared by all connections. Only used if
+     * enabled via {@link SocketProperties#getBufferArena()}.
+     */
+    private volatile NioBufferArena bufferArena = null;
+
 
     // ------------------------------------------------------------ Constructor
 
@@ -183,6 +199,85 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
     public int getPollerThreadPriority() { return pollerThreadPriority; }
 
 
+    /**
+     * Number of threads used to run the delegated tasks of TLS handshakes. If
+     * zero, the tasks run on the thread processing the socket.
+     */
+    private int handshakeThreadCount = 0;
+    public void setHandshakeThreadCount(int handshakeThreadCount) { this.handshakeThreadCount = handshakeThreadCount; }
+    public int getHandshakeThreadCount() { return handshakeThreadCount; }
+
+    private volatile ThreadPoolExecutor handshakeExecutor = null;
+
+    /**
+     * @return The number of delegated handshake tasks waiting for a handshake
+     *         thread or -1 if there is no handshake executor
+     */
+    public int getHandshakeQueueSize() {
+        ThreadPoolExecutor executor = handshakeExecutor;
+        return executor == null ? -1 : executor.getQueue().size();
+    }
+
+    /**
+     * @return The number of handshake threads currently running delegated
+     *         handshake tasks or -1 if there is no handshake executor
+     */
+    public int getHandshakeActiveCount() {
+        ThreadPoolExecutor executor = handshakeExecutor;
+        return executor == null ? -1 : executor.getActiveCount();
+    }
+
+    /**
+     * @return The number of delegated handshake tasks that have been completed
+     *         by the handshake executor or -1 if there is no handshake executor
+     */
+    public long getHandshakeCompletedTaskCount() {
+        ThreadPoolExecutor executor = handshakeExecutor;
+        return executor == null ? -1 : executor.getCompletedTaskCount();
+    }
+
+
+    /**
+     * Maximum size, in bytes, of a request body that will be read by the
+     * Poller before the request is dispatched to a worker thread, so that slow
+     * clients do not hold a worker thread while they send the body. Zero, the
+     * default, disables pre-reading.
+     */
+    private int maxPreReadBodySize = 0;
+    public void setMaxPreReadBodySize(int maxPreReadBodySize) { this.maxPreReadBodySize = maxPreReadBodySize; }
+    public int getMaxPreReadBodySize() { return maxPreReadBodySize; }
+
+    /**
+     * Maximum memory, in bytes, used by all the request bodies being
+     * pre-read. Bodies that would exceed it are read by the worker thread as
+     * usual.
+     */
+    private long maxPreReadBodyMemory = 16 * 1024 * 1024;
+    public void setMaxPreReadBodyMemory(long maxPreReadBodyMemory) { this.maxPreReadBodyMemory = maxPreReadBodyMemory; }
+    public long getMaxPreReadBodyMemory() { return maxPreReadBodyMemory; }
+
+    private final AtomicLong preReadBodyMemory = new AtomicLong(0);
+    private final AtomicLong preReadBodyCount = new AtomicLong(0);
+    private final AtomicLong preReadBodyRejectedCount = new AtomicLong(0);
+
+    /**
+     * @return The memory, in bytes, currently used by request bodies that are
+     *         being or have been pre-read
+     */
+    public long getPreReadBodyMemory() { return preReadBodyMemory.get(); }
+
+    /**
+     * @return The number of request bodies that have been pre-read
+     */
+    public long getPreReadBodyCount() { return preReadBodyCount.get(); }
+
+    /**
+     * @return The number of request bodies that were not pre-read because the
+     *         memory limit had been reached
+     */
+    public long getPreReadBodyRejectedCount() { return preReadBodyRejectedCount.get(); }
+
+
     /**
      * Handling of accepted sockets.
      */
@@ -205,28 +300,160 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
 
     /**
-     * Poller thread count.
+     * Poller thread count. Changing this while the endpoint is running adds
+     * pollers or retires the most recently added ones. A retired poller
+     * accepts no new connections and stops once its existing connections have
+     * closed.
      */
     private int pollerThreadCount = Math.min(2,Runtime.getRuntime().availableProcessors());
-    public void setPollerThreadCount(int pollerThreadCount) { this.pollerThreadCount = pollerThreadCount; }
+    public void setPollerThreadCount(int pollerThreadCount) {
+        this.pollerThreadCount = pollerThreadCount;
+        if (running) {
+            resizePollers(Math.max(1, pollerThreadCount));
+        }
+    }
     public int getPollerThreadCount() { return pollerThreadCount; }
 
+    /**
+     * Assign each new connection to the poller with the fewest connections
+     * rather than in round robin order.
+     */
+    private boolean leastLoadedPoller = false;
+    public void setLeastLoadedPoller(boolean leastLoadedPoller) { this.leastLoadedPoller = leastLoadedPoller; }
+    public boolean getLeastLoadedPoller() { return leastLoadedPoller; }
+
     private long selectorTimeout = 1000;
     public void setSelectorTimeout(long timeout){ this.selectorTimeout = timeout;}
     public long getSelectorTimeout(){ return this.selectorTimeout; }
     /**
      * The socket poller.
      */
-    private Poller[] pollers = null;
+    private volatile Poller[] pollers = null;
     private AtomicInteger pollerRotater = new AtomicInteger(0);
     /**
-     * Return an available poller in true round robin fashion
+     * Pollers removed from {@link #pollers} that still have connections.
+     */
+    private final Set<Poller> retiredPollers =
+            Collections.newSetFromMap(new ConcurrentHashMap<Poller,Boolean>());
+    private final Object pollersLock = new Object();
+    private int pollerSequence = 0;
+    /**
+     * Return an available poller in true round robin fashion, or the least
+     * loaded poller if so configured.
      */
     public Poller getPoller0() {
+        Poller[] pollers = this.pollers;
+        if (leastLoadedPoller) {
+            return getLeastLoadedPoller(pollers, 0, 1);
+        }
         int idx = Math.abs(pollerRotater.incrementAndGet()) % pollers.length;
         return pollers[idx];
     }
 
+    /**
+     * Return an available poller for a connection accepted on the given server
+     * socket. Each socket uses its own subset of the pollers, where possible,
+     * so connections accepted by different acceptors do not compete for the
+     * same poller.
+     */
+    protected Poller getPoller(int shard) {
+        Poller[] pollers = this.pollers;
+        int shards = serverSocks.length;
+        if (shards == 1) {
+            return getPoller0();
+        }
+        if (pollers.length <= shards) {
+            return pollers[shard % pollers.length];
+        }
+        if (leastLoadedPoller) {
+            return getLeastLoadedPoller(pollers, shard, shards);
+        }
+        int shardPollers = (pollers.length - shard + shards - 1) / shards;
+        int idx = Math.abs(pollerRotater.incrementAndGet()) % shardPollers;
+        return pollers[shard + idx * shards];
+    }
+
+    /*
+     * Scans pollers first, first + step, ... for the one with the fewest
+     * connections. The scan starts at a rotating offset so ties are spread
+     * across the candidates.
+     */
+    private Poller getLeastLoadedPoller(Poller[] pollers, int first, int step) {
+        int candidates = (pollers.length - first + step - 1) / step;
+        int offset = Math.abs(pollerRotater.incrementAndGet()) % candidates;
+        Poller result = null;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < candidates; i++) {
+            Poller poller = pollers[first + ((offset + i) % candidates) * step];
+            int count = poller.getConnectionCount();
+            if (count < min) {
+                min = count;
+                result = poller;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The connection count, the number of keys processed and the
+     *         current rate of keys processed per second for each poller,
+     *         including retired pollers that still have connections
+     */
+    public String[] getPollerStatistics() {
+        Poller[] pollers = this.pollers;
+        if (pollers == null) {
+            return new String[0];
+        }
+        List<String> result = new ArrayList<>();
+        for (Poller poller : pollers) {
+            result.add(poller.getStatistics());
+        }
+        for (Poller poller : retiredPollers) {
+            result.add(poller.getStatistics());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private void startPoller(Poller poller, String name) {
+        poller.setName(name);
+        Thread pollerThread = new Thread(poller, name);
+        pollerThread.setPriority(threadPriority);
+        pollerThread.setDaemon(true);
+        pollerThread.start();
+    }
+
+    /*
+     * Grows or shrinks the set of pollers to which new connections are
+     * assigned. Retired pollers continue to serve their connections until
+     * the last one closes.
+     */
+    private void resizePollers(int count) {
+        synchronized (pollersLock) {
+            Poller[] current = pollers;
+            if (current == null || current.length == count) {
+                return;
+            }
+            Poller[] resized = new Poller[count];
+            System.arraycopy(current, 0, resized, 0, Math.min(count, current.length));
+            for (int i = current.length; i < count; i++) {
+                try {
+                    resized[i] = new Poller();
+                } catch (IOException ioe) {
+                    log.error(sm.getString("endpoint.nio.pollerAddFail"), ioe);
+                    return;
+                }
+            }
+            for (int i = current.length; i < count; i++) {
+                startPoller(resized[i], getName() + "-ClientPoller-" + pollerSequence++);
+            }
+            pollers = resized;
+            for (int i = count; i < current.length; i++) {
+                retiredPollers.add(current[i]);
+                current[i].retire();
+            }
+        }
+    }
+
 
     public void setSelectorPool(NioSelectorPool selectorPool) {
         this.selectorPool = selectorPool;
@@ -334,6 +561,60 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         }
     }
 
+    /**
+     * @return The number of buffers currently lent to connections by the
+     *         buffer arena or -1 if the buffer arena is not enabled
+     */
+    public int getBufferArenaLentBuffers() {
+        NioBufferArena arena = bufferArena;
+        return arena == null ? -1 : arena.getLentBuffers();
+    }
+
+    /**
+     * @return The number of bytes currently lent to connections by the buffer
+     *         arena or -1 if the buffer arena is not enabled
+     */
+    public long getBufferArenaLentBytes() {
+        NioBufferArena arena = bufferArena;
+        return arena == null ? -1 : arena.getLentBytes();
+    }
+
+    /**
+     * @return The number of free buffers held by the buffer arena or -1 if
+     *         the buffer arena is not enabled
+     */
+    public int getBufferArenaFreeBuffers() {
+        NioBufferArena arena = bufferArena;
+        return arena == null ? -1 : arena.getFreeBuffers();
+    }
+
+    /**
+     * @return The number of bytes held in free buffers by the buffer arena or
+     *         -1 if the buffer arena is not enabled
+     */
+    public long getBufferArenaFreeBytes() {
+        NioBufferArena arena = bufferArena;
+        return arena == null ? -1 : arena.getFreeBytes();
+    }
+
+    /**
+     * @return The number of buffers borrowed from the buffer arena or -1 if
+     *         the buffer arena is not enabled
+     */
+    public long getBufferArenaBorrowCount() {
+        NioBufferArena arena = bufferArena;
+        return arena == null ? -1 : arena.getBorrowCount();
+    }
+
+    /**
+     * @return The number of buffers allocated by the buffer arena or -1 if
+     *         the buffer arena is not enabled
+     */
+    public long getBufferArenaAllocationCount() {
+        NioBufferArena arena = bufferArena;
+        return arena == null ? -1 : arena.getAllocationCount();
+    }
+
 
     // ----------------------------------------------- Public Lifecycle Methods
 
@@ -344,42 +625,86 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
     @Override
     public void bind() throws Exception {
 
-        serverSock = ServerSocketChannel.open();
-        socketProperties.setProperties(serverSock.socket());
-        InetSocketAddress addr = (getAddress()!=null?new InetSocketAddress(getAddress(),getPort()):new InetSocketAddress(getPort()));
-        serverSock.socket().bind(addr,getBacklog());
-        serverSock.configureBlocking(true); //mimic APR behavior
-        serverSock.socket().setSoTimeout(getSocketProperties().getSoTimeout());
-
         // Initialize thread count defaults for acceptor, poller
         if (acceptorThreadCount == 0) {
             // FIXME: Doesn't seem to work that well with multiple accept threads
             acceptorThreadCount = 1;
         }
+
+        int socketCount = 1;
+        if (getReusePort()) {
+            if (JreCompat.getInstance().isReusePortSupported()) {
+                socketCount = acceptorThreadCount;
+            } else {
+                log.warn(sm.getString("endpoint.warn.noReusePort"));
+            }
+        }
+        serverSocks = new ServerSocketChannel[socketCount];
+        InetSocketAddress addr = (getAddress()!=null?new InetSocketAddress(getAddress(),getPort()):new InetSocketAddress(getPort()));
+        try {
+            for (int i = 0; i < socketCount; i++) {
+                ServerSocketChannel ssc = ServerSocketChannel.open();
+                serverSocks[i] = ssc;
+                socketProperties.setProperties(ssc.socket());
+                if (socketCount > 1) {
+                    JreCompat.getInstance().setReusePort(ssc);
+                }
+                ssc.socket().bind(addr,getBacklog());
+                ssc.configureBlocking(true); //mimic APR behavior
+                ssc.socket().setSoTimeout(getSocketProperties().getSoTimeout());
+                if (i == 0) {
+                    // If an ephemeral port was requested, the remaining sockets
+                    // must share the port the first one was given
+                    addr = new InetSocketAddress(addr.getAddress(), ssc.socket().getLocalPort());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Don't leak the sockets that were bound before the failure
+            for (ServerSocketChannel ssc : serverSocks) {
+                if (ssc != null) {
+                    try {
+                        ssc.close();
+                    } catch (IOException ioe) {
+                        // Ignore
+                    }
+                }
+            }
+            serverSocks = null;
+            throw e;
+        }
+        serverSock = serverSocks[0];
         if (pollerThreadCount <= 0) {
             //minimum one poller thread
             pollerThreadCount = 1;
         }
-        stopLatch = new CountDownLatch(pollerThreadCount);
 
         // Initialize SSL if needed
         if (isSSLEnabled()) {
-            SSLUtil sslUtil = handler.getSslImplementation().getSSLUtil(this);
-
-            sslContext = sslUtil.createSSLContext();
-            sslContext.init(wrap(sslUtil.getKeyManagers()),
-                    sslUtil.getTrustManagers(), null);
-
-            SSLSessionContext sessionContext =
-                sslContext.getServerSessionContext();
-            if (sessionContext != null) {
-                sslUtil.configureSessionContext(sessionContext);
+            SSLImplementation sslImplementation = handler.getSslImplementation();
+            SSLUtil sslUtil = sslImplementation.getSSLUtil(this);
+
+            sslContext = acquireSharedSSLContext(sslImplementation);
+            if (sslContext == null) {
+                SSLContext context = sslUtil.createSSLContext();
+                context.init(wrap(sslUtil.getKeyManagers()),
+                        sslUtil.getTrustManagers(), null);
+
+                SSLSessionContext sessionContext =
+                    context.getServerSessionContext();
+                if (sessionContext != null) {
+                    sslUtil.configureSessionContext(sessionContext);
+                }
+                sslContext = registerSharedSSLContext(sslImplementation, context);
             }
             // Determine which cipher suites and protocols to enable
             enabledCiphers = sslUtil.getEnableableCiphers(sslContext);
             enabledProtocols = sslUtil.getEnableableProtocols(sslContext);
         }
 
+        if (socketProperties.getBufferArena()) {
+            bufferArena = new NioBufferArena(socketProperties.getBufferArenaSize());
+        }
+
         if (oomParachute>0) reclaimParachute(true);
         selectorPool.open();
     }
@@ -388,10 +713,12 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         if (managers==null) return null;
         KeyManager[] result = new KeyManager[managers.length];
         for (int i=0; i<result.length; i++) {
-            if (managers[i] instanceof X509KeyManager && getKeyAlias()!=null) {
+            // Always wrapped so that full handshakes can be told apart from
+            // resumed sessions
+            if (managers[i] instanceof X509KeyManager) {
                 String keyAlias = getKeyAlias();
                 // JKS keystores always convert the alias name to lower case
-                if ("jks".equalsIgnoreCase(getKeystoreType())) {
+                if (keyAlias != null && "jks".equalsIgnoreCase(getKeystoreType())) {
                     keyAlias = keyAlias.toLowerCase(Locale.ENGLISH);
                 }
                 result[i] = new NioX509KeyManager((X509KeyManager) managers[i], keyAlias);
@@ -427,15 +754,22 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
             initializeConnectionLatch();
 
+            if (isSSLEnabled() && handshakeThreadCount > 0) {
+                TaskThreadFactory tf = new TaskThreadFactory(
+                        getName() + "-handshake-", true, getThreadPriority());
+                handshakeExecutor = new ThreadPoolExecutor(
+                        handshakeThreadCount, handshakeThreadCount, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), tf);
+            }
+
             // Start poller threads
-            pollers = new Poller[getPollerThreadCount()];
+            Poller[] pollers = new Poller[getPollerThreadCount()];
             for (int i=0; i<pollers.length; i++) {
                 pollers[i] = new Poller();
-                Thread pollerThread = new Thread(pollers[i], getName() + "-ClientPoller-"+i);
-                pollerThread.setPriority(threadPriority);
-                pollerThread.setDaemon(true);
-                pollerThread.start();
+                startPoller(pollers[i], getName() + "-ClientPoller-"+i);
             }
+            pollerSequence = pollers.length;
+            this.pollers = pollers;
 
             startAcceptorThreads();
         }
@@ -454,16 +788,33 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         if (running) {
             running = false;
             unlockAccept();
-            for (int i=0; pollers!=null && i<pollers.length; i++) {
-                if (pollers[i]==null) continue;
-                pollers[i].destroy();
-                pollers[i] = null;
+            List<Poller> stopping = new ArrayList<>();
+            synchronized (pollersLock) {
+                Poller[] pollers = this.pollers;
+                for (int i=0; pollers!=null && i<pollers.length; i++) {
+                    if (pollers[i]==null) continue;
+                    stopping.add(pollers[i]);
+                }
+                stopping.addAll(retiredPollers);
+                this.pollers = null;
             }
+            for (Poller poller : stopping) {
+                poller.destroy();
+            }
+            long deadline = System.currentTimeMillis() + selectorTimeout + 100;
             try {
-                stopLatch.await(selectorTimeout + 100, TimeUnit.MILLISECONDS);
+                for (Poller poller : stopping) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) break;
+                    poller.stopLatch.await(wait, TimeUnit.MILLISECONDS);
+                }
             } catch (InterruptedException ignore) {
             }
             shutdownExecutor();
+            if (handshakeExecutor != null) {
+                handshakeExecutor.shutdownNow();
+                handshakeExecutor = null;
+            }
             eventCache.clear();
             nioChannels.clear();
             processorCache.clear();
@@ -483,12 +834,20 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         if (running) {
             stop();
         }
-        // Close server socket
-        serverSock.socket().close();
-        serverSock.close();
+        // Close server socket(s)
+        for (ServerSocketChannel ssc : serverSocks) {
+            ssc.socket().close();
+            ssc.close();
+        }
         serverSock = null;
+        serverSocks = null;
+        releaseSharedSSLContext(sslContext);
         sslContext = null;
         releaseCaches();
+        if (bufferArena != null) {
+            bufferArena.clear();
+            bufferArena = null;
+        }
         selectorPool.close();
         if (log.isDebugEnabled()) {
             log.debug("Destroy completed for "+new InetSocketAddress(getAddress(),getPort()));
@@ -535,6 +894,14 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
      * Process the specified connection.
      */
     protected boolean setSocketOptions(SocketChannel socket) {
+        return setSocketOptions(socket, getPoller0());
+    }
+
+
+    /**
+     * Process the specified connection, registering it with the given poller.
+     */
+    protected boolean setSocketOptions(SocketChannel socket, Poller poller) {
         // Process the connection
         try {
             //disable blocking, APR style, we are gonna be polling it
@@ -548,15 +915,13 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 if (sslContext != null) {
                     SSLEngine engine = createSSLEngine();
                     int appbufsize = engine.getSession().getApplicationBufferSize();
-                    NioBufferHandler bufhandler = new NioBufferHandler(Math.max(appbufsize,socketProperties.getAppReadBufSize()),
-                                                                       Math.max(appbufsize,socketProperties.getAppWriteBufSize()),
-                                                                       socketProperties.getDirectBuffer());
+                    ApplicationBufferHandler bufhandler = createBufferHandler(Math.max(appbufsize,socketProperties.getAppReadBufSize()),
+                                                                              Math.max(appbufsize,socketProperties.getAppWriteBufSize()));
                     channel = new SecureNioChannel(socket, engine, bufhandler, selectorPool);
                 } else {
                     // normal tcp setup
-                    NioBufferHandler bufhandler = new NioBufferHandler(socketProperties.getAppReadBufSize(),
-                                                                       socketProperties.getAppWriteBufSize(),
-                                                                       socketProperties.getDirectBuffer());
+                    ApplicationBufferHandler bufhandler = createBufferHandler(socketProperties.getAppReadBufSize(),
+                                                                              socketProperties.getAppWriteBufSize());
 
                     channel = new NioChannel(socket, bufhandler);
                 }
@@ -569,7 +934,10 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     channel.reset();
                 }
             }
-            getPoller0().register(channel);
+            if (channel instanceof SecureNioChannel) {
+                ((SecureNioChannel) channel).setHandshakeExecutor(handshakeExecutor);
+            }
+            poller.register(channel);
         } catch (Throwable t) {
             ExceptionUtils.handleThrowable(t);
             try {
@@ -583,6 +951,82 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         return true;
     }
 
+    private ApplicationBufferHandler createBufferHandler(int readsize, int writesize) {
+        NioBufferArena arena = bufferArena;
+        if (arena == null) {
+            return new NioBufferHandler(readsize, writesize, socketProperties.getDirectBuffer());
+        } else {
+            return new ArenaBufferHandler(arena, readsize, writesize);
+        }
+    }
+
+
+    /**
+     * Reserve memory to pre-read the remainder of a request body.
+     *
+     * @param length        The content length of the request
+     * @param remaining     The number of bytes of the body that have not yet
+     *                      been read
+     *
+     * @return The buffer into which the body should be read or
+     *         <code>null</code> if the body should not be pre-read
+     */
+    public PreReadBody allocatePreReadBody(long length, long remaining) {
+        if (length > maxPreReadBodySize || remaining <= 0) {
+            return null;
+        }
+        long inUse;
+        do {
+            inUse = preReadBodyMemory.get();
+            if (inUse + remaining > maxPreReadBodyMemory) {
+                preReadBodyRejectedCount.incrementAndGet();
+                return null;
+            }
+        } while (!preReadBodyMemory.compareAndSet(inUse, inUse + remaining));
+        preReadBodyCount.incrementAndGet();
+        return new PreReadBody((int) remaining);
+    }
+
+
+    /**
+     * Return the memory used by a pre-read request body once it is no longer
+     * required.
+     *
+     * @param body The body to release
+     */
+    public void releasePreReadBody(PreReadBody body) {
+        preReadBodyMemory.addAndGet(-body.getCapacity());
+    }
+
+
+    /**
+     * Give the application buffers of an idle connection back to the buffer
+     * arena, if one is in use. Must only be called by the thread that is
+     * currently processing the connection, when the buffers hold no data.
+     *
+     * @param channel The connection that is about to become idle
+     */
+    public void releaseBuffers(NioChannel channel) {
+        ApplicationBufferHandler bufHandler = channel.getBufHandler();
+        if (bufHandler instanceof ArenaBufferHandler) {
+            ((ArenaBufferHandler) bufHandler).release();
+        }
+    }
+
+
+    /*
+     * Used when a connection is closed by a thread other than the one that may
+     * be processing it. The buffers may still be in use so they are left to
+     * the GC rather than being returned to the arena.
+     */
+    private void abandonBuffers(NioChannel channel) {
+        ApplicationBufferHandler bufHandler = channel.getBufHandler();
+        if (bufHandler instanceof ArenaBufferHandler) {
+            ((ArenaBufferHandler) bufHandler).abandon();
+        }
+    }
+
+
     protected SSLEngine createSSLEngine() {
         SSLEngine engine = sslContext.createSSLEngine();
         if ("false".equals(getClientAuth())) {
@@ -598,6 +1042,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         engine.setEnabledProtocols(enabledProtocols);
 
         configureUseServerCipherSuitesOrder(engine);
+        configureNegotiatedProtocols(engine);
 
         return engine;
     }
@@ -662,6 +1107,8 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         public void run() {
 
             int errorDelay = 0;
+            int shard = getIndex() % serverSocks.length;
+            ServerSocketChannel ssc = serverSocks[shard];
 
             // Loop until we receive a shutdown command
             while (running) {
@@ -689,7 +1136,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     try {
                         // Accept the next incoming connection from the server
                         // socket
-                        socket = serverSock.accept();
+                        socket = ssc.accept();
                     } catch (IOException ioe) {
                         //we didn't get a socket
                         countDownConnection();
@@ -700,11 +1147,12 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     }
                     // Successful accept, reset the error delay
                     errorDelay = 0;
+                    countAccept();
 
                     // setSocketOptions() will add channel to the poller
                     // if successful
                     if (running && !paused) {
-                        if (!setSocketOptions(socket)) {
+                        if (!setSocketOptions(socket, getPoller(shard))) {
                             countDownConnection();
                             closeSocket(socket);
                         }
@@ -806,6 +1254,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                         // processed. Count down the connections at this point
                         // since it won't have been counted down when the socket
                         // closed.
+                        socket.getPoller().connectionClosed();
                         socket.getPoller().getEndpoint().countDownConnection();
                     } else {
                         final KeyAttachment att = (KeyAttachment) key.attachment();
@@ -849,6 +1298,23 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
         private volatile int keyCount = 0;
 
+        private String name = null;
+        private final CountDownLatch stopLatch = new CountDownLatch(1);
+
+        /*
+         * Number of connections registered with this poller. Set to -1 once a
+         * retired poller has no connections left, after which register()
+         * passes new connections to another poller.
+         */
+        private final AtomicInteger connectionCount = new AtomicInteger(0);
+        private volatile boolean retired = false;
+
+        // Only written by the poller thread
+        private volatile long eventCount = 0;
+        private volatile double eventRate = 0;
+        private long rateEventCount = 0;
+        private long rateStart = System.currentTimeMillis();
+
         public Poller() throws IOException {
             synchronized (Selector.class) {
                 // Selector.open() isn't thread safe
@@ -860,6 +1326,44 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
         public int getKeyCount() { return keyCount; }
 
+        public int getConnectionCount() {
+            return Math.max(0, connectionCount.get());
+        }
+
+        /**
+         * @return The number of selected keys processed by this poller
+         */
+        public long getEventCount() { return eventCount; }
+
+        /**
+         * @return The number of selected keys processed per second, measured
+         *         over the most recent interval of at least one second
+         */
+        public double getEventRate() { return eventRate; }
+
+        String getName() { return name; }
+        void setName(String name) { this.name = name; }
+
+        String getStatistics() {
+            return sm.getString("endpoint.nio.pollerStatistics", name,
+                    Integer.valueOf(getConnectionCount()), Long.valueOf(eventCount),
+                    String.format(Locale.ENGLISH, "%.1f", Double.valueOf(eventRate)),
+                    Boolean.valueOf(retired));
+        }
+
+        /**
+         * Stop assigning new connections to this poller. The poller stops once
+         * all of its existing connections have closed.
+         */
+        protected void retire() {
+            retired = true;
+            selector.wakeup();
+        }
+
+        private void connectionClosed() {
+            connectionCount.decrementAndGet();
+        }
+
         public Selector getSelector() { return selector;}
 
         NioEndpoint getEndpoint() {
@@ -937,6 +1441,15 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
          * @param socket    The newly created socket
          */
         public void register(final NioChannel socket) {
+            int count;
+            do {
+                count = connectionCount.get();
+                if (count < 0) {
+                    // Retired and stopped. Use one of the current pollers.
+                    getPoller0().register(socket);
+                    return;
+                }
+            } while (!connectionCount.compareAndSet(count, count + 1));
             socket.setPoller(this);
             KeyAttachment ka = new KeyAttachment(socket);
             ka.setPoller(this);
@@ -975,6 +1488,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 // needs to be closed first, if available, to ensure that TLS
                 // connections are shut down cleanly.
                 if (ka != null) {
+                    abandonBuffers(ka.getSocket());
                     try {
                         ka.getSocket().close(true);
                     } catch (Exception e){
@@ -1005,6 +1519,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 } catch (Exception ignore) {
                 }
                 if (ka != null) {
+                    connectionClosed();
                     countDownConnection();
                 }
             } catch (Throwable e) {
@@ -1079,6 +1594,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
                     Iterator<SelectionKey> iterator =
                         keyCount > 0 ? selector.selectedKeys().iterator() : null;
+                    int processed = 0;
                     // Walk through the collection of ready keys and dispatch
                     // any active event.
                     while (iterator != null && iterator.hasNext()) {
@@ -1092,11 +1608,29 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                             attachment.access();
                             iterator.remove();
                             processKey(sk, attachment);
+                            processed++;
                         }
                     }//while
+                    if (processed > 0) {
+                        eventCount += processed;
+                    }
 
                     //process timeouts
                     timeout(keyCount,hasEvents);
+                    updateEventRate();
+                    if (retired && !hasEvents && events.size() == 0 &&
+                            connectionCount.compareAndSet(0, -1)) {
+                        // Retired and all connections have closed
+                        close = true;
+                        events();
+                        try {
+                            selector.close();
+                        } catch (IOException ioe) {
+                            log.error(sm.getString(
+                                    "endpoint.nio.selectorCloseFail"), ioe);
+                        }
+                        break;
+                    }
                     if ( oomParachute > 0 && oomParachuteData == null ) checkParachute();
                 } catch (OutOfMemoryError oom) {
                     try {
@@ -1114,9 +1648,20 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 }
             }//while
 
+            retiredPollers.remove(this);
             stopLatch.countDown();
         }
 
+        private void updateEventRate() {
+            long now = System.currentTimeMillis();
+            long elapsed = now - rateStart;
+            if (elapsed >= 1000) {
+                eventRate = (eventCount - rateEventCount) * 1000.0 / elapsed;
+                rateEventCount = eventCount;
+                rateStart = now;
+            }
+        }
+
         protected boolean processKey(SelectionKey sk, KeyAttachment attachment) {
             boolean result = true;
             try {
@@ -1127,6 +1672,8 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     if (sk.isReadable() || sk.isWritable() ) {
                         if ( attachment.getSendfileData() != null ) {
                             processSendfile(sk,attachment, false);
+                        } else if (attachment.getPreReadBody() != null) {
+                            processPreRead(sk, attachment);
                         } else {
                             if ( isWorkerAvailable() ) {
                                 unreg(sk, attachment, sk.readyOps());
@@ -1241,6 +1788,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                             if (log.isDebugEnabled()) {
                                 log.debug("Connection is keep alive, registering back for OP_READ");
                             }
+                            releaseBuffers(sc);
                             reg(sk, attachment, SelectionKey.OP_READ);
                             break;
                         }
@@ -1273,6 +1821,30 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             }
         }
 
+        /**
+         * Continue to read a request body without blocking. The request is
+         * dispatched to a worker thread once all of the body has been read.
+         */
+        protected void processPreRead(SelectionKey sk, KeyAttachment attachment) {
+            try {
+                unreg(sk, attachment, sk.readyOps());
+                PreReadBody body = attachment.getPreReadBody();
+                if (body.read(attachment.getSocket())) {
+                    attachment.setPreReadBody(null);
+                    if (!processSocket(attachment, SocketStatus.OPEN_READ, true)) {
+                        cancelledKey(sk, SocketStatus.DISCONNECT);
+                    }
+                } else {
+                    reg(sk, attachment, SelectionKey.OP_READ);
+                }
+            } catch (IOException x) {
+                if (log.isDebugEnabled()) {
+                    log.debug(sm.getString("endpoint.nio.preReadFail"), x);
+                }
+                cancelledKey(sk, SocketStatus.ERROR);
+            }
+        }
+
         protected void unreg(SelectionKey sk, KeyAttachment attachment, int readyOps) {
             //this is a must, so that we don't have multiple threads messing with the socket
             reg(sk,attachment,sk.interestOps()& (~readyOps));
@@ -1404,6 +1976,8 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
         public void setSendfileData(SendfileData sf) { this.sendfileData = sf;}
         public SendfileData getSendfileData() { return this.sendfileData;}
+        public void setPreReadBody(PreReadBody body) { this.preReadBody = body;}
+        public PreReadBody getPreReadBody() { return this.preReadBody;}
 
         public void setWriteTimeout(long writeTimeout) {
             this.writeTimeout = writeTimeout;
@@ -1415,6 +1989,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         private CountDownLatch readLatch = null;
         private CountDownLatch writeLatch = null;
         private volatile SendfileData sendfileData = null;
+        private volatile PreReadBody preReadBody = null;
         private long writeTimeout = -1;
 
     }
@@ -1443,6 +2018,83 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
     }
 
+    /**
+     * Application buffer handler that borrows its buffers from a
+     * {@link NioBufferArena} when they are first used and gives them back when
+     * the connection is idle.
+     */
+    public static class ArenaBufferHandler implements ApplicationBufferHandler {
+        private final NioBufferArena arena;
+        private final int readsize;
+        private final int writesize;
+        private ByteBuffer readbuf = null;
+        private ByteBuffer writebuf = null;
+        // Set if buffers had to be abandoned. Any further use of this handler
+        // is by a thread that has yet to notice the connection was closed.
+        private boolean abandoned = false;
+
+        public ArenaBufferHandler(NioBufferArena arena, int readsize, int writesize) {
+            this.arena = arena;
+            this.readsize = readsize;
+            this.writesize = writesize;
+        }
+
+        @Override
+        public ByteBuffer expand(ByteBuffer buffer, int remaining) {return buffer;}
+
+        @Override
+        public synchronized ByteBuffer getReadBuffer() {
+            if (readbuf == null) {
+                readbuf = abandoned ? ByteBuffer.allocate(readsize) : arena.borrow(readsize);
+            }
+            return readbuf;
+        }
+
+        @Override
+        public synchronized ByteBuffer getWriteBuffer() {
+            if (writebuf == null) {
+                writebuf = abandoned ? ByteBuffer.allocate(writesize) : arena.borrow(writesize);
+            }
+            return writebuf;
+        }
+
+        /**
+         * Give the buffers back to the arena. The buffers must not hold any
+         * data.
+         */
+        public synchronized void release() {
+            if (abandoned) {
+                return;
+            }
+            if (readbuf != null) {
+                arena.giveBack(readbuf);
+                readbuf = null;
+            }
+            if (writebuf != null) {
+                arena.giveBack(writebuf);
+                writebuf = null;
+            }
+        }
+
+        /**
+         * Stop using the arena without giving the buffers back since another
+         * thread may still be using them.
+         */
+        public synchronized void abandon() {
+            if (abandoned) {
+                return;
+            }
+            if (readbuf != null) {
+                arena.abandon(readbuf);
+                abandoned = true;
+            }
+            if (writebuf != null) {
+                arena.abandon(writebuf);
+                abandoned = true;
+            }
+        }
+    }
+
     // ------------------------------------------------ Handler Inner Interface
 
 
@@ -1465,7 +2117,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
      * This class is the equivalent of the Worker, but will simply use in an
      * external Executor thread pool.
      */
-    protected class SocketProcessor implements Runnable {
+    protected class SocketProcessor implements ClassifiedTask {
 
         private KeyAttachment ka = null;
         private SocketStatus status = null;
@@ -1479,6 +2131,11 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             this.status = status;
         }
 
+        @Override
+        public String getSchedulingClass() {
+            return getSchedulingClassForSocket(ka);
+        }
+
         @Override
         public void run() {
             NioChannel socket = ka.getSocket();
@@ -1514,6 +2171,9 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                         } else {
                             handshake = socket.handshake(
                                     key.isReadable(), key.isWritable());
+                            if (handshake == 0 && socket instanceof SecureNioChannel) {
+                                countHandshake(((SecureNioChannel) socket).isSessionResumed());
+                            }
                             // The handshake process reads/writes from/to the
                             // socket. status may therefore be OPEN_WRITE once
                             // the handshake completes. However, the handshake
@@ -1543,6 +2203,9 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                     }
                 } else if (handshake == -1 ) {
                     close(socket, key, SocketStatus.DISCONNECT);
+                } else if (handshake == SecureNioChannel.HANDSHAKE_TASKS_DELEGATED) {
+                    // The handshake executor adds the socket back to the
+                    // poller once the delegated tasks are complete
                 } else {
                     ka.getPoller().add(socket,handshake);
                 }
@@ -1581,6 +2244,8 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
             // Close socket and pool
             try {
                 ka.setComet(false);
+                // This thread owns the socket so the buffers may be reused
+                releaseBuffers(socket);
                 if (socket.getPoller().cancelledKey(key, socketStatus) != null) {
                     // SocketWrapper (attachment) was removed from the
                     // key - recycle the key. This can only happen once
@@ -1611,4 +2276,73 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         // KeepAlive flag
         public SendfileKeepAliveState keepAliveState = SendfileKeepAliveState.NONE;
     }
+
+
+    /**
+     * The part of a request body that is read by the Poller before the request
+     * is dispatched to a worker thread. It is only used with plain text
+     * connections as a TLS channel can only decrypt into its own buffer.
+     */
+    public static class PreReadBody {
+        private final ByteBuffer buffer;
+        private boolean complete = false;
+
+        PreReadBody(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        public int getCapacity() {
+            return buffer.capacity();
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Read as much of the body as is available without blocking. Nothing
+         * beyond the end of the body is read as it belongs to the next
+         * request.
+         *
+         * @param socket The channel to read from
+         *
+         * @return <code>true</code> once the whole body has been read
+         *
+         * @throws IOException If the read fails or the client closes the
+         *                     connection before the end of the body
+         */
+        public boolean read(NioChannel socket) throws IOException {
+            int nRead;
+            do {
+                nRead = socket.read(buffer);
+            } while (nRead > 0 && buffer.hasRemaining());
+            if (nRead == -1) {
+                throw new EOFException(sm.getString("endpoint.nio.preReadEof"));
+            }
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                complete = true;
+            }
+            return complete;
+        }
+
+        /**
+         * Copy body data that has not already been consumed.
+         *
+         * @param dest      The destination array
+         * @param off       The position in the array to start to copy to
+         * @param len       The maximum number of bytes to copy
+         *
+         * @return The number of bytes copied
+         */
+        public int get(byte[] dest, int off, int len) {
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(dest, off, n);
+            return n;
+        }
+
+        public boolean hasRemaining() {
+            return complete && buffer.hasRemaining();
+        }
+    }
 }
@@ -0,0 +1,218 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.net;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Shares SSL contexts between endpoints that are configured with the same
+ * session cache group. The server side TLS session cache and the keys used to
+ * protect stateless session tickets belong to the SSL context so clients may
+ * resume, on any connector in a group, a session that was established with
+ * another connector in the same group. Endpoints only share a context if their
+ * SSL configuration is identical.
+ * <p>
+ * Groups are scoped to an owning object, typically the Server, so that
+ * independent instances in the same JVM that use the same group name never
+ * share, or release, each other's contexts. Endpoints without a scope share
+ * groups with other endpoints without a scope.
+ */
+public class SSLContextRegistry {
+
+    private static final Log log = LogFactory.getLog(SSLContextRegistry.class);
+    private static final StringManager sm =
+            StringManager.getManager("org.apache.tomcat.util.net.res");
+
+    private static final Map<GroupKey,Group> groups = new HashMap<>();
+
+
+    private SSLContextRegistry() {
+        // Utility class. Hide default constructor.
+    }
+
+
+    /**
+     * Obtain the SSL context already in use by the given group.
+     *
+     * @param scope     The object that owns the group, may be
+     *                  <code>null</code>
+     * @param group     The name of the session cache group
+     * @param config    The SSL configuration of the calling endpoint
+     *
+     * @return The shared context or <code>null</code> if the group has no
+     *         context yet or if the group uses a different SSL configuration.
+     *         If a context is returned, the caller must call
+     *         {@link #release(Object, String, SSLContext)} once it no longer
+     *         uses it.
+     */
+    public static synchronized SSLContext acquire(Object scope, String group,
+            String config) {
+        Group g = groups.get(new GroupKey(scope, group));
+        if (g == null || !g.config.equals(config)) {
+            return null;
+        }
+        g.references++;
+        return g.context;
+    }
+
+
+    /**
+     * Register a newly created SSL context with the given group.
+     *
+     * @param scope     The object that owns the group, may be
+     *                  <code>null</code>
+     * @param group     The name of the session cache group
+     * @param config    The SSL configuration of the calling endpoint
+     * @param context   The SSL context created by the calling endpoint
+     *
+     * @return The context the endpoint should use. This is the context that
+     *         was passed in, unless another endpoint registered a context with
+     *         the same configuration in the meantime.
+     */
+    public static synchronized SSLContext register(Object scope, String group,
+            String config, SSLContext context) {
+        GroupKey key = new GroupKey(scope, group);
+        Group g = groups.get(key);
+        if (g == null) {
+            g = new Group(config, context);
+            groups.put(key, g);
+        } else if (!g.config.equals(config)) {
+            log.warn(sm.getString("endpoint.sessionCacheGroup.mismatch", group));
+            return context;
+        }
+        g.references++;
+        return g.context;
+    }
+
+
+    /**
+     * Release a context obtained from {@link #acquire(Object, String, String)}
+     * or {@link #register(Object, String, String, SSLContext)}. The group is
+     * removed once the last endpoint using it has released its context.
+     *
+     * @param scope     The object that owns the group, may be
+     *                  <code>null</code>
+     * @param group     The name of the session cache group
+     * @param context   The context used by the calling endpoint
+     */
+    public static synchronized void release(Object scope, String group,
+            SSLContext context) {
+        GroupKey key = new GroupKey(scope, group);
+        Group g = groups.get(key);
+        // Endpoints with a mismatched configuration were never added
+        if (g != null && g.context == context) {
+            g.references--;
+            if (g.references == 0) {
+                groups.remove(key);
+            }
+        }
+    }
+
+
+    /**
+     * Build a description of the endpoint configuration that affects the SSL
+     * context. Settings that are applied to each SSL engine, such as the
+     * enabled ciphers and protocols or client authentication, may differ
+     * between endpoints in a group.
+     *
+     * @param endpoint          The endpoint
+     * @param implementation    The SSL implementation used by the endpoint
+     *
+     * @return A string that is equal for endpoints that may share a context
+     */
+    public static String getConfig(AbstractEndpoint<?> endpoint,
+            SSLImplementation implementation) {
+        StringBuilder sb = new StringBuilder();
+        append(sb, implementation.getClass().getName());
+        append(sb, endpoint.getSslProtocol());
+        append(sb, endpoint.getAlgorithm());
+        append(sb, endpoint.getKeystoreFile());
+        append(sb, endpoint.getKeystorePass());
+        append(sb, endpoint.getKeystoreType());
+        append(sb, endpoint.getKeystoreProvider());
+        append(sb, endpoint.getKeyAlias());
+        append(sb, endpoint.getKeyPass());
+        append(sb, endpoint.getTruststoreFile());
+        append(sb, endpoint.getTruststorePass());
+        append(sb, endpoint.getTruststoreType());
+        append(sb, endpoint.getTruststoreProvider());
+        append(sb, endpoint.getTruststoreAlgorithm());
+        append(sb, endpoint.getTrustManagerClassName());
+        append(sb, endpoint.getCrlFile());
+        append(sb, endpoint.getTrustMaxCertLength());
+        append(sb, endpoint.getSessionCacheSize());
+        append(sb, endpoint.getSessionTimeout());
+        return sb.toString();
+    }
+
+
+    private static void append(StringBuilder sb, String value) {
+        if (value != null) {
+            sb.append(value.length());
+            sb.append(':');
+            sb.append(value);
+        }
+        sb.append(';');
+    }
+
+
+    /**
+     * Identifies a group by its name and the identity of its scope.
+     */
+    private static class GroupKey {
+        private final Object scope;
+        private final String name;
+
+        public GroupKey(Object scope, String name) {
+            this.scope = scope;
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(scope) * 31 + name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof GroupKey)) {
+                return false;
+            }
+            GroupKey other = (GroupKey) obj;
+            return scope == other.scope && name.equals(other.name);
+        }
+    }
+
+
+    private static class Group {
+        private final String config;
+        private final SSLContext context;
+        private int references = 0;
+
+        public Group(String config, SSLContext context) {
+            this.config = config;
+            this.context = context;
+        }
+    }
+}
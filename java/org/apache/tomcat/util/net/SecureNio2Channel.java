@@ -36,6 +36,7 @@ import javax.net.ssl.SSLException;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.net.jsse.NioX509KeyManager;
 import org.apache.tomcat.util.res.StringManager;
 
 /**
@@ -1002,6 +1003,16 @@ public class SecureNio2Channel extends Nio2Channel  {
         return sslEngine;
     }
 
+    /**
+     * @return <code>true</code> if the initial handshake resumed an existing
+     *         session rather than creating a new session. This is determined by
+     *         whether a server certificate was chosen during the handshake,
+     *         which only happens during a full handshake.
+     */
+    public boolean isSessionResumed() {
+        return !NioX509KeyManager.isFullHandshake(sslEngine);
+    }
+
     public ByteBuffer getEmptyBuf() {
         return emptyBuf;
     }
@@ -23,6 +23,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -32,6 +34,8 @@ import javax.net.ssl.SSLException;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.net.jsse.NioX509KeyManager;
 
 /**
  *
@@ -43,6 +47,14 @@ public class SecureNioChannel extends NioChannel  {
 
     protected static final Log log = LogFactory.getLog(SecureNioChannel.class);
 
+    /**
+     * Returned by {@link #handshake(boolean, boolean)} when the delegated tasks
+     * of the SSL engine have been passed to the handshake executor. The
+     * executor adds the socket back to the poller once the tasks are complete
+     * so the caller must not register the socket itself.
+     */
+    public static final int HANDSHAKE_TASKS_DELEGATED = -2;
+
     protected ByteBuffer netInBuffer;
     protected ByteBuffer netOutBuffer;
 
@@ -56,6 +68,8 @@ public class SecureNioChannel extends NioChannel  {
 
     protected NioSelectorPool pool;
 
+    protected Executor handshakeExecutor = null;
+
     public SecureNioChannel(SocketChannel channel, SSLEngine engine,
                             ApplicationBufferHandler bufHandler, NioSelectorPool pool) throws IOException {
         super(channel,bufHandler);
@@ -157,6 +171,21 @@ public class SecureNioChannel extends NioChannel  {
      */
     @Override
     public int handshake(boolean read, boolean write) throws IOException {
+        return handshake(read, write, handshakeExecutor != null);
+    }
+
+    /**
+     * Performs the SSL handshake.
+     * @param read boolean - true if the underlying channel is readable
+     * @param write boolean - true if the underlying channel is writable
+     * @param delegate boolean - true if the delegated tasks of the SSL engine
+     *        should be run by the handshake executor
+     * @return int - 0 if hand shake is complete, {@link #HANDSHAKE_TASKS_DELEGATED}
+     *         if the delegated tasks are being run by the handshake executor,
+     *         otherwise it returns a SelectionKey interestOps value
+     * @throws IOException
+     */
+    protected int handshake(boolean read, boolean write, boolean delegate) throws IOException {
         if ( handshakeComplete ) return 0; //we have done our initial handshake
 
         if (!flush(netOutBuffer)) return SelectionKey.OP_WRITE; //we still have data to write
@@ -186,8 +215,10 @@ public class SecureNioChannel extends NioChannel  {
                         handshake = handshakeWrap(write);
                     }
                     if (handshake.getStatus() == Status.OK) {
-                        if (handshakeStatus == HandshakeStatus.NEED_TASK)
+                        if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+                            if (delegate && delegateTasks()) return HANDSHAKE_TASKS_DELEGATED;
                             handshakeStatus = tasks();
+                        }
                     } else if (handshake.getStatus() == Status.CLOSED) {
                         flush(netOutBuffer);
                         return -1;
@@ -205,10 +236,12 @@ public class SecureNioChannel extends NioChannel  {
                 //$FALL-THROUGH$
                 case NEED_UNWRAP: {
                     //perform the unwrap function
-                    handshake = handshakeUnwrap(read);
+                    handshake = handshakeUnwrap(read, !delegate);
                     if ( handshake.getStatus() == Status.OK ) {
-                        if (handshakeStatus == HandshakeStatus.NEED_TASK)
+                        if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+                            if (delegate && delegateTasks()) return HANDSHAKE_TASKS_DELEGATED;
                             handshakeStatus = tasks();
+                        }
                     } else if ( handshake.getStatus() == Status.BUFFER_UNDERFLOW ){
                         //read more data, reregister for OP_READ
                         return SelectionKey.OP_READ;
@@ -218,6 +251,7 @@ public class SecureNioChannel extends NioChannel  {
                     break;
                 }
                 case NEED_TASK: {
+                    if (delegate && delegateTasks()) return HANDSHAKE_TASKS_DELEGATED;
                     handshakeStatus = tasks();
                     break;
                 }
@@ -251,7 +285,7 @@ public class SecureNioChannel extends NioChannel  {
         SelectionKey key = null;
         try {
             while (handshaking) {
-                int hsStatus = this.handshake(isReadable, isWriteable);
+                int hsStatus = this.handshake(isReadable, isWriteable, false);
                 switch (hsStatus) {
                     case -1 : throw new EOFException(sm.getString("channel.nio.ssl.eofDuringHandshake"));
                     case  0 : handshaking = false; break;
@@ -302,6 +336,43 @@ public class SecureNioChannel extends NioChannel  {
         return sslEngine.getHandshakeStatus();
     }
 
+    /**
+     * Passes the delegated tasks to the handshake executor. Once they are
+     * complete the socket is added back to the poller, for write since the
+     * next step of the handshake may be a wrap or an unwrap of data that has
+     * already been read.
+     * @return <code>true</code> if the tasks were accepted by the executor
+     */
+    protected boolean delegateTasks() {
+        try {
+            handshakeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handshakeStatus = tasks();
+                    } catch (Throwable t) {
+                        ExceptionUtils.handleThrowable(t);
+                        // The engine reports the failure on the next wrap or
+                        // unwrap, which will close the connection
+                        if (log.isDebugEnabled()) {
+                            log.debug(sm.getString("channel.nio.ssl.taskFailed"), t);
+                        }
+                        handshakeStatus = sslEngine.getHandshakeStatus();
+                    }
+                    getPoller().add(SecureNioChannel.this, SelectionKey.OP_WRITE);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // Executor is shutting down. Run the tasks on this thread.
+            return false;
+        }
+        return true;
+    }
+
+    public void setHandshakeExecutor(Executor handshakeExecutor) {
+        this.handshakeExecutor = handshakeExecutor;
+    }
+
     /**
      * Performs the WRAP function
      * @param doWrite boolean
@@ -330,6 +401,19 @@ public class SecureNioChannel extends NioChannel  {
      * @throws IOException
      */
     protected SSLEngineResult handshakeUnwrap(boolean doread) throws IOException {
+        return handshakeUnwrap(doread, true);
+    }
+
+    /**
+     * Perform handshake unwrap
+     * @param doread boolean
+     * @param runTasks boolean - false if delegated tasks should be left for
+     *        the caller to run
+     * @return SSLEngineResult
+     * @throws IOException
+     */
+    protected SSLEngineResult handshakeUnwrap(boolean doread, boolean runTasks)
+            throws IOException {
 
         if (netInBuffer.position() == netInBuffer.limit()) {
             //clear the buffer if we have emptied it out on data
@@ -352,7 +436,7 @@ public class SecureNioChannel extends NioChannel  {
             netInBuffer.compact();
             //read in the status
             handshakeStatus = result.getHandshakeStatus();
-            if ( result.getStatus() == SSLEngineResult.Status.OK &&
+            if ( runTasks && result.getStatus() == SSLEngineResult.Status.OK &&
                  result.getHandshakeStatus() == HandshakeStatus.NEED_TASK ) {
                 //execute tasks if we need to
                 handshakeStatus = tasks();
@@ -567,6 +651,16 @@ public class SecureNioChannel extends NioChannel  {
         return sslEngine;
     }
 
+    /**
+     * @return <code>true</code> if the initial handshake resumed an existing
+     *         session rather than creating a new session. This is determined by
+     *         whether a server certificate was chosen during the handshake,
+     *         which only happens during a full handshake.
+     */
+    public boolean isSessionResumed() {
+        return !NioX509KeyManager.isFullHandshake(sslEngine);
+    }
+
     public ByteBuffer getEmptyBuf() {
         return emptyBuf;
     }
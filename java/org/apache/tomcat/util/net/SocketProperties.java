@@ -109,6 +109,21 @@ public class SocketProperties {
      */
     protected int bufferPoolSize = 1024*1024*100;
 
+    /**
+     * Enable/disable the buffer arena. When enabled the application read and
+     * write buffers are direct buffers borrowed from an arena shared by all
+     * connections and are given back when a connection is idle in keep-alive.
+     * Default value is disabled
+     */
+    protected boolean bufferArena = false;
+
+    /**
+     * Maximum size in bytes of the free buffers held by the buffer arena
+     * -1 means unlimited, 0 means no buffers are kept
+     * Default value is 100MB (1024*1024*100 bytes)
+     */
+    protected int bufferArenaSize = 1024*1024*100;
+
     /**
      * TCP_NO_DELAY option. JVM default used if not set.
      */
@@ -328,6 +343,14 @@ public class SocketProperties {
         return appWriteBufSize;
     }
 
+    public boolean getBufferArena() {
+        return bufferArena;
+    }
+
+    public int getBufferArenaSize() {
+        return bufferArenaSize;
+    }
+
     public int getProcessorCache() {
         return processorCache;
     }
@@ -405,6 +428,14 @@ public class SocketProperties {
         this.bufferPoolSize = bufferPoolSize;
     }
 
+    public void setBufferArena(boolean bufferArena) {
+        this.bufferArena = bufferArena;
+    }
+
+    public void setBufferArenaSize(int bufferArenaSize) {
+        this.bufferArenaSize = bufferArenaSize;
+    }
+
     public void setEventCache(int eventCache) {
         this.eventCache = eventCache;
     }
@@ -68,6 +68,13 @@ public class SocketWrapper<E> {
 
     private Set<DispatchType> dispatches = new CopyOnWriteArraySet<>();
 
+    /*
+     * The scheduling class of the most recent request on this connection, if
+     * it has been classified, so that later processing of the connection is
+     * scheduled in the same class.
+     */
+    private volatile String schedulingClass = null;
+
     public SocketWrapper(E socket) {
         this.socket = socket;
         ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
@@ -134,6 +141,10 @@ public class SocketWrapper<E> {
         return blockingStatusWriteLock;
     }
     public Object getWriteThreadLock() { return writeThreadLock; }
+    public String getSchedulingClass() { return schedulingClass; }
+    public void setSchedulingClass(String schedulingClass) {
+        this.schedulingClass = schedulingClass;
+    }
     public void addDispatch(DispatchType dispatchType) {
         synchronized (dispatches) {
             dispatches.add(dispatchType);
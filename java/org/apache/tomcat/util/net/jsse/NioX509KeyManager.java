@@ -21,13 +21,25 @@ import java.net.Socket;
 import java.security.Principal;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.X509ExtendedKeyManager;
 import javax.net.ssl.X509KeyManager;
 
+/**
+ * Key manager used by the NIO and NIO2 endpoints. It optionally selects a
+ * configured server key alias and records the engines that chose a server
+ * certificate. A server only chooses a certificate during a full handshake so
+ * an engine that did not choose one resumed an existing session.
+ */
 public class NioX509KeyManager extends X509ExtendedKeyManager {
 
+    private static final Map<SSLEngine,Boolean> fullHandshakes =
+            Collections.synchronizedMap(new WeakHashMap<SSLEngine,Boolean>());
+
     private X509KeyManager delegate;
     private String serverKeyAlias;
 
@@ -36,7 +48,8 @@ public class NioX509KeyManager extends X509ExtendedKeyManager {
      *
      * @param mgr The X509KeyManager used as a delegate
      * @param serverKeyAlias The alias name of the server's keypair and
-     * supporting certificate chain
+     * supporting certificate chain or <code>null</code> to let the delegate
+     * choose
      */
     public NioX509KeyManager(X509KeyManager mgr, String serverKeyAlias) {
         this.delegate = mgr;
@@ -82,11 +95,34 @@ public class NioX509KeyManager extends X509ExtendedKeyManager {
     @Override
     public String chooseEngineServerAlias(String keyType, Principal[] issuers,
             SSLEngine engine) {
+        if (engine != null) {
+            fullHandshakes.put(engine, Boolean.TRUE);
+        }
+
         if (serverKeyAlias!=null) {
             return serverKeyAlias;
         }
 
-        return super.chooseEngineServerAlias(keyType, issuers, engine);
+        if (delegate instanceof X509ExtendedKeyManager) {
+            return ((X509ExtendedKeyManager) delegate).chooseEngineServerAlias(
+                    keyType, issuers, engine);
+        }
+        // As JSSE would for a key manager that is not engine aware
+        return delegate.chooseServerAlias(keyType, issuers, null);
+    }
+
+
+    /**
+     * Determine whether the given engine performed a full handshake, i.e.
+     * chose a server certificate, since this method was last called for it.
+     *
+     * @param engine The engine
+     *
+     * @return <code>true</code> if the engine performed a full handshake,
+     *         <code>false</code> if it resumed a session
+     */
+    public static boolean isFullHandshake(SSLEngine engine) {
+        return fullHandshakes.remove(engine) != null;
     }
 
 }
@@ -0,0 +1,433 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.tomcat.util.res.StringManager;
+
+/**
+ * Orders the tasks submitted to an executor by scheduling class. Each class has
+ * its own queue, a weight and, optionally, a limit on the number of its tasks
+ * that may run at the same time.
+ * <p>
+ * Rather than the tasks themselves, the executor is given one dispatcher per
+ * task (see {@link #schedule(Runnable)}). When a dispatcher runs, it takes the
+ * next task from the queues using smooth weighted round robin across the
+ * classes that have queued tasks and are below their limit. Under overload
+ * classes with a higher weight are therefore dequeued first, however long the
+ * executor's own queue is. If no queued task may run because every class with
+ * queued tasks is at its limit, the dispatcher ends and the task is run by the
+ * thread that completes the next task instead.
+ * <p>
+ * The classes are configured with a comma separated list of
+ * <code>name:weight[:maxThreads]</code> entries, where a
+ * <code>maxThreads</code> of zero or less means no limit. Tasks that are not a
+ * {@link ClassifiedTask} or that name a class that has not been configured
+ * belong to the {@link #DEFAULT_CLASS default} class which, unless configured,
+ * has a weight of one and no limit.
+ */
+public class ClassOfServiceScheduler {
+
+    private static final StringManager sm =
+            StringManager.getManager("org.apache.tomcat.util.threads.res");
+
+    public static final String DEFAULT_CLASS = "default";
+
+    private static final ThreadLocal<Current> current = new ThreadLocal<Current>() {
+        @Override
+        protected Current initialValue() {
+            return new Current();
+        }
+    };
+
+    private final Executor executor;
+    private final SchedulingClass[] classes;
+    private final Map<String,SchedulingClass> classesByName = new HashMap<>();
+    private final SchedulingClass defaultClass;
+    private final Runnable dispatcher = new Dispatcher();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /*
+     * The number of queued tasks without a dispatcher, either because the
+     * dispatcher found that none of the queued tasks could run or because the
+     * dispatcher was rejected after another dispatcher had taken its task.
+     * Guarded by lock.
+     */
+    private int deferred = 0;
+    // Guarded by lock
+    private int queueSize = 0;
+
+
+    /**
+     * @param schedulingClasses The scheduling classes, in the format described
+     *                          above
+     * @param executor          The executor used when dispatchers need to be
+     *                          submitted other than via
+     *                          {@link #schedule(Runnable)}
+     *
+     * @throws IllegalArgumentException if the scheduling classes are not valid
+     */
+    public ClassOfServiceScheduler(String schedulingClasses, Executor executor) {
+        this.executor = executor;
+        List<SchedulingClass> classes = new ArrayList<>();
+        for (String entry : schedulingClasses.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            String[] parts = entry.split(":");
+            SchedulingClass schedulingClass;
+            try {
+                if (parts.length < 2 || parts.length > 3 || parts[0].trim().length() == 0) {
+                    throw new NumberFormatException();
+                }
+                int weight = Integer.parseInt(parts[1].trim());
+                int maxThreads = parts.length == 3 ? Integer.parseInt(parts[2].trim()) : 0;
+                if (weight < 1) {
+                    throw new NumberFormatException();
+                }
+                schedulingClass = new SchedulingClass(parts[0].trim(), weight, maxThreads);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(sm.getString(
+                        "classOfServiceScheduler.invalidClass", entry));
+            }
+            if (classesByName.put(schedulingClass.name, schedulingClass) != null) {
+                throw new IllegalArgumentException(sm.getString(
+                        "classOfServiceScheduler.duplicateClass", schedulingClass.name));
+            }
+            classes.add(schedulingClass);
+        }
+        SchedulingClass defaultClass = classesByName.get(DEFAULT_CLASS);
+        if (defaultClass == null) {
+            defaultClass = new SchedulingClass(DEFAULT_CLASS, 1, 0);
+            classesByName.put(DEFAULT_CLASS, defaultClass);
+            classes.add(defaultClass);
+        }
+        this.defaultClass = defaultClass;
+        this.classes = classes.toArray(new SchedulingClass[classes.size()]);
+    }
+
+
+    /**
+     * Queue a task.
+     *
+     * @param command The task
+     *
+     * @return the dispatcher that the caller must submit to the executor for
+     *         the task to be run
+     */
+    public Runnable schedule(Runnable command) {
+        SchedulingClass schedulingClass = defaultClass;
+        if (command instanceof ClassifiedTask) {
+            schedulingClass = getSchedulingClass(
+                    ((ClassifiedTask) command).getSchedulingClass());
+        }
+        lock.lock();
+        try {
+            schedulingClass.queue.add(command);
+            queueSize++;
+        } finally {
+            lock.unlock();
+        }
+        return dispatcher;
+    }
+
+
+    /**
+     * Called when the executor rejected the dispatcher returned by
+     * {@link #schedule(Runnable)}.
+     *
+     * @param command The task that was scheduled
+     *
+     * @return <code>true</code> if the task was removed from its queue and will
+     *         not be run, <code>false</code> if it was already taken by another
+     *         dispatcher and so must not be considered as rejected
+     */
+    public boolean cancel(Runnable command) {
+        lock.lock();
+        try {
+            for (SchedulingClass schedulingClass : classes) {
+                if (schedulingClass.queue.removeLastOccurrence(command)) {
+                    queueSize--;
+                    return true;
+                }
+            }
+            // Another dispatcher ran this task so one of the queued tasks is
+            // now without a dispatcher
+            if (queueSize > 0) {
+                deferred++;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return the number of tasks that are queued and not yet running
+     */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queueSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return the number of queued and running tasks in each scheduling class
+     */
+    public String[] getStatus() {
+        lock.lock();
+        try {
+            String[] result = new String[classes.length];
+            for (int i = 0; i < classes.length; i++) {
+                SchedulingClass schedulingClass = classes[i];
+                result[i] = sm.getString("classOfServiceScheduler.status",
+                        schedulingClass.name,
+                        Integer.valueOf(schedulingClass.queue.size()),
+                        Integer.valueOf(schedulingClass.running));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Move the task that is running on the current thread to a different
+     * scheduling class, for instance once enough of a request has been read to
+     * classify it. Running tasks are not interrupted so this may take the new
+     * class above its limit, but no further tasks of that class will be started
+     * until it is below it again. This is a NO-OP if the current thread is not
+     * running a task dispatched by a scheduler.
+     *
+     * @param name The name of the new scheduling class or <code>null</code> for
+     *             the default class
+     */
+    public static void reclassifyCurrentTask(String name) {
+        Current c = current.get();
+        if (c.scheduler != null) {
+            c.scheduler.reclassify(c, name);
+        }
+    }
+
+
+    private SchedulingClass getSchedulingClass(String name) {
+        if (name == null) {
+            return defaultClass;
+        }
+        SchedulingClass result = classesByName.get(name);
+        return result == null ? defaultClass : result;
+    }
+
+
+    private void reclassify(Current c, String name) {
+        SchedulingClass schedulingClass = getSchedulingClass(name);
+        if (schedulingClass == c.schedulingClass) {
+            return;
+        }
+        boolean dispatch = false;
+        lock.lock();
+        try {
+            c.schedulingClass.running--;
+            schedulingClass.running++;
+            c.schedulingClass = schedulingClass;
+            // A deferred task of the old class may be able to run now
+            if (deferred > 0 && hasNext()) {
+                deferred--;
+                dispatch = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (dispatch) {
+            dispatch();
+        }
+    }
+
+
+    private void dispatch() {
+        try {
+            executor.execute(dispatcher);
+        } catch (RejectedExecutionException e) {
+            lock.lock();
+            try {
+                deferred++;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /*
+     * Must be called with the lock held.
+     */
+    private boolean hasNext() {
+        for (SchedulingClass schedulingClass : classes) {
+            if (schedulingClass.canRun()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /*
+     * Smooth weighted round robin: each eligible class gains its weight, the
+     * class with the most is chosen and loses the total. Must be called with
+     * the lock held.
+     */
+    private Runnable next(Current c) {
+        SchedulingClass selected = null;
+        int totalWeight = 0;
+        for (SchedulingClass schedulingClass : classes) {
+            if (!schedulingClass.canRun()) {
+                continue;
+            }
+            schedulingClass.currentWeight += schedulingClass.weight;
+            totalWeight += schedulingClass.weight;
+            if (selected == null || schedulingClass.currentWeight > selected.currentWeight) {
+                selected = schedulingClass;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        selected.currentWeight -= totalWeight;
+        selected.running++;
+        queueSize--;
+        c.schedulingClass = selected;
+        return selected.queue.poll();
+    }
+
+
+    /*
+     * Called by a dispatcher that has just been taken from the executor's
+     * queue.
+     */
+    private Runnable dispatched(Current c) {
+        lock.lock();
+        try {
+            Runnable result = next(c);
+            if (result == null && queueSize > 0) {
+                deferred++;
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /*
+     * Called when the current thread has finished running a task. If the task
+     * completed normally, the next deferred task, if any, is returned for the
+     * current thread to run. Otherwise, a dispatcher is submitted for it.
+     */
+    private Runnable completed(Current c, boolean normally) {
+        boolean dispatch = false;
+        Runnable result = null;
+        lock.lock();
+        try {
+            c.schedulingClass.running--;
+            c.schedulingClass = null;
+            if (deferred > 0) {
+                if (normally) {
+                    result = next(c);
+                    if (result != null) {
+                        deferred--;
+                    }
+                } else if (hasNext()) {
+                    deferred--;
+                    dispatch = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (dispatch) {
+            dispatch();
+        }
+        return result;
+    }
+
+
+    private class Dispatcher implements Runnable {
+
+        @Override
+        public void run() {
+            Current c = current.get();
+            c.scheduler = ClassOfServiceScheduler.this;
+            try {
+                Runnable task = dispatched(c);
+                while (task != null) {
+                    boolean normally = false;
+                    try {
+                        task.run();
+                        normally = true;
+                    } finally {
+                        task = completed(c, normally);
+                    }
+                }
+            } finally {
+                c.scheduler = null;
+            }
+        }
+    }
+
+
+    private static class SchedulingClass {
+
+        private final String name;
+        private final int weight;
+        private final int maxThreads;
+        // All guarded by the scheduler's lock
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private int running = 0;
+        private int currentWeight = 0;
+
+        SchedulingClass(String name, int weight, int maxThreads) {
+            this.name = name;
+            this.weight = weight;
+            this.maxThreads = maxThreads;
+        }
+
+        boolean canRun() {
+            return !queue.isEmpty() && (maxThreads <= 0 || running < maxThreads);
+        }
+    }
+
+
+    private static class Current {
+        private ClassOfServiceScheduler scheduler;
+        private SchedulingClass schedulingClass;
+    }
+}
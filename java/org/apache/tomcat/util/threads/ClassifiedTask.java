@@ -0,0 +1,31 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+/**
+ * Implemented by tasks that know which scheduling class they belong to. An
+ * executor that uses a {@link ClassOfServiceScheduler} uses the class to decide
+ * the order in which queued tasks are run.
+ */
+public interface ClassifiedTask extends Runnable {
+
+    /**
+     * @return the name of the scheduling class of this task or
+     *         <code>null</code> to use the default class
+     */
+    String getSchedulingClass();
+}
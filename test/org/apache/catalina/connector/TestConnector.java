@@ -26,6 +26,7 @@ import org.apache.catalina.Wrapper;
 import org.apache.catalina.startup.TesterServlet;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.http2.Http2Protocol;
 import org.apache.tomcat.util.buf.ByteChunk;
 
 /**
@@ -33,6 +34,23 @@ import org.apache.tomcat.util.buf.ByteChunk;
  */
 public class TestConnector extends TomcatBaseTest {
 
+    @Test
+    public void testUpgradeProtocolSupport() throws Exception {
+        Connector nio = new Connector("org.apache.coyote.http11.Http11NioProtocol");
+        nio.addUpgradeProtocol(new Http2Protocol());
+        Assert.assertEquals(1, nio.findUpgradeProtocols().length);
+
+        Connector nio2 = new Connector("org.apache.coyote.http11.Http11Nio2Protocol");
+        nio2.addUpgradeProtocol(new Http2Protocol());
+        Assert.assertEquals(1, nio2.findUpgradeProtocols().length);
+
+        // Ignored with a warning rather than failing at runtime
+        Connector bio = new Connector("org.apache.coyote.http11.Http11Protocol");
+        bio.addUpgradeProtocol(new Http2Protocol());
+        Assert.assertEquals(0, bio.findUpgradeProtocols().length);
+    }
+
+
     @Test
     public void testStop() throws Exception {
         Tomcat tomcat = getTomcatInstance();
@@ -272,6 +272,35 @@ public class TestCoyoteAdapter extends TomcatBaseTest {
     }
 
 
+    @Test
+    public void testMappingCache() throws Exception {
+        // Setup Tomcat instance
+        Tomcat tomcat = getTomcatInstance();
+
+        Connector connector = tomcat.getConnector();
+        connector.setMappingCacheSize(64);
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+
+        PathInfoServlet servlet = new PathInfoServlet();
+        Tomcat.addServlet(ctx, "servlet", servlet);
+        ctx.addServletMappingDecoded("/api/*", "servlet");
+
+        tomcat.start();
+
+        for (int i = 0; i < 3; i++) {
+            int rc = getUrl("http://localhost:" + getPort() + "/api/users",
+                    new ByteChunk(), null);
+            Assert.assertEquals(HttpServletResponse.SC_OK, rc);
+            Assert.assertEquals("/users", servlet.getPathInfo());
+        }
+
+        Assert.assertEquals(1, connector.getMappingCacheMissCount());
+        Assert.assertEquals(2, connector.getMappingCacheHitCount());
+    }
+
+
     @Test
     public void testBug54928() throws Exception {
         // Setup Tomcat instance
@@ -0,0 +1,199 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.tomcat.util.http.fileupload.FileItem;
+import org.apache.tomcat.util.http.fileupload.FileItemFactory;
+import org.apache.tomcat.util.http.fileupload.disk.DiskFileItemFactory;
+
+public class TestPartBufferPool {
+
+    private File repository;
+    private PartBufferPool pool;
+    private FileItemFactory factory;
+
+    @Before
+    public void setUp() throws IOException {
+        repository = Files.createTempDirectory("partBufferPool").toFile();
+        DiskFileItemFactory overflowFactory = new DiskFileItemFactory();
+        overflowFactory.setRepository(repository);
+        overflowFactory.setSizeThreshold(0);
+        pool = new PartBufferPool(16, 2);
+        factory = pool.createFileItemFactory(overflowFactory);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = repository.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        Assert.assertTrue(repository.delete());
+    }
+
+    @Test
+    public void testSmallPart() throws Exception {
+        FileItem item = createItem("abcä");
+
+        Assert.assertTrue(item.isInMemory());
+        Assert.assertEquals(5, item.getSize());
+        Assert.assertEquals("abcä", item.getString("UTF-8"));
+        Assert.assertArrayEquals("abcä".getBytes(StandardCharsets.UTF_8),
+                item.get());
+        Assert.assertEquals("abcä", read(item.getInputStream()));
+        // Nothing was written to the repository
+        Assert.assertEquals(0, repository.listFiles().length);
+
+        File file = new File(repository, "small.txt");
+        item.write(file);
+        Assert.assertEquals("abcä", new String(
+                Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+
+        item.delete();
+        Assert.assertEquals(1, pool.getPooledCount());
+        Assert.assertEquals(0, pool.getOverflowCount());
+    }
+
+    @Test
+    public void testLargePart() throws Exception {
+        String content = "0123456789abcdefghijklmnopqrstuvwxyz";
+        FileItem item = createItem(content);
+
+        Assert.assertFalse(item.isInMemory());
+        Assert.assertEquals(content.length(), item.getSize());
+        Assert.assertEquals(content, item.getString("UTF-8"));
+        Assert.assertEquals(content, read(item.getInputStream()));
+        Assert.assertEquals(1, repository.listFiles().length);
+        Assert.assertEquals(0, pool.getPooledCount());
+        Assert.assertEquals(1, pool.getOverflowCount());
+
+        item.delete();
+        Assert.assertEquals(0, repository.listFiles().length);
+    }
+
+    @Test
+    public void testExactFit() throws Exception {
+        String content = "0123456789abcdef";
+        FileItem item = createItem(content);
+
+        Assert.assertTrue(item.isInMemory());
+        Assert.assertEquals(content, item.getString("UTF-8"));
+        item.delete();
+        Assert.assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void testBufferReuse() throws Exception {
+        FileItem item = createItem("first part");
+        InputStream is = item.getInputStream();
+        item.delete();
+        // Deleting twice must not return the buffer to the pool twice
+        item.delete();
+        Assert.assertEquals(1, pool.getPooledCount());
+
+        FileItem next = createItem("second");
+        Assert.assertEquals("second", next.getString("UTF-8"));
+
+        // The deleted item must not expose the content of the next one
+        try {
+            is.read();
+            Assert.fail();
+        } catch (IOException expected) {
+            // Expected
+        }
+        try {
+            item.getInputStream();
+            Assert.fail();
+        } catch (IOException expected) {
+            // Expected
+        }
+        Assert.assertEquals(0, item.getSize());
+        next.delete();
+    }
+
+    @Test
+    public void testPoolExhausted() throws Exception {
+        FileItem first = createItem("first");
+        FileItem second = createItem("second");
+        // The pool allows two buffers so the third part goes to disk
+        FileItem third = createItem("third");
+
+        Assert.assertTrue(first.isInMemory());
+        Assert.assertTrue(second.isInMemory());
+        Assert.assertFalse(third.isInMemory());
+        Assert.assertEquals("third", third.getString("UTF-8"));
+        Assert.assertEquals(1, repository.listFiles().length);
+        Assert.assertEquals(2, pool.getPooledCount());
+        Assert.assertEquals(1, pool.getOverflowCount());
+
+        third.delete();
+        first.delete();
+        FileItem fourth = createItem("fourth");
+        Assert.assertTrue(fourth.isInMemory());
+        Assert.assertEquals("fourth", fourth.getString("UTF-8"));
+
+        second.delete();
+        fourth.delete();
+    }
+
+    @Test
+    public void testIncompletePart() throws Exception {
+        FileItem item = factory.createItem("field", "text/plain", true, null);
+        item.getOutputStream().write(1);
+        // e.g. parsing failed before the part was complete
+        item.delete();
+        Assert.assertEquals(0, pool.getPooledCount());
+        Assert.assertEquals(0, pool.getOverflowCount());
+    }
+
+    private FileItem createItem(String content) throws IOException {
+        FileItem item = factory.createItem("field", "text/plain", true, null);
+        try (OutputStream os = item.getOutputStream()) {
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            // Write in two pieces to exercise the overflow mid-part
+            int half = bytes.length / 2;
+            os.write(bytes, 0, half);
+            os.write(bytes, half, bytes.length - half);
+        }
+        return item;
+    }
+
+    private static String read(InputStream is) throws IOException {
+        byte[] buf = new byte[64];
+        int len = 0;
+        int n;
+        while ((n = is.read(buf, len, buf.length - len)) > 0) {
+            len += n;
+        }
+        is.close();
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+    }
+}
@@ -471,7 +471,17 @@ public class TestRequest extends TomcatBaseTest {
 
     @Test
     public void testBug54984() throws Exception {
+        doTestBug54984(0);
+    }
+
+    @Test
+    public void testBug54984PartBufferPool() throws Exception {
+        doTestBug54984(1024);
+    }
+
+    private void doTestBug54984(int partBufferSize) throws Exception {
         Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setPartBufferSize(partBufferSize);
         Context root = tomcat.addContext("",
                 System.getProperty("java.io.tmpdir"));
         root.setAllowCasualMultipartParsing(true);
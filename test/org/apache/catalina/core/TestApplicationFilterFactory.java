@@ -0,0 +1,151 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.core;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.descriptor.web.FilterDef;
+import org.apache.tomcat.util.descriptor.web.FilterMap;
+
+public class TestApplicationFilterFactory extends TomcatBaseTest {
+
+    @Test
+    public void testCachedFilterChain() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        // No file system docBase required
+        StandardContext ctx = (StandardContext) tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctx, "chain", new ChainServlet());
+        ctx.addServletMappingDecoded("/", "chain");
+
+        addFilter(ctx, "A", "/*", null);
+        addFilter(ctx, "B", null, null);
+        addFilter(ctx, "C", null, "chain");
+
+        tomcat.start();
+
+        // Only path independent mappings
+        Assert.assertEquals("AC", getChain("/foo.do"));
+        Assert.assertEquals("AC", getChain("/bar"));
+        Assert.assertEquals(1, ctx.getFilterChainCacheMissCount());
+        Assert.assertEquals(1, ctx.getFilterChainCacheHitCount());
+
+        // Adding a mapping must invalidate the cached template
+        FilterMap filterMap = new FilterMap();
+        filterMap.setFilterName("B");
+        filterMap.addURLPatternDecoded("*.do");
+        ctx.addFilterMap(filterMap);
+
+        Assert.assertEquals("ABC", getChain("/foo.do"));
+        Assert.assertEquals("AC", getChain("/bar"));
+        Assert.assertEquals(2, ctx.getFilterChainCacheMissCount());
+        Assert.assertEquals(2, ctx.getFilterChainCacheHitCount());
+
+        ctx.removeFilterMap(filterMap);
+
+        Assert.assertEquals("AC", getChain("/foo.do"));
+        Assert.assertEquals(3, ctx.getFilterChainCacheMissCount());
+    }
+
+
+    private String getChain(String path) throws Exception {
+        ByteChunk res = new ByteChunk();
+        int rc = getUrl("http://localhost:" + getPort() + path, res, null);
+        Assert.assertEquals(HttpServletResponse.SC_OK, rc);
+        return res.toString();
+    }
+
+
+    private static void addFilter(StandardContext ctx, String name,
+            String urlPattern, String servletName) {
+        FilterDef filterDef = new FilterDef();
+        filterDef.setFilterName(name);
+        filterDef.setFilterClass(ChainFilter.class.getName());
+        filterDef.setFilter(new ChainFilter(name));
+        ctx.addFilterDef(filterDef);
+
+        if (urlPattern != null || servletName != null) {
+            FilterMap filterMap = new FilterMap();
+            filterMap.setFilterName(name);
+            if (urlPattern != null) {
+                filterMap.addURLPatternDecoded(urlPattern);
+            }
+            if (servletName != null) {
+                filterMap.addServletName(servletName);
+            }
+            ctx.addFilterMap(filterMap);
+        }
+    }
+
+
+    private static final class ChainFilter implements Filter {
+
+        private final String name;
+
+        public ChainFilter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void init(FilterConfig filterConfig) throws ServletException {
+            // NO-OP
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response,
+                FilterChain chain) throws IOException, ServletException {
+            Object previous = request.getAttribute("chain");
+            request.setAttribute("chain", previous == null ? name : previous + name);
+            chain.doFilter(request, response);
+        }
+
+        @Override
+        public void destroy() {
+            // NO-OP
+        }
+    }
+
+
+    private static final class ChainServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.setContentType("text/plain");
+            resp.getWriter().print(req.getAttribute("chain"));
+        }
+    }
+}
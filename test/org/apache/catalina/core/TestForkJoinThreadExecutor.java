@@ -0,0 +1,132 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.core;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestForkJoinThreadExecutor extends TomcatBaseTest {
+
+    private static final int REQUEST_COUNT = 10;
+
+
+    @Test
+    public void testWorkStealing() throws Exception {
+        ForkJoinThreadExecutor executor = doTest(false);
+        Assert.assertFalse(executor.isVirtualThreadsInUse());
+    }
+
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        boolean supported;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            supported = true;
+        } catch (NoSuchMethodException e) {
+            supported = false;
+        }
+        ForkJoinThreadExecutor executor = doTest(true);
+        // A preview feature on some JREs so only check the fallback
+        if (!supported) {
+            Assert.assertFalse(executor.isVirtualThreadsInUse());
+        }
+    }
+
+
+    @Test(expected=IllegalStateException.class)
+    public void testNotStarted() {
+        ForkJoinThreadExecutor executor = new ForkJoinThreadExecutor();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // NO-OP
+            }
+        });
+    }
+
+
+    @Test
+    public void testQueueSizeNotStarted() {
+        Assert.assertEquals(-1, new ForkJoinThreadExecutor().getQueueSize());
+    }
+
+
+    private ForkJoinThreadExecutor doTest(boolean useVirtualThreads)
+            throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        ForkJoinThreadExecutor executor = new ForkJoinThreadExecutor();
+        executor.setName("fj");
+        executor.setNamePrefix("test-fj-");
+        executor.setMaxThreads(4);
+        executor.setUseVirtualThreads(useVirtualThreads);
+        tomcat.getService().addExecutor(executor);
+        ((AbstractProtocol<?>) tomcat.getConnector().getProtocolHandler()).setExecutor(
+                executor);
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "thread", new ThreadNameServlet());
+        ctx.addServletMapping("/", "thread");
+
+        tomcat.start();
+
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            ByteChunk res = getUrl("http://localhost:" + getPort() + "/");
+            Assert.assertTrue(res.toString(), res.toString().startsWith("test-fj-"));
+        }
+
+        // Tasks are counted once they return which may be after the client
+        // has read the response
+        int count = 0;
+        while (executor.getCompletedTaskCount() < REQUEST_COUNT && count < 100) {
+            Thread.sleep(50);
+            count++;
+        }
+        Assert.assertTrue(executor.getCompletedTaskCount() >= REQUEST_COUNT);
+        Assert.assertTrue(executor.getQueueSize() >= 0);
+        return executor;
+    }
+
+
+    private static final class ThreadNameServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws IOException {
+            resp.setContentType("text/plain");
+            PrintWriter pw = resp.getWriter();
+            pw.print(Thread.currentThread().getName());
+        }
+    }
+}
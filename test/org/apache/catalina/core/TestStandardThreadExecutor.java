@@ -0,0 +1,111 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.core;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestStandardThreadExecutor extends TomcatBaseTest {
+
+    @Test
+    public void testSchedulingClasses() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        StandardThreadExecutor executor = new StandardThreadExecutor();
+        executor.setName("cos");
+        executor.setSchedulingClasses("critical:10,bulk:1:1");
+        tomcat.getService().addExecutor(executor);
+        Connector connector = tomcat.getConnector();
+        ((AbstractProtocol<?>) connector.getProtocolHandler()).setExecutor(executor);
+        Assert.assertTrue(connector.setProperty(
+                "schedulingClassRules", "/health=critical,/report=bulk"));
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "status", new StatusServlet(executor));
+        ctx.addServletMapping("/", "status");
+
+        tomcat.start();
+
+        waitForIdle(executor);
+        Assert.assertEquals("[[critical] queued=[0] running=[0], " +
+                "[bulk] queued=[0] running=[1], [default] queued=[0] running=[0]]",
+                getUrl("http://localhost:" + getPort() + "/report").toString());
+        waitForIdle(executor);
+        Assert.assertEquals("[[critical] queued=[0] running=[1], " +
+                "[bulk] queued=[0] running=[0], [default] queued=[0] running=[0]]",
+                getUrl("http://localhost:" + getPort() + "/health").toString());
+        waitForIdle(executor);
+        ByteChunk res = getUrl("http://localhost:" + getPort() + "/other");
+        Assert.assertEquals("[[critical] queued=[0] running=[0], " +
+                "[bulk] queued=[0] running=[0], [default] queued=[0] running=[1]]",
+                res.toString());
+    }
+
+
+    /*
+     * A task is only released from its scheduling class once it completes,
+     * which may be after the client has read the response.
+     */
+    private static void waitForIdle(StandardThreadExecutor executor)
+            throws InterruptedException {
+        String idle = "[[critical] queued=[0] running=[0], " +
+                "[bulk] queued=[0] running=[0], [default] queued=[0] running=[0]]";
+        int count = 0;
+        while (count < 100 &&
+                !idle.equals(Arrays.toString(executor.getSchedulingClassStatus()))) {
+            Thread.sleep(50);
+            count++;
+        }
+        Assert.assertEquals(idle, Arrays.toString(executor.getSchedulingClassStatus()));
+    }
+
+
+    private static final class StatusServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient StandardThreadExecutor executor;
+
+        StatusServlet(StandardThreadExecutor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws IOException {
+            resp.setContentType("text/plain");
+            PrintWriter pw = resp.getWriter();
+            pw.print(Arrays.toString(executor.getSchedulingClassStatus()));
+        }
+    }
+}
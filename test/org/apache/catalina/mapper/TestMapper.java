@@ -278,6 +278,68 @@ public class TestMapper extends LoggingBaseTest {
         Assert.assertTrue(mappingData.redirectPath.isNull());
     }
 
+    @Test
+    public void testWildcardTrie() throws Exception {
+        Host host = createHost("blah7");
+        mapper.addContextVersion("iowejoiejfoiew", host, "/trie", "0",
+                createContext("context4"), new String[0], null,
+                Arrays.asList(new WrapperMappingInfo[] {
+                        new WrapperMappingInfo("/", createWrapper("default"),
+                                false, false),
+                        new WrapperMappingInfo("/a/*", createWrapper("a"),
+                                false, false),
+                        new WrapperMappingInfo("/a/b/*", createWrapper("ab"),
+                                false, false),
+                        new WrapperMappingInfo("/a//*", createWrapper("a-"),
+                                false, false),
+                        new WrapperMappingInfo("/ab/*", createWrapper("ab2"),
+                                false, false) }));
+
+        String[][] expected = new String[][] {
+                { "/trie/a", "a", "/a", null },
+                { "/trie/a/", "a-", "/a/", null },
+                { "/trie/a/x", "a", "/a", "/x" },
+                { "/trie/a/b", "ab", "/a/b", null },
+                { "/trie/a/bc", "a", "/a", "/bc" },
+                { "/trie/a/b/c", "ab", "/a/b", "/c" },
+                { "/trie/a//x", "a-", "/a/", "/x" },
+                { "/trie/ab", "ab2", "/ab", null },
+                { "/trie/abc", "default", "/abc", null },
+                { "/trie/x/a", "default", "/x/a", null } };
+
+        for (boolean useWrapperTrie : new boolean[] { true, false }) {
+            mapper.useWrapperTrie = useWrapperTrie;
+            for (String[] test : expected) {
+                MappingData mappingData = map(test[0]);
+                Assert.assertEquals(test[0], test[1],
+                        mappingData.wrapper.getName());
+                Assert.assertEquals(test[0], test[2],
+                        mappingData.wrapperPath.toString());
+                Assert.assertEquals(test[0], test[3],
+                        mappingData.pathInfo.toString());
+            }
+        }
+
+        // The trie must be rebuilt when a wrapper is removed
+        mapper.useWrapperTrie = true;
+        mapper.removeWrapper("iowejoiejfoiew", "/trie", "0", "/a/b/*");
+        MappingData mappingData = map("/trie/a/b/c");
+        Assert.assertEquals("a", mappingData.wrapper.getName());
+        Assert.assertEquals("/b/c", mappingData.pathInfo.toString());
+    }
+
+    private MappingData map(String path) throws Exception {
+        MappingData mappingData = new MappingData();
+        MessageBytes host = MessageBytes.newInstance();
+        host.setString("iowejoiejfoiew");
+        MessageBytes uri = MessageBytes.newInstance();
+        uri.setString(path);
+        uri.toChars();
+        uri.getCharChunk().setLimit(-1);
+        mapper.map(host, uri, null, mappingData);
+        return mappingData;
+    }
+
     @Test
     public void testAddRemoveContextVersion() throws Exception {
         final String hostName = "iowejoiejfoiew";
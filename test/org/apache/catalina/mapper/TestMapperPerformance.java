@@ -16,9 +16,16 @@
  */
 package org.apache.catalina.mapper;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.core.StandardWrapper;
 import org.apache.tomcat.util.buf.MessageBytes;
 
 public class TestMapperPerformance extends TestMapper {
@@ -57,4 +64,100 @@ public class TestMapperPerformance extends TestMapper {
         return time;
     }
 
+
+    /**
+     * Compares prefix matching using the compiled wrapper trie with the
+     * sorted array search for a context with many prefix mappings, such as
+     * an application with generated REST end points.
+     */
+    @Test
+    public void testWildcardPerformance() throws Exception {
+        final int resources = 2000;
+        final int iterations = 100000;
+
+        StandardHost host = new StandardHost();
+        host.setName("rest");
+        StandardContext context = new StandardContext();
+        context.setName("rest");
+        List<WrapperMappingInfo> wrappers = new ArrayList<>();
+        for (int i = 0; i < resources; i++) {
+            wrappers.add(new WrapperMappingInfo("/api/v1/resource" + i + "/*",
+                    createWrapper("resource" + i), false, false));
+            wrappers.add(new WrapperMappingInfo("/api/v1/resource" + i + "/items/*",
+                    createWrapper("items" + i), false, false));
+        }
+        wrappers.add(new WrapperMappingInfo("/", createWrapper("default"),
+                false, false));
+        mapper.addContextVersion("rest", host, "/rest", "0", context,
+                new String[0], null, wrappers);
+
+        MessageBytes hostMB = MessageBytes.newInstance();
+        hostMB.setString("rest");
+        MessageBytes[] uris = new MessageBytes[] {
+                uri("/rest/api/v1/resource1234/items/42/details/extra"),
+                uri("/rest/api/v1/resource7/list"),
+                uri("/rest/api/v1/resource1999"),
+                uri("/rest/api/v1/unknown/a/b/c/d/e") };
+
+        // Both lookups must give the same results
+        MappingData mappingData = new MappingData();
+        for (MessageBytes uri : uris) {
+            mapper.useWrapperTrie = true;
+            mappingData.recycle();
+            mapper.map(hostMB, uri, null, mappingData);
+            String trieResult = mappingData.wrapper.getName() + " " +
+                    mappingData.wrapperPath + " " + mappingData.pathInfo;
+            mapper.useWrapperTrie = false;
+            mappingData.recycle();
+            mapper.map(hostMB, uri, null, mappingData);
+            String arrayResult = mappingData.wrapper.getName() + " " +
+                    mappingData.wrapperPath + " " + mappingData.pathInfo;
+            Assert.assertEquals(arrayResult, trieResult);
+        }
+
+        // Warm up both code paths before measuring
+        for (int i = 0; i < 3; i++) {
+            mapper.useWrapperTrie = true;
+            testWildcardPerformanceImpl(hostMB, uris, iterations);
+            mapper.useWrapperTrie = false;
+            testWildcardPerformanceImpl(hostMB, uris, iterations);
+        }
+
+        mapper.useWrapperTrie = true;
+        long trieTime = testWildcardPerformanceImpl(hostMB, uris, iterations);
+        mapper.useWrapperTrie = false;
+        long arrayTime = testWildcardPerformanceImpl(hostMB, uris, iterations);
+        mapper.useWrapperTrie = true;
+
+        long count = (long) iterations * uris.length;
+        log.info("testWildcardPerformance(): trie " + (trieTime / count) +
+                " ns/op, sorted array " + (arrayTime / count) + " ns/op");
+    }
+
+    private long testWildcardPerformanceImpl(MessageBytes host,
+            MessageBytes[] uris, int iterations) throws Exception {
+        MappingData mappingData = new MappingData();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (MessageBytes uri : uris) {
+                mappingData.recycle();
+                mapper.map(host, uri, null, mappingData);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static MessageBytes uri(String path) {
+        MessageBytes uri = MessageBytes.newInstance();
+        uri.setString(path);
+        uri.toChars();
+        uri.getCharChunk().setLimit(-1);
+        return uri;
+    }
+
+    private static Wrapper createWrapper(String name) {
+        Wrapper wrapper = new StandardWrapper();
+        wrapper.setName(name);
+        return wrapper;
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.mapper;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.core.StandardWrapper;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+public class TestMappingCache {
+
+    private Mapper mapper;
+    private Context context;
+    private MappingCache cache;
+
+    @Before
+    public void setUp() {
+        mapper = new Mapper();
+        Host host = new StandardHost();
+        host.setName("localhost");
+        context = new StandardContext();
+        context.setName("app");
+        mapper.addContextVersion("localhost", host, "/app", "0", context,
+                new String[0], null, Arrays.asList(new WrapperMappingInfo[] {
+                        new WrapperMappingInfo("/",
+                                createWrapper("default"), false, false),
+                        new WrapperMappingInfo("/api/*",
+                                createWrapper("api"), false, false),
+                        new WrapperMappingInfo("*.do",
+                                createWrapper("do"), false, false) }));
+        cache = new MappingCache(16);
+    }
+
+    @Test
+    public void testHit() throws Exception {
+        MappingData first = map("/app/api/users");
+        MappingData second = map("/app/api/users");
+
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(0.5, cache.getHitRatio(), 0.001);
+
+        Assert.assertSame(first.host, second.host);
+        Assert.assertSame(first.context, second.context);
+        Assert.assertSame(first.wrapper, second.wrapper);
+        Assert.assertEquals("api", second.wrapper.getName());
+        Assert.assertEquals("/app", second.contextPath.toString());
+        Assert.assertEquals("/api", second.wrapperPath.toString());
+        Assert.assertEquals("/users", second.pathInfo.toString());
+
+        // Host names are not case sensitive
+        MessageBytes host = MessageBytes.newInstance();
+        host.setString("LOCALHOST");
+        MappingData third = new MappingData();
+        cache.map(mapper, host, uri("/app/api/users"), third);
+        Assert.assertEquals(2, cache.getHitCount());
+
+        // Different URI
+        MappingData fourth = map("/app/foo.do");
+        Assert.assertEquals("do", fourth.wrapper.getName());
+        Assert.assertTrue(fourth.pathInfo.isNull());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testNotCacheable() throws Exception {
+        // Default servlet, depends on the static resources
+        Assert.assertEquals("default", map("/app/static.txt").wrapper.getName());
+        Assert.assertEquals("default", map("/app/static.txt").wrapper.getName());
+        // Welcome files may apply
+        map("/app/");
+        map("/app/");
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        Assert.assertEquals("api", map("/app/api/users/1").wrapper.getName());
+
+        mapper.addWrapper("localhost", "/app", "0", "/api/users/*",
+                createWrapper("users"), false, false);
+        MappingData mappingData = map("/app/api/users/1");
+        Assert.assertEquals("users", mappingData.wrapper.getName());
+        Assert.assertEquals("/1", mappingData.pathInfo.toString());
+        Assert.assertEquals(0, cache.getHitCount());
+
+        mapper.removeWrapper("localhost", "/app", "0", "/api/users/*");
+        Assert.assertEquals("api", map("/app/api/users/1").wrapper.getName());
+        Assert.assertEquals(0, cache.getHitCount());
+
+        // Results obtained from a paused context are not cached
+        mapper.pauseContextVersion(context, "localhost", "/app", "0");
+        map("/app/api/users/1");
+        map("/app/api/users/1");
+        Assert.assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void testClearedOnChange() throws Exception {
+        mapper.addMappingCache(cache);
+        map("/app/api/users");
+        map("/app/foo.do");
+        Assert.assertEquals(2, cache.getEntryCount());
+
+        // Removed mappings must not stay reachable from the cache
+        mapper.removeWrapper("localhost", "/app", "0", "*.do");
+        Assert.assertEquals(0, cache.getEntryCount());
+
+        mapper.removeMappingCache(cache);
+        map("/app/api/users");
+        mapper.addWrapper("localhost", "/app", "0", "*.do",
+                createWrapper("do"), false, false);
+        Assert.assertEquals(1, cache.getEntryCount());
+    }
+
+    @Test
+    public void testStaleEntryRemoved() throws Exception {
+        // A single slot so every look-up uses the same entry
+        cache = new MappingCache(1);
+        map("/app/api/users");
+        Assert.assertEquals(1, cache.getEntryCount());
+
+        mapper.removeWrapper("localhost", "/app", "0", "*.do");
+        Assert.assertEquals(1, cache.getEntryCount());
+
+        // Not cacheable, so the stale entry is not replaced, only dropped
+        map("/app/static.txt");
+        Assert.assertEquals(0, cache.getEntryCount());
+    }
+
+    private MappingData map(String path) throws Exception {
+        MappingData mappingData = new MappingData();
+        MessageBytes host = MessageBytes.newInstance();
+        host.setString("localhost");
+        cache.map(mapper, host, uri(path), mappingData);
+        return mappingData;
+    }
+
+    private static MessageBytes uri(String path) {
+        MessageBytes uri = MessageBytes.newInstance();
+        uri.setString(path);
+        uri.toChars();
+        uri.getCharChunk().setLimit(-1);
+        return uri;
+    }
+
+    private static Wrapper createWrapper(String name) {
+        Wrapper wrapper = new StandardWrapper();
+        wrapper.setName(name);
+        return wrapper;
+    }
+}
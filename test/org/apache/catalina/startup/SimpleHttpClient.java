@@ -298,8 +298,15 @@ public abstract class SimpleHttpClient {
         if (wantBody) {
             if (useContentLength && (contentLength > -1)) {
                 char[] body = new char[contentLength];
-                reader.read(body);
-                builder.append(body);
+                int read = 0;
+                while (read < contentLength) {
+                    int n = reader.read(body, read, contentLength - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+                builder.append(body, 0, read);
             }
             else {
                 // not using content length, so just read it line by line
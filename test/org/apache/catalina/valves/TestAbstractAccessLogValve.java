@@ -0,0 +1,210 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.valves;
+
+import java.io.BufferedReader;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestAbstractAccessLogValve extends TomcatBaseTest {
+
+    private static final String PATTERN = "%h %l %u %t \"%r\" %s %b %B %a %A " +
+            "%p %{local}p %m %U %q %H %S %v %I %{begin:msec}t %{end:sec}t " +
+            "%{msec_frac}t %{yyyy-MM-dd HH:mm:ss.SSS}t \"%{X-Test}i\" " +
+            "\"%{Missing}i\"";
+
+
+    @Test
+    public void testByteAndCharRenderingMatch() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        // No file system access required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "hello", new HelloWorldServlet());
+        ctx.addServletMapping("/hello", "hello");
+
+        CapturingValve bytes = new CapturingValve(true);
+        bytes.setPattern(PATTERN);
+        tomcat.getHost().getPipeline().addValve(bytes);
+        CapturingValve chars = new CapturingValve(false);
+        chars.setPattern(PATTERN);
+        tomcat.getHost().getPipeline().addValve(chars);
+
+        File logDir = new File(getTemporaryDirectory(), "byte-access-log");
+        AccessLogValve file = new AccessLogValve();
+        file.setDirectory(logDir.getAbsolutePath());
+        file.setRotatable(false);
+        file.setPattern(PATTERN);
+        tomcat.getHost().getPipeline().addValve(file);
+
+        tomcat.start();
+
+        String request = "GET /hello?a=b%20c&d HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "X-Test: one\r\n" +
+                "X-Test: twé\r\n" +
+                "Connection: close\r\n" +
+                "\r\n";
+        try (Socket socket = new Socket("localhost", getPort())) {
+            OutputStream os = socket.getOutputStream();
+            os.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            os.flush();
+            InputStream is = socket.getInputStream();
+            byte[] buf = new byte[1024];
+            while (is.read(buf) > 0) {
+                // Discard the response
+            }
+        }
+
+        // The access log entry is made after the response has been sent
+        for (int i = 0; i < 50 && chars.messages.size() == 0; i++) {
+            Thread.sleep(100);
+        }
+        file.stop();
+
+        Assert.assertEquals(1, bytes.messages.size());
+        Assert.assertEquals(1, chars.messages.size());
+        Assert.assertEquals(0, bytes.charMessageCount);
+        Assert.assertEquals(0, chars.byteMessageCount);
+        String expected = chars.messages.get(0);
+        Assert.assertTrue(expected, expected.contains(
+                "\"GET /hello?a=b%20c&d HTTP/1.1\" 200 "));
+        Assert.assertTrue(expected, expected.endsWith("\"one,twé\" \"-\""));
+        Assert.assertEquals(expected, bytes.messages.get(0));
+
+        File logFile = new File(logDir, "access_log");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(logFile), StandardCharsets.ISO_8859_1))) {
+            Assert.assertEquals(expected, reader.readLine());
+            Assert.assertNull(reader.readLine());
+        }
+    }
+
+
+    @Test
+    public void testPhaseTimes() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        Assert.assertTrue(tomcat.getConnector().setProperty(
+                "phaseTracing", "true"));
+
+        // No file system access required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "hello", new HelloWorldServlet());
+        ctx.addServletMapping("/hello", "hello");
+
+        CapturingValve valve = new CapturingValve(true);
+        valve.setPattern("%{headers}P %{service}P %{mapped}P %{engine}P " +
+                "%{host}P %{auth}P %{context}P %{wrapper}P %{filters}P " +
+                "%{servlet}P %{servletEnd}P %{commit}P %{complete}P %{foo}P");
+        tomcat.getHost().getPipeline().addValve(valve);
+
+        tomcat.start();
+
+        ByteChunk res = getUrl("http://localhost:" + getPort() + "/hello");
+        Assert.assertEquals(HelloWorldServlet.RESPONSE_TEXT, res.toString());
+
+        for (int i = 0; i < 50 && valve.messages.size() == 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(1, valve.messages.size());
+        String message = valve.messages.get(0);
+        String[] times = message.split(" ");
+        Assert.assertEquals(message, 14, times.length);
+        // Phases are reached in order
+        long last = 0;
+        for (int i = 0; i < 13; i++) {
+            long time = Long.parseLong(times[i]);
+            Assert.assertTrue(message, time >= last);
+            last = time;
+        }
+        Assert.assertEquals("???", times[13]);
+
+        AbstractProtocol<?> protocol =
+                (AbstractProtocol<?>) tomcat.getConnector().getProtocolHandler();
+        String phaseTimes = protocol.getGlobal().getPhaseTimes();
+        Assert.assertTrue(phaseTimes, phaseTimes.contains(" servlet="));
+        Assert.assertTrue(phaseTimes, phaseTimes.contains(" complete="));
+    }
+
+
+    @Test
+    public void testCharOnlyElementUsesChars() throws Exception {
+        CapturingValve valve = new CapturingValve(true);
+        valve.setPattern("%h %{foo}r");
+        Assert.assertNull(getByteLogElements(valve));
+
+        valve.setPattern("%h %s");
+        Assert.assertNotNull(getByteLogElements(valve));
+    }
+
+
+    private static Object getByteLogElements(AbstractAccessLogValve valve)
+            throws Exception {
+        java.lang.reflect.Field f =
+                AbstractAccessLogValve.class.getDeclaredField("byteLogElements");
+        f.setAccessible(true);
+        return f.get(valve);
+    }
+
+
+    private static class CapturingValve extends AbstractAccessLogValve {
+
+        private final boolean logBytes;
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+        private volatile int charMessageCount = 0;
+        private volatile int byteMessageCount = 0;
+
+        CapturingValve(boolean logBytes) {
+            this.logBytes = logBytes;
+        }
+
+        @Override
+        protected boolean isLogBytesSupported() {
+            return logBytes;
+        }
+
+        @Override
+        protected void log(CharArrayWriter message) {
+            charMessageCount++;
+            messages.add(message.toString());
+        }
+
+        @Override
+        protected void log(ByteChunk message) {
+            byteMessageCount++;
+            messages.add(new String(message.getBuffer(), message.getStart(),
+                    message.getLength(), StandardCharsets.ISO_8859_1));
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.valves;
+
+import java.io.BufferedReader;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestAccessLogValveAsyncWrite extends TomcatBaseTest {
+
+    private static final int THREADS = 4;
+    private static final int MESSAGES = 5000;
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        AccessLogValve valve = doTest(false, false);
+        Assert.assertEquals(0, valve.getDroppedCount());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        doTest(true, false);
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        AccessLogValve valve = doTest(false, true);
+        Assert.assertEquals(0, valve.getDroppedCount());
+    }
+
+    @Test
+    public void testStopWhileBlocked() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        File logDir = new File(getTemporaryDirectory(), "async-access-log-stop");
+        final AccessLogValve valve = new AccessLogValve();
+        valve.setDirectory(logDir.getAbsolutePath());
+        valve.setRotatable(false);
+        valve.setAsyncWrite(true);
+        valve.setQueueSize(2);
+        tomcat.getHost().getPipeline().addValve(valve);
+
+        tomcat.start();
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                CharArrayWriter message = new CharArrayWriter();
+                message.append("third");
+                valve.log(message);
+            }
+        };
+
+        // The writer thread can not consume messages while the lock on the
+        // valve is held
+        synchronized (valve) {
+            CharArrayWriter message = new CharArrayWriter();
+            message.append("first");
+            valve.log(message);
+            message.reset();
+            message.append("second");
+            valve.log(message);
+
+            // The queue is full so the producer blocks
+            producer.start();
+            int count = 0;
+            while (producer.getState() != Thread.State.TIMED_WAITING && count < 100) {
+                Thread.sleep(50);
+                count++;
+            }
+            Assert.assertEquals(Thread.State.TIMED_WAITING, producer.getState());
+
+            valve.stop();
+        }
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+
+        // A blocked producer never drops its message
+        Assert.assertEquals(0, valve.getDroppedCount());
+
+        File logFile = new File(logDir, "access_log");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(logFile), StandardCharsets.ISO_8859_1))) {
+            Assert.assertEquals("first", reader.readLine());
+            Assert.assertEquals("second", reader.readLine());
+        }
+    }
+
+    private AccessLogValve doTest(boolean drop, final boolean bytes)
+            throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        File logDir = new File(getTemporaryDirectory(), "async-access-log");
+        final AccessLogValve valve = new AccessLogValve();
+        valve.setDirectory(logDir.getAbsolutePath());
+        valve.setRotatable(false);
+        valve.setAsyncWrite(true);
+        // Small enough that producers will find it full
+        valve.setQueueSize(16);
+        valve.setDropWhenQueueFull(drop);
+        tomcat.getHost().getPipeline().addValve(valve);
+
+        tomcat.start();
+
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    CharArrayWriter message = new CharArrayWriter();
+                    ByteChunk byteMessage = new ByteChunk(32);
+                    for (int j = 0; j < MESSAGES; j++) {
+                        if (bytes) {
+                            byteMessage.recycle();
+                            AbstractAccessLogValve.append(byteMessage, id);
+                            AbstractAccessLogValve.append(byteMessage, '-');
+                            AbstractAccessLogValve.append(byteMessage, j);
+                            valve.log(byteMessage);
+                        } else {
+                            message.reset();
+                            message.append(Integer.toString(id));
+                            message.append('-');
+                            message.append(Integer.toString(j));
+                            valve.log(message);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Stopping the valve writes any remaining messages
+        valve.stop();
+
+        int[] next = new int[THREADS];
+        int lines = 0;
+        File logFile = new File(logDir, "access_log");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(logFile), StandardCharsets.ISO_8859_1))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                int dash = line.indexOf('-');
+                int id = Integer.parseInt(line.substring(0, dash));
+                int seq = Integer.parseInt(line.substring(dash + 1));
+                // Messages from one thread must be complete and in order
+                Assert.assertTrue(line, seq >= next[id]);
+                if (!drop) {
+                    Assert.assertEquals(line, next[id], seq);
+                }
+                next[id] = seq + 1;
+            }
+        }
+
+        Assert.assertEquals(THREADS * MESSAGES, lines + valve.getDroppedCount());
+        return valve;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.valves;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.valves.TestRequestFilterValve.MockResponse;
+
+public class TestAdaptiveConcurrencyValve {
+
+    private AdaptiveConcurrencyValve valve;
+
+
+    @After
+    public void stop() throws Exception {
+        if (valve != null) {
+            valve.stop();
+        }
+    }
+
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        valve = createValve();
+        valve.setConcurrency(1);
+        valve.setNext(new BlockingValve(entered, release));
+        valve.start();
+
+        Thread t = new Thread(new Invoker(valve, 1));
+        t.start();
+        Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, valve.getInFlight());
+
+        Response response = new MockResponse();
+        valve.invoke(new Request(), response);
+        Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                response.getStatus());
+        Assert.assertEquals(1, valve.getRejectedCount());
+
+        release.countDown();
+        t.join();
+        Assert.assertEquals(0, valve.getInFlight());
+    }
+
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsStable() throws Exception {
+        valve = createValve();
+        valve.setConcurrency(4);
+        valve.setMaxQueueWait(10000);
+        valve.setSampleWindow(20);
+        valve.setMinSamples(1);
+        SleepingValve next = new SleepingValve(2);
+        valve.setNext(next);
+        valve.start();
+
+        runThreads(8, 100);
+
+        Assert.assertTrue(Integer.toString(valve.getLimit()), valve.getLimit() > 4);
+        Assert.assertEquals(0, valve.getRejectedCount());
+        Assert.assertTrue(valve.getShortRtt() > 0);
+        Assert.assertTrue(valve.getThroughput() > 0);
+    }
+
+
+    @Test
+    public void testLimitShrinksWhenLatencyRises() throws Exception {
+        valve = createValve();
+        valve.setConcurrency(20);
+        valve.setMaxConcurrency(20);
+        valve.setMaxQueueWait(10000);
+        valve.setSampleWindow(20);
+        valve.setMinSamples(1);
+        SleepingValve next = new SleepingValve(1);
+        valve.setNext(next);
+        valve.start();
+
+        runThreads(12, 50);
+        Assert.assertEquals(20, valve.getLimit());
+
+        next.sleep = 40;
+        next.observed = valve;
+        runThreads(12, 10);
+
+        // Once the long term RTT catches up the limit grows again
+        Assert.assertTrue(Integer.toString(next.minLimit), next.minLimit < 20);
+        Assert.assertTrue(valve.getShortRtt() > 20);
+    }
+
+
+    private static AdaptiveConcurrencyValve createValve() {
+        AdaptiveConcurrencyValve valve = new AdaptiveConcurrencyValve();
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        valve.setContainer(engine);
+        return valve;
+    }
+
+
+    private void runThreads(int threadCount, int requests) throws InterruptedException {
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(new Invoker(valve, requests));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+
+    private static class Invoker implements Runnable {
+
+        private final AdaptiveConcurrencyValve valve;
+        private final int requests;
+
+        Invoker(AdaptiveConcurrencyValve valve, int requests) {
+            this.valve = valve;
+            this.requests = requests;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < requests; i++) {
+                    valve.invoke(new Request(), new MockResponse());
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+
+    private static class BlockingValve extends ValveBase {
+
+        private final CountDownLatch entered;
+        private final CountDownLatch release;
+
+        BlockingValve(CountDownLatch entered, CountDownLatch release) {
+            this.entered = entered;
+            this.release = release;
+        }
+
+        @Override
+        public void invoke(Request request, Response response)
+                throws IOException, ServletException {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+    }
+
+
+    private static class SleepingValve extends ValveBase {
+
+        private volatile long sleep;
+        private volatile AdaptiveConcurrencyValve observed;
+        private volatile int minLimit = Integer.MAX_VALUE;
+
+        SleepingValve(long sleep) {
+            this.sleep = sleep;
+        }
+
+        @Override
+        public void invoke(Request request, Response response)
+                throws IOException, ServletException {
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            AdaptiveConcurrencyValve observed = this.observed;
+            if (observed != null) {
+                synchronized (this) {
+                    minLimit = Math.min(minLimit, observed.getLimit());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.valves;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestBinaryAccessLogValve extends TomcatBaseTest {
+
+    private static final int REQUESTS = 100;
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        doTestWriteAndRead(new BinaryAccessLogValve());
+    }
+
+
+    @Test
+    public void testWriteAndReadChars() throws Exception {
+        // Records generated as characters must have the same layout
+        doTestWriteAndRead(new BinaryAccessLogValve() {
+            @Override
+            protected boolean isLogBytesSupported() {
+                return false;
+            }
+        });
+    }
+
+
+    private void doTestWriteAndRead(BinaryAccessLogValve valve)
+            throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        // No file system access required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "attr", new AttributeServlet());
+        ctx.addServletMapping("/attr", "attr");
+
+        File logDir = new File(getTemporaryDirectory(), "binary-access-log");
+        valve.setDirectory(logDir.getAbsolutePath());
+        valve.setPattern("%m \"%U%q\" %s %{X-Test}i %{foo}r");
+        // Small enough to need several segments
+        valve.setSegmentSize(4096);
+        tomcat.getHost().getPipeline().addValve(valve);
+
+        tomcat.start();
+
+        for (int i = 0; i < REQUESTS; i++) {
+            Map<String,List<String>> reqHead = new HashMap<>();
+            reqHead.put("X-Test", Collections.singletonList("value\t" + i));
+            int rc = getUrl("http://localhost:" + getPort() + "/attr?id=" + i,
+                    new ByteChunk(), reqHead, null);
+            Assert.assertEquals(HttpServletResponse.SC_OK, rc);
+        }
+
+        // The access log entry is made after the response has been sent
+        Thread.sleep(500);
+        valve.stop();
+
+        File[] segments = logDir.listFiles();
+        Assert.assertNotNull(segments);
+        Assert.assertTrue(segments.length > 1);
+        Arrays.sort(segments);
+
+        int count = 0;
+        for (File segment : segments) {
+            // Unused space is removed when a segment is closed
+            Assert.assertTrue(segment.length() <= 4096);
+            try (BinaryAccessLogReader reader = new BinaryAccessLogReader(segment)) {
+                Assert.assertArrayEquals(new String[] { "%m", "%U", "%q", "%s",
+                        "%{X-Test}i", "%{foo}r" }, reader.getFieldNames());
+                int status = reader.getFieldIndex("%s");
+                while (reader.next()) {
+                    Assert.assertEquals("GET", reader.getField(0));
+                    Assert.assertEquals("/attr", reader.getField(1));
+                    Assert.assertEquals("?id=" + count, reader.getField(2));
+                    Assert.assertEquals("200", reader.getField(status));
+                    Assert.assertEquals("value\t" + count, reader.getField(4));
+                    Assert.assertEquals("bar" + count, reader.getField(5));
+                    count++;
+                }
+            }
+        }
+        Assert.assertEquals(REQUESTS, count);
+    }
+
+
+    @Test(expected=IOException.class)
+    public void testReadInvalidFile() throws Exception {
+        File file = new File(getTemporaryDirectory(), "not-an-access-log.bin");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(new byte[] { 'A', 'B', 'C', 'D', 0, 1, 0, 0 });
+        }
+        try (BinaryAccessLogReader reader = new BinaryAccessLogReader(file)) {
+            reader.next();
+        }
+    }
+
+
+    private static class AttributeServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            req.setAttribute("foo", "bar" + req.getParameter("id"));
+            resp.setContentType("text/plain");
+            resp.getWriter().print("OK");
+        }
+    }
+}
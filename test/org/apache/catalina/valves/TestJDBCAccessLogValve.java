@@ -0,0 +1,253 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.catalina.valves;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+
+public class TestJDBCAccessLogValve extends TomcatBaseTest {
+
+    private static final int REQUESTS = 25;
+
+    private static final AtomicInteger updates = new AtomicInteger();
+    private static final AtomicInteger batches = new AtomicInteger();
+    private static final AtomicInteger uncommittedRows = new AtomicInteger();
+    private static final AtomicInteger committedRows = new AtomicInteger();
+    private static volatile boolean killInserter = false;
+    private static final AtomicInteger batchFailures = new AtomicInteger();
+
+    @Before
+    public void reset() {
+        updates.set(0);
+        batches.set(0);
+        uncommittedRows.set(0);
+        committedRows.set(0);
+        killInserter = false;
+        batchFailures.set(0);
+    }
+
+
+    @Test
+    public void testInsertPerRequest() throws Exception {
+        JDBCAccessLogValve valve = doRequests(0);
+
+        Assert.assertEquals(REQUESTS, updates.get());
+        Assert.assertEquals(0, batches.get());
+        Assert.assertEquals(0, valve.getFailedCount());
+    }
+
+
+    @Test
+    public void testBatch() throws Exception {
+        JDBCAccessLogValve valve = doRequests(10);
+
+        Assert.assertEquals(0, updates.get());
+        Assert.assertEquals(REQUESTS, committedRows.get());
+        Assert.assertEquals(0, uncommittedRows.get());
+        Assert.assertTrue(batches.get() >= 3);
+        Assert.assertTrue(batches.get() < REQUESTS);
+        Assert.assertEquals(0, valve.getDroppedCount());
+        Assert.assertEquals(0, valve.getFailedCount());
+        Assert.assertEquals(0, valve.getQueueLength());
+    }
+
+
+    @Test
+    public void testBatchRetry() throws Exception {
+        // The first batch fails after some of its rows were inserted
+        batchFailures.set(1);
+        JDBCAccessLogValve valve = doRequests(10);
+
+        // The driver commits on close so the partial batch must be rolled back
+        Assert.assertEquals(REQUESTS, committedRows.get());
+        Assert.assertEquals(0, valve.getFailedCount());
+    }
+
+
+    @Test
+    public void testInserterExited() throws Exception {
+        // The first batch kills the background thread
+        killInserter = true;
+        JDBCAccessLogValve valve = doRequests(1);
+
+        Assert.assertEquals(0, committedRows.get());
+        Assert.assertEquals(1, valve.getFailedCount());
+        Assert.assertEquals(REQUESTS - 1, valve.getDroppedCount());
+        Assert.assertEquals(0, valve.getQueueLength());
+    }
+
+
+    private JDBCAccessLogValve doRequests(int batchSize) throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        // No file system access required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "hello", new HelloWorldServlet());
+        ctx.addServletMapping("/hello", "hello");
+
+        JDBCAccessLogValve valve = new JDBCAccessLogValve();
+        valve.setDriverName(TesterDriver.class.getName());
+        valve.setConnectionURL("jdbc:tester");
+        valve.setPattern("combined");
+        valve.setBatchSize(batchSize);
+        // Long enough for several requests to share a batch
+        valve.setBatchInterval(5000);
+        tomcat.getHost().getPipeline().addValve(valve);
+
+        tomcat.start();
+
+        for (int i = 0; i < REQUESTS; i++) {
+            getUrl("http://localhost:" + getPort() + "/hello");
+        }
+
+        // The access log entry is made after the response has been sent
+        Thread.sleep(500);
+
+        // Stopping the valve inserts any queued records
+        valve.stop();
+        return valve;
+    }
+
+
+    public static class TesterDriver implements Driver {
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            return (Connection) Proxy.newProxyInstance(
+                    TesterDriver.class.getClassLoader(),
+                    new Class<?>[] { Connection.class },
+                    new ConnectionHandler());
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return true;
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+
+    private static class ConnectionHandler implements InvocationHandler {
+
+        private boolean autoCommit = true;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "setAutoCommit":
+                autoCommit = ((Boolean) args[0]).booleanValue();
+                return null;
+            case "getAutoCommit":
+                return Boolean.valueOf(autoCommit);
+            case "commit":
+                committedRows.addAndGet(uncommittedRows.getAndSet(0));
+                return null;
+            case "rollback":
+                uncommittedRows.set(0);
+                return null;
+            case "close":
+                // Like some drivers, commit any uncommitted work
+                committedRows.addAndGet(uncommittedRows.getAndSet(0));
+                return null;
+            case "prepareStatement":
+                return Proxy.newProxyInstance(
+                        TesterDriver.class.getClassLoader(),
+                        new Class<?>[] { PreparedStatement.class },
+                        new StatementHandler());
+            default:
+                return null;
+            }
+        }
+    }
+
+
+    private static class StatementHandler implements InvocationHandler {
+
+        private int batchRows = 0;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws SQLException {
+            switch (method.getName()) {
+            case "executeUpdate":
+                updates.incrementAndGet();
+                return Integer.valueOf(1);
+            case "addBatch":
+                batchRows++;
+                return null;
+            case "executeBatch":
+                if (killInserter) {
+                    // Not handled by the valve
+                    throw new InternalError();
+                }
+                batches.incrementAndGet();
+                uncommittedRows.addAndGet(batchRows);
+                if (batchFailures.getAndDecrement() > 0) {
+                    batchRows = 0;
+                    throw new SQLException("Batch failed");
+                }
+                int[] result = new int[batchRows];
+                batchRows = 0;
+                return result;
+            default:
+                return null;
+            }
+        }
+    }
+}
@@ -976,4 +976,82 @@ public class TestAbstractHttp11Processor extends TomcatBaseTest {
             resp.setStatus(205);
         }
     }
+
+
+    @Test
+    public void testPipelinedResponseBatchingSmall() throws Exception {
+        doTestPipelinedResponseBatching(2);
+    }
+
+
+    @Test
+    public void testPipelinedResponseBatchingLarge() throws Exception {
+        // Larger than the socket write buffer
+        doTestPipelinedResponseBatching(20000);
+    }
+
+
+    private void doTestPipelinedResponseBatching(int size) throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().setProperty("batchPipelinedResponses", "true");
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+
+        Tomcat.addServlet(ctx, "Sized", new SizedResponseServlet());
+        ctx.addServletMappingDecoded("/sized", "Sized");
+
+        tomcat.start();
+
+        int count = 5;
+        StringBuilder request = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            request.append("GET /sized?size=" + (size + i) + " HTTP/1.1" +
+                    SimpleHttpClient.CRLF);
+            request.append("Host: any" + SimpleHttpClient.CRLF);
+            if (i == count - 1) {
+                request.append("Connection: close" + SimpleHttpClient.CRLF);
+            }
+            request.append(SimpleHttpClient.CRLF);
+        }
+
+        Client client = new Client(tomcat.getConnector().getLocalPort());
+        client.setRequest(new String[] { request.toString() });
+        client.setUseContentLength(true);
+        client.connect();
+        client.sendRequest();
+
+        for (int i = 0; i < count; i++) {
+            client.readResponse(true);
+            Assert.assertTrue(client.isResponse200());
+            Assert.assertEquals(size + i, client.getResponseBody().length());
+            Assert.assertEquals(SizedResponseServlet.getBody(size + i),
+                    client.getResponseBody());
+        }
+        client.disconnect();
+    }
+
+
+    private static final class SizedResponseServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        static String getBody(int size) {
+            StringBuilder body = new StringBuilder(size);
+            for (int i = 0; i < size; i++) {
+                body.append((char) ('a' + i % 26));
+            }
+            return body.toString();
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            String body = getBody(Integer.parseInt(req.getParameter("size")));
+            resp.setContentType("text/plain");
+            resp.setCharacterEncoding("ISO-8859-1");
+            resp.setContentLength(body.length());
+            resp.getWriter().print(body);
+        }
+    }
 }
@@ -226,6 +226,49 @@ public class TestInternalInputBuffer extends TomcatBaseTest {
     }
 
 
+    @Test
+    public void testHeaderValueWhitespace() {
+
+        Bug51557Client client = new Bug51557Client("X-Bug51557Valid",
+                "  1234 5678 90ab cdef  ");
+
+        client.doRequest();
+        Assert.assertTrue(client.isResponse200());
+        Assert.assertEquals("1234 5678 90ab cdefabcd", client.getResponseBody());
+        Assert.assertTrue(client.isResponseBodyOK());
+    }
+
+
+    @Test
+    public void testHeaderValueFolded() {
+
+        Bug51557Client client = new Bug51557Client("X-Bug51557Valid",
+                "1234 5678" + SimpleHttpClient.CRLF + "   90ab  cdef ");
+
+        client.doRequest();
+        Assert.assertTrue(client.isResponse200());
+        Assert.assertEquals("1234 5678 90ab  cdefabcd", client.getResponseBody());
+        Assert.assertTrue(client.isResponseBodyOK());
+    }
+
+
+    @Test
+    public void testHeaderValueLong() {
+
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            value.append(i % 10);
+        }
+        Bug51557Client client = new Bug51557Client("X-Bug51557Valid",
+                value.toString());
+
+        client.doRequest();
+        Assert.assertTrue(client.isResponse200());
+        Assert.assertEquals(value + "abcd", client.getResponseBody());
+        Assert.assertTrue(client.isResponseBodyOK());
+    }
+
+
     private void doTestBug51557Char(char s) {
         Bug51557Client client =
             new Bug51557Client("X-Bug" + s + "51557", "invalid");
@@ -0,0 +1,200 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.tomcat.util.net.NioEndpoint;
+
+public class TestInternalNioInputBuffer extends TomcatBaseTest {
+
+    private static final String BODY = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+
+    @Test
+    public void testPreReadBody() throws Exception {
+        BodyLengthServlet servlet = new BodyLengthServlet();
+        NioEndpoint endpoint = startTomcat(servlet, 1024, 16 * 1024);
+
+        try (Socket socket = new Socket("localhost", getPort())) {
+            OutputStream os = socket.getOutputStream();
+            os.write(("POST /test HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Content-Length: " + BODY.length() + "\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n" +
+                    BODY.substring(0, 10)).getBytes(StandardCharsets.ISO_8859_1));
+            os.flush();
+            Thread.sleep(500);
+            long lastPartSent = System.nanoTime();
+            os.write(BODY.substring(10).getBytes(StandardCharsets.ISO_8859_1));
+            os.flush();
+
+            String response = readResponse(socket.getInputStream());
+            Assert.assertTrue(response, response.endsWith(
+                    "length=" + BODY.length()));
+            // The request was not dispatched until the body was complete
+            Assert.assertTrue(servlet.serviceStart > lastPartSent);
+        }
+
+        Assert.assertEquals(1, endpoint.getPreReadBodyCount());
+        Assert.assertEquals(0, endpoint.getPreReadBodyRejectedCount());
+        waitForMemoryRelease(endpoint);
+    }
+
+
+    @Test
+    public void testPreReadPipelined() throws Exception {
+        NioEndpoint endpoint = startTomcat(new BodyLengthServlet(), 1024, 16 * 1024);
+
+        String request = "POST /test HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Content-Length: " + BODY.length() + "\r\n" +
+                "\r\n";
+        try (Socket socket = new Socket("localhost", getPort())) {
+            OutputStream os = socket.getOutputStream();
+            // The second request follows the first body immediately so it
+            // must not be consumed as part of the first body
+            os.write((request + BODY.substring(0, 5)).getBytes(
+                    StandardCharsets.ISO_8859_1));
+            os.flush();
+            Thread.sleep(200);
+            os.write((BODY.substring(5) + request.replace(
+                    "Host: localhost", "Host: localhost\r\nConnection: close") +
+                    BODY).getBytes(StandardCharsets.ISO_8859_1));
+            os.flush();
+
+            String response = readResponse(socket.getInputStream());
+            Assert.assertEquals(response, 2,
+                    response.split("length=" + BODY.length(), -1).length - 1);
+        }
+
+        Assert.assertTrue(endpoint.getPreReadBodyCount() >= 1);
+        waitForMemoryRelease(endpoint);
+    }
+
+
+    @Test
+    public void testPreReadMemoryLimit() throws Exception {
+        BodyLengthServlet servlet = new BodyLengthServlet();
+        NioEndpoint endpoint = startTomcat(servlet, 1024, 10);
+
+        try (Socket socket = new Socket("localhost", getPort())) {
+            OutputStream os = socket.getOutputStream();
+            os.write(("POST /test HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Content-Length: " + BODY.length() + "\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            os.flush();
+            Thread.sleep(200);
+            os.write(BODY.getBytes(StandardCharsets.ISO_8859_1));
+            os.flush();
+
+            String response = readResponse(socket.getInputStream());
+            Assert.assertTrue(response, response.endsWith(
+                    "length=" + BODY.length()));
+        }
+
+        Assert.assertEquals(0, endpoint.getPreReadBodyCount());
+        Assert.assertEquals(1, endpoint.getPreReadBodyRejectedCount());
+    }
+
+
+    private NioEndpoint startTomcat(HttpServlet servlet, int maxSize,
+            long maxMemory) throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        Connector connector = tomcat.getConnector();
+        Assume.assumeTrue("This test is only for the NIO connector",
+                connector.getProtocolHandler() instanceof Http11NioProtocol);
+        Assert.assertTrue(connector.setProperty("maxPreReadBodySize",
+                Integer.toString(maxSize)));
+        Assert.assertTrue(connector.setProperty("maxPreReadBodyMemory",
+                Long.toString(maxMemory)));
+
+        // No file system access required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "test", servlet);
+        ctx.addServletMapping("/test", "test");
+
+        tomcat.start();
+
+        return ((Http11NioProtocol) connector.getProtocolHandler()).getEndpoint();
+    }
+
+
+    private static String readResponse(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        byte[] buf = new byte[1024];
+        int read;
+        while ((read = is.read(buf)) > 0) {
+            sb.append(new String(buf, 0, read, StandardCharsets.ISO_8859_1));
+        }
+        return sb.toString();
+    }
+
+
+    private static void waitForMemoryRelease(NioEndpoint endpoint)
+            throws InterruptedException {
+        // The memory is released once the processor has finished with the
+        // request which may be after the response has been received
+        for (int i = 0; i < 50 && endpoint.getPreReadBodyMemory() != 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, endpoint.getPreReadBodyMemory());
+    }
+
+
+    private static class BodyLengthServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private volatile long serviceStart;
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            serviceStart = System.nanoTime();
+            InputStream is = req.getInputStream();
+            byte[] buf = new byte[8];
+            int length = 0;
+            int read;
+            while ((read = is.read(buf)) > 0) {
+                length += read;
+            }
+            resp.setContentType("text/plain");
+            resp.getWriter().print("length=" + length);
+        }
+    }
+}
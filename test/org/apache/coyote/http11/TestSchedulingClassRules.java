@@ -0,0 +1,81 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.coyote.Request;
+
+public class TestSchedulingClassRules {
+
+    private static final String RULES =
+            "/health=critical, X-Tier:premium=premium, X-Batch=bulk, /=web";
+
+
+    @Test
+    public void testUriPrefix() {
+        Assert.assertEquals("critical", classify("/health/live", null, null));
+        Assert.assertEquals("web", classify("/app", null, null));
+    }
+
+
+    @Test
+    public void testHeaderValue() {
+        Assert.assertEquals("premium", classify("/app", "X-Tier", "premium"));
+        Assert.assertEquals("web", classify("/app", "X-Tier", "basic"));
+    }
+
+
+    @Test
+    public void testHeaderPresent() {
+        Assert.assertEquals("bulk", classify("/app", "X-Batch", "1"));
+    }
+
+
+    @Test
+    public void testFirstMatchWins() {
+        Assert.assertEquals("critical", classify("/health", "X-Tier", "premium"));
+    }
+
+
+    @Test
+    public void testNoMatch() {
+        SchedulingClassRules rules = new SchedulingClassRules("/health=critical");
+        Request request = new Request();
+        request.requestURI().setString("/app");
+        Assert.assertNull(rules.classify(request));
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidRule() {
+        new SchedulingClassRules("/health");
+    }
+
+
+    private static String classify(String uri, String headerName,
+            String headerValue) {
+        Request request = new Request();
+        byte[] bytes = uri.getBytes();
+        request.requestURI().setBytes(bytes, 0, bytes.length);
+        if (headerName != null) {
+            request.getMimeHeaders().addValue(headerName).setString(headerValue);
+        }
+        return new SchedulingClassRules(RULES).classify(request);
+    }
+}
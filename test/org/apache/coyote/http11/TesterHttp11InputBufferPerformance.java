@@ -0,0 +1,184 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http11;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import org.apache.coyote.Request;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.http.parser.HttpParser;
+import org.apache.tomcat.util.net.AbstractEndpoint;
+import org.apache.tomcat.util.net.SocketWrapper;
+
+/**
+ * Measures the performance of HTTP/1.1 request line and header parsing
+ * without any network I/O.
+ */
+@RunWith(Parameterized.class)
+public class TesterHttp11InputBufferPerformance {
+
+    private static final String CRLF = "\r\n";
+
+    @Parameters(name="{0}")
+    public static Collection<Object[]> inputs() {
+        List<Object[]> result = new ArrayList<>();
+
+        String simple = "GET /index.html?a=b HTTP/1.1" + CRLF +
+                "Host: localhost:8080" + CRLF +
+                "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:60.0) Gecko/20100101 Firefox/60.0" + CRLF +
+                "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8" + CRLF +
+                "Accept-Language: en-GB,en;q=0.5" + CRLF +
+                "Accept-Encoding: gzip, deflate" + CRLF +
+                "Connection: keep-alive" + CRLF +
+                CRLF;
+
+        StringBuilder pipelined = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            pipelined.append(simple);
+        }
+        result.add(new Object[] { "pipelined", pipelined.toString(),
+                Integer.valueOf(10) });
+
+        StringBuilder large = new StringBuilder();
+        large.append("GET / HTTP/1.1" + CRLF);
+        large.append("Host: localhost:8080" + CRLF);
+        large.append("Cookie: ");
+        for (int i = 0; i < 100; i++) {
+            large.append("name" + i + "=0123456789abcdef0123456789; ");
+        }
+        large.append(CRLF);
+        large.append(CRLF);
+        result.add(new Object[] { "large-header", large.toString(),
+                Integer.valueOf(1) });
+
+        StringBuilder many = new StringBuilder();
+        many.append("GET / HTTP/1.1" + CRLF);
+        for (int i = 0; i < 80; i++) {
+            many.append("X-H" + i + ": v" + i + CRLF);
+        }
+        many.append(CRLF);
+        result.add(new Object[] { "many-small-headers", many.toString(),
+                Integer.valueOf(1) });
+
+        return result;
+    }
+
+    @Parameter(0)
+    public String name;
+
+    @Parameter(1)
+    public String input;
+
+    @Parameter(2)
+    public int requestCount;
+
+    private static final int ITERATIONS = 1000000;
+
+    @Test
+    public void testParse() throws Exception {
+        byte[] bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+        Request request = new Request();
+        TesterInputBuffer inputBuffer = new TesterInputBuffer(request);
+
+        // Warm up
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            doParse(inputBuffer, bytes);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            doParse(inputBuffer, bytes);
+        }
+        long time = System.nanoTime() - start;
+
+        long requests = (long) ITERATIONS * requestCount;
+        System.out.println(name + ": " + requests + " requests in " + time + "ns");
+        System.out.println(name + ": " + requests * 1000000000.0 / time +
+                " requests per second");
+    }
+
+
+    private void doParse(TesterInputBuffer inputBuffer, byte[] bytes)
+            throws IOException {
+        inputBuffer.setInput(bytes);
+        for (int i = 0; i < requestCount; i++) {
+            Assert.assertTrue(inputBuffer.parseRequestLine(false));
+            Assert.assertTrue(inputBuffer.parseHeaders());
+            inputBuffer.nextRequest();
+        }
+        inputBuffer.recycle();
+    }
+
+
+    /**
+     * Input buffer that reads from a byte array, in chunks of at most the
+     * socket buffer size, rather than a socket.
+     */
+    private static class TesterInputBuffer extends AbstractNioInputBuffer<Object> {
+
+        private static final Log log = LogFactory.getLog(TesterInputBuffer.class);
+
+        private byte[] input;
+        private int inputPos;
+
+        public TesterInputBuffer(Request request) {
+            super(request, 8192, false, new HttpParser(null, null));
+            socketReadBufferSize = 8192;
+            buf = new byte[headerBufferSize + socketReadBufferSize];
+        }
+
+        public void setInput(byte[] input) {
+            this.input = input;
+            this.inputPos = 0;
+        }
+
+        @Override
+        protected boolean fill(boolean block) throws IOException {
+            int nRead = Math.min(input.length - inputPos, socketReadBufferSize);
+            if (nRead == 0) {
+                return false;
+            }
+            System.arraycopy(input, inputPos, buf, pos, nRead);
+            inputPos += nRead;
+            lastValid = pos + nRead;
+            return true;
+        }
+
+        @Override
+        protected void init(SocketWrapper<Object> socketWrapper,
+                AbstractEndpoint<Object> endpoint) throws IOException {
+            // NO-OP
+        }
+
+        @Override
+        protected Log getLog() {
+            return log;
+        }
+    }
+}
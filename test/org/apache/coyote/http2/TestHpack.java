@@ -0,0 +1,165 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHpack {
+
+    @Test
+    public void testIntegerEncoding() throws Exception {
+        // RFC 7541 C.1.1 to C.1.3
+        doTestInteger(10, 5, new byte[] { 0x0a });
+        doTestInteger(1337, 5, new byte[] { 0x1f, (byte) 0x9a, 0x0a });
+        doTestInteger(42, 8, new byte[] { 0x2a });
+    }
+
+
+    private void doTestInteger(int value, int n, byte[] expected) throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        Hpack.encodeInteger(target, 0, value, n);
+        Assert.assertArrayEquals(expected, target.toByteArray());
+        Assert.assertEquals(value, Hpack.decodeInteger(ByteBuffer.wrap(expected), n));
+    }
+
+
+    @Test(expected=HpackException.class)
+    public void testIntegerTruncated() throws Exception {
+        Hpack.decodeInteger(ByteBuffer.wrap(new byte[] { 0x1f, (byte) 0x9a }), 5);
+    }
+
+
+    @Test
+    public void testDecodeRequestWithoutHuffman() throws Exception {
+        // RFC 7541 C.3.1
+        List<String> headers = decode(new HpackDecoder(),
+                "828684410f7777772e6578616d706c652e636f6d");
+        Assert.assertEquals(8, headers.size());
+        Assert.assertEquals(":method", headers.get(0));
+        Assert.assertEquals("GET", headers.get(1));
+        Assert.assertEquals(":authority", headers.get(6));
+        Assert.assertEquals("www.example.com", headers.get(7));
+    }
+
+
+    @Test
+    public void testDecodeRequestsWithHuffman() throws Exception {
+        // RFC 7541 C.4.1 and C.4.2. The second request relies on the dynamic
+        // table entry added by the first.
+        HpackDecoder decoder = new HpackDecoder();
+        List<String> headers = decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        Assert.assertEquals("www.example.com", headers.get(7));
+
+        headers = decode(decoder, "828684be5886a8eb10649cbf");
+        Assert.assertEquals(10, headers.size());
+        Assert.assertEquals(":authority", headers.get(6));
+        Assert.assertEquals("www.example.com", headers.get(7));
+        Assert.assertEquals("cache-control", headers.get(8));
+        Assert.assertEquals("no-cache", headers.get(9));
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder();
+        String[] headers = new String[] {
+                ":status", "200",
+                "content-type", "text/html;charset=UTF-8",
+                "content-length", "1234",
+                "set-cookie", "JSESSIONID=ABCDEF0123456789",
+                "x-custom", "a value with spaces and symbols !\"#$%&'()*+"};
+        // Repeat so the second block uses the dynamic table
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.startHeaderBlock(block);
+            for (int j = 0; j < headers.length; j += 2) {
+                encoder.encode(headers[j], headers[j + 1], block);
+            }
+            List<String> result = new ArrayList<>();
+            decoder.decode(ByteBuffer.wrap(block.toByteArray()), new Collector(result));
+            Assert.assertArrayEquals(headers, result.toArray(new String[0]));
+        }
+    }
+
+
+    @Test
+    public void testTableSizeUpdate() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder();
+        // The peer shrinks the table so the next block must start with a size
+        // update that the decoder accepts
+        encoder.setMaxTableSize(0);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.startHeaderBlock(block);
+        encoder.encode("x-custom", "value", block);
+        List<String> result = new ArrayList<>();
+        decoder.decode(ByteBuffer.wrap(block.toByteArray()), new Collector(result));
+        Assert.assertEquals("value", result.get(1));
+    }
+
+
+    @Test(expected=HpackException.class)
+    public void testInvalidIndex() throws Exception {
+        decode(new HpackDecoder(), "ff00");
+    }
+
+
+    @Test
+    public void testHuffman() throws Exception {
+        String value = "https://www.example.com/path?query=value";
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        HPackHuffman.encode(value, encoded);
+        Assert.assertEquals(HPackHuffman.encodedLength(value), encoded.size());
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        HPackHuffman.decode(ByteBuffer.wrap(encoded.toByteArray()), encoded.size(), decoded);
+        Assert.assertEquals(value, decoded.toString("ISO-8859-1"));
+    }
+
+
+    private static List<String> decode(HpackDecoder decoder, String hex) throws Exception {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        List<String> result = new ArrayList<>();
+        decoder.decode(ByteBuffer.wrap(bytes), new Collector(result));
+        return result;
+    }
+
+
+    private static class Collector implements HpackDecoder.HeaderEmitter {
+
+        private final List<String> result;
+
+        public Collector(List<String> result) {
+            this.result = result;
+        }
+
+        @Override
+        public void emitHeader(String name, String value) {
+            result.add(name);
+            result.add(value);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.coyote.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+
+/**
+ * Tests for the three ways a connection may switch to HTTP/2 over clear text
+ * plus basic request processing. A minimal HTTP/2 client is implemented here so
+ * the frames sent and received are fully visible to the test.
+ */
+public class TestHttp2Upgrade extends TomcatBaseTest {
+
+    private static final String EMPTY_SETTINGS_FRAME_HEX = "000000040000000000";
+
+    private Socket s;
+    private InputStream is;
+    private OutputStream os;
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final HpackDecoder decoder = new HpackDecoder();
+
+
+    @Test
+    public void testPriorKnowledge() throws Exception {
+        configureAndStart();
+        openConnection();
+        sendPreface();
+
+        sendHeaders(1, "GET", "/simple", true);
+        Response response = readResponse(1);
+
+        Assert.assertEquals("200", response.getHeader(":status"));
+        Assert.assertEquals(HelloWorldServlet.RESPONSE_TEXT, response.body.toString("UTF-8"));
+    }
+
+
+    @Test
+    public void testHttpUpgrade() throws Exception {
+        configureAndStart();
+        openConnection();
+
+        os.write(("GET /simple HTTP/1.1\r\n" +
+                "Host: localhost:" + getPort() + "\r\n" +
+                "Connection: Upgrade, HTTP2-Settings\r\n" +
+                "Upgrade: h2c\r\n" +
+                "HTTP2-Settings: AAMAAABkAAQAAP__\r\n" +
+                "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        os.flush();
+
+        String responseHeaders = readHttp11Headers();
+        Assert.assertTrue(responseHeaders, responseHeaders.startsWith("HTTP/1.1 101"));
+        Assert.assertTrue(responseHeaders, responseHeaders.contains("Upgrade: h2c"));
+
+        sendPreface();
+
+        // The upgrade request is processed as stream 1
+        Response response = readResponse(1);
+        Assert.assertEquals("200", response.getHeader(":status"));
+        Assert.assertEquals(HelloWorldServlet.RESPONSE_TEXT, response.body.toString("UTF-8"));
+
+        // Further requests use HTTP/2
+        sendHeaders(3, "GET", "/simple", true);
+        response = readResponse(3);
+        Assert.assertEquals("200", response.getHeader(":status"));
+    }
+
+
+    @Test
+    public void testUpgradeWithBodyIsNotUpgraded() throws Exception {
+        configureAndStart();
+        openConnection();
+
+        os.write(("POST /echo HTTP/1.1\r\n" +
+                "Host: localhost:" + getPort() + "\r\n" +
+                "Connection: Upgrade, HTTP2-Settings\r\n" +
+                "Upgrade: h2c\r\n" +
+                "HTTP2-Settings: \r\n" +
+                "Content-Length: 4\r\n" +
+                "\r\n" +
+                "test").getBytes(StandardCharsets.ISO_8859_1));
+        os.flush();
+
+        String responseHeaders = readHttp11Headers();
+        Assert.assertTrue(responseHeaders, responseHeaders.startsWith("HTTP/1.1 200"));
+    }
+
+
+    @Test
+    public void testPostAndMultipleStreams() throws Exception {
+        configureAndStart();
+        openConnection();
+        sendPreface();
+
+        byte[] body = new byte[100 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+
+        sendHeaders(1, "POST", "/echo", false);
+        sendData(1, body);
+        sendHeaders(3, "GET", "/simple", true);
+
+        Response response3 = readResponse(3);
+        Assert.assertEquals(HelloWorldServlet.RESPONSE_TEXT, response3.body.toString("UTF-8"));
+        Response response1 = readResponse(1);
+        Assert.assertEquals("200", response1.getHeader(":status"));
+        Assert.assertArrayEquals(body, response1.body.toByteArray());
+    }
+
+
+    @Test
+    public void testHeadRequest() throws Exception {
+        configureAndStart();
+        openConnection();
+        sendPreface();
+
+        sendHeaders(1, "HEAD", "/simple", true);
+        Response response = readResponse(1);
+        Assert.assertEquals("200", response.getHeader(":status"));
+        Assert.assertEquals(0, response.body.size());
+    }
+
+
+    @Test
+    public void testInvalidPreface() throws Exception {
+        configureAndStart();
+        openConnection();
+
+        os.write("PRI * HTTP/2.0\r\n\r\nXX\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        os.flush();
+
+        // Server preface then GOAWAY followed by the connection closing
+        boolean goaway = false;
+        try {
+            while (true) {
+                Frame frame = readFrame();
+                if (frame.type == FrameType.GOAWAY) {
+                    goaway = true;
+                    Assert.assertEquals(Http2Error.PROTOCOL_ERROR.getCode(),
+                            ByteUtil.getFourBytes(frame.payload, 4));
+                }
+            }
+        } catch (IOException ioe) {
+            // Expected when the server closes the connection
+        }
+        Assert.assertTrue(goaway);
+    }
+
+
+    private void configureAndStart() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        tomcat.getConnector().addUpgradeProtocol(new Http2Protocol());
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "simple", new HelloWorldServlet());
+        ctx.addServletMapping("/simple", "simple");
+        Tomcat.addServlet(ctx, "echo", new EchoBodyServlet());
+        ctx.addServletMapping("/echo", "echo");
+
+        tomcat.start();
+    }
+
+
+    private void openConnection() throws IOException {
+        s = new Socket("localhost", getPort());
+        s.setSoTimeout(30000);
+        is = s.getInputStream();
+        os = s.getOutputStream();
+    }
+
+
+    private String readHttp11Headers() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (!sb.toString().endsWith("\r\n\r\n")) {
+            int b = is.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+
+    private void sendPreface() throws IOException {
+        os.write(Constants.CLIENT_PREFACE_START);
+        os.write(Constants.CLIENT_PREFACE_END);
+        os.write(hexToBytes(EMPTY_SETTINGS_FRAME_HEX));
+        os.flush();
+    }
+
+
+    private void sendHeaders(int streamId, String method, String path, boolean endOfStream)
+            throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.startHeaderBlock(block);
+        encoder.encode(":method", method, block);
+        encoder.encode(":scheme", "http", block);
+        encoder.encode(":path", path, block);
+        encoder.encode(":authority", "localhost:" + getPort(), block);
+        int flags = Http2Parser.FLAG_END_HEADERS;
+        if (endOfStream) {
+            flags |= Http2Parser.FLAG_END_STREAM;
+        }
+        writeFrame(FrameType.HEADERS, flags, streamId, block.toByteArray(), 0, block.size());
+    }
+
+
+    private void sendData(int streamId, byte[] data) throws IOException {
+        // Assumes the server's windows are large enough for the whole body
+        // once updates are received so wait for them as required
+        int pos = 0;
+        int window = Constants.DEFAULT_INITIAL_WINDOW_SIZE;
+        while (pos < data.length) {
+            if (window == 0) {
+                // Frames for other streams are kept for readResponse()
+                Frame frame = readFrame();
+                while (frame.type != FrameType.WINDOW_UPDATE || frame.streamId != streamId) {
+                    if (frame.streamId != 0) {
+                        pendingFrames.add(frame);
+                    }
+                    frame = readFrame();
+                }
+                window += ByteUtil.get31Bits(frame.payload, 0);
+            }
+            int len = Math.min(Math.min(data.length - pos,
+                    Constants.DEFAULT_MAX_FRAME_SIZE), window);
+            boolean end = pos + len == data.length;
+            writeFrame(FrameType.DATA, end ? Http2Parser.FLAG_END_STREAM : 0, streamId,
+                    data, pos, len);
+            pos += len;
+            window -= len;
+        }
+    }
+
+
+    private void writeFrame(FrameType type, int flags, int streamId, byte[] payload,
+            int off, int len) throws IOException {
+        byte[] header = new byte[9];
+        ByteUtil.setThreeBytes(header, 0, len);
+        header[3] = type.getIdByte();
+        header[4] = (byte) flags;
+        ByteUtil.set31Bits(header, 5, streamId);
+        os.write(header);
+        os.write(payload, off, len);
+        os.flush();
+    }
+
+
+    private final List<Frame> pendingFrames = new ArrayList<>();
+    private final Map<Integer,Response> responses = new HashMap<>();
+
+    private Response readResponse(int streamId) throws Exception {
+        Response response = getResponse(streamId);
+        while (true) {
+            Frame frame = null;
+            for (Frame pending : pendingFrames) {
+                if (pending.streamId == streamId) {
+                    frame = pending;
+                    break;
+                }
+            }
+            if (frame == null) {
+                frame = readFrame();
+            } else {
+                pendingFrames.remove(frame);
+            }
+            if (frame.streamId != streamId) {
+                if (frame.streamId != 0) {
+                    pendingFrames.add(frame);
+                }
+                continue;
+            }
+            if (frame.type == FrameType.DATA) {
+                response.body.write(frame.payload);
+            } else if (frame.type == FrameType.RST) {
+                Assert.fail("Stream [" + streamId + "] was reset");
+            }
+            if ((frame.flags & Http2Parser.FLAG_END_STREAM) != 0) {
+                return response;
+            }
+        }
+    }
+
+
+    private Response getResponse(int streamId) {
+        Integer key = Integer.valueOf(streamId);
+        Response response = responses.get(key);
+        if (response == null) {
+            response = new Response();
+            responses.put(key, response);
+        }
+        return response;
+    }
+
+
+    private Frame readFrame() throws IOException {
+        byte[] header = new byte[9];
+        readFully(header);
+        Frame frame = new Frame();
+        int length = ByteUtil.getThreeBytes(header, 0);
+        frame.type = FrameType.valueOf(ByteUtil.getOneByte(header, 3));
+        frame.flags = ByteUtil.getOneByte(header, 4);
+        frame.streamId = ByteUtil.get31Bits(header, 5);
+        frame.payload = new byte[length];
+        readFully(frame.payload);
+        if (frame.type == FrameType.HEADERS) {
+            // Header blocks must be decoded in the order they are received
+            try {
+                decoder.decode(ByteBuffer.wrap(frame.payload), getResponse(frame.streamId));
+            } catch (HpackException e) {
+                throw new IOException(e);
+            }
+        } else if (frame.type == FrameType.DATA && frame.payload.length > 0) {
+            // Keep the server's windows open
+            byte[] increment = new byte[4];
+            ByteUtil.set31Bits(increment, 0, frame.payload.length);
+            writeFrame(FrameType.WINDOW_UPDATE, 0, 0, increment, 0, 4);
+            writeFrame(FrameType.WINDOW_UPDATE, 0, frame.streamId, increment, 0, 4);
+        }
+        return frame;
+    }
+
+
+    private void readFully(byte[] b) throws IOException {
+        int pos = 0;
+        while (pos < b.length) {
+            int read = is.read(b, pos, b.length - pos);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            pos += read;
+        }
+    }
+
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+
+    private static class Frame {
+        private FrameType type;
+        private int flags;
+        private int streamId;
+        private byte[] payload;
+    }
+
+
+    private static class Response implements HpackDecoder.HeaderEmitter {
+
+        private final List<String> headers = new ArrayList<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        @Override
+        public void emitHeader(String name, String value) {
+            headers.add(name);
+            headers.add(value);
+        }
+
+        public String getHeader(String name) {
+            for (int i = 0; i < headers.size(); i += 2) {
+                if (headers.get(i).equals(name)) {
+                    return headers.get(i + 1);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testIndexRoundTrip() {
+        for (long value = 0; value < 1000000; value += 7) {
+            int index = LatencyHistogram.getIndex(value);
+            long highest = LatencyHistogram.getHighestEquivalentValue(index);
+            Assert.assertTrue(highest >= value);
+            // Relative error bounded by the sub-bucket resolution
+            Assert.assertTrue(highest - value <= value / 32);
+            if (index > 0) {
+                Assert.assertTrue(LatencyHistogram.getHighestEquivalentValue(
+                        index - 1) < value);
+            }
+        }
+    }
+
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        assertApprox(500000, snapshot.getValueAtPercentile(50));
+        assertApprox(900000, snapshot.getValueAtPercentile(90));
+        assertApprox(990000, snapshot.getValueAtPercentile(99));
+        assertApprox(1000000, snapshot.getMax());
+        Assert.assertEquals(500, histogram.getPercentileMillis(50), 500 / 32.0);
+    }
+
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getSnapshot().getCount());
+        Assert.assertEquals(0, histogram.getPercentileMillis(99), 0);
+    }
+
+
+    @Test
+    public void testInterval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(200);
+        Assert.assertEquals(2, histogram.getIntervalSnapshot(true).getCount());
+
+        histogram.record(5000);
+        LatencyHistogram.Snapshot interval = histogram.getIntervalSnapshot(false);
+        Assert.assertEquals(1, interval.getCount());
+        assertApprox(5000, interval.getValueAtPercentile(50));
+
+        // The cumulative view is unaffected by interval resets
+        Assert.assertEquals(3, histogram.getSnapshot().getCount());
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getSnapshot().getCount());
+        Assert.assertEquals(0, histogram.getIntervalSnapshot(false).getCount());
+    }
+
+
+    private static void assertApprox(long expected, long actual) {
+        Assert.assertEquals(expected, actual, expected / 32.0);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.buf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link ByteArrayScanner}.
+ */
+public class TestByteArrayScanner {
+
+    @Test
+    public void testFindCrOrLfEveryPosition() {
+        // Check every position and alignment, including the bytes either side
+        // of CR and LF that could give false positives
+        byte[] bytes = new byte[40];
+        ByteArrayScanner scanner = new ByteArrayScanner();
+        scanner.setBytes(bytes);
+        byte[] targets = new byte[] { '\r', '\n' };
+        byte[] fillers = new byte[] { 'a', 0x0B, 0x0C, 0x09, (byte) 0x8D, (byte) 0x8A, 0x00 };
+        for (byte filler : fillers) {
+            for (byte target : targets) {
+                for (int start = 0; start < 9; start++) {
+                    for (int i = start; i < bytes.length; i++) {
+                        Arrays.fill(bytes, filler);
+                        bytes[i] = target;
+                        Assert.assertEquals(i, scanner.findCrOrLf(start, bytes.length));
+                        // Beyond the end
+                        Assert.assertEquals(-1, scanner.findCrOrLf(start, i));
+                    }
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void testFindCrOrLfFirst() {
+        byte[] bytes = "0123456789abcdef\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayScanner scanner = new ByteArrayScanner();
+        scanner.setBytes(bytes);
+        Assert.assertEquals(16, scanner.findCrOrLf(0, bytes.length));
+        Assert.assertEquals(17, scanner.findCrOrLf(17, bytes.length));
+    }
+
+
+    @Test
+    public void testSetBytes() {
+        ByteArrayScanner scanner = new ByteArrayScanner();
+        scanner.setBytes("ab\r".getBytes(StandardCharsets.ISO_8859_1));
+        Assert.assertEquals(2, scanner.findCrOrLf(0, 3));
+        scanner.setBytes("a\nc".getBytes(StandardCharsets.ISO_8859_1));
+        Assert.assertEquals(1, scanner.findCrOrLf(0, 3));
+    }
+}
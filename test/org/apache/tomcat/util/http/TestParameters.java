@@ -69,6 +69,46 @@ public class TestParameters {
                 SIMPLE, NO_VALUE, EMPTY_VALUE, UTF8);
     }
 
+    @Test
+    public void testProcessParametersLazy() {
+        doTestProcessParametersByteArrayIntInt(-1, true,
+                SIMPLE, SIMPLE_MULTIPLE, NO_VALUE, EMPTY_VALUE, EMPTY, UTF8);
+        doTestProcessParametersByteArrayIntInt(-1, true,
+                UTF8, SIMPLE, SIMPLE_MULTIPLE, NO_VALUE, EMPTY_VALUE, EMPTY);
+        doTestProcessParametersByteArrayIntInt(2, true,
+                SIMPLE, NO_VALUE, EMPTY_VALUE, UTF8);
+        doTestProcessParametersByteArrayIntInt(4, true,
+                SIMPLE, NO_VALUE, EMPTY_VALUE, UTF8);
+    }
+
+    @Test
+    public void testLazyDecoding() {
+        byte[] data = "a=1&b=%zz&c=%41+%42&d=%4".getBytes();
+
+        Parameters p = new Parameters();
+        p.setLazyDecoding(true);
+        p.processParameters(data, 0, data.length);
+
+        // Invalid values are rejected when parsing, as without lazy decoding
+        Assert.assertEquals(Parameters.FailReason.URL_DECODING,
+                p.getParseFailedReason());
+        Assert.assertNull(p.getParameter("b"));
+        Assert.assertNull(p.getParameter("d"));
+
+        // Valid values are not decoded until they are read
+        Assert.assertEquals("a=1&b=%zz&c=%41+%42&d=%4", new String(data));
+        Assert.assertEquals("A B", p.getParameter("c"));
+        Assert.assertEquals("A B", p.getParameter("c"));
+        Assert.assertEquals("1", p.getParameter("a"));
+        // Reading a value never modifies the shared bytes
+        Assert.assertEquals("a=1&b=%zz&c=%41+%42&d=%4", new String(data));
+
+        Enumeration<String> names = p.getParameterNames();
+        Assert.assertEquals("a", names.nextElement());
+        Assert.assertEquals("c", names.nextElement());
+        Assert.assertFalse(names.hasMoreElements());
+    }
+
     // Make sure the inner Parameter class behaves correctly
     @Test
     public void testInternal() {
@@ -83,6 +123,11 @@ public class TestParameters {
 
     private long doTestProcessParametersByteArrayIntInt(int limit,
             Parameter... parameters) {
+        return doTestProcessParametersByteArrayIntInt(limit, false, parameters);
+    }
+
+    private long doTestProcessParametersByteArrayIntInt(int limit,
+            boolean lazyDecoding, Parameter... parameters) {
 
         // Build the byte array
         StringBuilder input = new StringBuilder();
@@ -101,6 +146,7 @@ public class TestParameters {
         Parameters p = new Parameters();
         p.setEncoding("UTF-8");
         p.setLimit(limit);
+        p.setLazyDecoding(lazyDecoding);
 
         long start = System.nanoTime();
         p.processParameters(data, 0, data.length);
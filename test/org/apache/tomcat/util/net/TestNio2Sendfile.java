@@ -0,0 +1,94 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.http11.Http11Nio2Protocol;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestNio2Sendfile extends TomcatBaseTest {
+
+    // Several times the socket write buffer
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    @Override
+    protected String getProtocol() {
+        return Http11Nio2Protocol.class.getName();
+    }
+
+
+    @Test
+    public void testMapped() throws Exception {
+        doTestSendfile(null);
+    }
+
+
+    @Test
+    public void testCopied() throws Exception {
+        doTestSendfile("-1");
+    }
+
+
+    private void doTestSendfile(String maxMappedSendfileSize) throws Exception {
+        File docBase = new File(getTemporaryDirectory(), "sendfile");
+        Assert.assertTrue(docBase.mkdirs());
+        addDeleteOnTearDown(docBase);
+
+        byte[] content = new byte[FILE_SIZE];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        try (OutputStream os = new FileOutputStream(new File(docBase, "data.bin"))) {
+            os.write(content);
+        }
+
+        Tomcat tomcat = getTomcatInstance();
+        if (maxMappedSendfileSize != null) {
+            Assert.assertTrue(tomcat.getConnector().setProperty(
+                    "maxMappedSendfileSize", maxMappedSendfileSize));
+        }
+
+        Context ctx = tomcat.addContext("", docBase.getAbsolutePath());
+        Wrapper w = Tomcat.addServlet(ctx, "default", new DefaultServlet());
+        // Use sendfile for any file
+        w.addInitParameter("sendfileSize", "1");
+        ctx.addServletMapping("/", "default");
+
+        tomcat.start();
+
+        ByteChunk res = new ByteChunk();
+        res.setLimit(FILE_SIZE + 1);
+        int rc = getUrl("http://localhost:" + getPort() + "/data.bin", res, null);
+
+        Assert.assertEquals(200, rc);
+        Assert.assertEquals(FILE_SIZE, res.getLength());
+        Assert.assertTrue(Arrays.equals(content, Arrays.copyOfRange(
+                res.getBuffer(), res.getStart(), res.getEnd())));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.net;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.http11.Http11NioProtocol;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class TestNioBufferArena extends TomcatBaseTest {
+
+    @Test
+    public void testBorrowAndGiveBack() {
+        NioBufferArena arena = new NioBufferArena(-1);
+
+        ByteBuffer b1 = arena.borrow(1024);
+        ByteBuffer b2 = arena.borrow(2048);
+        Assert.assertTrue(b1.isDirect());
+        Assert.assertEquals(1024, b1.capacity());
+        Assert.assertEquals(2048, b2.capacity());
+        Assert.assertEquals(2, arena.getLentBuffers());
+        Assert.assertEquals(3072, arena.getLentBytes());
+        Assert.assertEquals(2, arena.getAllocationCount());
+
+        b1.put((byte) 1);
+        arena.giveBack(b1);
+        Assert.assertEquals(1, arena.getLentBuffers());
+        Assert.assertEquals(1, arena.getFreeBuffers());
+        Assert.assertEquals(1024, arena.getFreeBytes());
+
+        // Buffers are reused and cleared
+        ByteBuffer b3 = arena.borrow(1024);
+        Assert.assertSame(b1, b3);
+        Assert.assertEquals(0, b3.position());
+        Assert.assertEquals(1024, b3.limit());
+        Assert.assertEquals(2, arena.getAllocationCount());
+        Assert.assertEquals(3, arena.getBorrowCount());
+        Assert.assertEquals(0, arena.getFreeBuffers());
+
+        arena.giveBack(b2);
+        arena.giveBack(b3);
+        Assert.assertEquals(0, arena.getLentBuffers());
+        Assert.assertEquals(0, arena.getLentBytes());
+        Assert.assertEquals(3072, arena.getFreeBytes());
+
+        arena.clear();
+        Assert.assertEquals(0, arena.getFreeBuffers());
+        Assert.assertEquals(0, arena.getFreeBytes());
+    }
+
+
+    @Test
+    public void testMaxSize() {
+        NioBufferArena arena = new NioBufferArena(1024);
+
+        ByteBuffer b1 = arena.borrow(1024);
+        ByteBuffer b2 = arena.borrow(1024);
+        arena.giveBack(b1);
+        arena.giveBack(b2);
+
+        Assert.assertEquals(0, arena.getLentBuffers());
+        Assert.assertEquals(1, arena.getFreeBuffers());
+        Assert.assertEquals(1024, arena.getFreeBytes());
+    }
+
+
+    @Test
+    public void testAbandon() {
+        NioBufferArena arena = new NioBufferArena(-1);
+
+        ByteBuffer b1 = arena.borrow(1024);
+        arena.abandon(b1);
+
+        Assert.assertEquals(0, arena.getLentBuffers());
+        Assert.assertEquals(0, arena.getLentBytes());
+        Assert.assertEquals(0, arena.getFreeBuffers());
+    }
+
+
+    @Test
+    public void testBuffersReturnedWhenIdle() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        Connector connector = tomcat.getConnector();
+        Assume.assumeTrue("This test is only for the NIO connector",
+                connector.getProtocolHandler() instanceof Http11NioProtocol);
+        Assert.assertTrue(connector.setProperty("socket.bufferArena", "true"));
+
+        // No file system docBase required
+        Context ctx = tomcat.addContext("", null);
+        Tomcat.addServlet(ctx, "hello", new HelloWorldServlet());
+        ctx.addServletMapping("/hello", "hello");
+
+        tomcat.start();
+
+        NioEndpoint endpoint =
+                ((Http11NioProtocol) connector.getProtocolHandler()).getEndpoint();
+
+        for (int i = 0; i < 3; i++) {
+            ByteChunk bc = getUrl("http://localhost:" + getPort() + "/hello");
+            Assert.assertEquals(HelloWorldServlet.RESPONSE_TEXT, bc.toString());
+
+            // The buffers are given back after the response has been written
+            int count = 0;
+            while (endpoint.getBufferArenaLentBuffers() > 0 && count < 50) {
+                Thread.sleep(100);
+                count++;
+            }
+            Assert.assertEquals(0, endpoint.getBufferArenaLentBuffers());
+        }
+
+        Assert.assertTrue(endpoint.getBufferArenaBorrowCount() >= 6);
+        // Keep-alive connections re-use the buffers
+        Assert.assertTrue(endpoint.getBufferArenaAllocationCount() <
+                endpoint.getBufferArenaBorrowCount());
+    }
+}
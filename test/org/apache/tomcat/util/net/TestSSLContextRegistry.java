@@ -0,0 +1,53 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.net;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSSLContextRegistry {
+
+    @Test
+    public void testScope() throws Exception {
+        Object scope1 = new Object();
+        Object scope2 = new Object();
+        SSLContext context1 = SSLContext.getInstance("TLS");
+        SSLContext context2 = SSLContext.getInstance("TLS");
+
+        Assert.assertSame(context1,
+                SSLContextRegistry.register(scope1, "group", "config", context1));
+        // Same name in a different scope is a different group
+        Assert.assertNull(SSLContextRegistry.acquire(scope2, "group", "config"));
+        Assert.assertSame(context2,
+                SSLContextRegistry.register(scope2, "group", "config", context2));
+        Assert.assertSame(context1,
+                SSLContextRegistry.acquire(scope1, "group", "config"));
+
+        // Releasing one scope must not affect the other
+        SSLContextRegistry.release(scope2, "group", context2);
+        Assert.assertNull(SSLContextRegistry.acquire(scope2, "group", "config"));
+        Assert.assertSame(context1,
+                SSLContextRegistry.acquire(scope1, "group", "config"));
+
+        SSLContextRegistry.release(scope1, "group", context1);
+        SSLContextRegistry.release(scope1, "group", context1);
+        SSLContextRegistry.release(scope1, "group", context1);
+        Assert.assertNull(SSLContextRegistry.acquire(scope1, "group", "config"));
+    }
+}
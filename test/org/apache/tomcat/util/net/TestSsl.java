@@ -22,12 +22,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.net.Socket;
 
 import javax.net.ssl.HandshakeCompletedEvent;
 import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
 
 import org.junit.Assert;
 import org.junit.Assume;
@@ -35,9 +37,13 @@ import org.junit.Test;
 
 import org.apache.catalina.Context;
 import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
 import org.apache.catalina.startup.TesterServlet;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.ProtocolHandler;
+import org.apache.coyote.http11.Http11Nio2Protocol;
+import org.apache.coyote.http11.Http11NioProtocol;
 import org.apache.tomcat.util.buf.ByteChunk;
 import org.apache.tomcat.websocket.server.WsContextListener;
 
@@ -144,6 +150,114 @@ public class TestSsl extends TomcatBaseTest {
         System.out.println("Renegotiation completed after " + listenerComplete + " requests");
     }
 
+    @Test
+    public void testSessionCacheGroup() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        String protocol = tomcat.getConnector().getProtocolHandlerClassName();
+        Assume.assumeTrue("Session cache groups are only supported by NIO and NIO2",
+                protocol.indexOf("Nio") != -1);
+
+        Context root = tomcat.addContext("", TEMP_DIR);
+        Tomcat.addServlet(root, "tester", new TesterServlet());
+        root.addServletMappingDecoded("/", "tester");
+
+        TesterSupport.initSsl(tomcat);
+        Connector c1 = tomcat.getConnector();
+        Assert.assertTrue(c1.setProperty("sessionCacheGroup", "group"));
+
+        // A second connector with the same SSL configuration
+        Connector c2 = new Connector(protocol);
+        c2.setPort(0);
+        c2.setSecure(true);
+        Assert.assertTrue(c2.setProperty("SSLEnabled", "true"));
+        Assert.assertTrue(c2.setProperty("sslProtocol", "tls"));
+        c2.setAttribute("keystoreFile",
+                new File(TesterSupport.LOCALHOST_JKS).getAbsolutePath());
+        c2.setAttribute("truststoreFile",
+                new File(TesterSupport.CA_JKS).getAbsolutePath());
+        Assert.assertTrue(c2.setProperty("sessionCacheGroup", "group"));
+        tomcat.getService().addConnector(c2);
+
+        tomcat.start();
+
+        AbstractEndpoint<?> e1 = getEndpoint(c1);
+        AbstractEndpoint<?> e2 = getEndpoint(c2);
+
+        SSLContext sslCtx = SSLContext.getInstance("TLS");
+        sslCtx.init(null, new TrustManager[] { new TesterSupport.TrustAllCerts() }, null);
+        SSLSocketFactory socketFactory = sslCtx.getSocketFactory();
+
+        // Full handshake with the first connector
+        SSLSocket socket = (SSLSocket) socketFactory.createSocket("localhost",
+                c1.getLocalPort());
+        doRequest(socket.getOutputStream(), new InputStreamReader(socket.getInputStream()));
+        socket.close();
+
+        // The client caches sessions by host and port so connect to the second
+        // connector while telling the client it is the first
+        final int port1 = c1.getLocalPort();
+        Socket plain = new Socket("localhost", c2.getLocalPort()) {
+            @Override
+            public int getPort() {
+                return port1;
+            }
+        };
+        socket = (SSLSocket) socketFactory.createSocket(plain, "localhost",
+                port1, true);
+        doRequest(socket.getOutputStream(), new InputStreamReader(socket.getInputStream()));
+        socket.close();
+
+        Assert.assertEquals(0, e1.getSessionCacheHitCount());
+        Assert.assertEquals(1, e1.getSessionCacheMissCount());
+        Assert.assertEquals(1, e2.getSessionCacheHitCount());
+        Assert.assertEquals(0, e2.getSessionCacheMissCount());
+    }
+
+    @Test
+    public void testHandshakeExecutor() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+
+        Connector c = tomcat.getConnector();
+        Assume.assumeTrue("The handshake executor is only supported by NIO",
+                c.getProtocolHandler() instanceof Http11NioProtocol);
+
+        Context root = tomcat.addContext("", TEMP_DIR);
+        Tomcat.addServlet(root, "tester", new TesterServlet());
+        root.addServletMappingDecoded("/", "tester");
+
+        TesterSupport.initSsl(tomcat);
+        Assert.assertTrue(c.setProperty("handshakeThreadCount", "2"));
+
+        tomcat.start();
+
+        NioEndpoint endpoint = ((Http11NioProtocol) c.getProtocolHandler()).getEndpoint();
+
+        SSLContext sslCtx = SSLContext.getInstance("TLS");
+        sslCtx.init(null, new TrustManager[] { new TesterSupport.TrustAllCerts() }, null);
+        SSLSocketFactory socketFactory = sslCtx.getSocketFactory();
+
+        for (int i = 0; i < 5; i++) {
+            SSLSocket socket = (SSLSocket) socketFactory.createSocket("localhost",
+                    getPort());
+            // Force a full handshake for every connection
+            socket.getSession().invalidate();
+            doRequest(socket.getOutputStream(), new InputStreamReader(socket.getInputStream()));
+            socket.close();
+        }
+
+        Assert.assertTrue(endpoint.getHandshakeCompletedTaskCount() > 0);
+        Assert.assertEquals(5, endpoint.getSessionCacheMissCount());
+    }
+
+    private static AbstractEndpoint<?> getEndpoint(Connector connector) {
+        ProtocolHandler handler = connector.getProtocolHandler();
+        if (handler instanceof Http11NioProtocol) {
+            return ((Http11NioProtocol) handler).getEndpoint();
+        }
+        return ((Http11Nio2Protocol) handler).getEndpoint();
+    }
+
     private void doRequest(OutputStream os, Reader r) throws IOException {
         char[] expectedResponseLine = "HTTP/1.1 200 OK\r\n".toCharArray();
 
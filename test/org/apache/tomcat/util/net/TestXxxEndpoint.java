@@ -21,11 +21,16 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import org.apache.catalina.Context;
 import org.apache.catalina.connector.Connector;
 import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.startup.TomcatBaseTest;
+import org.apache.coyote.ProtocolHandler;
+import org.apache.coyote.http11.Http11Nio2Protocol;
+import org.apache.coyote.http11.Http11NioProtocol;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.jni.Address;
@@ -34,6 +39,8 @@ import org.apache.tomcat.jni.Library;
 import org.apache.tomcat.jni.OS;
 import org.apache.tomcat.jni.Pool;
 import org.apache.tomcat.jni.Socket;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.compat.JreCompat;
 
 /**
  * Test case for the Endpoint implementations. The testing framework will ensure
@@ -199,4 +206,93 @@ public class TestXxxEndpoint extends TomcatBaseTest {
         Assert.assertNull(e);
         tomcat.getConnector().start();
     }
+
+    @Test
+    public void testReusePort() throws Exception {
+        Assume.assumeTrue(JreCompat.getInstance().isReusePortSupported());
+
+        Tomcat tomcat = getTomcatInstance();
+        Connector c = tomcat.getConnector();
+        ProtocolHandler handler = c.getProtocolHandler();
+        AbstractEndpoint<?> endpoint;
+        if (handler instanceof Http11NioProtocol) {
+            endpoint = ((Http11NioProtocol) handler).getEndpoint();
+        } else if (handler instanceof Http11Nio2Protocol) {
+            endpoint = ((Http11Nio2Protocol) handler).getEndpoint();
+        } else {
+            // reusePort is only supported by NIO and NIO2
+            Assume.assumeTrue(false);
+            return;
+        }
+        Assert.assertTrue(c.setProperty("reusePort", "true"));
+        Assert.assertTrue(c.setProperty("acceptorThreadCount", "4"));
+        // Ensure every request uses a new connection
+        Assert.assertTrue(c.setProperty("maxKeepAliveRequests", "1"));
+
+        Context root = tomcat.addContext("", TEMP_DIR);
+        Tomcat.addServlet(root, "hello", new HelloWorldServlet());
+        root.addServletMappingDecoded("/", "hello");
+
+        tomcat.start();
+
+        Assert.assertEquals(4, endpoint.getAcceptCounts().length);
+
+        int requests = 20;
+        for (int i = 0; i < requests; i++) {
+            ByteChunk res = getUrl("http://localhost:" + getPort() + "/");
+            Assert.assertEquals(HelloWorldServlet.RESPONSE_TEXT, res.toString());
+        }
+
+        Assert.assertEquals(requests, endpoint.getAcceptCount());
+    }
+
+
+    @Test
+    public void testPollerResize() throws Exception {
+        Tomcat tomcat = getTomcatInstance();
+        Connector c = tomcat.getConnector();
+        ProtocolHandler handler = c.getProtocolHandler();
+        if (!(handler instanceof Http11NioProtocol)) {
+            // Pollers are specific to NIO
+            Assume.assumeTrue(false);
+            return;
+        }
+        NioEndpoint endpoint = ((Http11NioProtocol) handler).getEndpoint();
+        Assert.assertTrue(c.setProperty("pollerThreadCount", "2"));
+        Assert.assertTrue(c.setProperty("leastLoadedPoller", "true"));
+        // Ensure every request uses a new connection
+        Assert.assertTrue(c.setProperty("maxKeepAliveRequests", "1"));
+
+        Context root = tomcat.addContext("", TEMP_DIR);
+        Tomcat.addServlet(root, "hello", new HelloWorldServlet());
+        root.addServletMappingDecoded("/", "hello");
+
+        tomcat.start();
+
+        Assert.assertEquals(2, endpoint.getPollerStatistics().length);
+        doHelloRequests(10);
+
+        endpoint.setPollerThreadCount(4);
+        Assert.assertEquals(4, endpoint.getPollerStatistics().length);
+        doHelloRequests(10);
+
+        endpoint.setPollerThreadCount(1);
+        doHelloRequests(10);
+
+        // The retired pollers stop once their connections have closed
+        int count = 0;
+        while (endpoint.getPollerStatistics().length > 1 && count < 50) {
+            Thread.sleep(100);
+            count++;
+        }
+        Assert.assertEquals(1, endpoint.getPollerStatistics().length);
+        doHelloRequests(10);
+    }
+
+    private void doHelloRequests(int requests) throws Exception {
+        for (int i = 0; i < requests; i++) {
+            ByteChunk res = getUrl("http://localhost:" + getPort() + "/");
+            Assert.assertEquals(HelloWorldServlet.RESPONSE_TEXT, res.toString());
+        }
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.net.jsse;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.X509KeyManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestNioX509KeyManager {
+
+    @Test
+    public void testKeyManagerNotEngineAware() {
+        NioX509KeyManager manager =
+                new NioX509KeyManager(new TesterX509KeyManager(), null);
+        Assert.assertEquals("tester",
+                manager.chooseEngineServerAlias("RSA", null, null));
+    }
+
+
+    @Test
+    public void testConfiguredAlias() {
+        NioX509KeyManager manager =
+                new NioX509KeyManager(new TesterX509KeyManager(), "configured");
+        Assert.assertEquals("configured",
+                manager.chooseEngineServerAlias("RSA", null, null));
+    }
+
+
+    /*
+     * Only implements X509KeyManager so JSSE would call chooseServerAlias()
+     * for it.
+     */
+    private static class TesterX509KeyManager implements X509KeyManager {
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return null;
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers,
+                Socket socket) {
+            return null;
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return new String[] { "tester" };
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers,
+                Socket socket) {
+            return "tester";
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return null;
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return null;
+        }
+    }
+}
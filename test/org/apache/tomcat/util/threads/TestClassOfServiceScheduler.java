@@ -0,0 +1,268 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.tomcat.util.threads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestClassOfServiceScheduler {
+
+    // This should be plenty of time, even on slow systems.
+    private static final long WAIT_TIME = 60000;
+
+    private ThreadPoolExecutor executor;
+
+
+    @After
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void testWeightedOrder() throws Exception {
+        ClassOfServiceScheduler scheduler = createScheduler(1, "high:9,low:1");
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        execute(scheduler, new BlockingTask(null, release, started));
+        Assert.assertTrue(started.await(WAIT_TIME, TimeUnit.MILLISECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 10; i++) {
+            execute(scheduler, new RecordingTask("low", order, done));
+            execute(scheduler, new RecordingTask("high", order, done));
+        }
+        Assert.assertEquals(20, scheduler.getQueueSize());
+
+        release.countDown();
+        Assert.assertTrue(done.await(WAIT_TIME, TimeUnit.MILLISECONDS));
+
+        // The first ten tasks to run are nine high and one low
+        int high = 0;
+        for (String schedulingClass : order.subList(0, 10)) {
+            if ("high".equals(schedulingClass)) {
+                high++;
+            }
+        }
+        Assert.assertEquals(9, high);
+        Assert.assertEquals(0, scheduler.getQueueSize());
+    }
+
+
+    @Test
+    public void testMaxThreads() throws Exception {
+        ClassOfServiceScheduler scheduler = createScheduler(4, "bulk:1:1");
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            execute(scheduler, new CountingTask("bulk", running, maxRunning, done));
+        }
+
+        // Other classes are not held up by the limit
+        CountDownLatch other = new CountDownLatch(1);
+        execute(scheduler, new RecordingTask(null,
+                Collections.synchronizedList(new ArrayList<String>()), other));
+        Assert.assertTrue(other.await(WAIT_TIME, TimeUnit.MILLISECONDS));
+
+        Assert.assertTrue(done.await(WAIT_TIME, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, maxRunning.get());
+    }
+
+
+    @Test
+    public void testReclassify() throws Exception {
+        ClassOfServiceScheduler scheduler = createScheduler(2, "bulk:1:1");
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        execute(scheduler, new BlockingTask("bulk", release, started));
+        Assert.assertTrue(started.await(WAIT_TIME, TimeUnit.MILLISECONDS));
+
+        CountDownLatch done = new CountDownLatch(1);
+        execute(scheduler, new RecordingTask("bulk",
+                Collections.synchronizedList(new ArrayList<String>()), done));
+
+        // The running task is now in the bulk class so the second one waits
+        Assert.assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, scheduler.getQueueSize());
+
+        release.countDown();
+        Assert.assertTrue(done.await(WAIT_TIME, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testReclassifyOutsideScheduler() {
+        // NO-OP
+        ClassOfServiceScheduler.reclassifyCurrentTask("bulk");
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidWeight() {
+        new ClassOfServiceScheduler("high:0", null);
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidFormat() {
+        new ClassOfServiceScheduler("high", null);
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testDuplicateClass() {
+        new ClassOfServiceScheduler("high:2,high:3", null);
+    }
+
+
+    @Test
+    public void testStatus() {
+        ClassOfServiceScheduler scheduler =
+                new ClassOfServiceScheduler("high:2,low:1:5", null);
+        Assert.assertEquals(3, scheduler.getStatus().length);
+    }
+
+
+    private ClassOfServiceScheduler createScheduler(int threads,
+            String schedulingClasses) {
+        TaskQueue taskQueue = new TaskQueue();
+        executor = new ThreadPoolExecutor(threads, threads, 60000,
+                TimeUnit.MILLISECONDS, taskQueue,
+                new TaskThreadFactory("cos-", true, Thread.NORM_PRIORITY));
+        taskQueue.setParent(executor);
+        return new ClassOfServiceScheduler(schedulingClasses, executor);
+    }
+
+
+    private void execute(ClassOfServiceScheduler scheduler, Runnable task) {
+        executor.execute(scheduler.schedule(task));
+    }
+
+
+    private static class RecordingTask implements ClassifiedTask {
+
+        private final String schedulingClass;
+        private final List<String> order;
+        private final CountDownLatch done;
+
+        RecordingTask(String schedulingClass, List<String> order,
+                CountDownLatch done) {
+            this.schedulingClass = schedulingClass;
+            this.order = order;
+            this.done = done;
+        }
+
+        @Override
+        public String getSchedulingClass() {
+            return schedulingClass;
+        }
+
+        @Override
+        public void run() {
+            order.add(schedulingClass);
+            done.countDown();
+        }
+    }
+
+
+    /*
+     * Starts in the default class, moves itself to the given class and then
+     * waits to be released.
+     */
+    private static class BlockingTask implements Runnable {
+
+        private final String schedulingClass;
+        private final CountDownLatch release;
+        private final CountDownLatch started;
+
+        BlockingTask(String schedulingClass, CountDownLatch release,
+                CountDownLatch started) {
+            this.schedulingClass = schedulingClass;
+            this.release = release;
+            this.started = started;
+        }
+
+        @Override
+        public void run() {
+            if (schedulingClass != null) {
+                ClassOfServiceScheduler.reclassifyCurrentTask(schedulingClass);
+            }
+            if (started != null) {
+                started.countDown();
+            }
+            try {
+                release.await(WAIT_TIME, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+    }
+
+
+    private static class CountingTask implements ClassifiedTask {
+
+        private final String schedulingClass;
+        private final AtomicInteger running;
+        private final AtomicInteger maxRunning;
+        private final CountDownLatch done;
+
+        CountingTask(String schedulingClass, AtomicInteger running,
+                AtomicInteger maxRunning, CountDownLatch done) {
+            this.schedulingClass = schedulingClass;
+            this.running = running;
+            this.maxRunning = maxRunning;
+            this.done = done;
+        }
+
+        @Override
+        public String getSchedulingClass() {
+            return schedulingClass;
+        }
+
+        @Override
+        public void run() {
+            int current = running.incrementAndGet();
+            synchronized (maxRunning) {
+                if (current > maxRunning.get()) {
+                    maxRunning.set(current);
+                }
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            running.decrementAndGet();
+            done.countDown();
+        }
+    }
+}